@@ -0,0 +1,213 @@
+package com.demo.fabric.blockchain;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.User;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+/**
+ * 历史区块回填
+ * 按区块号把区间分给 channel 的 LEDGER_QUERY peer 并行获取, 获取到的区块在 fork-join 线程池中解析和写入本地区块存储,
+ * 通过固定大小的重排窗口按区块号顺序交给调用方: 最多只有一个窗口的区块在内存中, 窗口最早的区块交出后才获取下一个。
+ */
+@Slf4j
+@Service("blockBackfillService")
+public class BlockBackfillService {
+
+    @Resource
+    private ChannelService channelService;
+
+    @Resource
+    private LedgerBlockStore ledgerBlockStore;
+
+    /**
+     * 每个 peer 同时进行的区块查询数
+     */
+    @Value("${blockchain.backfill.perPeerConcurrency:4}")
+    private int perPeerConcurrency;
+
+    /**
+     * 重排窗口大小(区块数), 即同时在内存中的最大区块数
+     */
+    @Value("${blockchain.backfill.window:256}")
+    private int window;
+
+    /**
+     * 单个区块在所有 peer 上的最大尝试次数
+     */
+    @Value("${blockchain.backfill.attempts:3}")
+    private int attempts;
+
+    /**
+     * 单个区块查询的超时时间(毫秒)
+     */
+    @Value("${blockchain.backfill.timeout:60000}")
+    private long timeout;
+
+    /**
+     * 接收回填区块, 按区块号顺序调用
+     */
+    public interface BlockSink {
+        void accept(BlockInfo blockInfo) throws Exception;
+    }
+
+    /**
+     * 从创世区块回填到当前高度
+     * @param channelName
+     * @param user 查询账本使用的身份
+     * @param sink
+     * @return 回填的区块数
+     * @throws Exception
+     */
+    public long backfill(String channelName, User user, BlockSink sink) throws Exception{
+        return backfill(channelName, 0, -1, user, sink);
+    }
+
+    /**
+     * 回填 [fromBlock, toBlock) 区间的区块
+     * @param channelName
+     * @param fromBlock 起始区块号
+     * @param toBlock 结束区块号(不含), 小于 0 时为当前区块链高度
+     * @param user 查询账本使用的身份
+     * @param sink 在调用线程中按区块号顺序调用
+     * @return 回填的区块数
+     * @throws Exception 任一区块在所有 peer 上都获取失败或 sink 抛出异常时停止回填
+     */
+    public long backfill(String channelName, long fromBlock, long toBlock, User user, BlockSink sink) throws Exception{
+        Channel channel = channelService.getChannel(channelName);
+        List<Peer> peers = new ArrayList<>(channel.getPeers(EnumSet.of(Peer.PeerRole.LEDGER_QUERY)));
+        if (peers.isEmpty()) {
+            throw new IllegalStateException(format("Channel %s has no ledger query peers", channelName));
+        }
+        long end = toBlock < 0 ? channel.queryBlockchainInfo(peers, user).getHeight() : toBlock;
+        if (fromBlock >= end) {
+            return 0;
+        }
+        log.info(format("Backfilling blocks [%d, %d) of channel %s from %d peers", fromBlock, end, channelName, peers.size()));
+
+        ExecutorService fetchExecutor = Executors.newFixedThreadPool(peers.size() * perPeerConcurrency,
+                new ThreadFactoryBuilder().setNameFormat("block-backfill-" + channelName + "-%d").setDaemon(true).build());
+        Backfill backfill = new Backfill(channel, peers, user, fetchExecutor);
+        // 重排窗口: 槽位 n % window 存放区块 n 的结果
+        List<CompletableFuture<BlockInfo>> slots = new ArrayList<>(window);
+        long started = System.currentTimeMillis();
+        long emitted = 0;
+        try {
+            long next = fromBlock;
+            for (; next < end && next < fromBlock + window; next++) {
+                slots.add(backfill.submit(next));
+            }
+            for (long blockNumber = fromBlock; blockNumber < end; blockNumber++) {
+                int slot = (int) ((blockNumber - fromBlock) % window);
+                BlockInfo blockInfo = await(slots.get(slot), blockNumber, channelName);
+                slots.set(slot, next < end ? backfill.submit(next++) : null);
+                sink.accept(blockInfo);
+                emitted++;
+            }
+        } finally {
+            for (CompletableFuture<BlockInfo> future : slots) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+            fetchExecutor.shutdownNow();
+        }
+        log.info(format("Backfilled %d blocks of channel %s in %d ms, %d fetched from peers",
+                emitted, channelName, System.currentTimeMillis() - started, backfill.fetched.get()));
+        return emitted;
+    }
+
+    private BlockInfo await(CompletableFuture<BlockInfo> future, long blockNumber, String channelName) throws Exception{
+        try {
+            return future.get(timeout * attempts, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new Exception(format("Failed to backfill block %d of channel %s", blockNumber, channelName), e.getCause());
+        } catch (TimeoutException e) {
+            throw new TimeoutException(format("Timed out backfilling block %d of channel %s", blockNumber, channelName));
+        }
+    }
+
+    /**
+     * 一次回填的获取和解析
+     */
+    private final class Backfill {
+
+        private final Channel channel;
+
+        private final List<Peer> peers;
+
+        private final User user;
+
+        private final ExecutorService fetchExecutor;
+
+        private final AtomicLong fetched = new AtomicLong();
+
+        Backfill(Channel channel, List<Peer> peers, User user, ExecutorService fetchExecutor) {
+            this.channel = channel;
+            this.peers = peers;
+            this.user = user;
+            this.fetchExecutor = fetchExecutor;
+        }
+
+        /**
+         * 本地区块存储已有的区块直接在 fork-join 线程池中解析, 否则从 peer 获取后在 fork-join 线程池中写入本地
+         */
+        CompletableFuture<BlockInfo> submit(long blockNumber) {
+            if (ledgerBlockStore.contains(channel.getName(), blockNumber)) {
+                return CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return ledgerBlockStore.getBlockInfo(channel.getName(), blockNumber);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, ForkJoinPool.commonPool());
+            }
+            return CompletableFuture.supplyAsync(() -> fetch(blockNumber), fetchExecutor)
+                    .thenApplyAsync(this::store, ForkJoinPool.commonPool());
+        }
+
+        /**
+         * 区块号决定首选 peer, 失败时依次换下一个 peer
+         */
+        private BlockInfo fetch(long blockNumber) {
+            Exception last = null;
+            for (int attempt = 0; attempt < attempts; attempt++) {
+                Peer peer = peers.get((int) ((blockNumber + attempt) % peers.size()));
+                try {
+                    BlockInfo blockInfo = channel.queryBlockByNumber(peer, blockNumber, user);
+                    fetched.incrementAndGet();
+                    return blockInfo;
+                } catch (Exception e) {
+                    last = e;
+                    log.warn(format("Failed to fetch block %d of channel %s from peer %s, attempt %d",
+                            blockNumber, channel.getName(), peer.getName(), attempt + 1), e);
+                }
+            }
+            throw new CompletionException(last);
+        }
+
+        private BlockInfo store(BlockInfo blockInfo) {
+            if (ledgerBlockStore.isEnabled() && !blockInfo.isFiltered()) {
+                try {
+                    ledgerBlockStore.append(channel.getName(), blockInfo.getBlock());
+                } catch (Exception e) {
+                    log.warn(format("Failed to store backfilled block %d of channel %s", blockInfo.getBlockNumber(), channel.getName()), e);
+                }
+            }
+            return blockInfo;
+        }
+    }
+}
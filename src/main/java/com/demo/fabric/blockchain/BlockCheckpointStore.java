@@ -0,0 +1,185 @@
+package com.demo.fabric.blockchain;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.Peer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.lang.String.format;
+
+/**
+ * 区块事件检查点
+ * 每个订阅方(BlockListener)处理完区块后由 {@link BlockEventDispatcher} 确认, 按 channel、事件来源 peer、订阅方分别记录
+ * 最后处理的区块号, 在内存中更新, 由后台线程定时批量写入本地文件(先写临时文件再原子替换)。
+ * channel/peer 的检查点取所有已注册订阅方中最小的一个, 重启后事件从它的下一个区块继续, 慢订阅方还没处理的区块不会丢失;
+ * 监听方需要能容忍重复的区块(其他订阅方已处理过的区块、写入文件之前的区块会再次收到)。
+ * 检查点只按连续的区块前进, 订阅方漏掉区块后停在缺口之前, 重启后从缺口处重新投递。
+ */
+@Slf4j
+@Component("blockCheckpointStore")
+public class BlockCheckpointStore {
+
+    /**
+     * 检查点文件
+     */
+    @Value("${blockchain.events.checkpointFile:${user.home}/.fabric-sdk/block-checkpoints.properties}")
+    private String checkpointFile;
+
+    /**
+     * 写入文件的间隔(毫秒)
+     */
+    @Value("${blockchain.events.checkpointFlushMs:1000}")
+    private long flushIntervalMs;
+
+    /**
+     * channel/peer/订阅方 -> 最后处理的区块号
+     */
+    private final ConcurrentMap<String, Long> checkpoints = new ConcurrentHashMap<>();
+
+    /**
+     * 参与检查点的订阅方
+     */
+    private final Set<String> subscribers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 检查点停在缺口之前的 channel/peer/订阅方, 只用于避免重复告警
+     */
+    private final Set<String> gaps = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    private Path path;
+
+    private ScheduledExecutorService flushScheduler;
+
+    @PostConstruct
+    protected void init() throws IOException{
+        path = Paths.get(checkpointFile);
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        if (Files.exists(path)) {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(path)) {
+                properties.load(in);
+            }
+            for (String key : properties.stringPropertyNames()) {
+                checkpoints.put(key, Long.parseLong(properties.getProperty(key)));
+            }
+            log.info(format("Loaded %d block checkpoints from %s", checkpoints.size(), path));
+        }
+        flushScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("block-checkpoint-%d").setDaemon(true).build());
+        flushScheduler.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    protected void destroy(){
+        flushScheduler.shutdown();
+        flushQuietly();
+    }
+
+    /**
+     * 注册订阅方, 注册后该订阅方没有确认的区块不会计入检查点
+     * @param subscriber 订阅方名称, 重启后需要保持不变
+     */
+    public void register(String subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * 所有订阅方都已处理完的最后一个区块号
+     * @param channelName
+     * @param peerName
+     * @return 没有检查点或有订阅方还没有检查点时返回 -1
+     */
+    public long getCheckpoint(String channelName, String peerName) {
+        if (subscribers.isEmpty()) {
+            return -1L;
+        }
+        long checkpoint = Long.MAX_VALUE;
+        for (String subscriber : subscribers) {
+            checkpoint = Math.min(checkpoint, checkpoints.getOrDefault(key(channelName, peerName, subscriber), -1L));
+        }
+        return checkpoint;
+    }
+
+    /**
+     * 订阅方处理完区块后确认
+     * 没有检查点时从该区块开始; 之后只有紧接检查点的区块才前进, 跳过的区块要等重启后重新投递
+     * @param subscriber
+     * @param blockEvent
+     */
+    public void acknowledge(String subscriber, BlockEvent blockEvent) {
+        Peer peer = blockEvent.getPeer();
+        String peerName = peer != null ? peer.getName()
+                : blockEvent.getEventHub() != null ? blockEvent.getEventHub().getName() : "";
+        long blockNumber = blockEvent.getBlockNumber();
+        String key = key(blockEvent.getChannelId(), peerName, subscriber);
+        long checkpoint = checkpoints.compute(key, (k, current) -> current == null || blockNumber == current + 1
+                ? blockNumber : current);
+        if (checkpoint == blockNumber) {
+            gaps.remove(key);
+            dirty.set(true);
+        } else if (blockNumber > checkpoint + 1 && gaps.add(key)) {
+            log.warn(format("Block %d acknowledged by %s after block %d on channel %s peer %s, checkpoint held before the gap",
+                    blockNumber, subscriber, checkpoint, blockEvent.getChannelId(), peerName));
+        }
+    }
+
+    /**
+     * 将检查点写入文件, 没有变化时不写
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException{
+        if (!dirty.getAndSet(false)) {
+            return;
+        }
+        Properties properties = new Properties();
+        checkpoints.forEach((key, blockNumber) -> properties.setProperty(key, String.valueOf(blockNumber)));
+        Path tempFile = Files.createTempFile(path.toAbsolutePath().getParent(), "block-checkpoints", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tempFile)) {
+                properties.store(out, "last processed block per channel/peer/subscriber");
+            }
+            Files.move(tempFile, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            dirty.set(true);
+            throw e;
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            log.warn(format("Failed to write block checkpoints to %s", path), e);
+        }
+    }
+
+    private static String key(String channelName, String peerName, String subscriber) {
+        return channelName + "/" + peerName + "/" + subscriber;
+    }
+}
@@ -0,0 +1,428 @@
+package com.demo.fabric.blockchain;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockListener;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+/**
+ * 区块事件分发
+ * SDK 事件线程只负责把区块放入每个订阅的有界环形缓冲区, 由独立线程池按订阅方的请求量(request(n))投递,
+ * 缓冲区满时按订阅的溢出策略处理, 慢订阅方不会阻塞 peer 事件流(BLOCK 策略除外)。
+ * BlockListener bean 会自动以默认策略订阅, 每处理完一个区块向 {@link BlockCheckpointStore} 确认;
+ * 监听方不能漏掉区块, 默认策略为 DROP_OLDEST 时改用 BLOCK。
+ */
+@Slf4j
+@Component("blockEventDispatcher")
+public class BlockEventDispatcher implements Publisher<BlockEvent> {
+
+    /**
+     * 缓冲区满时的处理策略
+     */
+    public enum OverflowPolicy {
+        /** 阻塞 SDK 事件线程直到缓冲区有空间 */
+        BLOCK,
+        /** 丢弃最早的事件 */
+        DROP_OLDEST,
+        /** 写入磁盘溢出文件, 按顺序投递 */
+        SPILL_TO_DISK
+    }
+
+    /**
+     * 每个订阅的缓冲区大小
+     */
+    @Value("${blockchain.events.bufferSize:1024}")
+    private int bufferSize;
+
+    /**
+     * 默认溢出策略
+     */
+    @Value("${blockchain.events.overflowPolicy:SPILL_TO_DISK}")
+    private OverflowPolicy overflowPolicy;
+
+    /**
+     * 溢出文件目录
+     */
+    @Value("${blockchain.events.spillPath:${java.io.tmpdir}/block-events}")
+    private String spillPath;
+
+    /**
+     * 投递事件的线程数
+     */
+    @Value("${blockchain.events.threads:4}")
+    private int threads;
+
+    /**
+     * 区块事件的订阅者, 如查询缓存失效
+     */
+    @Autowired(required = false)
+    private List<BlockListener> blockListeners = Collections.emptyList();
+
+    /**
+     * BlockListener 处理完区块后记录检查点
+     */
+    @Autowired(required = false)
+    private BlockCheckpointStore blockCheckpointStore;
+
+    private final List<BlockSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger subscriptionIds = new AtomicInteger();
+
+    private ExecutorService dispatchExecutor;
+
+    @PostConstruct
+    protected void init() throws IOException{
+        if (overflowPolicy == OverflowPolicy.SPILL_TO_DISK && !BlockEventSpill.isSupported()) {
+            log.warn("BlockEvent cannot be rebuilt from disk with this SDK version, falling back to BLOCK overflow policy");
+            overflowPolicy = OverflowPolicy.BLOCK;
+        }
+        Files.createDirectories(Paths.get(spillPath));
+        dispatchExecutor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("block-event-%d").setDaemon(true).build());
+        OverflowPolicy listenerPolicy = overflowPolicy;
+        if (listenerPolicy == OverflowPolicy.DROP_OLDEST && !blockListeners.isEmpty()) {
+            log.warn("Block listeners must not miss blocks, subscribing them with BLOCK overflow policy instead of DROP_OLDEST");
+            listenerPolicy = OverflowPolicy.BLOCK;
+        }
+        for (BlockListener blockListener : blockListeners) {
+            publisher(null, listenerPolicy).subscribe(new ListenerSubscriber(blockListener));
+        }
+    }
+
+    @PreDestroy
+    protected void destroy(){
+        for (BlockSubscription subscription : subscriptions) {
+            subscription.cancel();
+        }
+        dispatchExecutor.shutdown();
+    }
+
+    /**
+     * 由 SDK 事件线程调用, 将区块放入所有订阅的缓冲区
+     * @param blockEvent
+     */
+    public void publish(BlockEvent blockEvent) {
+        if (log.isDebugEnabled()) {
+            log.debug(format("Received block %d on channel %s with %d envelopes",
+                    blockEvent.getBlockNumber(), blockEvent.getChannelId(), blockEvent.getEnvelopeCount()));
+        }
+        for (BlockSubscription subscription : subscriptions) {
+            subscription.offer(blockEvent);
+        }
+    }
+
+    /**
+     * 以默认溢出策略订阅所有 channel 的区块
+     * @param subscriber
+     */
+    @Override
+    public void subscribe(Subscriber<? super BlockEvent> subscriber) {
+        publisher(null, overflowPolicy).subscribe(subscriber);
+    }
+
+    /**
+     * 指定 channel 和溢出策略的区块事件流
+     * @param channelName 为 null 时订阅所有 channel
+     * @param policy 缓冲区满时的处理策略
+     * @return
+     */
+    public Publisher<BlockEvent> publisher(String channelName, OverflowPolicy policy) {
+        OverflowPolicy effectivePolicy = policy == OverflowPolicy.SPILL_TO_DISK && !BlockEventSpill.isSupported()
+                ? OverflowPolicy.BLOCK : policy;
+        return subscriber -> {
+            Objects.requireNonNull(subscriber, "subscriber");
+            BlockSubscription subscription = new BlockSubscription(channelName, effectivePolicy, subscriber);
+            subscriptions.add(subscription);
+            subscriber.onSubscribe(subscription);
+        };
+    }
+
+    /**
+     * 各订阅的缓冲和投递统计
+     * @return
+     */
+    public List<Map<String, Object>> statistics() {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (BlockSubscription subscription : subscriptions) {
+            result.add(subscription.statistics());
+        }
+        return result;
+    }
+
+    /**
+     * 一个订阅: 有界缓冲区, 缓冲区满时按策略阻塞、丢弃或溢出到磁盘
+     */
+    private final class BlockSubscription implements Subscription {
+
+        private final int id = subscriptionIds.incrementAndGet();
+
+        private final String channelName;
+
+        private final OverflowPolicy policy;
+
+        private final Subscriber<? super BlockEvent> subscriber;
+
+        private final ArrayBlockingQueue<BlockEvent> buffer = new ArrayBlockingQueue<>(bufferSize);
+
+        private final AtomicLong requested = new AtomicLong();
+
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private final AtomicLong delivered = new AtomicLong();
+
+        private final AtomicLong dropped = new AtomicLong();
+
+        private final AtomicLong spilled = new AtomicLong();
+
+        /**
+         * 溢出文件, 只在持有 this 锁时访问
+         */
+        private BlockEventSpill spill;
+
+        private volatile boolean cancelled;
+
+        BlockSubscription(String channelName, OverflowPolicy policy, Subscriber<? super BlockEvent> subscriber) {
+            this.channelName = channelName;
+            this.policy = policy;
+            this.subscriber = subscriber;
+        }
+
+        void offer(BlockEvent blockEvent) {
+            if (cancelled || (channelName != null && !channelName.equals(blockEvent.getChannelId()))) {
+                return;
+            }
+            switch (policy) {
+                case BLOCK:
+                    try {
+                        while (!cancelled && !buffer.offer(blockEvent, 100, TimeUnit.MILLISECONDS)) {
+                            drain();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped.incrementAndGet();
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (!buffer.offer(blockEvent)) {
+                        if (buffer.poll() != null) {
+                            dropped.incrementAndGet();
+                        }
+                    }
+                    break;
+                case SPILL_TO_DISK:
+                    synchronized (this) {
+                        // 已有溢出的事件时后续事件也写入磁盘, 保证顺序
+                        if ((spill == null || spill.pending() == 0) && buffer.offer(blockEvent)) {
+                            break;
+                        }
+                        try {
+                            if (spill == null) {
+                                spill = new BlockEventSpill(Files.createTempFile(Paths.get(spillPath), "subscription-" + id + "-", ".spill"));
+                            }
+                            spill.append(blockEvent);
+                            spilled.incrementAndGet();
+                        } catch (IOException e) {
+                            dropped.incrementAndGet();
+                            log.error(format("Failed to spill block %d of channel %s, block dropped for subscription %d",
+                                    blockEvent.getBlockNumber(), blockEvent.getChannelId(), id), e);
+                        }
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown overflow policy " + policy);
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("request must be positive, was " + n));
+                return;
+            }
+            requested.accumulateAndGet(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            subscriptions.remove(this);
+            buffer.clear();
+            synchronized (this) {
+                if (spill != null) {
+                    try {
+                        spill.close();
+                    } catch (IOException e) {
+                        log.warn(format("Failed to delete spill file of subscription %d", id), e);
+                    }
+                    spill = null;
+                }
+            }
+        }
+
+        /**
+         * 同一时刻只有一个线程投递, 保证 onNext 串行调用
+         */
+        private void drain() {
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    dispatchExecutor.execute(this::drainLoop);
+                } catch (RejectedExecutionException e) {
+                    wip.set(0);
+                }
+            }
+        }
+
+        private void drainLoop() {
+            int missed = 1;
+            do {
+                long demand = requested.get();
+                long emitted = 0;
+                while (emitted != demand && !cancelled) {
+                    BlockEvent next = poll();
+                    if (next == null) {
+                        break;
+                    }
+                    try {
+                        subscriber.onNext(next);
+                    } catch (Throwable e) {
+                        log.error(format("Subscriber of subscription %d failed, cancelling", id), e);
+                        cancel();
+                        return;
+                    }
+                    emitted++;
+                }
+                if (emitted != 0) {
+                    delivered.addAndGet(emitted);
+                    if (demand != Long.MAX_VALUE) {
+                        requested.addAndGet(-emitted);
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * 先取缓冲区中较早的事件, 缓冲区空了再读取溢出文件
+         */
+        private BlockEvent poll() {
+            BlockEvent next = buffer.poll();
+            if (next != null || policy != OverflowPolicy.SPILL_TO_DISK) {
+                return next;
+            }
+            synchronized (this) {
+                next = buffer.poll();
+                if (next == null && spill != null) {
+                    try {
+                        next = spill.read();
+                    } catch (IOException e) {
+                        log.error(format("Failed to read spilled block for subscription %d", id), e);
+                    }
+                }
+                return next;
+            }
+        }
+
+        Map<String, Object> statistics() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("id", id);
+            result.put("subscriber", subscriber.toString());
+            result.put("channel", channelName == null ? "*" : channelName);
+            result.put("policy", policy);
+            result.put("buffered", buffer.size());
+            synchronized (this) {
+                result.put("spilledPending", spill == null ? 0 : spill.pending());
+            }
+            result.put("requested", requested.get());
+            result.put("delivered", delivered.get());
+            result.put("spilled", spilled.get());
+            result.put("dropped", dropped.get());
+            return result;
+        }
+    }
+
+    /**
+     * 将 BlockListener 适配为订阅方, 一次请求一个缓冲区大小的事件
+     */
+    private final class ListenerSubscriber implements Subscriber<BlockEvent> {
+
+        private final BlockListener blockListener;
+
+        private final String name;
+
+        private Subscription subscription;
+
+        private int received;
+
+        ListenerSubscriber(BlockListener blockListener) {
+            this.blockListener = blockListener;
+            this.name = ClassUtils.getUserClass(blockListener).getSimpleName();
+            if (blockCheckpointStore != null) {
+                blockCheckpointStore.register(name);
+            }
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(bufferSize);
+        }
+
+        @Override
+        public void onNext(BlockEvent blockEvent) {
+            try {
+                blockListener.received(blockEvent);
+            } catch (Exception e) {
+                log.warn(format("Block listener %s failed on block %d of channel %s",
+                        name, blockEvent.getBlockNumber(), blockEvent.getChannelId()), e);
+            }
+            // 处理失败由监听方自己补救(如本地区块存储未命中时查询 peer), 检查点不能停在这个区块上
+            if (blockCheckpointStore != null) {
+                blockCheckpointStore.acknowledge(name, blockEvent);
+            }
+            if (++received == bufferSize) {
+                received = 0;
+                subscription.request(bufferSize);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            log.error(format("Block listener %s subscription failed", name), throwable);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.demo.fabric.blockchain;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 区块事件订阅的缓冲和投递监控, 访问 /actuator/blockevents
+ */
+@Component
+@Endpoint(id = "blockevents")
+public class BlockEventEndpoint {
+
+    @Resource
+    private BlockEventDispatcher blockEventDispatcher;
+
+    @ReadOperation
+    public List<Map<String, Object>> statistics() {
+        return blockEventDispatcher.statistics();
+    }
+}
@@ -0,0 +1,139 @@
+package com.demo.fabric.blockchain;
+
+import org.hyperledger.fabric.protos.peer.PeerEvents;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.Peer;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * 区块事件溢出文件, 先进先出
+ * 每条记录为 [来源 peer 名称长度][名称][DeliverResponse 长度][DeliverResponse], 读完后截断文件回收空间。
+ * BlockEvent 没有公开的构造方法, 读取时通过反射用 DeliverResponse 重新构造; 来源为 EventHub 的事件重建后 getPeer() 为 null。
+ */
+class BlockEventSpill implements AutoCloseable {
+
+    private static final Constructor<BlockEvent> DELIVER_CONSTRUCTOR = deliverConstructor();
+
+    private final Path file;
+
+    private final FileChannel channel;
+
+    /**
+     * 重建事件时使用的来源 peer
+     */
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    private long readPosition;
+
+    private long writePosition;
+
+    private int pending;
+
+    BlockEventSpill(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * 当前 SDK 是否支持重建 BlockEvent
+     * @return
+     */
+    static boolean isSupported() {
+        return DELIVER_CONSTRUCTOR != null;
+    }
+
+    int pending() {
+        return pending;
+    }
+
+    void append(BlockEvent blockEvent) throws IOException {
+        PeerEvents.DeliverResponse.Builder response = PeerEvents.DeliverResponse.newBuilder();
+        if (blockEvent.isFiltered()) {
+            response.setFilteredBlock(blockEvent.getFilteredBlock());
+        } else {
+            response.setBlock(blockEvent.getBlock());
+        }
+        Peer peer = blockEvent.getPeer();
+        String peerName = peer == null ? "" : peer.getName();
+        if (peer != null) {
+            peers.putIfAbsent(peerName, peer);
+        }
+        byte[] name = peerName.getBytes(UTF_8);
+        byte[] body = response.build().toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(8 + name.length + body.length);
+        buffer.putInt(name.length).put(name).putInt(body.length).put(body).flip();
+        while (buffer.hasRemaining()) {
+            writePosition += channel.write(buffer, writePosition);
+        }
+        pending++;
+    }
+
+    /**
+     * 读取最早的事件
+     * @return 没有事件时返回 null
+     * @throws IOException
+     */
+    BlockEvent read() throws IOException {
+        if (pending == 0) {
+            return null;
+        }
+        byte[] name = new byte[readInt()];
+        readFully(ByteBuffer.wrap(name));
+        byte[] body = new byte[readInt()];
+        readFully(ByteBuffer.wrap(body));
+        if (--pending == 0) {
+            channel.truncate(0);
+            readPosition = 0;
+            writePosition = 0;
+        }
+        try {
+            return DELIVER_CONSTRUCTOR.newInstance(peers.get(new String(name, UTF_8)), PeerEvents.DeliverResponse.parseFrom(body));
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Failed to rebuild spilled block event", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+
+    private int readInt() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        readFully(buffer);
+        return buffer.getInt(0);
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, readPosition);
+            if (n < 0) {
+                throw new IOException("Unexpected end of spill file " + file);
+            }
+            readPosition += n;
+        }
+    }
+
+    private static Constructor<BlockEvent> deliverConstructor() {
+        try {
+            Constructor<BlockEvent> constructor = BlockEvent.class.getDeclaredConstructor(Peer.class, PeerEvents.DeliverResponse.class);
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
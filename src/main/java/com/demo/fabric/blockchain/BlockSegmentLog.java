@@ -0,0 +1,218 @@
+package com.demo.fabric.blockchain;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.lang.String.format;
+
+/**
+ * 只追加的分段记录文件, 每个分段以内存映射方式读写
+ * 每条记录为 [长度][内容], 先写内容和下一条记录位置的结束标记 0 再写长度, 长度为 0 表示分段结束;
+ * 异常退出时不完整的记录在重新打开时丢弃, 并清零其后的内容, 之后写入的较短记录后面不会留下旧记录的残余。
+ * 记录位置为 (分段序号 << 32 | 分段内偏移)。只有一个写线程(append 加锁), 读取不加锁。
+ */
+class BlockSegmentLog implements AutoCloseable {
+
+    /**
+     * 重新打开时逐条回放记录
+     */
+    interface RecordVisitor {
+        /**
+         * @return 记录无效时返回 false, 从该位置开始覆盖写入
+         */
+        boolean visit(long location, byte[] record);
+    }
+
+    private static final String SUFFIX = ".seg";
+
+    private final Path dir;
+
+    private final int segmentBytes;
+
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+
+    private int writePosition;
+
+    BlockSegmentLog(Path dir, int segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * 映射已有的分段并回放其中的记录
+     * @param visitor
+     * @throws IOException
+     */
+    synchronized void open(RecordVisitor visitor) throws IOException {
+        Files.createDirectories(dir);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        files.sort(null);
+        for (int id = 0; id < files.size(); id++) {
+            Path file = segmentFile(id);
+            if (!Files.exists(file)) {
+                throw new IOException(format("Segment %s is missing in %s", file.getFileName(), dir));
+            }
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.add(new Segment(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size())));
+            writePosition = replay(id, visitor);
+        }
+    }
+
+    /**
+     * 追加一条记录
+     * @param record
+     * @return 记录位置
+     * @throws IOException
+     */
+    synchronized long append(byte[] record) throws IOException {
+        int id = segments.size() - 1;
+        if (id < 0 || writePosition + 4L + record.length > segments.get(id).buffer.capacity()) {
+            id = newSegment(4 + record.length);
+        }
+        MappedByteBuffer buffer = segments.get(id).buffer;
+        ByteBuffer body = buffer.duplicate();
+        body.position(writePosition + 4);
+        body.put(record);
+        int next = writePosition + 4 + record.length;
+        if (next + 4 <= buffer.capacity()) {
+            buffer.putInt(next, 0);
+        }
+        buffer.putInt(writePosition, record.length);
+        long location = ((long) id << 32) | writePosition;
+        writePosition += 4 + record.length;
+        return location;
+    }
+
+    /**
+     * 丢弃从指定位置开始的所有记录, 之后从该位置继续写
+     * @param location append 返回的位置或回放时的记录位置
+     * @throws IOException
+     */
+    synchronized void truncate(long location) throws IOException {
+        int id = (int) (location >>> 32);
+        while (segments.size() > id + 1) {
+            Segment segment = segments.remove(segments.size() - 1);
+            segment.channel.close();
+            Files.delete(segmentFile(segments.size()));
+        }
+        writePosition = (int) location;
+        zeroTail(id, writePosition);
+    }
+
+    /**
+     * 读取记录
+     * @param location append 返回的位置
+     * @return
+     */
+    byte[] read(long location) {
+        ByteBuffer buffer = segments.get((int) (location >>> 32)).buffer.duplicate();
+        int offset = (int) location;
+        byte[] record = new byte[buffer.getInt(offset)];
+        buffer.position(offset + 4);
+        buffer.get(record);
+        return record;
+    }
+
+    /**
+     * 记录内容的只读视图, 直接引用映射内存, 不复制
+     * @param location append 返回的位置
+     * @return
+     */
+    ByteBuffer view(long location) {
+        ByteBuffer buffer = segments.get((int) (location >>> 32)).buffer.asReadOnlyBuffer();
+        int offset = (int) location;
+        buffer.limit(offset + 4 + buffer.getInt(offset));
+        buffer.position(offset + 4);
+        return buffer.slice();
+    }
+
+    /**
+     * 已映射的字节数
+     * @return
+     */
+    long mappedBytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.buffer.capacity();
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            segment.channel.close();
+        }
+        segments.clear();
+    }
+
+    private int replay(int id, RecordVisitor visitor) {
+        ByteBuffer buffer = segments.get(id).buffer.duplicate();
+        int position = 0;
+        while (position + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 4L + length > buffer.capacity()) {
+                break;
+            }
+            byte[] record = new byte[length];
+            buffer.position(position + 4);
+            buffer.get(record);
+            if (!visitor.visit(((long) id << 32) | position, record)) {
+                break;
+            }
+            position += 4 + length;
+        }
+        // 清零不完整记录及其后的内容, 之后从这里继续写
+        zeroTail(id, position);
+        return position;
+    }
+
+    /**
+     * 只写非零的字节, 避免把整个空闲区域变成脏页
+     */
+    private void zeroTail(int id, int position) {
+        MappedByteBuffer tail = segments.get(id).buffer;
+        for (int i = position; i < tail.capacity(); i++) {
+            if (tail.get(i) != 0) {
+                tail.put(i, (byte) 0);
+            }
+        }
+    }
+
+    private int newSegment(int minBytes) throws IOException {
+        int id = segments.size();
+        FileChannel channel = FileChannel.open(segmentFile(id), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int size = Math.max(segmentBytes, minBytes + 4);
+        segments.add(new Segment(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size)));
+        writePosition = 0;
+        return id;
+    }
+
+    private Path segmentFile(int id) {
+        return dir.resolve(format("%08d%s", id, SUFFIX));
+    }
+
+    private static final class Segment {
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(FileChannel channel, MappedByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.demo.fabric.blockchain;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import org.hyperledger.fabric.protos.common.Configtx;
+import org.hyperledger.fabric.protos.orderer.Configuration.BatchSize;
+import org.hyperledger.fabric.protos.orderer.Configuration.BatchTimeout;
+import org.hyperledger.fabric.protos.peer.Configuration.AnchorPeer;
+import org.hyperledger.fabric.protos.peer.Configuration.AnchorPeers;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * channel 配置编辑器
+ * 直接解析 channel.getChannelConfigurationBytes() 返回的 common.Config, 修改后在本地计算 ConfigUpdate,
+ * 不需要通过 configtxlator 转换 JSON。
+ */
+public class ChannelConfigEditor {
+
+    public static final String ORDERER_GROUP = "Orderer";
+
+    public static final String APPLICATION_GROUP = "Application";
+
+    public static final String BATCH_TIMEOUT_KEY = "BatchTimeout";
+
+    public static final String BATCH_SIZE_KEY = "BatchSize";
+
+    public static final String ANCHOR_PEERS_KEY = "AnchorPeers";
+
+    /**
+     * 新增配置项时使用的修改策略
+     */
+    private static final String DEFAULT_MOD_POLICY = "Admins";
+
+    private final Configtx.Config original;
+
+    private Configtx.ConfigGroup channelGroup;
+
+    private ChannelConfigEditor(Configtx.Config original) {
+        this.original = original;
+        this.channelGroup = original.getChannelGroup();
+    }
+
+    /**
+     * 解析 channel 配置
+     * @param configBytes common.Config 字节
+     * @return
+     * @throws InvalidProtocolBufferException
+     */
+    public static ChannelConfigEditor parse(byte[] configBytes) throws InvalidProtocolBufferException {
+        return new ChannelConfigEditor(Configtx.Config.parseFrom(configBytes));
+    }
+
+    public static ChannelConfigEditor of(Configtx.Config config) {
+        return new ChannelConfigEditor(config);
+    }
+
+    /**
+     * 区块生成超时时间, 如 "2s"
+     * @return
+     * @throws InvalidProtocolBufferException
+     */
+    public String getBatchTimeout() throws InvalidProtocolBufferException {
+        return BatchTimeout.parseFrom(getValue(BATCH_TIMEOUT_KEY, ORDERER_GROUP)).getTimeout();
+    }
+
+    public ChannelConfigEditor setBatchTimeout(String timeout) {
+        return setValue(BatchTimeout.newBuilder().setTimeout(timeout).build(), BATCH_TIMEOUT_KEY, ORDERER_GROUP);
+    }
+
+    /**
+     * 区块大小限制
+     * @return
+     * @throws InvalidProtocolBufferException
+     */
+    public BatchSize getBatchSize() throws InvalidProtocolBufferException {
+        return BatchSize.parseFrom(getValue(BATCH_SIZE_KEY, ORDERER_GROUP));
+    }
+
+    /**
+     * 修改区块大小限制
+     * @param maxMessageCount 每个区块最多交易数
+     * @param absoluteMaxBytes 区块最大字节数
+     * @param preferredMaxBytes 区块建议字节数
+     * @return
+     */
+    public ChannelConfigEditor setBatchSize(int maxMessageCount, int absoluteMaxBytes, int preferredMaxBytes) {
+        return setValue(BatchSize.newBuilder()
+                .setMaxMessageCount(maxMessageCount)
+                .setAbsoluteMaxBytes(absoluteMaxBytes)
+                .setPreferredMaxBytes(preferredMaxBytes)
+                .build(), BATCH_SIZE_KEY, ORDERER_GROUP);
+    }
+
+    /**
+     * 组织的锚节点
+     * @param orgName Application 下的组织名称, 如 Org1MSP
+     * @return 没有配置锚节点时返回空集合
+     * @throws InvalidProtocolBufferException
+     */
+    public List<AnchorPeer> getAnchorPeers(String orgName) throws InvalidProtocolBufferException {
+        ByteString value = findValue(ANCHOR_PEERS_KEY, APPLICATION_GROUP, orgName);
+        return value == null ? Collections.emptyList() : AnchorPeers.parseFrom(value).getAnchorPeersList();
+    }
+
+    /**
+     * 修改组织的锚节点
+     * @param orgName Application 下的组织名称
+     * @param anchorPeers
+     * @return
+     */
+    public ChannelConfigEditor setAnchorPeers(String orgName, List<AnchorPeer> anchorPeers) {
+        return setValue(AnchorPeers.newBuilder().addAllAnchorPeers(anchorPeers).build(), ANCHOR_PEERS_KEY, APPLICATION_GROUP, orgName);
+    }
+
+    public ChannelConfigEditor addAnchorPeer(String orgName, String host, int port) throws InvalidProtocolBufferException {
+        AnchorPeers.Builder anchorPeers = AnchorPeers.newBuilder().addAllAnchorPeers(getAnchorPeers(orgName));
+        anchorPeers.addAnchorPeers(AnchorPeer.newBuilder().setHost(host).setPort(port));
+        return setAnchorPeers(orgName, anchorPeers.getAnchorPeersList());
+    }
+
+    /**
+     * 读取任意路径下的配置值
+     * @param key 配置项名称
+     * @param groupPath 从 channel group 开始的 group 路径
+     * @return
+     */
+    public ByteString getValue(String key, String... groupPath) {
+        ByteString value = findValue(key, groupPath);
+        if (value == null) {
+            throw new IllegalArgumentException("config value " + String.join("/", groupPath) + "/" + key + " not found");
+        }
+        return value;
+    }
+
+    /**
+     * 修改任意路径下的配置值, 保留原有的修改策略, 版本号在计算更新时处理
+     * @param value 配置值
+     * @param key 配置项名称
+     * @param groupPath 从 channel group 开始的 group 路径, 路径上的 group 必须已存在
+     * @return
+     */
+    public ChannelConfigEditor setValue(Message value, String key, String... groupPath) {
+        channelGroup = withValue(channelGroup, groupPath, 0, key, value.toByteString());
+        return this;
+    }
+
+    /**
+     * 修改后的配置
+     * @return
+     */
+    public Configtx.Config build() {
+        return original.toBuilder().setChannelGroup(channelGroup).build();
+    }
+
+    /**
+     * 计算修改前后的差异, 结果可以直接用于 new UpdateChannelConfiguration(bytes)
+     * @param channelName
+     * @return ConfigUpdate 字节
+     */
+    public byte[] computeUpdate(String channelName) {
+        return ConfigUpdateComputer.compute(channelName, original, build()).toByteArray();
+    }
+
+    public boolean isModified() {
+        return ConfigUpdateComputer.hasDifferences(original, build());
+    }
+
+    private ByteString findValue(String key, String... groupPath) {
+        Configtx.ConfigGroup group = channelGroup;
+        for (String groupName : groupPath) {
+            group = group.getGroupsMap().get(groupName);
+            if (group == null) {
+                return null;
+            }
+        }
+        Configtx.ConfigValue configValue = group.getValuesMap().get(key);
+        return configValue == null ? null : configValue.getValue();
+    }
+
+    private static Configtx.ConfigGroup withValue(Configtx.ConfigGroup group, String[] groupPath, int depth, String key, ByteString value) {
+        if (depth == groupPath.length) {
+            Configtx.ConfigValue existing = group.getValuesMap().get(key);
+            Configtx.ConfigValue.Builder configValue = existing == null
+                    ? Configtx.ConfigValue.newBuilder().setModPolicy(DEFAULT_MOD_POLICY)
+                    : existing.toBuilder();
+            return group.toBuilder().putValues(key, configValue.setValue(value).build()).build();
+        }
+        Configtx.ConfigGroup child = group.getGroupsMap().get(groupPath[depth]);
+        if (child == null) {
+            throw new IllegalArgumentException("config group " + String.join("/", Arrays.copyOf(groupPath, depth + 1)) + " not found");
+        }
+        return group.toBuilder().putGroups(groupPath[depth], withValue(child, groupPath, depth + 1, key, value)).build();
+    }
+}
@@ -0,0 +1,24 @@
+package com.demo.fabric.blockchain;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * channel 启动耗时监控, 访问 /actuator/channelinit
+ */
+@Component
+@Endpoint(id = "channelinit")
+public class ChannelInitEndpoint {
+
+    @Resource
+    private ChannelService channelService;
+
+    @ReadOperation
+    public Map<String, Object> statistics() {
+        return channelService.initStatistics();
+    }
+}
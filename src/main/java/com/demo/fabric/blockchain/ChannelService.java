@@ -1,24 +1,20 @@
 package com.demo.fabric.blockchain;
 
+import com.demo.fabric.utils.FutureUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.entity.mime.HttpMultipartMode;
-import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
+import org.hyperledger.fabric.protos.common.Configtx;
 import org.hyperledger.fabric.sdk.*;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 import static java.lang.String.format;
 import static org.junit.Assert.*;
@@ -33,58 +29,232 @@ public class ChannelService {
     @Resource
     private ConfigService configService;
 
+    @Resource
+    private ConfigtxlatorClient configtxlatorClient;
+
     private List<Orderer> orderers = new LinkedList<>();
 
+    @Resource
+    private BlockEventDispatcher blockEventDispatcher;
+
+    @Resource
+    private BlockCheckpointStore blockCheckpointStore;
+
+    /**
+     * 并行初始化 channel 的线程数
+     */
+    @Value("${blockchain.channel.init.parallelism:8}")
+    private int initParallelism;
+
+    /**
+     * channel 初始化超时时间(毫秒), 启动时所有 channel 共用一个截止时间;
+     * 使用时等待其他线程正在进行的初始化最多等待该时间
+     */
+    @Value("${blockchain.channel.init.timeout:60000}")
+    private long initTimeout;
+
+    /**
+     * 启动时只加载 channel, 第一次使用时再初始化
+     */
+    @Value("${blockchain.channel.init.lazy:false}")
+    private boolean lazyInit;
+
+    /**
+     * 有 channel 初始化失败或超时时启动失败
+     */
+    @Value("${blockchain.channel.init.failFast:true}")
+    private boolean initFailFast;
+
+    private final Map<String, ChannelInitStatus> initStatuses = new ConcurrentHashMap<>();
+
+    /**
+     * 正在初始化的 channel, 同一 channel 只由一个线程初始化, 其他线程等待其结果
+     */
+    private final ConcurrentMap<String, CompletableFuture<Channel>> initializing = new ConcurrentHashMap<>();
+
+    private ExecutorService initExecutor;
+
+    /**
+     * 批量更新配置时并行的 channel 数
+     */
+    @Value("${blockchain.channel.update.parallelism:4}")
+    private int updateParallelism;
+
+    /**
+     * 提交配置更新后等待配置区块的超时时间(毫秒)
+     */
+    @Value("${blockchain.channel.update.configBlockTimeout:30000}")
+    private long configBlockTimeout;
+
+    @Resource
+    private ConfigBlockWaiter configBlockWaiter;
+
+    private ExecutorService updateExecutor;
+
     @PostConstruct
     protected void init() throws Throwable{
+        updateExecutor = Executors.newFixedThreadPool(updateParallelism,
+                new ThreadFactoryBuilder().setNameFormat("channel-update-%d").setDaemon(true).build());
         initChannel();
         inifOrderers();
     }
 
+    @PreDestroy
+    protected void destroy(){
+        updateExecutor.shutdown();
+        if (initExecutor != null) {
+            initExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 从配置加载所有 channel, 加载只读取本地配置, 依次执行;
+     * 初始化需要访问 peer 和 orderer, 在线程池中并行执行, 所有 channel 共用一个截止时间
+     * @throws Throwable
+     */
     private void initChannel() throws Throwable{
         final NetworkConfig networkConfig= configService.getBlockchainConfig();
         Set<String> channelNames = configService.getBlockchainConfig().getChannelNames();
         HFClient client = configService.getClient();
+        Map<String, Channel> channels = new LinkedHashMap<>();
         Iterator<String> iter = channelNames.iterator();
         while(iter.hasNext()){
             String channelName = iter.next();
+            ChannelInitStatus status = new ChannelInitStatus();
+            initStatuses.put(channelName, status);
+            long start = System.nanoTime();
             Channel channel = client.loadChannelFromConfig(channelName, networkConfig);
-            //registerBlockListener(channel);
-            channel.initialize();
+            registerBlockListener(channel);
+            status.loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            channels.put(channelName, channel);
+        }
+        if (lazyInit) {
+            log.info(format("Loaded %d channels, they will be initialized on first use", channels.size()));
+            return;
         }
-    }
-
-    private void registerBlockListener(Channel channel) throws Exception{
-
-        channel.registerBlockListener(blockEvent -> {
-
-            log.info(" fire channel blockListener !!!");
 
-            // Note peer eventing will always start with sending the last block so this will get the last endorser block
-            int transactions = 0;
-            int nonTransactions = 0;
-            for (BlockInfo.EnvelopeInfo envelopeInfo : blockEvent.getEnvelopeInfos()) {
+        long start = System.nanoTime();
+        initExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(initParallelism, channels.size())),
+                new ThreadFactoryBuilder().setNameFormat("channel-init-%d").setDaemon(true).build());
+        Map<String, Future<Channel>> futures = new LinkedHashMap<>();
+        for (Channel channel : channels.values()) {
+            futures.put(channel.getName(), initExecutor.submit(() -> initialize(channel)));
+        }
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(initTimeout);
+        Throwable failure = null;
+        for (Map.Entry<String, Future<Channel>> entry : futures.entrySet()) {
+            String channelName = entry.getKey();
+            ChannelInitStatus status = initStatuses.get(channelName);
+            try {
+                entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                entry.getValue().cancel(true);
+                status.state = "TIMEOUT";
+                status.error = "initialize did not finish within " + initTimeout + "ms";
+                log.error(format("Channel %s %s", channelName, status.error));
+                failure = failure == null ? e : failure;
+            } catch (ExecutionException e) {
+                log.error(format("Failed to initialize channel %s", channelName), e.getCause());
+                failure = failure == null ? e.getCause() : failure;
+            }
+        }
+        initExecutor.shutdown();
+        log.info(format("Initialized %d channels in %d ms", channels.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        // 关闭 failFast 时失败的 channel 在第一次使用时重新初始化
+        if (failure != null && initFailFast) {
+            throw failure;
+        }
+    }
 
-                if (BlockInfo.EnvelopeType.TRANSACTION_ENVELOPE == envelopeInfo.getType()) {
-                    ++transactions;
-                } else {
-                    assertEquals(BlockInfo.EnvelopeType.ENVELOPE, envelopeInfo.getType());
-                    ++nonTransactions;
-                }
+    /**
+     * 初始化 channel 并记录耗时, 已初始化时直接返回
+     * 其他线程正在初始化同一 channel 时等待其结果, 最多等待 initTimeout 毫秒, 不会无限阻塞
+     */
+    private Channel initialize(Channel channel) throws Exception{
+        if (channel.isInitialized()) {
+            return channel;
+        }
+        CompletableFuture<Channel> created = new CompletableFuture<>();
+        CompletableFuture<Channel> running = initializing.putIfAbsent(channel.getName(), created);
+        if (running != null) {
+            try {
+                return running.get(initTimeout, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                Throwable cause = FutureUtil.unwrap(e);
+                throw cause instanceof Exception ? (Exception) cause : e;
+            } catch (TimeoutException e) {
+                throw new TimeoutException(format("Channel %s is still being initialized after %d ms", channel.getName(), initTimeout));
+            }
+        }
+        ChannelInitStatus status = initStatuses.computeIfAbsent(channel.getName(), name -> new ChannelInitStatus());
+        long start = System.nanoTime();
+        try {
+            if (!channel.isInitialized()) {
+                status.state = "INITIALIZING";
+                channel.initialize();
+                status.state = "INITIALIZED";
+                status.error = null;
+                status.initializeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                log.info(format("Channel %s initialize took %d ms", channel.getName(), status.initializeMillis));
             }
-            assertTrue(format("nontransactions %d, transactions %d", nonTransactions, transactions), nonTransactions < 2); // non transaction blocks only have one envelope
-            assertTrue(format("nontransactions %d, transactions %d", nonTransactions, transactions), nonTransactions + transactions > 0); // has to be one.
-            assertFalse(format("nontransactions %d, transactions %d", nonTransactions, transactions), nonTransactions > 0 && transactions > 0); // can't have both.
+            created.complete(channel);
+            return channel;
+        } catch (Exception e) {
+            status.state = "FAILED";
+            status.error = String.valueOf(e.getMessage());
+            status.initializeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            // 失败后下一次使用时重新初始化
+            initializing.remove(channel.getName(), created);
+        }
+    }
 
-            if (nonTransactions > 0) { // this is an update block -- don't care about others here.
+    /**
+     * 获取 channel, 未初始化(延迟初始化或启动时初始化失败)时先初始化
+     * @param channelName
+     * @return channel 不存在时返回 null
+     * @throws Exception
+     */
+    public Channel getChannel(String channelName) throws Exception{
+        Channel channel = configService.getClient().getChannel(channelName);
+        if (channel != null && !channel.isInitialized()) {
+            initialize(channel);
+        }
+        return channel;
+    }
 
-                assertEquals(0, blockEvent.getTransactionCount());
-                assertEquals(1, blockEvent.getEnvelopeCount());
-                for (BlockEvent.TransactionEvent transactionEvent : blockEvent.getTransactionEvents()) {
-                    fail("Got transaction event in a block update"); // only events for update should not have transactions.
-                }
+    /**
+     * 各 channel 启动时的加载和初始化耗时
+     * @return
+     */
+    public Map<String, Object> initStatistics(){
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("lazy", lazyInit);
+        result.put("parallelism", initParallelism);
+        Map<String, Object> channels = new TreeMap<>();
+        initStatuses.forEach((channelName, status) -> {
+            Map<String, Object> channel = new LinkedHashMap<>();
+            channel.put("state", status.state);
+            channel.put("loadMillis", status.loadMillis);
+            channel.put("initializeMillis", status.initializeMillis);
+            if (status.error != null) {
+                channel.put("error", status.error);
             }
+            channels.put(channelName, channel);
         });
+        result.put("channels", channels);
+        return result;
+    }
+
+    /**
+     * 为 channel 注册区块监听器, SDK 事件线程只把区块交给 BlockEventDispatcher, 由其缓冲并分发给订阅方
+     * @param channel
+     * @throws Exception
+     */
+    private void registerBlockListener(Channel channel) throws Exception{
+        channel.registerBlockListener(blockEventDispatcher::publish);
     }
 
     private void inifOrderers() throws Exception{
@@ -104,14 +274,24 @@ public class ChannelService {
      * @param orgName
      * @throws Exception
      */
-    public synchronized void createChannel(String channelName,String channelPath,String orgName) throws Exception{
+    public void createChannel(String channelName,String channelPath,String orgName) throws Exception{
+        createChannel(channelName, channelPath, orgName, configService.getUser());
+    }
+
+    /**
+     * 使用指定身份签名并创建 channel
+     * SDK 1.1 的 channel 创建和配置更新没有按请求指定提交身份的接口, 提交(若启用)总是使用 client 默认身份(peerAdmin),
+     * 创建策略只校验配置上的签名, user 只用于签名
+     * @param channelName
+     * @param channelPath
+     * @param orgName
+     * @param user 签名 channel 配置的身份
+     * @throws Exception
+     */
+    public void createChannel(String channelName,String channelPath,String orgName,User user) throws Exception{
         ChannelConfiguration channelConfiguration = new ChannelConfiguration(new File(channelPath));
-        User user = configService.getUser();
         HFClient client = configService.getClient();
 
-        client.setUserContext(user);
-        client.getChannelConfigurationSignature(channelConfiguration,user);
-
         //创建 channel
         byte[] signature = client.getChannelConfigurationSignature(channelConfiguration, user);
         // 如果channel 创建策略需要多个签名，需要依次添加
@@ -127,17 +307,14 @@ public class ChannelService {
 
     /**
      * 将peer 加入到channel 中
+     * joinPeer 没有按请求指定身份的接口, 使用 client 默认身份(peerAdmin), 该身份初始化后不再修改
      * @param channelName
      * @throws Exception
      */
-    public synchronized void joinChannel(String channelName) throws Exception{
+    public void joinChannel(String channelName) throws Exception{
 
         HFClient client = configService.getClient();
 
-        User user = configService.getBlockchainConfig().getClientOrganization().getPeerAdmin();
-
-        client.setUserContext(user);
-
         Channel channel  = client.getChannel(channelName);
 
         Collection<String> peerNames = configService.getBlockchainConfig().getPeerNames();
@@ -168,18 +345,22 @@ public class ChannelService {
         }
 
         Collection<String> peerNames = configService.getBlockchainConfig().getPeerNames();
-        Channel.PeerOptions peerOptions = Channel.PeerOptions.createPeerOptions();
-
-        peerOptions.addPeerRole(Peer.PeerRole.ENDORSING_PEER)
-                .addPeerRole(Peer.PeerRole.CHAINCODE_QUERY)
-                .addPeerRole(Peer.PeerRole.LEDGER_QUERY)
-                .addPeerRole(Peer.PeerRole.EVENT_SOURCE)
-                .startEvents(0)
-                .stopEvents(10)
-                .registerEventsForFilteredBlocks();
-
-        peerOptions.registerEventsForFilteredBlocks();
         for(String name:peerNames){
+            // 每个 peer 从所有订阅方都处理完的检查点之后继续接收事件, 补齐后继续接收新区块;
+            // 没有检查点时只接收最新区块, 不从创世区块回放整条链(本地区块存储、世界状态投影各自补齐历史区块)
+            long startBlock = blockCheckpointStore.getCheckpoint(channelName, name) + 1;
+            Channel.PeerOptions peerOptions = Channel.PeerOptions.createPeerOptions();
+            peerOptions.addPeerRole(Peer.PeerRole.ENDORSING_PEER)
+                    .addPeerRole(Peer.PeerRole.CHAINCODE_QUERY)
+                    .addPeerRole(Peer.PeerRole.LEDGER_QUERY)
+                    .addPeerRole(Peer.PeerRole.EVENT_SOURCE)
+                    .registerEventsForFilteredBlocks();
+            if (startBlock > 0) {
+                peerOptions.startEvents(startBlock);
+                log.info(format("Resuming events of channel %s from peer %s at block %d", channelName, name, startBlock));
+            } else {
+                peerOptions.startEventsNewest();
+            }
             Peer peer = configService.getBlockchainConfig().getPeer(client,name);
             channel.addPeer(peer,peerOptions);
         }
@@ -190,7 +371,7 @@ public class ChannelService {
             channel.addEventHub(eventHub);
         }
 
-        //registerBlockListener(channel);
+        registerBlockListener(channel);
     }
 
     /**
@@ -199,103 +380,130 @@ public class ChannelService {
      * @throws Exception
      */
     public void updateChannel(String channelName) throws Exception{
+        updateChannel(channelName, editor -> editor.setBatchTimeout("5s"));
+    }
 
-        HFClient client = configService.getClient();
-        Channel channel  = client.getChannel(channelName);
-        final byte[] channelConfigurationBytes = channel.getChannelConfigurationBytes();
-
-        String CONFIGTXLATOR_LOCATION = configService.getConfigtxlatorLocation();
-
-        HttpClient httpclient = HttpClients.createDefault();
-        HttpPost httppost = new HttpPost(CONFIGTXLATOR_LOCATION + "/protolator/decode/common.Config");
-        httppost.setEntity(new ByteArrayEntity(channelConfigurationBytes));
-
-        HttpResponse response = httpclient.execute(httppost);
-        int statuscode = response.getStatusLine().getStatusCode();
-        log.info(String.format("Got %s status for decoding current channel config bytes", statuscode));
-        assertEquals(200, statuscode);
-
-        String responseAsString = EntityUtils.toString(response.getEntity());
-        log.info(responseAsString);
-
-        String ORIGINAL_BATCH_TIMEOUT = "\"timeout\": \"2s\""; // Batch time out in configtx.yaml
-        String UPDATED_BATCH_TIMEOUT = "\"timeout\": \"5s\"";  // What we want to change it to.
-        //Now modify the batch timeout
-        String updateString = responseAsString.replace(ORIGINAL_BATCH_TIMEOUT, UPDATED_BATCH_TIMEOUT);
-
-        httppost = new HttpPost(CONFIGTXLATOR_LOCATION + "/protolator/encode/common.Config");
-        httppost.setEntity(new StringEntity(updateString));
-
-        response = httpclient.execute(httppost);
-        statuscode = response.getStatusLine().getStatusCode();
-        log.info(String.format("Got %s status for encoding the new desired channel config bytes", statuscode));
-        assertEquals(200, statuscode);
-        byte[] newConfigBytes = EntityUtils.toByteArray(response.getEntity());
-
-        // Now send to configtxlator multipart form post with original config bytes, updated config bytes and channel name.
-        httppost = new HttpPost(CONFIGTXLATOR_LOCATION + "/configtxlator/compute/update-from-configs");
-
-        // Now send to configtxlator multipart form post with original config bytes, updated config bytes and channel name.
-        httppost = new HttpPost(CONFIGTXLATOR_LOCATION + "/configtxlator/compute/update-from-configs");
-
-        HttpEntity multipartEntity = MultipartEntityBuilder.create()
-                .setMode(HttpMultipartMode.BROWSER_COMPATIBLE)
-                .addBinaryBody("original", channelConfigurationBytes, ContentType.APPLICATION_OCTET_STREAM, "originalFakeFilename")
-                .addBinaryBody("updated", newConfigBytes, ContentType.APPLICATION_OCTET_STREAM, "updatedFakeFilename")
-                .addBinaryBody("channel", channel.getName().getBytes()).build();
-
-        httppost.setEntity(multipartEntity);
-
-        response = httpclient.execute(httppost);
-        statuscode = response.getStatusLine().getStatusCode();
-        log.info(String.format("Got %s status for updated config bytes needed for updateChannelConfiguration ", statuscode));
-        assertEquals(200, statuscode);
-
-        byte[] updateBytes = EntityUtils.toByteArray(response.getEntity());
-
-        UpdateChannelConfiguration updateChannelConfiguration = new UpdateChannelConfiguration(updateBytes);
-
-        User ordererAdmin = configService.getOrdererAdmin();
-
-        client.setUserContext(ordererAdmin);
-
-        //Ok now do actual channel update.
-        channel.updateChannelConfiguration(updateChannelConfiguration, client.getUpdateChannelConfigurationSignature(updateChannelConfiguration, ordererAdmin));
-
-        User peerAdmin = configService.getBlockchainConfig().getClientOrganization().getPeerAdmin();
-        //Let's add some additional verification...
-        client.setUserContext(peerAdmin);
-
-        final byte[] modChannelBytes = channel.getChannelConfigurationBytes();
-
-        //Now decode the new channel config bytes to json...
-        httppost = new HttpPost(CONFIGTXLATOR_LOCATION + "/protolator/decode/common.Config");
-        httppost.setEntity(new ByteArrayEntity(modChannelBytes));
-
-        response = httpclient.execute(httppost);
-        statuscode = response.getStatusLine().getStatusCode();
-        assertEquals(200, statuscode);
+    /**
+     * 修改 channel 配置, 在本地解析配置并计算 ConfigUpdate, 由 ordererAdmin 签名后提交
+     * 修改策略只校验 ConfigUpdate 上的签名(ordererAdmin), 外层交易由 client 默认身份(peerAdmin, channel 成员)提交,
+     * 不再像以前那样把共享 client 的 userContext 切换为 ordererAdmin
+     * @param channelName
+     * @param edits 对配置的修改, 如 editor -> editor.setBatchTimeout("5s")
+     * @throws Exception
+     */
+    public void updateChannel(String channelName, Consumer<ChannelConfigEditor> edits) throws Exception{
+        List<User> signers = Collections.singletonList(configService.getOrdererAdmin());
+        ChannelUpdateResult result = updateChannel(configService.getClient(), channelName, edits, signers);
+        if (!result.isSuccess()) {
+            fail(format("Failed to update channel %s: %s", channelName, result));
+        }
+    }
 
-        responseAsString = EntityUtils.toString(response.getEntity());
+    /**
+     * 批量修改多个 channel 的配置, 由 ordererAdmin 签名
+     * @param channelNames
+     * @param edits 对每个 channel 配置的修改
+     * @return channel 名称 -> 更新结果
+     * @throws Exception
+     */
+    public Map<String, ChannelUpdateResult> updateChannels(Collection<String> channelNames, Consumer<ChannelConfigEditor> edits) throws Exception{
+        return updateChannels(channelNames, edits, Collections.singletonList(configService.getOrdererAdmin()));
+    }
 
-        if (!responseAsString.contains(UPDATED_BATCH_TIMEOUT)) {
-            //If it doesn't have the updated time out it failed.
-            fail(format("Did not find updated expected batch timeout '%s', in:%s", UPDATED_BATCH_TIMEOUT, responseAsString));
+    /**
+     * 批量修改多个 channel 的配置
+     * 签名身份只解析一次, 各 channel 在线程池中并行更新, 每个 channel 等待自己的配置区块, 单个 channel 失败不影响其他 channel
+     * @param channelNames
+     * @param edits 对每个 channel 配置的修改
+     * @param signers 满足修改策略所需的签名身份, 如 ordererAdmin 或各组织管理员
+     * @return channel 名称 -> 更新结果
+     * @throws Exception
+     */
+    public Map<String, ChannelUpdateResult> updateChannels(Collection<String> channelNames, Consumer<ChannelConfigEditor> edits, List<User> signers) throws Exception{
+        HFClient client = configService.getClient();
+        long start = System.currentTimeMillis();
+        Map<String, Future<ChannelUpdateResult>> futures = new LinkedHashMap<>();
+        for (String channelName : channelNames) {
+            futures.put(channelName, updateExecutor.submit(() -> updateChannel(client, channelName, edits, signers)));
         }
-
-        if (responseAsString.contains(ORIGINAL_BATCH_TIMEOUT)) { //Should not have been there anymore!
-            fail(format("Found original batch timeout '%s', when it was not expected in:%s", ORIGINAL_BATCH_TIMEOUT, responseAsString));
+        Map<String, ChannelUpdateResult> results = new LinkedHashMap<>();
+        int succeeded = 0;
+        for (Map.Entry<String, Future<ChannelUpdateResult>> entry : futures.entrySet()) {
+            ChannelUpdateResult result = FutureUtil.get(entry.getValue());
+            results.put(entry.getKey(), result);
+            if (result.isSuccess()) {
+                succeeded++;
+            }
         }
+        log.info(format("Updated %d/%d channels in %d ms: %s", succeeded, results.size(), System.currentTimeMillis() - start, results.values()));
+        return results;
+    }
 
-        Thread.sleep(3000); // give time for events to happen
+    /**
+     * 更新单个 channel 的配置并等待配置区块, 不抛出异常, 失败记录在结果中
+     */
+    private ChannelUpdateResult updateChannel(HFClient client, String channelName, Consumer<ChannelConfigEditor> edits, List<User> signers) {
+        long start = System.currentTimeMillis();
+        try {
+            Channel channel = getChannel(channelName);
+            if (channel == null) {
+                throw new IllegalArgumentException("channel " + channelName + " not found");
+            }
+            ChannelConfigEditor editor = ChannelConfigEditor.parse(channel.getChannelConfigurationBytes());
+            edits.accept(editor);
+            if (!editor.isModified()) {
+                log.info(format("Channel %s config already up to date", channelName));
+                return new ChannelUpdateResult(channelName, ChannelUpdateResult.Status.UNCHANGED, -1, System.currentTimeMillis() - start, null);
+            }
+            Configtx.Config desired = editor.build();
 
-        // TODO  监听事件
-//        assertTrue(eventCountFilteredBlock > 0); // make sure we got blockevent that were tested.
-//        assertTrue(eventCountBlock > 0); // make sure we got blockevent that were tested.
+            UpdateChannelConfiguration updateChannelConfiguration = new UpdateChannelConfiguration(editor.computeUpdate(channelName));
+            byte[][] signatures = new byte[signers.size()][];
+            for (int i = 0; i < signers.size(); i++) {
+                signatures[i] = client.getUpdateChannelConfigurationSignature(updateChannelConfiguration, signers.get(i));
+            }
 
-        log.info("That's all folks!");
+            // 先注册等待再提交, 避免错过配置区块; 提交前的高度之前的配置区块(如恢复事件流时回放的)不是本次更新产生的
+            long height = channel.queryBlockchainInfo().getHeight();
+            CompletableFuture<Long> configBlock = configBlockWaiter.expect(channelName, height);
+            try {
+                //Ok now do actual channel update. 交易由 client 默认身份提交
+                // 不再修改 client 的 userContext, 避免并发请求互相影响
+                channel.updateChannelConfiguration(updateChannelConfiguration, signatures);
+                long blockNumber;
+                try {
+                    blockNumber = configBlock.get(configBlockTimeout, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    return new ChannelUpdateResult(channelName, ChannelUpdateResult.Status.TIMEOUT, -1, System.currentTimeMillis() - start,
+                            "no config block within " + configBlockTimeout + "ms");
+                }
+                // 新配置与期望的配置不应再有差异
+                if (ConfigUpdateComputer.hasDifferences(Configtx.Config.parseFrom(channel.getChannelConfigurationBytes()), desired)) {
+                    throw new IllegalStateException("config does not match the requested update after config block " + blockNumber);
+                }
+                return new ChannelUpdateResult(channelName, ChannelUpdateResult.Status.UPDATED, blockNumber, System.currentTimeMillis() - start, null);
+            } finally {
+                configBlock.cancel(false);
+            }
+        } catch (Exception e) {
+            log.warn(format("Failed to update channel %s", channelName), e);
+            return new ChannelUpdateResult(channelName, ChannelUpdateResult.Status.FAILED, -1, System.currentTimeMillis() - start, String.valueOf(e.getMessage()));
+        }
     }
 
+    /**
+     * 并发读取多个 channel 的配置并解码为 JSON
+     * @param channelNames
+     * @return channel 名称 -> 配置 JSON
+     * @throws Exception
+     */
+    public Map<String, String> decodeChannelConfigs(Collection<String> channelNames) throws Exception{
+        Map<String, byte[]> configBytes = new LinkedHashMap<>();
+        for (String channelName : channelNames) {
+            configBytes.put(channelName, getChannel(channelName).getChannelConfigurationBytes());
+        }
+        return configtxlatorClient.decodeAll(configBytes);
+    }
 
     /**
      * 初始化 channel
@@ -305,9 +513,7 @@ public class ChannelService {
     public void initializeChannel(String channelName) throws Exception{
         HFClient client = configService.getClient();
         Channel channel = client.getChannel(channelName);
-        if(!channel.isInitialized()){
-            channel.initialize();
-        }
+        initialize(channel);
     }
 
     /**
@@ -327,4 +533,14 @@ public class ChannelService {
         Channel channel = client.getChannel(channelName);
         channel.queryBlockchainInfo();
     }
+
+    /**
+     * channel 启动状态
+     */
+    private static class ChannelInitStatus {
+        volatile String state = "LOADED";
+        volatile long loadMillis;
+        volatile long initializeMillis;
+        volatile String error;
+    }
 }
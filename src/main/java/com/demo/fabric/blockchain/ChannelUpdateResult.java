@@ -0,0 +1,70 @@
+package com.demo.fabric.blockchain;
+
+/**
+ * 单个 channel 的配置更新结果
+ */
+public class ChannelUpdateResult {
+
+    public enum Status {
+        /** 更新已提交, 并收到了配置区块 */
+        UPDATED,
+        /** 配置已经是期望的值, 没有提交更新 */
+        UNCHANGED,
+        /** 更新已提交, 但等待配置区块超时 */
+        TIMEOUT,
+        /** 更新失败 */
+        FAILED
+    }
+
+    private final String channelName;
+
+    private final Status status;
+
+    private final long configBlockNumber;
+
+    private final long elapsedMillis;
+
+    private final String error;
+
+    ChannelUpdateResult(String channelName, Status status, long configBlockNumber, long elapsedMillis, String error) {
+        this.channelName = channelName;
+        this.status = status;
+        this.configBlockNumber = configBlockNumber;
+        this.elapsedMillis = elapsedMillis;
+        this.error = error;
+    }
+
+    public String getChannelName() {
+        return channelName;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * 配置区块号, 未收到时为 -1
+     * @return
+     */
+    public long getConfigBlockNumber() {
+        return configBlockNumber;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return status == Status.UPDATED || status == Status.UNCHANGED;
+    }
+
+    @Override
+    public String toString() {
+        return status + "(" + channelName + (configBlockNumber >= 0 ? ", block " + configBlockNumber : "")
+                + ", " + elapsedMillis + "ms" + (error == null ? "" : ", " + error) + ")";
+    }
+}
@@ -0,0 +1,94 @@
+package com.demo.fabric.blockchain;
+
+import lombok.extern.slf4j.Slf4j;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.BlockListener;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.lang.String.format;
+
+/**
+ * 等待 channel 的配置区块
+ * 配置更新提交后, 用区块事件代替固定的 sleep 判断新配置已经生效。
+ * 事件流从检查点恢复时会先收到历史区块, 只有不早于提交前区块链高度的配置区块才算作本次更新的结果。
+ */
+@Slf4j
+@Component("configBlockWaiter")
+public class ConfigBlockWaiter implements BlockListener {
+
+    private final ConcurrentMap<String, List<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    /**
+     * 注册等待, 需要在提交配置更新之前调用, 避免错过区块
+     * @param channelName
+     * @return 收到的下一个配置区块的区块号
+     */
+    public CompletableFuture<Long> expect(String channelName) {
+        return expect(channelName, 0);
+    }
+
+    /**
+     * 注册等待, 需要在提交配置更新之前调用, 避免错过区块
+     * @param channelName
+     * @param fromBlock 提交前的区块链高度, 更早的配置区块忽略
+     * @return 收到的不早于 fromBlock 的下一个配置区块的区块号
+     */
+    public CompletableFuture<Long> expect(String channelName, long fromBlock) {
+        Waiter waiter = new Waiter(fromBlock);
+        waiters.computeIfAbsent(channelName, name -> new CopyOnWriteArrayList<>()).add(waiter);
+        // 超时或取消后移除, 避免无人等待的 future 累积
+        waiter.future.whenComplete((blockNumber, e) -> {
+            List<Waiter> channelWaiters = waiters.get(channelName);
+            if (channelWaiters != null) {
+                channelWaiters.remove(waiter);
+            }
+        });
+        return waiter.future;
+    }
+
+    @Override
+    public void received(BlockEvent blockEvent) {
+        List<Waiter> channelWaiters = waiters.get(blockEvent.getChannelId());
+        if (channelWaiters == null || channelWaiters.isEmpty() || !isConfigBlock(blockEvent)) {
+            return;
+        }
+        long blockNumber = blockEvent.getBlockNumber();
+        log.info(format("Received config block %d on channel %s", blockNumber, blockEvent.getChannelId()));
+        for (Waiter waiter : channelWaiters) {
+            if (blockNumber >= waiter.fromBlock) {
+                waiter.future.complete(blockNumber);
+            }
+        }
+    }
+
+    /**
+     * 配置区块只包含一个非背书交易的 envelope, 完整区块和过滤区块都适用
+     */
+    private static boolean isConfigBlock(BlockEvent blockEvent) {
+        if (blockEvent.getEnvelopeCount() != 1) {
+            return false;
+        }
+        for (BlockInfo.EnvelopeInfo envelopeInfo : blockEvent.getEnvelopeInfos()) {
+            return envelopeInfo.getType() == BlockInfo.EnvelopeType.ENVELOPE;
+        }
+        return false;
+    }
+
+    private static final class Waiter {
+
+        private final long fromBlock;
+
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        Waiter(long fromBlock) {
+            this.fromBlock = fromBlock;
+        }
+    }
+}
@@ -65,6 +65,8 @@ public class ConfigService {
 
     /**
      * 连接区块链网络客户端
+     * 所有请求共享同一个 client, 默认身份为 peerAdmin 且初始化后不再修改,
+     * 其他身份通过各个提案请求的 setUserContext 传入
      */
     @Getter
     private HFClient client;
@@ -155,13 +157,16 @@ public class ConfigService {
         return privateKey;
     }
 
-    static final class SampleStoreEnrollement implements Enrollment, Serializable {
+    /**
+     * 本地保存的证书和私钥
+     */
+    public static final class SampleStoreEnrollement implements Enrollment, Serializable {
 
         private static final long serialVersionUID = -2784835212445309006L;
         private final PrivateKey privateKey;
         private final String certificate;
 
-        SampleStoreEnrollement(PrivateKey privateKey, String certificate) {
+        public SampleStoreEnrollement(PrivateKey privateKey, String certificate) {
 
             this.certificate = certificate;
 
@@ -0,0 +1,237 @@
+package com.demo.fabric.blockchain;
+
+import org.hyperledger.fabric.protos.common.Configtx;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 计算新旧 channel 配置的差异, 生成 ConfigUpdate
+ * 与 configtxlator 的 /configtxlator/compute/update-from-configs 规则一致:
+ * 读集包含修改路径上的所有 group 及其原版本号, 写集中修改过的元素版本号加 1, 新增元素版本号为 0。
+ */
+public class ConfigUpdateComputer {
+
+    private ConfigUpdateComputer() {
+    }
+
+    /**
+     * 计算配置更新
+     * @param channelName
+     * @param original 当前配置
+     * @param updated 期望的配置
+     * @return
+     * @throws IllegalArgumentException 两个配置没有差异时
+     */
+    public static Configtx.ConfigUpdate compute(String channelName, Configtx.Config original, Configtx.Config updated) {
+        if (!original.hasChannelGroup()) {
+            throw new IllegalArgumentException("no channel group included for original config");
+        }
+        if (!updated.hasChannelGroup()) {
+            throw new IllegalArgumentException("no channel group included for updated config");
+        }
+        GroupUpdate update = computeGroupUpdate(original.getChannelGroup(), updated.getChannelGroup());
+        if (!update.updated) {
+            throw new IllegalArgumentException("no differences detected between original and updated config");
+        }
+        return Configtx.ConfigUpdate.newBuilder()
+                .setChannelId(channelName)
+                .setReadSet(update.readSet)
+                .setWriteSet(update.writeSet)
+                .build();
+    }
+
+    /**
+     * 两个配置是否有差异
+     * @param original
+     * @param updated
+     * @return
+     */
+    public static boolean hasDifferences(Configtx.Config original, Configtx.Config updated) {
+        return computeGroupUpdate(original.getChannelGroup(), updated.getChannelGroup()).updated;
+    }
+
+    private static GroupUpdate computeGroupUpdate(Configtx.ConfigGroup original, Configtx.ConfigGroup updated) {
+        MapUpdate<Configtx.ConfigPolicy> policies = computePoliciesMapUpdate(original.getPoliciesMap(), updated.getPoliciesMap());
+        MapUpdate<Configtx.ConfigValue> values = computeValuesMapUpdate(original.getValuesMap(), updated.getValuesMap());
+        MapUpdate<Configtx.ConfigGroup> groups = computeGroupsMapUpdate(original.getGroupsMap(), updated.getGroupsMap());
+
+        // group 本身没有变化(没有增删成员, mod_policy 相同)
+        if (!(policies.membersUpdated || values.membersUpdated || groups.membersUpdated
+                || !original.getModPolicy().equals(updated.getModPolicy()))) {
+
+            // 所有成员也都没有变化
+            if (policies.isEmpty() && values.isEmpty() && groups.isEmpty()) {
+                Configtx.ConfigGroup versionOnly = Configtx.ConfigGroup.newBuilder().setVersion(original.getVersion()).build();
+                return new GroupUpdate(versionOnly, versionOnly, false);
+            }
+
+            // 只有成员变化, group 版本号不变
+            return new GroupUpdate(
+                    Configtx.ConfigGroup.newBuilder()
+                            .setVersion(original.getVersion())
+                            .putAllPolicies(policies.readSet)
+                            .putAllValues(values.readSet)
+                            .putAllGroups(groups.readSet)
+                            .build(),
+                    Configtx.ConfigGroup.newBuilder()
+                            .setVersion(original.getVersion())
+                            .putAllPolicies(policies.writeSet)
+                            .putAllValues(values.writeSet)
+                            .putAllGroups(groups.writeSet)
+                            .build(),
+                    true);
+        }
+
+        // group 本身变化, 未变化的成员也要放入读集和写集
+        policies.readSet.putAll(policies.sameSet);
+        policies.writeSet.putAll(policies.sameSet);
+        values.readSet.putAll(values.sameSet);
+        values.writeSet.putAll(values.sameSet);
+        groups.readSet.putAll(groups.sameSet);
+        groups.writeSet.putAll(groups.sameSet);
+
+        return new GroupUpdate(
+                Configtx.ConfigGroup.newBuilder()
+                        .setVersion(original.getVersion())
+                        .putAllPolicies(policies.readSet)
+                        .putAllValues(values.readSet)
+                        .putAllGroups(groups.readSet)
+                        .build(),
+                Configtx.ConfigGroup.newBuilder()
+                        .setVersion(original.getVersion() + 1)
+                        .putAllPolicies(policies.writeSet)
+                        .putAllValues(values.writeSet)
+                        .putAllGroups(groups.writeSet)
+                        .setModPolicy(updated.getModPolicy())
+                        .build(),
+                true);
+    }
+
+    private static MapUpdate<Configtx.ConfigPolicy> computePoliciesMapUpdate(Map<String, Configtx.ConfigPolicy> original,
+                                                                            Map<String, Configtx.ConfigPolicy> updated) {
+        MapUpdate<Configtx.ConfigPolicy> update = new MapUpdate<>();
+        for (Map.Entry<String, Configtx.ConfigPolicy> entry : original.entrySet()) {
+            Configtx.ConfigPolicy originalPolicy = entry.getValue();
+            Configtx.ConfigPolicy updatedPolicy = updated.get(entry.getKey());
+            if (updatedPolicy == null) {
+                update.membersUpdated = true;
+                continue;
+            }
+            if (originalPolicy.getModPolicy().equals(updatedPolicy.getModPolicy())
+                    && originalPolicy.getPolicy().equals(updatedPolicy.getPolicy())) {
+                update.sameSet.put(entry.getKey(), Configtx.ConfigPolicy.newBuilder().setVersion(originalPolicy.getVersion()).build());
+                continue;
+            }
+            update.writeSet.put(entry.getKey(), Configtx.ConfigPolicy.newBuilder()
+                    .setVersion(originalPolicy.getVersion() + 1)
+                    .setModPolicy(updatedPolicy.getModPolicy())
+                    .setPolicy(updatedPolicy.getPolicy())
+                    .build());
+        }
+        for (Map.Entry<String, Configtx.ConfigPolicy> entry : updated.entrySet()) {
+            if (original.containsKey(entry.getKey())) {
+                continue;
+            }
+            update.membersUpdated = true;
+            update.writeSet.put(entry.getKey(), Configtx.ConfigPolicy.newBuilder()
+                    .setVersion(0)
+                    .setModPolicy(entry.getValue().getModPolicy())
+                    .setPolicy(entry.getValue().getPolicy())
+                    .build());
+        }
+        return update;
+    }
+
+    private static MapUpdate<Configtx.ConfigValue> computeValuesMapUpdate(Map<String, Configtx.ConfigValue> original,
+                                                                         Map<String, Configtx.ConfigValue> updated) {
+        MapUpdate<Configtx.ConfigValue> update = new MapUpdate<>();
+        for (Map.Entry<String, Configtx.ConfigValue> entry : original.entrySet()) {
+            Configtx.ConfigValue originalValue = entry.getValue();
+            Configtx.ConfigValue updatedValue = updated.get(entry.getKey());
+            if (updatedValue == null) {
+                update.membersUpdated = true;
+                continue;
+            }
+            if (originalValue.getModPolicy().equals(updatedValue.getModPolicy())
+                    && originalValue.getValue().equals(updatedValue.getValue())) {
+                update.sameSet.put(entry.getKey(), Configtx.ConfigValue.newBuilder().setVersion(originalValue.getVersion()).build());
+                continue;
+            }
+            update.writeSet.put(entry.getKey(), Configtx.ConfigValue.newBuilder()
+                    .setVersion(originalValue.getVersion() + 1)
+                    .setModPolicy(updatedValue.getModPolicy())
+                    .setValue(updatedValue.getValue())
+                    .build());
+        }
+        for (Map.Entry<String, Configtx.ConfigValue> entry : updated.entrySet()) {
+            if (original.containsKey(entry.getKey())) {
+                continue;
+            }
+            update.membersUpdated = true;
+            update.writeSet.put(entry.getKey(), Configtx.ConfigValue.newBuilder()
+                    .setVersion(0)
+                    .setModPolicy(entry.getValue().getModPolicy())
+                    .setValue(entry.getValue().getValue())
+                    .build());
+        }
+        return update;
+    }
+
+    private static MapUpdate<Configtx.ConfigGroup> computeGroupsMapUpdate(Map<String, Configtx.ConfigGroup> original,
+                                                                         Map<String, Configtx.ConfigGroup> updated) {
+        MapUpdate<Configtx.ConfigGroup> update = new MapUpdate<>();
+        for (Map.Entry<String, Configtx.ConfigGroup> entry : original.entrySet()) {
+            Configtx.ConfigGroup updatedGroup = updated.get(entry.getKey());
+            if (updatedGroup == null) {
+                update.membersUpdated = true;
+                continue;
+            }
+            GroupUpdate groupUpdate = computeGroupUpdate(entry.getValue(), updatedGroup);
+            if (!groupUpdate.updated) {
+                update.sameSet.put(entry.getKey(), groupUpdate.readSet);
+                continue;
+            }
+            update.readSet.put(entry.getKey(), groupUpdate.readSet);
+            update.writeSet.put(entry.getKey(), groupUpdate.writeSet);
+        }
+        for (Map.Entry<String, Configtx.ConfigGroup> entry : updated.entrySet()) {
+            if (original.containsKey(entry.getKey())) {
+                continue;
+            }
+            update.membersUpdated = true;
+            Configtx.ConfigGroup groupWriteSet = computeGroupUpdate(Configtx.ConfigGroup.getDefaultInstance(), entry.getValue()).writeSet;
+            update.writeSet.put(entry.getKey(), Configtx.ConfigGroup.newBuilder()
+                    .setVersion(0)
+                    .setModPolicy(entry.getValue().getModPolicy())
+                    .putAllPolicies(groupWriteSet.getPoliciesMap())
+                    .putAllValues(groupWriteSet.getValuesMap())
+                    .putAllGroups(groupWriteSet.getGroupsMap())
+                    .build());
+        }
+        return update;
+    }
+
+    private static final class GroupUpdate {
+        final Configtx.ConfigGroup readSet;
+        final Configtx.ConfigGroup writeSet;
+        final boolean updated;
+
+        GroupUpdate(Configtx.ConfigGroup readSet, Configtx.ConfigGroup writeSet, boolean updated) {
+            this.readSet = readSet;
+            this.writeSet = writeSet;
+            this.updated = updated;
+        }
+    }
+
+    private static final class MapUpdate<T> {
+        final Map<String, T> readSet = new HashMap<>();
+        final Map<String, T> writeSet = new HashMap<>();
+        final Map<String, T> sameSet = new HashMap<>();
+        boolean membersUpdated;
+
+        boolean isEmpty() {
+            return readSet.isEmpty() && writeSet.isEmpty();
+        }
+    }
+}
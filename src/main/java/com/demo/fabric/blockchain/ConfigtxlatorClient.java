@@ -0,0 +1,177 @@
+package com.demo.fabric.blockchain;
+
+import com.demo.fabric.utils.FutureUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * configtxlator 客户端
+ * 所有请求共用一个带连接池的 keep-alive HttpClient, 每个响应都会完整读取并关闭, 连接归还连接池复用。
+ */
+@Slf4j
+@Component("configtxlatorClient")
+public class ConfigtxlatorClient {
+
+    @Value("${blockchain.configtxlator.location}")
+    private String location;
+
+    /**
+     * 连接池最大连接数
+     */
+    @Value("${blockchain.configtxlator.maxConnections:16}")
+    private int maxConnections;
+
+    /**
+     * 连接超时时间(毫秒)
+     */
+    @Value("${blockchain.configtxlator.connectTimeout:5000}")
+    private int connectTimeout;
+
+    /**
+     * 读取响应超时时间(毫秒)
+     */
+    @Value("${blockchain.configtxlator.socketTimeout:30000}")
+    private int socketTimeout;
+
+    private CloseableHttpClient httpClient;
+
+    private ExecutorService requestExecutor;
+
+    @PostConstruct
+    protected void init(){
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        // 只访问一个 configtxlator, 单个 route 可以使用全部连接
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        connectionManager.setValidateAfterInactivity(2000);
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeout)
+                        .setConnectionRequestTimeout(connectTimeout)
+                        .setSocketTimeout(socketTimeout)
+                        .build())
+                .evictIdleConnections(60, TimeUnit.SECONDS)
+                .build();
+        requestExecutor = Executors.newFixedThreadPool(maxConnections,
+                new ThreadFactoryBuilder().setNameFormat("configtxlator-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    protected void destroy() throws IOException{
+        requestExecutor.shutdown();
+        httpClient.close();
+    }
+
+    /**
+     * 将 common.Config 字节解码为 JSON
+     * @param configBytes
+     * @return
+     * @throws IOException
+     */
+    public String decode(byte[] configBytes) throws IOException{
+        HttpPost httppost = new HttpPost(location + "/protolator/decode/common.Config");
+        httppost.setEntity(new ByteArrayEntity(configBytes));
+        return new String(execute(httppost, "decoding channel config"), UTF_8);
+    }
+
+    /**
+     * 异步解码, 多个 channel 的解码请求通过连接池并发发送
+     * @param configBytes
+     * @return
+     */
+    public CompletableFuture<String> decodeAsync(byte[] configBytes){
+        return FutureUtil.supplyAsync(() -> decode(configBytes), requestExecutor);
+    }
+
+    /**
+     * 并发解码多个 channel 的配置
+     * @param configBytesByChannel channel 名称 -> common.Config 字节
+     * @return channel 名称 -> JSON
+     * @throws Exception
+     */
+    public Map<String, String> decodeAll(Map<String, byte[]> configBytesByChannel) throws Exception{
+        Map<String, CompletableFuture<String>> futures = new LinkedHashMap<>();
+        configBytesByChannel.forEach((channelName, configBytes) -> futures.put(channelName, decodeAsync(configBytes)));
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<String>> entry : futures.entrySet()) {
+            result.put(entry.getKey(), FutureUtil.get(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * 将 JSON 编码为 common.Config 字节
+     * @param configJson
+     * @return
+     * @throws IOException
+     */
+    public byte[] encode(String configJson) throws IOException{
+        HttpPost httppost = new HttpPost(location + "/protolator/encode/common.Config");
+        httppost.setEntity(new StringEntity(configJson, UTF_8));
+        return execute(httppost, "encoding channel config");
+    }
+
+    /**
+     * 计算新旧配置的差异, 生成 ConfigUpdate 字节
+     * @param channelName
+     * @param original 原配置
+     * @param updated 修改后的配置
+     * @return
+     * @throws IOException
+     */
+    public byte[] computeUpdate(String channelName, byte[] original, byte[] updated) throws IOException{
+        HttpPost httppost = new HttpPost(location + "/configtxlator/compute/update-from-configs");
+        HttpEntity multipartEntity = MultipartEntityBuilder.create()
+                .setMode(HttpMultipartMode.BROWSER_COMPATIBLE)
+                .addBinaryBody("original", original, ContentType.APPLICATION_OCTET_STREAM, "originalFakeFilename")
+                .addBinaryBody("updated", updated, ContentType.APPLICATION_OCTET_STREAM, "updatedFakeFilename")
+                .addBinaryBody("channel", channelName.getBytes(UTF_8)).build();
+        httppost.setEntity(multipartEntity);
+        return execute(httppost, "computing config update");
+    }
+
+    /**
+     * 发送请求并读取完整响应, 非 200 时抛出异常
+     */
+    private byte[] execute(HttpPost httppost, String action) throws IOException{
+        try (CloseableHttpResponse response = httpClient.execute(httppost)) {
+            int statuscode = response.getStatusLine().getStatusCode();
+            // 读取完整响应, 连接才能归还连接池
+            byte[] body = response.getEntity() == null ? new byte[0] : EntityUtils.toByteArray(response.getEntity());
+            log.debug(format("Got %s status for %s", statuscode, action));
+            if (statuscode != 200) {
+                throw new IOException(format("configtxlator returned %d for %s: %s", statuscode, action, new String(body, UTF_8)));
+            }
+            return body;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package com.demo.fabric.blockchain;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Hex;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.peer.TransactionPackage;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.BlockListener;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.TransactionInfo;
+import org.hyperledger.fabric.sdk.User;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+import org.hyperledger.fabric.sdk.exception.ProposalException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+/**
+ * 本地区块存储
+ * 由区块事件流写入, 每个 channel 一组只追加、内存映射的分段文件, 内存中维护 区块号、交易 ID、区块 hash 到区块的索引(启动时回放分段重建)。
+ * 按区块号、hash、交易 ID 查询区块和按交易 ID 查询交易时先查本地, 未命中再查询 peer, 并把 peer 返回的区块写入本地。
+ * 区块链高度和最新 hash 总是查询 peer。本地命中的查询不经过 peer 的访问控制。
+ */
+@Slf4j
+@Component("ledgerBlockStore")
+public class LedgerBlockStore implements BlockListener {
+
+    private static final Constructor<BlockInfo> BLOCK_CONSTRUCTOR = constructor(BlockInfo.class, Common.Block.class);
+
+    private static final Constructor<TransactionInfo> TRANSACTION_CONSTRUCTOR =
+            constructor(TransactionInfo.class, String.class, TransactionPackage.ProcessedTransaction.class);
+
+    @Value("${blockchain.ledger.store.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 分段文件目录, 每个 channel 一个子目录
+     */
+    @Value("${blockchain.ledger.store.path:${user.home}/.fabric-sdk/ledger}")
+    private String storePath;
+
+    /**
+     * 分段文件大小(字节), 超过该大小的区块单独占用一个分段
+     */
+    @Value("${blockchain.ledger.store.segmentBytes:67108864}")
+    private int segmentBytes;
+
+    private final ConcurrentMap<String, ChannelLedger> ledgers = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private Path root;
+
+    @PostConstruct
+    protected void init() throws IOException{
+        if (enabled && (BLOCK_CONSTRUCTOR == null || TRANSACTION_CONSTRUCTOR == null)) {
+            log.warn("BlockInfo cannot be rebuilt from stored blocks with this SDK version, ledger block store disabled");
+            enabled = false;
+        }
+        root = Paths.get(storePath);
+        if (enabled) {
+            Files.createDirectories(root);
+        }
+    }
+
+    @PreDestroy
+    protected void destroy(){
+        for (Map.Entry<String, ChannelLedger> entry : ledgers.entrySet()) {
+            try {
+                entry.getValue().segments.close();
+            } catch (IOException e) {
+                log.warn(format("Failed to close block store of channel %s", entry.getKey()), e);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void received(BlockEvent blockEvent) {
+        if (!enabled || blockEvent.isFiltered()) {
+            return;
+        }
+        try {
+            append(blockEvent.getChannelId(), blockEvent.getBlock());
+        } catch (IOException e) {
+            log.error(format("Failed to store block %d of channel %s", blockEvent.getBlockNumber(), blockEvent.getChannelId()), e);
+        }
+    }
+
+    /**
+     * 写入区块, 已存在的区块忽略
+     * @param channelName
+     * @param block
+     * @return 是否写入
+     * @throws IOException
+     */
+    public boolean append(String channelName, Common.Block block) throws IOException{
+        ChannelLedger ledger = ledger(channelName);
+        long blockNumber = block.getHeader().getNumber();
+        synchronized (ledger) {
+            if (ledger.byNumber.containsKey(blockNumber)) {
+                return false;
+            }
+            ledger.index(ledger.segments.append(block.toByteArray()), block);
+        }
+        return true;
+    }
+
+    /**
+     * 本地是否已有该区块
+     * @param channelName
+     * @param blockNumber
+     * @return
+     */
+    public boolean contains(String channelName, long blockNumber) {
+        return enabled && ledger(channelName).byNumber.containsKey(blockNumber);
+    }
+
+    /**
+     * 按区块号读取本地区块
+     * @return 未命中时返回 null
+     */
+    public Common.Block getBlock(String channelName, long blockNumber) {
+        if (!enabled) {
+            return null;
+        }
+        ChannelLedger ledger = ledger(channelName);
+        return ledger.read(ledger.byNumber.get(blockNumber));
+    }
+
+    /**
+     * 按区块 hash 读取本地区块
+     * @return 未命中时返回 null
+     */
+    public Common.Block getBlockByHash(String channelName, byte[] blockHash) {
+        if (!enabled) {
+            return null;
+        }
+        ChannelLedger ledger = ledger(channelName);
+        Long blockNumber = ledger.byHash.get(Hex.encodeHexString(blockHash));
+        return blockNumber == null ? null : ledger.read(ledger.byNumber.get(blockNumber));
+    }
+
+    /**
+     * 按交易 ID 读取交易所在的本地区块
+     * @return 未命中时返回 null
+     */
+    public Common.Block getBlockByTransactionID(String channelName, String txID) {
+        if (!enabled) {
+            return null;
+        }
+        ChannelLedger ledger = ledger(channelName);
+        Long blockNumber = ledger.byTransactionId.get(txID);
+        return blockNumber == null ? null : ledger.read(ledger.byNumber.get(blockNumber));
+    }
+
+    /**
+     * 按区块号读取本地区块并解析
+     * @return 未命中时返回 null
+     */
+    public BlockInfo getBlockInfo(String channelName, long blockNumber) throws InvalidArgumentException{
+        Common.Block block = getBlock(channelName, blockNumber);
+        return block == null ? null : blockInfo(block);
+    }
+
+    /**
+     * 按区块号查询区块, 本地未命中时查询 peer
+     */
+    public BlockInfo queryBlockByNumber(Channel channel, long blockNumber, User user) throws InvalidArgumentException, ProposalException{
+        Common.Block block = getBlock(channel.getName(), blockNumber);
+        if (block != null) {
+            hits.incrementAndGet();
+            return blockInfo(block);
+        }
+        misses.incrementAndGet();
+        return remember(channel.getName(), channel.queryBlockByNumber(blockNumber, user));
+    }
+
+    /**
+     * 按区块 hash 查询区块, 本地未命中时查询 peer
+     */
+    public BlockInfo queryBlockByHash(Channel channel, byte[] blockHash, User user) throws InvalidArgumentException, ProposalException{
+        Common.Block block = getBlockByHash(channel.getName(), blockHash);
+        if (block != null) {
+            hits.incrementAndGet();
+            return blockInfo(block);
+        }
+        misses.incrementAndGet();
+        return remember(channel.getName(), channel.queryBlockByHash(blockHash, user));
+    }
+
+    /**
+     * 按交易 ID 查询区块, 本地未命中时查询 peer
+     */
+    public BlockInfo queryBlockByTransactionID(Channel channel, String txID, User user) throws InvalidArgumentException, ProposalException{
+        Common.Block block = getBlockByTransactionID(channel.getName(), txID);
+        if (block != null) {
+            hits.incrementAndGet();
+            return blockInfo(block);
+        }
+        misses.incrementAndGet();
+        return remember(channel.getName(), channel.queryBlockByTransactionID(txID, user));
+    }
+
+    /**
+     * 按交易 ID 查询交易, 本地未命中时查询 peer
+     */
+    public TransactionInfo queryTransactionByID(Channel channel, String txID, User user) throws InvalidArgumentException, ProposalException{
+        Common.Block block = getBlockByTransactionID(channel.getName(), txID);
+        if (block != null) {
+            TransactionPackage.ProcessedTransaction transaction = processedTransaction(block, txID);
+            if (transaction != null) {
+                hits.incrementAndGet();
+                return newInstance(TRANSACTION_CONSTRUCTOR, txID, transaction);
+            }
+        }
+        misses.incrementAndGet();
+        return channel.queryTransactionByID(txID, user);
+    }
+
+    /**
+     * 各 channel 的区块数量和命中统计
+     * @return
+     */
+    public Map<String, Object> statistics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        Map<String, Object> channels = new LinkedHashMap<>();
+        ledgers.forEach((channelName, ledger) -> {
+            Map<String, Object> channel = new LinkedHashMap<>();
+            channel.put("blocks", ledger.byNumber.size());
+            channel.put("transactions", ledger.byTransactionId.size());
+            channel.put("mappedBytes", ledger.segments.mappedBytes());
+            channels.put(channelName, channel);
+        });
+        result.put("channels", channels);
+        return result;
+    }
+
+    private BlockInfo remember(String channelName, BlockInfo blockInfo) {
+        if (enabled && blockInfo != null && !blockInfo.isFiltered()) {
+            try {
+                append(channelName, blockInfo.getBlock());
+            } catch (IOException e) {
+                log.warn(format("Failed to store block %d of channel %s", blockInfo.getBlockNumber(), channelName), e);
+            }
+        }
+        return blockInfo;
+    }
+
+    private ChannelLedger ledger(String channelName) {
+        return ledgers.computeIfAbsent(channelName, name -> {
+            try {
+                return new ChannelLedger(root.resolve(name));
+            } catch (IOException e) {
+                throw new UncheckedIOException(format("Failed to open block store of channel %s", name), e);
+            }
+        });
+    }
+
+    private static BlockInfo blockInfo(Common.Block block) throws InvalidArgumentException{
+        return newInstance(BLOCK_CONSTRUCTOR, block);
+    }
+
+    /**
+     * 从区块中取出交易信封和验证结果
+     */
+    private static TransactionPackage.ProcessedTransaction processedTransaction(Common.Block block, String txID) {
+        ByteString validationCodes = block.getMetadata().getMetadataCount() > Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE
+                ? block.getMetadata().getMetadata(Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE) : ByteString.EMPTY;
+        for (int i = 0; i < block.getData().getDataCount(); i++) {
+            try {
+                Common.Envelope envelope = Common.Envelope.parseFrom(block.getData().getData(i));
+                if (txID.equals(transactionId(envelope))) {
+                    return TransactionPackage.ProcessedTransaction.newBuilder()
+                            .setTransactionEnvelope(envelope)
+                            .setValidationCode(i < validationCodes.size() ? validationCodes.byteAt(i) : 0)
+                            .build();
+                }
+            } catch (InvalidProtocolBufferException e) {
+                log.warn(format("Unreadable envelope %d in block %d", i, block.getHeader().getNumber()), e);
+            }
+        }
+        return null;
+    }
+
+    private static String transactionId(Common.Envelope envelope) throws InvalidProtocolBufferException{
+        Common.Payload payload = Common.Payload.parseFrom(envelope.getPayload());
+        return Common.ChannelHeader.parseFrom(payload.getHeader().getChannelHeader()).getTxId();
+    }
+
+    /**
+     * 与 peer 相同的区块 hash: SHA-256(DER(区块号, 前一区块 hash, 数据 hash))
+     */
+    static String blockHash(Common.BlockHeader header) {
+        try {
+            byte[] encoded = new DERSequence(new ASN1Encodable[]{
+                    new ASN1Integer(header.getNumber()),
+                    new DEROctetString(header.getPreviousHash().toByteArray()),
+                    new DEROctetString(header.getDataHash().toByteArray())}).getEncoded();
+            return Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(encoded));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed to hash block header", e);
+        }
+    }
+
+    private static <T> T newInstance(Constructor<T> constructor, Object... args) throws InvalidArgumentException{
+        try {
+            return constructor.newInstance(args);
+        } catch (ReflectiveOperationException e) {
+            throw new InvalidArgumentException(e);
+        }
+    }
+
+    private static <T> Constructor<T> constructor(Class<T> type, Class<?>... parameterTypes) {
+        try {
+            Constructor<T> constructor = type.getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 一个 channel 的分段文件和索引
+     */
+    private final class ChannelLedger {
+
+        final BlockSegmentLog segments;
+
+        /**
+         * 区块号 -> 记录位置
+         */
+        final ConcurrentMap<Long, Long> byNumber = new ConcurrentHashMap<>();
+
+        /**
+         * 交易 ID -> 区块号
+         */
+        final ConcurrentMap<String, Long> byTransactionId = new ConcurrentHashMap<>();
+
+        /**
+         * 区块 hash(hex) -> 区块号
+         */
+        final ConcurrentMap<String, Long> byHash = new ConcurrentHashMap<>();
+
+        ChannelLedger(Path dir) throws IOException {
+            segments = new BlockSegmentLog(dir, segmentBytes);
+            segments.open((location, record) -> {
+                try {
+                    index(location, Common.Block.parseFrom(record));
+                    return true;
+                } catch (InvalidProtocolBufferException e) {
+                    log.warn(format("Discarding unreadable block record in %s", dir), e);
+                    return false;
+                }
+            });
+            if (!byNumber.isEmpty()) {
+                log.info(format("Loaded %d blocks from %s", byNumber.size(), dir));
+            }
+        }
+
+        void index(long location, Common.Block block) {
+            long blockNumber = block.getHeader().getNumber();
+            for (ByteString data : block.getData().getDataList()) {
+                try {
+                    String txID = transactionId(Common.Envelope.parseFrom(data));
+                    if (!txID.isEmpty()) {
+                        // 重复的交易 ID 以最早的区块为准, 后面的重复交易是无效交易
+                        byTransactionId.merge(txID, blockNumber, Math::min);
+                    }
+                } catch (InvalidProtocolBufferException e) {
+                    log.warn(format("Unreadable envelope in block %d", blockNumber), e);
+                }
+            }
+            byHash.put(blockHash(block.getHeader()), blockNumber);
+            // 最后发布区块号索引, 读到区块号时其它索引已经就绪
+            byNumber.put(blockNumber, location);
+        }
+
+        Common.Block read(Long location) {
+            if (location == null) {
+                return null;
+            }
+            try {
+                return Common.Block.parseFrom(segments.read(location));
+            } catch (InvalidProtocolBufferException e) {
+                log.warn("Unreadable stored block, querying peer instead", e);
+                return null;
+            }
+        }
+    }
+}
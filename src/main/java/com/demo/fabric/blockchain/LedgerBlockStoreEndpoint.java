@@ -0,0 +1,24 @@
+package com.demo.fabric.blockchain;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * 本地区块存储的区块数量和命中率监控, 访问 /actuator/ledgerstore
+ */
+@Component
+@Endpoint(id = "ledgerstore")
+public class LedgerBlockStoreEndpoint {
+
+    @Resource
+    private LedgerBlockStore ledgerBlockStore;
+
+    @ReadOperation
+    public Map<String, Object> statistics() {
+        return ledgerBlockStore.statistics();
+    }
+}
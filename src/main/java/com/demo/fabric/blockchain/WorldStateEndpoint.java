@@ -0,0 +1,24 @@
+package com.demo.fabric.blockchain;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * 本地世界状态视图的水位和 key 数量监控, 访问 /actuator/worldstate
+ */
+@Component
+@Endpoint(id = "worldstate")
+public class WorldStateEndpoint {
+
+    @Resource
+    private WorldStateProjection worldStateProjection;
+
+    @ReadOperation
+    public Map<String, Object> statistics() {
+        return worldStateProjection.statistics();
+    }
+}
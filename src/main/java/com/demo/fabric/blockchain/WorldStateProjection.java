@@ -0,0 +1,371 @@
+package com.demo.fabric.blockchain;
+
+import com.demo.fabric.utils.RwSetUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.BlockListener;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * 本地世界状态视图
+ * 把区块中有效交易的写集按 channel、智能合约命名空间应用到本地 key/value 视图, 值保存在内存映射的只追加分段文件中,
+ * 堆内只保留 key 到记录位置的索引。每个区块的写集之后追加一条区块结束记录, 重启时回放到最后一个完整区块,
+ * 最后一个不完整区块的写集不会进入索引, 并从文件中截掉。
+ * 水位(watermark)为已连续应用的最后一个区块号; 收到的区块与水位之间有空缺时由后台线程通过历史区块回填补齐,
+ * 不阻塞区块事件线程, 补齐期间收到的区块也由回填获取。
+ * 过滤区块不包含读写集, 不会被应用。覆盖写入的旧值不回收, 文件随写入量增长。
+ */
+@Slf4j
+@Component("worldStateProjection")
+public class WorldStateProjection implements BlockListener {
+
+    private static final byte PUT = 0;
+
+    private static final byte DELETE = 1;
+
+    private static final byte BLOCK_END = 2;
+
+    @Value("${blockchain.projection.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 分段文件目录, 每个 channel 一个子目录
+     */
+    @Value("${blockchain.projection.path:${user.home}/.fabric-sdk/worldstate}")
+    private String projectionPath;
+
+    @Value("${blockchain.projection.segmentBytes:67108864}")
+    private int segmentBytes;
+
+    /**
+     * 区块有空缺时是否回填, 不回填时直接应用并跳过缺失的区块(视图可能不完整)
+     */
+    @Value("${blockchain.projection.catchUp:true}")
+    private boolean catchUp;
+
+    @Lazy
+    @Resource
+    private BlockBackfillService blockBackfillService;
+
+    @Resource
+    private ConfigService configService;
+
+    private final ConcurrentMap<String, ChannelState> states = new ConcurrentHashMap<>();
+
+    private Path root;
+
+    /**
+     * 回填空缺区块的线程, 各 channel 依次补齐
+     */
+    private ExecutorService catchUpExecutor;
+
+    @PostConstruct
+    protected void init() throws IOException{
+        root = Paths.get(projectionPath);
+        if (enabled) {
+            Files.createDirectories(root);
+        }
+        catchUpExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("world-state-catchup-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    protected void destroy(){
+        catchUpExecutor.shutdownNow();
+        for (Map.Entry<String, ChannelState> entry : states.entrySet()) {
+            try {
+                entry.getValue().segments.close();
+            } catch (IOException e) {
+                log.warn(format("Failed to close world state of channel %s", entry.getKey()), e);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 读取本地视图中的值
+     * @param channelName
+     * @param namespace 智能合约名称
+     * @param key
+     * @return 值的只读视图, 直接引用映射内存; key 不存在时返回 null
+     */
+    public ByteBuffer get(String channelName, String namespace, String key) {
+        if (!enabled) {
+            return null;
+        }
+        ChannelState state = state(channelName);
+        Map<String, Long> keys = state.namespaces.get(namespace);
+        Long location = keys == null ? null : keys.get(key);
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer record = state.segments.view(location);
+        // 跳过类型、命名空间和 key, 剩下的是值
+        record.get();
+        record.position(record.position() + record.getInt());
+        record.position(record.position() + record.getInt());
+        return record.slice();
+    }
+
+    /**
+     * 读取本地视图中的值并按 UTF-8 解码
+     * @return key 不存在时返回 null
+     */
+    public String getString(String channelName, String namespace, String key) {
+        ByteBuffer value = get(channelName, namespace, key);
+        return value == null ? null : UTF_8.decode(value).toString();
+    }
+
+    /**
+     * 已连续应用的最后一个区块号, 与区块链高度比较可知视图落后多少
+     * @param channelName
+     * @return 还没有应用任何区块时返回 -1
+     */
+    public long getWatermark(String channelName) {
+        return enabled ? state(channelName).watermark : -1;
+    }
+
+    @Override
+    public void received(BlockEvent blockEvent) {
+        if (!enabled || blockEvent.isFiltered()) {
+            return;
+        }
+        String channelName = blockEvent.getChannelId();
+        long blockNumber = blockEvent.getBlockNumber();
+        ChannelState state = state(channelName);
+        synchronized (state) {
+            if (blockNumber <= state.watermark) {
+                return;
+            }
+            // 正在补齐时这个区块也由回填获取
+            state.latest = Math.max(state.latest, blockNumber);
+            if (state.catchingUp) {
+                return;
+            }
+            if (blockNumber > state.watermark + 1) {
+                if (catchUp) {
+                    log.info(format("World state of channel %s is at block %d, catching up to block %d",
+                            channelName, state.watermark, blockNumber));
+                    state.catchingUp = true;
+                    catchUpExecutor.execute(() -> catchUp(channelName, state));
+                    return;
+                }
+                log.warn(format("World state of channel %s skips blocks %d to %d, keys written there may be missing",
+                        channelName, state.watermark + 1, blockNumber - 1));
+            }
+            try {
+                apply(state, blockEvent);
+            } catch (Exception e) {
+                log.error(format("Failed to apply block %d to world state of channel %s, staying at block %d",
+                        blockNumber, channelName, state.watermark), e);
+            }
+        }
+    }
+
+    /**
+     * 回填水位到已收到的最新区块之间的区块, 直到追上; 只在应用单个区块时持有锁, 事件线程不会等待整个回填
+     */
+    private void catchUp(String channelName, ChannelState state) {
+        try {
+            while (true) {
+                long fromBlock;
+                long toBlock;
+                synchronized (state) {
+                    if (state.watermark >= state.latest) {
+                        state.catchingUp = false;
+                        log.info(format("World state of channel %s caught up to block %d", channelName, state.watermark));
+                        return;
+                    }
+                    fromBlock = state.watermark + 1;
+                    toBlock = state.latest + 1;
+                }
+                blockBackfillService.backfill(channelName, fromBlock, toBlock, configService.getUser(), blockInfo -> {
+                    synchronized (state) {
+                        if (blockInfo.getBlockNumber() == state.watermark + 1) {
+                            apply(state, blockInfo);
+                        }
+                    }
+                });
+            }
+        } catch (Exception e) {
+            // 下一个区块到达时重新补齐
+            log.error(format("Failed to catch up world state of channel %s, staying at block %d", channelName, state.watermark), e);
+            synchronized (state) {
+                state.catchingUp = false;
+            }
+        }
+    }
+
+    /**
+     * 各 channel 的水位和 key 数量
+     * @return
+     */
+    public Map<String, Object> statistics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        states.forEach((channelName, state) -> {
+            Map<String, Object> channel = new LinkedHashMap<>();
+            channel.put("watermark", state.watermark);
+            channel.put("catchingUp", state.catchingUp);
+            Map<String, Integer> namespaces = new LinkedHashMap<>();
+            state.namespaces.forEach((namespace, keys) -> namespaces.put(namespace, keys.size()));
+            channel.put("keys", namespaces);
+            channel.put("mappedBytes", state.segments.mappedBytes());
+            result.put(channelName, channel);
+        });
+        return result;
+    }
+
+    /**
+     * 追加区块的写集, 最后追加区块结束记录并推进水位
+     */
+    private void apply(ChannelState state, BlockInfo blockInfo) throws Exception{
+        RwSetUtil.forEachValidWrite(blockInfo, (namespace, write) -> {
+            byte[] key = write.getKey().getBytes(UTF_8);
+            byte[] ns = namespace.getBytes(UTF_8);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(9 + ns.length + key.length + write.getValue().size());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(write.getIsDelete() ? DELETE : PUT);
+            out.writeInt(ns.length);
+            out.write(ns);
+            out.writeInt(key.length);
+            out.write(key);
+            write.getValue().writeTo(out);
+            state.index(state.segments.append(bytes.toByteArray()), write.getIsDelete(), namespace, write.getKey());
+        });
+        state.segments.append(ByteBuffer.allocate(9).put(BLOCK_END).putLong(blockInfo.getBlockNumber()).array());
+        state.watermark = blockInfo.getBlockNumber();
+    }
+
+    private ChannelState state(String channelName) {
+        return states.computeIfAbsent(channelName, name -> {
+            try {
+                return new ChannelState(root.resolve(name));
+            } catch (IOException e) {
+                throw new UncheckedIOException(format("Failed to open world state of channel %s", name), e);
+            }
+        });
+    }
+
+    /**
+     * 一个 channel 的分段文件、key 索引和水位
+     */
+    private final class ChannelState {
+
+        final BlockSegmentLog segments;
+
+        /**
+         * 命名空间 -> key -> 记录位置
+         */
+        final ConcurrentMap<String, ConcurrentMap<String, Long>> namespaces = new ConcurrentHashMap<>();
+
+        volatile long watermark = -1;
+
+        /**
+         * 收到的最新区块号
+         */
+        long latest = -1;
+
+        /**
+         * 是否正在后台回填
+         */
+        volatile boolean catchingUp;
+
+        ChannelState(Path dir) throws IOException {
+            segments = new BlockSegmentLog(dir, segmentBytes);
+            // 区块的写集在读到区块结束记录后才进入索引
+            List<PendingWrite> pending = new ArrayList<>();
+            segments.open((location, record) -> {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                byte type = buffer.get();
+                if (type == BLOCK_END) {
+                    for (PendingWrite write : pending) {
+                        index(write.location, write.delete, write.namespace, write.key);
+                    }
+                    pending.clear();
+                    watermark = buffer.getLong();
+                    return true;
+                }
+                if (type != PUT && type != DELETE) {
+                    return false;
+                }
+                String namespace = string(buffer);
+                pending.add(new PendingWrite(location, type == DELETE, namespace, string(buffer)));
+                return true;
+            });
+            if (!pending.isEmpty()) {
+                log.warn(format("Discarding %d writes of an incomplete block after block %d in %s", pending.size(), watermark, dir));
+                segments.truncate(pending.get(0).location);
+            }
+            latest = watermark;
+            if (watermark >= 0) {
+                log.info(format("Loaded world state at block %d from %s", watermark, dir));
+            }
+        }
+
+        void index(long location, boolean delete, String namespace, String key) {
+            ConcurrentMap<String, Long> keys = namespaces.computeIfAbsent(namespace, k -> new ConcurrentHashMap<>());
+            if (delete) {
+                keys.remove(key);
+            } else {
+                keys.put(key, location);
+            }
+        }
+
+        private String string(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, UTF_8);
+        }
+    }
+
+    /**
+     * 回放时等待区块结束记录的写入
+     */
+    private static final class PendingWrite {
+
+        final long location;
+
+        final boolean delete;
+
+        final String namespace;
+
+        final String key;
+
+        PendingWrite(long location, boolean delete, String namespace, String key) {
+            this.location = location;
+            this.delete = delete;
+            this.namespace = namespace;
+            this.key = key;
+        }
+    }
+}
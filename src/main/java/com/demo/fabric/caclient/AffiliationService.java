@@ -1,12 +1,15 @@
 package com.demo.fabric.caclient;
 
 import com.demo.fabric.blockchain.ConfigService;
+import com.demo.fabric.vo.PageVO;
 import org.hyperledger.fabric.sdk.User;
 import org.hyperledger.fabric_ca.sdk.HFCAAffiliation;
 import org.hyperledger.fabric_ca.sdk.HFCAClient;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * 从属关系（组织机构）服务
@@ -17,6 +20,9 @@ public class AffiliationService {
     @Resource
     private ConfigService configService;
 
+    @Resource
+    private CaDirectoryCache caDirectoryCache;
+
     /**
      * 创建从属关系（组织机构）
      * @param orgName
@@ -32,7 +38,11 @@ public class AffiliationService {
         //使用admin 身份添加org1.department1.team1 从属关系
         //HFCAAffiliation.HFCAAffiliationResp resp = affiliation.create(admin);
         //return HttpStatus.OK.value()==resp.getStatusCode();
-        return affiliation.create(admin);
+        try {
+            return affiliation.create(admin);
+        } finally {
+            caDirectoryCache.invalidateAffiliations();
+        }
     }
 
     /**
@@ -60,7 +70,12 @@ public class AffiliationService {
         affiliation.setUpdateName(newAffiliationStr);
         //使用admin 身份更新从属关系.
         // 第二个参数 true 表示，同时更新已经绑定到org1.department1上的所有的身份信息为org1.department3。
-        return affiliation.update(admin,true);
+        try {
+            return affiliation.update(admin,true);
+        } finally {
+            caDirectoryCache.invalidateAffiliations();
+            caDirectoryCache.invalidateIdentities();
+        }
     }
 
     /**
@@ -74,21 +89,42 @@ public class AffiliationService {
         HFCAClient hfcaClient = configService.getCa();
         User admin = configService.getBlockchainConfig().getPeerAdmin(orgName);
         HFCAAffiliation affiliation = hfcaClient.newHFCAAffiliation(affiliationStr);
-        return affiliation.delete(admin,true);
+        try {
+            return affiliation.delete(admin,true);
+        } finally {
+            // 强制删除时同时删除该从属关系下的身份
+            caDirectoryCache.invalidateAffiliations();
+            caDirectoryCache.invalidateIdentities();
+        }
     }
 
     /**
-     * 获取当前admin 身份有权查看的所有从属关系
+     * 获取当前admin 身份有权查看的所有从属关系, 从本地缓存读取
      * @param orgName
      * @return
      * @throws Exception
      */
     public HFCAAffiliation queryAffiliation(String orgName)throws Exception{
-        HFCAClient hfcaClient = configService.getCa();
-        return hfcaClient.getHFCAAffiliations(configService.getBlockchainConfig().getPeerAdmin(orgName));
-        //        .stream()
-        //        .map(f->f.getName())
-        //        .forEach(System.out::println);
+        return caDirectoryCache.affiliationTree(orgName);
+    }
+
+    /**
+     * 分页查询从属关系, 从本地缓存读取, 按名称排序
+     * @param orgName
+     * @param prefix 从属关系本身或其下级, 如 org1 匹配 org1.department1, 为 null 时不过滤
+     * @param offset 从 0 开始
+     * @param limit 每页数量, 不大于 0 时返回全部
+     * @return
+     * @throws Exception
+     */
+    public PageVO<HFCAAffiliation> queryAffiliations(String orgName,String prefix,int offset,int limit)throws Exception{
+        List<HFCAAffiliation> matched = new ArrayList<>();
+        for (HFCAAffiliation affiliation : caDirectoryCache.affiliations(orgName)) {
+            if (prefix == null || CaDirectoryCache.underAffiliation(affiliation.getName(), prefix)) {
+                matched.add(affiliation);
+            }
+        }
+        return PageVO.of(matched,offset,limit);
     }
 
     /**
@@ -0,0 +1,252 @@
+package com.demo.fabric.caclient;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.demo.fabric.blockchain.ConfigService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.hyperledger.fabric.sdk.Enrollment;
+import org.hyperledger.fabric_ca.sdk.EnrollmentRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * 批量登记证书
+ * 读取批量注册的结果文件(每行一个 JSON, 包含 name、organization、secret), 并发调用 enroll, 密钥对从 {@link EnrollmentKeyPool} 获取。
+ * 每个登记结果(证书和 PKCS#8 私钥)立即保存到 {@link EnrollmentStore}, 进程中断不会丢失已登记用户的私钥;
+ * 结果文件只记录用户和登记状态, 不包含私钥, 按批追加, 每批只刷新一次。再次运行时跳过结果文件或证书存储中已有的用户。
+ * 吞吐量(每秒登记数)通过 /actuator/enrollments 查看。
+ */
+@Slf4j
+@Service("bulkEnrollmentService")
+public class BulkEnrollmentService {
+
+    @Resource
+    private ConfigService configService;
+
+    @Resource
+    private EnrollmentKeyPool enrollmentKeyPool;
+
+    @Resource
+    private EnrollmentStore enrollmentStore;
+
+    /**
+     * 同时进行的 enroll 请求数
+     */
+    @Value("${blockchain.ca.bulkEnroll.parallelism:16}")
+    private int parallelism;
+
+    /**
+     * 每批写入结果文件的登记数
+     */
+    @Value("${blockchain.ca.bulkEnroll.batchSize:100}")
+    private int batchSize;
+
+    /**
+     * 从密钥池取密钥对的最长等待时间(毫秒), 超时后在请求线程中生成
+     */
+    @Value("${blockchain.ca.bulkEnroll.keyWaitMs:100}")
+    private long keyWaitMs;
+
+    private final AtomicLong enrolled = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * 当前或最近一次批量登记的开始时间和登记数
+     */
+    private volatile long runStartedAt;
+
+    private volatile long runFinishedAt;
+
+    private final AtomicLong runEnrolled = new AtomicLong();
+
+    /**
+     * 批量登记
+     * @param input 批量注册的结果文件
+     * @param output 登记结果文件, 已存在时跳过其中已有的用户并追加
+     * @return 本次登记成功的用户数
+     * @throws Exception
+     */
+    public long enrollAll(Path input, Path output) throws Exception{
+        Set<String> completed = completedUsers(output);
+        runStartedAt = System.currentTimeMillis();
+        runFinishedAt = 0;
+        runEnrolled.set(0);
+        Semaphore inFlight = new Semaphore(parallelism);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder().setNameFormat("bulk-enroll-%d").setDaemon(true).build());
+        log.info(format("Bulk enrolling users from %s, %d already enrolled in %s", input, completed.size(), output));
+        try (BufferedReader reader = Files.newBufferedReader(input, UTF_8);
+             BatchWriter writer = new BatchWriter(Files.newBufferedWriter(output, UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    JSONObject user = parse(line);
+                    if (user == null || user.getString("secret") == null
+                            || completed.contains(userKey(user.getString("organization"), user.getString("name")))
+                            // 已保存但所在批次没有写入结果文件(进程中断)
+                            || enrollmentStore.contains(user.getString("organization"), user.getString("name"))) {
+                        continue;
+                    }
+                    inFlight.acquire();
+                    executor.execute(() -> {
+                        try {
+                            Enrollment enrollment = enroll(user);
+                            if (enrollment != null) {
+                                writer.add(user, enrollment);
+                            }
+                        } catch (IOException e) {
+                            log.error(format("Failed to write enrollment of user %s", user.getString("name")), e);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+            } finally {
+                // 读取中断时也要等已提交的登记写完结果再关闭结果文件
+                inFlight.acquireUninterruptibly(parallelism);
+            }
+        } finally {
+            executor.shutdownNow();
+            runFinishedAt = System.currentTimeMillis();
+        }
+        log.info(format("Bulk enrollment from %s finished: %d enrolled at %.1f/s",
+                input, runEnrolled.get(), enrollmentsPerSecond()));
+        return runEnrolled.get();
+    }
+
+    /**
+     * 登记吞吐量统计
+     * @return
+     */
+    public Map<String, Object> statistics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enrolled", enrolled.get());
+        result.put("failed", failed.get());
+        result.put("running", runStartedAt > 0 && runFinishedAt == 0);
+        result.put("runEnrolled", runEnrolled.get());
+        result.put("enrollmentsPerSecond", enrollmentsPerSecond());
+        result.put("keyPool", enrollmentKeyPool.statistics());
+        return result;
+    }
+
+    private double enrollmentsPerSecond() {
+        if (runStartedAt == 0) {
+            return 0;
+        }
+        long end = runFinishedAt == 0 ? System.currentTimeMillis() : runFinishedAt;
+        return runEnrolled.get() * 1000.0 / Math.max(1, end - runStartedAt);
+    }
+
+    private Enrollment enroll(JSONObject user) {
+        String name = user.getString("name");
+        try {
+            EnrollmentRequest request = new EnrollmentRequest();
+            request.setKeyPair(enrollmentKeyPool.take(keyWaitMs));
+            Enrollment enrollment = configService.getCa().enroll(name, user.getString("secret"), request);
+            enrolled.incrementAndGet();
+            runEnrolled.incrementAndGet();
+            return enrollment;
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            log.warn(format("Failed to enroll user %s", name), e);
+            return null;
+        }
+    }
+
+    private static JSONObject parse(String line) {
+        if (line.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return JSON.parseObject(line);
+        } catch (RuntimeException e) {
+            // 进程中断时最后一行可能不完整
+            return null;
+        }
+    }
+
+    private static Set<String> completedUsers(Path output) throws IOException{
+        Set<String> completed = new HashSet<>();
+        if (!Files.exists(output)) {
+            return completed;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(output, UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JSONObject result = parse(line);
+                if (result != null) {
+                    completed.add(userKey(result.getString("organization"), result.getString("name")));
+                }
+            }
+        }
+        return completed;
+    }
+
+    private static String userKey(String organization, String name) {
+        return organization + "/" + name;
+    }
+
+    /**
+     * 证书立即保存到证书存储, 结果文件攒够一批再写入并刷新
+     */
+    private final class BatchWriter implements AutoCloseable {
+
+        private final BufferedWriter writer;
+
+        private final List<String> batch = new ArrayList<>();
+
+        BatchWriter(BufferedWriter writer) {
+            this.writer = writer;
+        }
+
+        void add(JSONObject user, Enrollment enrollment) throws IOException {
+            String organization = user.getString("organization");
+            // 在请求线程中保存, 写入磁盘后才算登记完成
+            enrollmentStore.put(organization, user.getString("name"), enrollment);
+            JSONObject result = new JSONObject(true);
+            result.put("name", user.getString("name"));
+            result.put("organization", organization);
+            result.put("status", "ENROLLED");
+            synchronized (this) {
+                batch.add(result.toJSONString());
+                if (batch.size() >= batchSize) {
+                    flush();
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            for (String line : batch) {
+                writer.write(line);
+                writer.newLine();
+            }
+            writer.flush();
+            batch.clear();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                writer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.demo.fabric.caclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 批量注册结果统计
+ */
+public class BulkRegistrationReport {
+
+    /**
+     * 单个用户的注册结果
+     */
+    public enum Status {
+        /** 注册成功 */
+        REGISTERED,
+        /** CA 中已存在该用户 */
+        ALREADY_REGISTERED,
+        /** 重试后仍失败或记录无效 */
+        FAILED
+    }
+
+    private final AtomicLong registered = new AtomicLong();
+
+    private final AtomicLong alreadyRegistered = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private final long startedAt = System.currentTimeMillis();
+
+    private volatile long elapsedMs;
+
+    void record(Status status) {
+        switch (status) {
+            case REGISTERED:
+                registered.incrementAndGet();
+                break;
+            case ALREADY_REGISTERED:
+                alreadyRegistered.incrementAndGet();
+                break;
+            default:
+                failed.incrementAndGet();
+        }
+    }
+
+    void skip() {
+        skipped.incrementAndGet();
+    }
+
+    void finish() {
+        elapsedMs = System.currentTimeMillis() - startedAt;
+    }
+
+    public long getRegistered() {
+        return registered.get();
+    }
+
+    public long getAlreadyRegistered() {
+        return alreadyRegistered.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * 结果文件中已经成功、本次跳过的用户数
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getElapsedMs() {
+        return elapsedMs;
+    }
+
+    @Override
+    public String toString() {
+        return "registered=" + registered + ", alreadyRegistered=" + alreadyRegistered + ", failed=" + failed
+                + ", skipped=" + skipped + ", elapsedMs=" + elapsedMs;
+    }
+}
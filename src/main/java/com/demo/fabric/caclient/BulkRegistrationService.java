@@ -0,0 +1,410 @@
+package com.demo.fabric.caclient;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.JSONReader;
+import com.demo.fabric.blockchain.ConfigService;
+import com.demo.fabric.vo.UserVO;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.hyperledger.fabric.sdk.User;
+import org.hyperledger.fabric_ca.sdk.Attribute;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * 批量注册用户身份
+ * 从 CSV 或 JSON 文件中流式读取用户, 按并发数和速率限制并发注册, 临时性失败(网络错误、CA 返回 5xx/429)按指数退避重试。
+ * 每个用户的结果在完成时追加到结果文件(每行一个 JSON, 包含 enrollment secret, 需妥善保管),
+ * 再次运行时跳过结果文件中已经成功的用户, 进程中断后可以从断点继续。
+ * 无效的记录(缺少 name/organization、maxEnrollments 不是数字等)记为失败, 结果中带有记录序号, 不影响其他用户。
+ * CSV 第一行为列名: name,organization,affiliation,enrollmentSecret,maxEnrollments,attributes, attributes 格式为 k1=v1;k2=v2。
+ * JSON 为用户对象数组, attributes 为 {"name","value","ecert"} 数组。
+ */
+@Slf4j
+@Service("bulkRegistrationService")
+public class BulkRegistrationService {
+
+    private static final Pattern TRANSIENT_STATUS = Pattern.compile("status code: (5\\d\\d|429)");
+
+    @Resource
+    private IdentityService identityService;
+
+    @Resource
+    private ConfigService configService;
+
+    /**
+     * 同时进行的注册请求数
+     */
+    @Value("${blockchain.ca.bulk.parallelism:16}")
+    private int parallelism;
+
+    /**
+     * 每秒最多发送的注册请求数(包括重试)
+     */
+    @Value("${blockchain.ca.bulk.ratePerSecond:100}")
+    private double ratePerSecond;
+
+    /**
+     * 临时性失败的重试次数
+     */
+    @Value("${blockchain.ca.bulk.retries:3}")
+    private int retries;
+
+    /**
+     * 第一次重试前的等待时间(毫秒), 之后每次翻倍
+     */
+    @Value("${blockchain.ca.bulk.backoffMs:500}")
+    private long backoffMs;
+
+    /**
+     * 批量注册
+     * @param input 用户文件, 扩展名为 .json 时按 JSON 读取, 否则按 CSV 读取
+     * @param output 结果文件, 已存在时跳过其中已成功的用户并追加
+     * @return
+     * @throws Exception
+     */
+    public BulkRegistrationReport registerAll(Path input, Path output) throws Exception{
+        Set<String> completed = completedUsers(output);
+        BulkRegistrationReport report = new BulkRegistrationReport();
+        RateLimiter rateLimiter = RateLimiter.create(ratePerSecond);
+        Map<String, User> registrars = new HashMap<>();
+        Semaphore inFlight = new Semaphore(parallelism);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder().setNameFormat("bulk-register-%d").setDaemon(true).build());
+        log.info(format("Bulk registering users from %s, %d already completed in %s", input, completed.size(), output));
+        try (CloseableIterator users = open(input);
+             BufferedWriter writer = Files.newBufferedWriter(output, UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            try {
+                for (long record = 1; users.hasNext(); record++) {
+                    UserVO userVO;
+                    try {
+                        userVO = users.next();
+                    } catch (IllegalArgumentException e) {
+                        log.warn(format("Skipping invalid user record %d in %s: %s", record, input, e.getMessage()));
+                        JSONObject result = new JSONObject(true);
+                        result.put("record", record);
+                        result.put("status", BulkRegistrationReport.Status.FAILED);
+                        result.put("error", e.getMessage());
+                        report.record(BulkRegistrationReport.Status.FAILED);
+                        write(writer, result);
+                        continue;
+                    }
+                    if (completed.contains(userKey(userVO.getOrganization(), userVO.getName()))) {
+                        report.skip();
+                        continue;
+                    }
+                    inFlight.acquire();
+                    executor.execute(() -> {
+                        try {
+                            JSONObject result = register(userVO, registrars, rateLimiter);
+                            report.record((BulkRegistrationReport.Status) result.get("status"));
+                            write(writer, result);
+                        } catch (IOException e) {
+                            log.error(format("Failed to write registration result of user %s", userVO.getName()), e);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+            } finally {
+                // 读取中断时也要等已提交的注册写完结果再关闭结果文件
+                inFlight.acquireUninterruptibly(parallelism);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        report.finish();
+        log.info(format("Bulk registration from %s finished: %s", input, report));
+        return report;
+    }
+
+    private static void write(BufferedWriter writer, JSONObject result) throws IOException{
+        synchronized (writer) {
+            writer.write(result.toJSONString());
+            writer.newLine();
+            writer.flush();
+        }
+    }
+
+    private JSONObject register(UserVO userVO, Map<String, User> registrars, RateLimiter rateLimiter) {
+        JSONObject result = new JSONObject(true);
+        result.put("name", userVO.getName());
+        result.put("organization", userVO.getOrganization());
+        Exception last = null;
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            rateLimiter.acquire();
+            try {
+                String secret = identityService.register(userVO, registrar(userVO.getOrganization(), registrars));
+                result.put("status", BulkRegistrationReport.Status.REGISTERED);
+                result.put("secret", secret);
+                return result;
+            } catch (Exception e) {
+                last = e;
+                if (messages(e).toLowerCase().contains("already registered")) {
+                    result.put("status", BulkRegistrationReport.Status.ALREADY_REGISTERED);
+                    return result;
+                }
+                if (!isTransient(e) || attempt == retries) {
+                    break;
+                }
+                long delay = backoffMs << attempt;
+                log.warn(format("Registering user %s failed, retrying in %d ms: %s", userVO.getName(), delay, e.getMessage()));
+                try {
+                    Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        result.put("status", BulkRegistrationReport.Status.FAILED);
+        result.put("error", messages(last));
+        return result;
+    }
+
+    /**
+     * 每个组织的登记员在一次批量注册中只获取一次
+     */
+    private User registrar(String organization, Map<String, User> registrars) throws Exception{
+        synchronized (registrars) {
+            User admin = registrars.get(organization);
+            if (admin == null) {
+                admin = configService.getBlockchainConfig().getPeerAdmin(organization);
+                registrars.put(organization, admin);
+            }
+            return admin;
+        }
+    }
+
+    /**
+     * 网络错误或 CA 返回 5xx/429 时可以重试
+     */
+    private static boolean isTransient(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException
+                    || (cause.getMessage() != null && TRANSIENT_STATUS.matcher(cause.getMessage()).find())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String messages(Throwable e) {
+        StringBuilder result = new StringBuilder();
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (result.length() > 0) {
+                result.append(": ");
+            }
+            result.append(cause.getMessage());
+        }
+        return result.toString();
+    }
+
+    /**
+     * 结果文件中已经成功的用户
+     */
+    private static Set<String> completedUsers(Path output) throws IOException{
+        Set<String> completed = new HashSet<>();
+        if (!Files.exists(output)) {
+            return completed;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(output, UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JSONObject result;
+                try {
+                    result = JSON.parseObject(line);
+                } catch (RuntimeException e) {
+                    // 进程中断时最后一行可能不完整
+                    continue;
+                }
+                String status = result == null ? null : result.getString("status");
+                if (BulkRegistrationReport.Status.REGISTERED.name().equals(status)
+                        || BulkRegistrationReport.Status.ALREADY_REGISTERED.name().equals(status)) {
+                    completed.add(userKey(result.getString("organization"), result.getString("name")));
+                }
+            }
+        }
+        return completed;
+    }
+
+    private static String userKey(String organization, String name) {
+        return organization + "/" + name;
+    }
+
+    private static CloseableIterator open(Path input) throws IOException{
+        BufferedReader reader = Files.newBufferedReader(input, UTF_8);
+        return input.getFileName().toString().toLowerCase().endsWith(".json")
+                ? new JsonUsers(reader) : new CsvUsers(reader);
+    }
+
+    private static UserVO toUser(String name, String organization, String affiliation, String secret,
+                                 String maxEnrollments, List<Attribute> attributes) {
+        if (name == null || name.isEmpty() || organization == null || organization.isEmpty()) {
+            throw new IllegalArgumentException(format("User record needs name and organization, got name=%s organization=%s", name, organization));
+        }
+        UserVO userVO = new UserVO(name, organization);
+        userVO.setAffiliation(affiliation);
+        userVO.setEnrollmentSecret(secret == null || secret.isEmpty() ? null : secret);
+        if (maxEnrollments != null && !maxEnrollments.isEmpty()) {
+            userVO.setMaxEnrollments(Integer.parseInt(maxEnrollments));
+        }
+        userVO.setAttributes(attributes);
+        return userVO;
+    }
+
+    private interface CloseableIterator extends Iterator<UserVO>, Closeable {
+    }
+
+    /**
+     * 按行读取 CSV, 支持双引号包含逗号的字段
+     */
+    private static final class CsvUsers implements CloseableIterator {
+
+        private final BufferedReader reader;
+
+        private final Map<String, Integer> columns = new HashMap<>();
+
+        private String nextLine;
+
+        CsvUsers(BufferedReader reader) throws IOException {
+            this.reader = reader;
+            String header = reader.readLine();
+            if (header == null) {
+                return;
+            }
+            List<String> names = split(header);
+            for (int i = 0; i < names.size(); i++) {
+                columns.put(names.get(i).trim().toLowerCase(), i);
+            }
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextLine != null;
+        }
+
+        @Override
+        public UserVO next() {
+            if (nextLine == null) {
+                throw new NoSuchElementException();
+            }
+            List<String> fields = split(nextLine);
+            try {
+                advance();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            List<Attribute> attributes = new ArrayList<>();
+            String attrs = field(fields, "attributes");
+            if (attrs != null && !attrs.isEmpty()) {
+                for (String pair : attrs.split(";")) {
+                    int eq = pair.indexOf('=');
+                    if (eq > 0) {
+                        attributes.add(new Attribute(pair.substring(0, eq).trim(), pair.substring(eq + 1).trim()));
+                    }
+                }
+            }
+            return toUser(field(fields, "name"), field(fields, "organization"), field(fields, "affiliation"),
+                    field(fields, "enrollmentsecret"), field(fields, "maxenrollments"), attributes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+
+        private void advance() throws IOException {
+            do {
+                nextLine = reader.readLine();
+            } while (nextLine != null && nextLine.trim().isEmpty());
+        }
+
+        private String field(List<String> fields, String column) {
+            Integer index = columns.get(column);
+            return index == null || index >= fields.size() ? null : fields.get(index).trim();
+        }
+
+        private static List<String> split(String line) {
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == '"') {
+                    if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = !quoted;
+                    }
+                } else if (c == ',' && !quoted) {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else {
+                    field.append(c);
+                }
+            }
+            fields.add(field.toString());
+            return fields;
+        }
+    }
+
+    /**
+     * 流式读取 JSON 数组, 一次只解析一个用户对象
+     */
+    private static final class JsonUsers implements CloseableIterator {
+
+        private final JSONReader reader;
+
+        JsonUsers(Reader reader) {
+            this.reader = new JSONReader(reader);
+            this.reader.startArray();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return reader.hasNext();
+        }
+
+        @Override
+        public UserVO next() {
+            if (!reader.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            JSONObject user = reader.readObject(JSONObject.class);
+            List<Attribute> attributes = new ArrayList<>();
+            JSONArray attrs = user.getJSONArray("attributes");
+            if (attrs != null) {
+                for (int i = 0; i < attrs.size(); i++) {
+                    JSONObject attr = attrs.getJSONObject(i);
+                    attributes.add(new Attribute(attr.getString("name"), attr.getString("value"),
+                            Boolean.TRUE.equals(attr.getBoolean("ecert"))));
+                }
+            }
+            return toUser(user.getString("name"), user.getString("organization"), user.getString("affiliation"),
+                    user.getString("enrollmentSecret"), user.getString("maxEnrollments"), attributes);
+        }
+
+        @Override
+        public void close() {
+            reader.close();
+        }
+    }
+}
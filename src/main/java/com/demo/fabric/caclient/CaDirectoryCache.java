@@ -0,0 +1,278 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.ConfigService;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import lombok.extern.slf4j.Slf4j;
+import org.hyperledger.fabric_ca.sdk.Attribute;
+import org.hyperledger.fabric_ca.sdk.HFCAAffiliation;
+import org.hyperledger.fabric_ca.sdk.HFCAIdentity;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+/**
+ * CA 用户身份和从属关系缓存
+ * 按组织缓存 admin 可见的全部身份(按 enrollmentId 排序)和从属关系树, 超过 refreshSeconds 后的第一次读取触发后台刷新并先返回旧数据,
+ * 超过 expireSeconds 未刷新成功则重新同步拉取。{@link IdentityService} 和 {@link AffiliationService} 修改后使对应组织的缓存失效,
+ * 失效时递增版本号, 失效前开始拉取的数据版本号不符, 读取时丢弃。
+ * 返回的 HFCAIdentity、HFCAAffiliation 为缓存中的对象, 调用方不应修改。
+ */
+@Slf4j
+@Component("caDirectoryCache")
+public class CaDirectoryCache {
+
+    @Resource
+    private ConfigService configService;
+
+    /**
+     * 缓存多少秒后后台刷新
+     */
+    @Value("${blockchain.ca.directory.refreshSeconds:60}")
+    private long refreshSeconds;
+
+    /**
+     * 缓存最长保留秒数
+     */
+    @Value("${blockchain.ca.directory.expireSeconds:600}")
+    private long expireSeconds;
+
+    private ExecutorService refreshExecutor;
+
+    private LoadingCache<String, Snapshot<List<HFCAIdentity>>> identities;
+
+    private LoadingCache<String, Snapshot<Affiliations>> affiliations;
+
+    private final ConcurrentMap<String, AtomicLong> identityVersions = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, AtomicLong> affiliationVersions = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    protected void init(){
+        refreshExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("ca-directory-refresh-%d").setDaemon(true).build());
+        identities = CacheBuilder.newBuilder()
+                .refreshAfterWrite(refreshSeconds, TimeUnit.SECONDS)
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build(CacheLoader.asyncReloading(CacheLoader.from(this::loadIdentities), refreshExecutor));
+        affiliations = CacheBuilder.newBuilder()
+                .refreshAfterWrite(refreshSeconds, TimeUnit.SECONDS)
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build(CacheLoader.asyncReloading(CacheLoader.from(this::loadAffiliations), refreshExecutor));
+    }
+
+    @PreDestroy
+    protected void destroy(){
+        refreshExecutor.shutdownNow();
+    }
+
+    /**
+     * 组织 admin 可见的全部用户身份
+     * @param orgName
+     * @return
+     * @throws Exception
+     */
+    public List<HFCAIdentity> identities(String orgName) throws Exception{
+        return get(identities, identityVersions, orgName);
+    }
+
+    /**
+     * 组织 admin 可见的从属关系树的根
+     * @param orgName
+     * @return
+     * @throws Exception
+     */
+    public HFCAAffiliation affiliationTree(String orgName) throws Exception{
+        return get(affiliations, affiliationVersions, orgName).root;
+    }
+
+    /**
+     * 从属关系树中的全部从属关系, 按名称排序
+     * @param orgName
+     * @return
+     * @throws Exception
+     */
+    public List<HFCAAffiliation> affiliations(String orgName) throws Exception{
+        return get(affiliations, affiliationVersions, orgName).all;
+    }
+
+    /**
+     * 用户身份变化后调用, 下次读取时重新拉取。所有组织共用一个 CA, 全部组织的缓存都失效
+     */
+    public void invalidateIdentities() {
+        identityVersions.values().forEach(AtomicLong::incrementAndGet);
+        identities.invalidateAll();
+    }
+
+    /**
+     * 从属关系变化后调用, 强制更新或删除时身份的从属关系也会变化, 需同时调用 {@link #invalidateIdentities}
+     */
+    public void invalidateAffiliations() {
+        affiliationVersions.values().forEach(AtomicLong::incrementAndGet);
+        affiliations.invalidateAll();
+    }
+
+    public Map<String, Object> statistics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("identities", statistics(identities));
+        result.put("affiliations", statistics(affiliations));
+        return result;
+    }
+
+    /**
+     * 过滤用户身份, 条件为 null 时不过滤
+     * @param type 身份类型, 如 user、peer、client
+     * @param affiliationPrefix 从属关系本身或其下级, 如 org1.department1 匹配 org1.department1.team1
+     * @param attributeName 拥有该属性
+     * @param attributeValue 属性值, 需同时指定 attributeName
+     */
+    static List<HFCAIdentity> filter(List<HFCAIdentity> all, String type, String affiliationPrefix,
+                                     String attributeName, String attributeValue) {
+        List<HFCAIdentity> result = new ArrayList<>();
+        for (HFCAIdentity identity : all) {
+            if (type != null && !type.equals(identity.getType())) {
+                continue;
+            }
+            if (affiliationPrefix != null && !underAffiliation(identity.getAffiliation(), affiliationPrefix)) {
+                continue;
+            }
+            if (attributeName != null && !hasAttribute(identity, attributeName, attributeValue)) {
+                continue;
+            }
+            result.add(identity);
+        }
+        return result;
+    }
+
+    static boolean underAffiliation(String affiliation, String prefix) {
+        return affiliation != null && (affiliation.equals(prefix) || affiliation.startsWith(prefix + "."));
+    }
+
+    private static boolean hasAttribute(HFCAIdentity identity, String name, String value) {
+        if (identity.getAttributes() == null) {
+            return false;
+        }
+        for (Attribute attribute : identity.getAttributes()) {
+            if (name.equals(attribute.getName()) && (value == null || value.equals(attribute.getValue()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Snapshot<List<HFCAIdentity>> loadIdentities(String orgName) {
+        long version = version(identityVersions, orgName).get();
+        try {
+            List<HFCAIdentity> result = new ArrayList<>(configService.getCa()
+                    .getHFCAIdentities(configService.getBlockchainConfig().getPeerAdmin(orgName)));
+            result.sort(Comparator.comparing(HFCAIdentity::getEnrollmentId));
+            log.debug(format("Loaded %d identities of %s", result.size(), orgName));
+            return new Snapshot<>(version, Collections.unmodifiableList(result));
+        } catch (Exception e) {
+            throw new IllegalStateException(format("Failed to load identities of %s", orgName), e);
+        }
+    }
+
+    private Snapshot<Affiliations> loadAffiliations(String orgName) {
+        long version = version(affiliationVersions, orgName).get();
+        try {
+            HFCAAffiliation root = configService.getCa()
+                    .getHFCAAffiliations(configService.getBlockchainConfig().getPeerAdmin(orgName));
+            List<HFCAAffiliation> all = new ArrayList<>();
+            flatten(root, all);
+            all.sort(Comparator.comparing(HFCAAffiliation::getName));
+            return new Snapshot<>(version, new Affiliations(root, Collections.unmodifiableList(all)));
+        } catch (Exception e) {
+            throw new IllegalStateException(format("Failed to load affiliations of %s", orgName), e);
+        }
+    }
+
+    private static void flatten(HFCAAffiliation affiliation, List<HFCAAffiliation> all) {
+        if (affiliation == null) {
+            return;
+        }
+        // 根节点的名称为空, 代表全部从属关系
+        if (affiliation.getName() != null && !affiliation.getName().isEmpty()) {
+            all.add(affiliation);
+        }
+        if (affiliation.getChildren() != null) {
+            for (HFCAAffiliation child : affiliation.getChildren()) {
+                flatten(child, all);
+            }
+        }
+    }
+
+    private static <V> V get(LoadingCache<String, Snapshot<V>> cache, ConcurrentMap<String, AtomicLong> versions,
+                             String orgName) throws Exception{
+        try {
+            Snapshot<V> snapshot = cache.get(orgName);
+            // 拉取期间发生修改时丢弃, 连续修改时最多重试两次
+            for (int i = 0; i < 2 && snapshot.version != version(versions, orgName).get(); i++) {
+                cache.invalidate(orgName);
+                snapshot = cache.get(orgName);
+            }
+            return snapshot.value;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            // 还原 CA 调用抛出的原始异常
+            Throwable cause = e.getCause();
+            if (cause instanceof IllegalStateException && cause.getCause() instanceof Exception) {
+                throw (Exception) cause.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static AtomicLong version(ConcurrentMap<String, AtomicLong> versions, String orgName) {
+        return versions.computeIfAbsent(orgName, k -> new AtomicLong());
+    }
+
+    private static Map<String, Object> statistics(LoadingCache<String, ?> cache) {
+        CacheStats stats = cache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("entries", cache.size());
+        result.put("hitCount", stats.hitCount());
+        result.put("missCount", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("loadExceptionCount", stats.loadExceptionCount());
+        result.put("averageLoadPenaltyMs", stats.averageLoadPenalty() / 1_000_000);
+        return result;
+    }
+
+    private static final class Snapshot<V> {
+
+        private final long version;
+
+        private final V value;
+
+        Snapshot(long version, V value) {
+            this.version = version;
+            this.value = value;
+        }
+    }
+
+    private static final class Affiliations {
+
+        private final HFCAAffiliation root;
+
+        private final List<HFCAAffiliation> all;
+
+        Affiliations(HFCAAffiliation root, List<HFCAAffiliation> all) {
+            this.root = root;
+            this.all = all;
+        }
+    }
+}
@@ -3,14 +3,20 @@ package com.demo.fabric.caclient;
 import com.demo.fabric.domain.SampleUser;
 import com.demo.fabric.blockchain.ConfigService;
 import com.demo.fabric.vo.UserVO;
+import com.google.common.collect.MapMaker;
 import lombok.extern.slf4j.Slf4j;
 import org.hyperledger.fabric.sdk.Enrollment;
+import org.hyperledger.fabric.sdk.NetworkConfig;
 import org.hyperledger.fabric.sdk.User;
 import org.hyperledger.fabric_ca.sdk.HFCAClient;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.util.Calendar;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.lang.String.format;
 
 /**
  * 用户身份证书管理
@@ -22,6 +28,19 @@ public class CertService {
     @Resource
     private ConfigService configService;
 
+    @Resource
+    private EnrollmentStore enrollmentStore;
+
+    /**
+     * 正在使用的用户, 证书保存(续期)后直接替换其中的证书。没有引用后自动移除
+     */
+    private final ConcurrentMap<String, SampleUser> liveUsers = new MapMaker().weakValues().makeMap();
+
+    @PostConstruct
+    protected void init(){
+        enrollmentStore.addListener(this::swapEnrollment);
+    }
+
     /**
      * 拉取身份认证证书
      * @param userName
@@ -30,8 +49,54 @@ public class CertService {
      * @throws Exception
      */
     public Enrollment enroll(String userName,String secret)throws Exception{
+        return enroll(configService.getBlockchainConfig().getClientOrganization().getName(),userName,secret);
+    }
+
+    /**
+     * 拉取身份认证证书, 总是向 CA 登记并保存到本地, 覆盖已保存的证书; 读取本地证书使用 {@link #getUser}
+     * @param orgName
+     * @param userName
+     * @param secret
+     * @return
+     * @throws Exception
+     */
+    public Enrollment enroll(String orgName,String userName,String secret)throws Exception{
         HFCAClient hfcaClient = configService.getCa();
-        return hfcaClient.enroll(userName,secret);
+        Enrollment enrollment = hfcaClient.enroll(userName,secret);
+        enrollmentStore.put(orgName,userName,enrollment);
+        return enrollment;
+    }
+
+    /**
+     * 获取本地保存了证书的用户, 同一用户返回同一个对象, 证书续期后自动使用新证书
+     * @param orgName
+     * @param userName
+     * @return 没有保存证书时返回 null
+     * @throws Exception
+     */
+    public SampleUser getUser(String orgName,String userName)throws Exception{
+        String key = orgName + "/" + userName;
+        SampleUser user = liveUsers.get(key);
+        if (user != null) {
+            return user;
+        }
+        Enrollment enrollment = enrollmentStore.get(orgName,userName);
+        if (enrollment == null) {
+            return null;
+        }
+        SampleUser created = new SampleUser(userName,orgName);
+        created.setEnrollment(enrollment);
+        created.setMspId(mspId(orgName));
+        user = liveUsers.putIfAbsent(key,created);
+        if (user != null) {
+            return user;
+        }
+        // 读取证书和放入 liveUsers 之间可能刚好续期
+        Enrollment latest = enrollmentStore.get(orgName,userName);
+        if (!latest.getCert().equals(enrollment.getCert())) {
+            created.setEnrollment(latest);
+        }
+        return created;
     }
 
     /**
@@ -45,7 +110,26 @@ public class CertService {
         HFCAClient hfcaClient = configService.getCa();
         SampleUser user = new SampleUser(userName,orgName);
         user.setEnrollment(enrollment);
-        return hfcaClient.reenroll(user);
+        Enrollment renewed = hfcaClient.reenroll(user);
+        enrollmentStore.put(orgName,userName,renewed);
+        return renewed;
+    }
+
+    private void swapEnrollment(String orgName,String userName,Enrollment enrollment){
+        SampleUser user = liveUsers.get(orgName + "/" + userName);
+        if (user != null) {
+            user.setEnrollment(enrollment);
+            log.info(format("Swapped in new enrollment of user %s of %s", userName, orgName));
+        }
+    }
+
+    private String mspId(String orgName){
+        for (NetworkConfig.OrgInfo org : configService.getBlockchainConfig().getOrganizationInfos()) {
+            if (org.getName().equals(orgName)) {
+                return org.getMspId();
+            }
+        }
+        return null;
     }
 
     /**
@@ -0,0 +1,296 @@
+package com.demo.fabric.caclient;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.hyperledger.fabric.sdk.Enrollment;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * 证书到期前自动续期
+ * 本地证书存储中每个用户按证书的 notAfter 放入优先队列, 到期前 renewBeforeHours 小时开始 reenroll,
+ * 每批最多 batchSize 个并发续期, 请求数受 ratePerSecond 限制。新证书保存后由 {@link CertService} 替换到正在使用的用户中,
+ * 交易不需要暂停。续期失败的用户 retryDelayMs 后重试; 证书已经过期仍续期失败的用户不再重试, 在统计中列出。
+ * 启动时到期时间取自证书存储的索引, 不读取证书和私钥。
+ */
+@Slf4j
+@Component("certificateRenewalScheduler")
+public class CertificateRenewalScheduler implements EnrollmentStore.Listener {
+
+    @Resource
+    private CertService certService;
+
+    @Resource
+    private EnrollmentStore enrollmentStore;
+
+    @Value("${blockchain.ca.renewal.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 到期前多少小时开始续期
+     */
+    @Value("${blockchain.ca.renewal.renewBeforeHours:72}")
+    private long renewBeforeHours;
+
+    /**
+     * 检查到期证书的间隔(毫秒)
+     */
+    @Value("${blockchain.ca.renewal.checkIntervalMs:60000}")
+    private long checkIntervalMs;
+
+    /**
+     * 每批续期的用户数
+     */
+    @Value("${blockchain.ca.renewal.batchSize:50}")
+    private int batchSize;
+
+    /**
+     * 同时进行的 reenroll 请求数
+     */
+    @Value("${blockchain.ca.renewal.parallelism:4}")
+    private int parallelism;
+
+    /**
+     * 每秒最多 reenroll 请求数
+     */
+    @Value("${blockchain.ca.renewal.ratePerSecond:10}")
+    private double ratePerSecond;
+
+    /**
+     * 续期失败后重试的等待时间(毫秒)
+     */
+    @Value("${blockchain.ca.renewal.retryDelayMs:300000}")
+    private long retryDelayMs;
+
+    /**
+     * 按续期时间排序, 证书更新后旧条目留在队列中, 取出时按 notAfter 判断是否过时
+     */
+    private final PriorityQueue<Renewal> queue = new PriorityQueue<>(Comparator.comparingLong(r -> r.due));
+
+    /**
+     * 每个用户当前证书的到期时间, 与 queue 一起由 queue 加锁
+     */
+    private final Map<String, Long> notAfter = new HashMap<>();
+
+    private final Set<String> renewing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 证书已过期且续期失败, 不再重试的用户, 保存新证书后移除
+     */
+    private final Set<String> expired = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong renewed = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private ScheduledExecutorService renewalScheduler;
+
+    private ExecutorService renewalExecutor;
+
+    private RateLimiter rateLimiter;
+
+    @PostConstruct
+    protected void init(){
+        if (!enabled) {
+            return;
+        }
+        rateLimiter = RateLimiter.create(ratePerSecond);
+        renewalExecutor = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder().setNameFormat("cert-renewal-%d").setDaemon(true).build());
+        renewalScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("cert-renewal-scheduler-%d").setDaemon(true).build());
+        enrollmentStore.addListener(this);
+        renewalScheduler.execute(this::load);
+        renewalScheduler.scheduleWithFixedDelay(this::renewDue, checkIntervalMs, checkIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    protected void destroy(){
+        if (!enabled) {
+            return;
+        }
+        enrollmentStore.removeListener(this);
+        renewalScheduler.shutdownNow();
+        renewalExecutor.shutdownNow();
+    }
+
+    @Override
+    public void stored(String orgName, String userName, Enrollment enrollment) {
+        try {
+            schedule(orgName, userName, notAfter(enrollment));
+        } catch (CertificateException e) {
+            log.warn(format("Unable to read expiry of certificate of user %s of %s", userName, orgName), e);
+        }
+    }
+
+    public Map<String, Object> statistics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        synchronized (queue) {
+            result.put("tracked", notAfter.size());
+            Renewal next = queue.peek();
+            result.put("nextRenewal", next == null ? null : new Date(next.due));
+        }
+        result.put("renewing", renewing.size());
+        result.put("renewed", renewed.get());
+        result.put("failed", failed.get());
+        result.put("expired", new TreeSet<>(expired));
+        return result;
+    }
+
+    /**
+     * 启动时读取已保存的证书建立队列
+     */
+    private void load() {
+        try {
+            enrollmentStore.forEachUser((orgName, userName) -> {
+                try {
+                    long expiry = enrollmentStore.getNotAfter(orgName, userName);
+                    if (expiry < 0) {
+                        log.warn(format("Unable to read expiry of certificate of user %s of %s", userName, orgName));
+                        return;
+                    }
+                    schedule(orgName, userName, expiry);
+                } catch (Exception e) {
+                    log.warn(format("Unable to schedule renewal of user %s of %s", userName, orgName), e);
+                }
+            });
+            synchronized (queue) {
+                log.info(format("Tracking expiry of %d certificates", notAfter.size()));
+            }
+        } catch (Exception e) {
+            log.error("Failed to load stored enrollments for renewal", e);
+        }
+    }
+
+    private void schedule(String orgName, String userName, long expiry) {
+        long due = expiry - TimeUnit.HOURS.toMillis(renewBeforeHours);
+        synchronized (queue) {
+            notAfter.put(key(orgName, userName), expiry);
+            queue.add(new Renewal(orgName, userName, expiry, due));
+            expired.remove(key(orgName, userName));
+        }
+    }
+
+    /**
+     * 分批续期已到时间的证书, 一批完成后再取下一批
+     */
+    private void renewDue() {
+        try {
+            // 本轮失败后重新排队的不在本轮重试
+            long now = System.currentTimeMillis();
+            List<Renewal> batch;
+            while (!(batch = nextBatch(now)).isEmpty()) {
+                CountDownLatch done = new CountDownLatch(batch.size());
+                for (Renewal renewal : batch) {
+                    rateLimiter.acquire();
+                    renewalExecutor.execute(() -> {
+                        try {
+                            renew(renewal);
+                        } finally {
+                            renewing.remove(renewal.key());
+                            done.countDown();
+                        }
+                    });
+                }
+                done.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.error("Certificate renewal round failed", e);
+        }
+    }
+
+    private List<Renewal> nextBatch(long now) {
+        List<Renewal> batch = new ArrayList<>();
+        synchronized (queue) {
+            while (batch.size() < batchSize && !queue.isEmpty() && queue.peek().due <= now) {
+                Renewal renewal = queue.poll();
+                Long current = notAfter.get(renewal.key());
+                if (current == null || current != renewal.notAfter || !renewing.add(renewal.key())) {
+                    continue;
+                }
+                batch.add(renewal);
+            }
+        }
+        return batch;
+    }
+
+    private void renew(Renewal renewal) {
+        try {
+            Enrollment enrollment = enrollmentStore.get(renewal.orgName, renewal.userName);
+            // 保存新证书时通过 stored 按新的到期时间重新排队
+            certService.reenroll(renewal.orgName, renewal.userName, enrollment);
+            renewed.incrementAndGet();
+            log.info(format("Renewed certificate of user %s of %s expiring at %s",
+                    renewal.userName, renewal.orgName, new Date(renewal.notAfter)));
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            long now = System.currentTimeMillis();
+            synchronized (queue) {
+                Long current = notAfter.get(renewal.key());
+                if (current == null || current != renewal.notAfter) {
+                    return;
+                }
+                if (renewal.notAfter <= now) {
+                    // 过期证书无法 reenroll, 重试没有意义, 需要重新登记
+                    notAfter.remove(renewal.key());
+                    expired.add(renewal.key());
+                    log.error(format("Certificate of user %s of %s expired at %s and could not be renewed, giving up",
+                            renewal.userName, renewal.orgName, new Date(renewal.notAfter)), e);
+                } else {
+                    queue.add(new Renewal(renewal.orgName, renewal.userName, renewal.notAfter, now + Math.max(1, retryDelayMs)));
+                    log.warn(format("Failed to renew certificate of user %s of %s, retrying in %d ms",
+                            renewal.userName, renewal.orgName, retryDelayMs), e);
+                }
+            }
+        }
+    }
+
+    private static long notAfter(Enrollment enrollment) throws CertificateException {
+        X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(enrollment.getCert().getBytes(UTF_8)));
+        return certificate.getNotAfter().getTime();
+    }
+
+    private static String key(String orgName, String userName) {
+        return orgName + "/" + userName;
+    }
+
+    private static final class Renewal {
+
+        private final String orgName;
+
+        private final String userName;
+
+        private final long notAfter;
+
+        private final long due;
+
+        Renewal(String orgName, String userName, long notAfter, long due) {
+            this.orgName = orgName;
+            this.userName = userName;
+            this.notAfter = notAfter;
+            this.due = due;
+        }
+
+        String key() {
+            return CertificateRenewalScheduler.key(orgName, userName);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.demo.fabric.caclient;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 批量登记证书的吞吐量、密钥池和证书续期监控, 访问 /actuator/enrollments
+ */
+@Component
+@Endpoint(id = "enrollments")
+public class EnrollmentEndpoint {
+
+    @Resource
+    private BulkEnrollmentService bulkEnrollmentService;
+
+    @Resource
+    private CertificateRenewalScheduler certificateRenewalScheduler;
+
+    @ReadOperation
+    public Map<String, Object> statistics() {
+        Map<String, Object> result = new LinkedHashMap<>(bulkEnrollmentService.statistics());
+        result.put("renewal", certificateRenewalScheduler.statistics());
+        return result;
+    }
+}
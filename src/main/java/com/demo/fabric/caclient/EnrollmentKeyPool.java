@@ -0,0 +1,129 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.ConfigService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.security.KeyPair;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 预生成的 ECDSA 密钥对
+ * 密钥对在独立的 fork-join 线程池中用 CA 客户端的 CryptoSuite(与 enroll 时相同的曲线)生成, 放入有界队列,
+ * 取走一个就补充一个, 登记证书时不再在调用线程中生成密钥。只在第一次使用后开始填充。
+ */
+@Slf4j
+@Component("enrollmentKeyPool")
+public class EnrollmentKeyPool {
+
+    @Resource
+    private ConfigService configService;
+
+    /**
+     * 预生成的密钥对数量上限
+     */
+    @Value("${blockchain.ca.keyPool.size:256}")
+    private int size;
+
+    /**
+     * 生成密钥的线程数, 0 为 CPU 核数
+     */
+    @Value("${blockchain.ca.keyPool.parallelism:0}")
+    private int parallelism;
+
+    private BlockingQueue<KeyPair> keyPairs;
+
+    /**
+     * 已提交还未完成的生成任务
+     */
+    private final AtomicInteger generating = new AtomicInteger();
+
+    private final AtomicLong generated = new AtomicLong();
+
+    private final AtomicLong generatedInline = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private ForkJoinPool keyGenPool;
+
+    @PostConstruct
+    protected void init(){
+        keyPairs = new ArrayBlockingQueue<>(size);
+        keyGenPool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+    }
+
+    @PreDestroy
+    protected void destroy(){
+        keyGenPool.shutdownNow();
+        keyPairs.clear();
+    }
+
+    /**
+     * 取一个密钥对, 池中没有时最多等待 timeoutMs, 仍然没有则在当前线程生成
+     * @param timeoutMs
+     * @return
+     * @throws Exception
+     */
+    public KeyPair take(long timeoutMs) throws Exception{
+        refill();
+        KeyPair keyPair = keyPairs.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        refill();
+        if (keyPair == null) {
+            generatedInline.incrementAndGet();
+            keyPair = configService.getCa().getCryptoSuite().keyGen();
+        }
+        return keyPair;
+    }
+
+    public Map<String, Object> statistics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("available", keyPairs.size());
+        result.put("capacity", size);
+        result.put("generating", generating.get());
+        result.put("generated", generated.get());
+        result.put("generatedInline", generatedInline.get());
+        result.put("failures", failures.get());
+        return result;
+    }
+
+    /**
+     * 提交生成任务, 使池中现有的和生成中的密钥对不超过容量
+     */
+    private void refill() {
+        // 并发调用时可能多提交几个, 队列满时多出的密钥对被丢弃
+        while (keyPairs.size() + generating.get() < size) {
+            generating.incrementAndGet();
+            try {
+                keyGenPool.execute(this::generate);
+            } catch (RejectedExecutionException e) {
+                generating.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private void generate() {
+        try {
+            KeyPair keyPair = configService.getCa().getCryptoSuite().keyGen();
+            generated.incrementAndGet();
+            keyPairs.offer(keyPair);
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            log.warn("Failed to pre-generate enrollment key pair", e);
+        } finally {
+            generating.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.ConfigService;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.hyperledger.fabric.sdk.Enrollment;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.*;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * 本地证书存储
+ * 只追加的文件, 每条记录为 [长度][CRC32][组织][用户名][证书 notAfter][证书 PEM][私钥算法][PKCS#8 私钥], 同一用户后写入的记录覆盖之前的。
+ * 第一次访问时顺序扫描文件, 只读取组织、用户名和证书到期时间建立 组织/用户名 -> 文件位置 的索引, 证书和私钥在查询时才读取并校验 CRC,
+ * 最近使用的证书缓存在内存中。末尾不完整的记录(写入时进程中断)在扫描时截掉。被覆盖的旧记录不回收。
+ * 文件中是明文私钥, 只允许所有者读写: POSIX 文件系统上目录为 rwx------、文件为 rw-------,
+ * 其他文件系统(如 Windows)上文件的 ACL 只保留所有者一项。
+ */
+@Slf4j
+@Component("enrollmentStore")
+public class EnrollmentStore {
+
+    private static final int HEADER_BYTES = 8;
+
+    private static final Set<PosixFilePermission> OWNER_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+
+    private static final Set<PosixFilePermission> OWNER_FILE = PosixFilePermissions.fromString("rw-------");
+
+    /**
+     * 存储目录
+     */
+    @Value("${blockchain.keystore.path}")
+    private String keystore;
+
+    /**
+     * 缓存已解析证书的数量
+     */
+    @Value("${blockchain.keystore.cacheSize:10000}")
+    private int cacheSize;
+
+    private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private Cache<String, Enrollment> cache;
+
+    private FileChannel channel;
+
+    private Path file;
+
+    private volatile boolean loaded;
+
+    @PreDestroy
+    protected synchronized void destroy(){
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn(format("Failed to close enrollment store %s", file), e);
+            }
+        }
+    }
+
+    /**
+     * 读取保存的证书
+     * @param orgName
+     * @param userName
+     * @return 没有保存时返回 null
+     * @throws IOException 记录损坏时
+     */
+    public Enrollment get(String orgName, String userName) throws IOException{
+        ensureLoaded();
+        String key = key(orgName, userName);
+        Enrollment enrollment = cache.getIfPresent(key);
+        if (enrollment != null) {
+            return enrollment;
+        }
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        enrollment = read(location.position);
+        // 读取期间被覆盖时不缓存旧证书
+        synchronized (this) {
+            if (location == index.get(key)) {
+                cache.put(key, enrollment);
+            }
+        }
+        return enrollment;
+    }
+
+    public boolean contains(String orgName, String userName) throws IOException{
+        ensureLoaded();
+        return index.containsKey(key(orgName, userName));
+    }
+
+    /**
+     * 保存的证书的到期时间, 只访问索引, 不读取证书
+     * @param orgName
+     * @param userName
+     * @return 毫秒时间戳, 没有保存或证书无法解析时返回 -1
+     */
+    public long getNotAfter(String orgName, String userName) throws IOException{
+        ensureLoaded();
+        Location location = index.get(key(orgName, userName));
+        return location == null ? -1L : location.notAfter;
+    }
+
+    /**
+     * 保存证书, 写入磁盘后返回
+     */
+    public void put(String orgName, String userName, Enrollment enrollment) throws IOException{
+        putAll(orgName, Collections.singletonMap(userName, enrollment));
+    }
+
+    /**
+     * 批量保存同一组织的证书, 只同步一次磁盘
+     * @param orgName
+     * @param enrollments 用户名 -> 证书
+     * @throws IOException
+     */
+    public void putAll(String orgName, Map<String, Enrollment> enrollments) throws IOException{
+        ensureLoaded();
+        Map<String, Location> locations = new LinkedHashMap<>();
+        synchronized (this) {
+            long position = channel.size();
+            for (Map.Entry<String, Enrollment> entry : enrollments.entrySet()) {
+                long notAfter = notAfter(entry.getValue());
+                ByteBuffer record = encode(orgName, entry.getKey(), notAfter, entry.getValue());
+                locations.put(key(orgName, entry.getKey()), new Location(position, notAfter));
+                while (record.hasRemaining()) {
+                    position += channel.write(record, position);
+                }
+            }
+            channel.force(false);
+            // 与写入在同一个锁内更新索引, 并发写入同一用户时索引指向最后写入的记录
+            for (Map.Entry<String, Location> entry : locations.entrySet()) {
+                index.put(entry.getKey(), entry.getValue());
+                cache.invalidate(entry.getKey());
+            }
+        }
+        for (Map.Entry<String, Enrollment> entry : enrollments.entrySet()) {
+            for (Listener listener : listeners) {
+                try {
+                    listener.stored(orgName, entry.getKey(), entry.getValue());
+                } catch (RuntimeException e) {
+                    log.warn(format("Enrollment listener failed for user %s of %s", entry.getKey(), orgName), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 遍历已保存证书的用户, 只访问索引, 不读取证书
+     * @param action 参数为组织和用户名
+     */
+    public void forEachUser(BiConsumer<String, String> action) throws IOException{
+        ensureLoaded();
+        for (String key : index.keySet()) {
+            int separator = key.indexOf('/');
+            action.accept(key.substring(0, separator), key.substring(separator + 1));
+        }
+    }
+
+    /**
+     * 保存证书后通知, 在写入线程中调用
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 已保存的用户数
+     */
+    public int size() throws IOException{
+        ensureLoaded();
+        return index.size();
+    }
+
+    private void ensureLoaded() throws IOException{
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            Path dir = Paths.get(keystore);
+            boolean posix = dir.getFileSystem().supportedFileAttributeViews().contains("posix");
+            if (posix) {
+                Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(OWNER_DIRECTORY));
+            } else {
+                Files.createDirectories(dir);
+            }
+            file = dir.resolve("enrollments.log");
+            Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel = posix ? FileChannel.open(file, options, PosixFilePermissions.asFileAttribute(OWNER_FILE))
+                    : FileChannel.open(file, options);
+            // 之前以默认权限创建的文件也收紧
+            restrictToOwner(file);
+            cache = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+            long valid = scan();
+            if (valid < channel.size()) {
+                log.warn(format("Truncating incomplete record at offset %d of %s", valid, file));
+                channel.truncate(valid);
+            }
+            log.info(format("Indexed %d enrollments from %s", index.size(), file));
+            loaded = true;
+        }
+    }
+
+    /**
+     * 只允许文件所有者访问
+     */
+    private static void restrictToOwner(Path path) throws IOException{
+        PosixFileAttributeView posixView = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+        if (posixView != null) {
+            posixView.setPermissions(OWNER_FILE);
+            return;
+        }
+        AclFileAttributeView aclView = Files.getFileAttributeView(path, AclFileAttributeView.class);
+        if (aclView != null) {
+            AclEntry owner = AclEntry.newBuilder()
+                    .setType(AclEntryType.ALLOW)
+                    .setPrincipal(aclView.getOwner())
+                    .setPermissions(EnumSet.allOf(AclEntryPermission.class))
+                    .build();
+            aclView.setAcl(Collections.singletonList(owner));
+            return;
+        }
+        log.warn(format("Cannot restrict access to %s, private keys are protected only by the directory permissions", path));
+    }
+
+    /**
+     * 顺序扫描建立索引
+     * @return 最后一条完整记录的结束位置
+     */
+    private long scan() throws IOException{
+        long size = channel.size();
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            while (position + HEADER_BYTES <= size) {
+                int length = in.readInt();
+                in.readInt();
+                if (length <= 0 || position + HEADER_BYTES + length > size) {
+                    break;
+                }
+                String orgName = readString(in);
+                String userName = readString(in);
+                long notAfter = in.readLong();
+                int consumed = 16 + utf8Length(orgName) + utf8Length(userName);
+                skipFully(in, length - consumed);
+                index.put(key(orgName, userName), new Location(position, notAfter));
+                position += HEADER_BYTES + length;
+            }
+        } catch (EOFException e) {
+            // 记录不完整, 从 position 处截断
+        }
+        return position;
+    }
+
+    private Enrollment read(long position) throws IOException{
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(header, position);
+        int length = header.getInt(0);
+        int checksum = header.getInt(4);
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(payload, position + HEADER_BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, length);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException(format("Corrupted enrollment record at offset %d of %s", position, file));
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+        readString(in);
+        readString(in);
+        in.readLong();
+        String certificate = readString(in);
+        String algorithm = readString(in);
+        byte[] encodedKey = new byte[in.readInt()];
+        in.readFully(encodedKey);
+        try {
+            PrivateKey privateKey = KeyFactory.getInstance(algorithm).generatePrivate(new PKCS8EncodedKeySpec(encodedKey));
+            return new ConfigService.SampleStoreEnrollement(privateKey, certificate);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(format("Unreadable private key at offset %d of %s", position, file), e);
+        }
+    }
+
+    private static ByteBuffer encode(String orgName, String userName, long notAfter, Enrollment enrollment) throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(2048);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        writeString(out, orgName);
+        writeString(out, userName);
+        out.writeLong(notAfter);
+        writeString(out, enrollment.getCert());
+        writeString(out, enrollment.getKey().getAlgorithm());
+        byte[] encodedKey = enrollment.getKey().getEncoded();
+        out.writeInt(encodedKey.length);
+        out.write(encodedKey);
+        out.flush();
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        int length = record.capacity() - HEADER_BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_BYTES, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException{
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException(format("Unexpected end of %s", file));
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException{
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException{
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static int utf8Length(String value) {
+        return value.getBytes(UTF_8).length;
+    }
+
+    private static void skipFully(DataInputStream in, int n) throws IOException{
+        int remaining = n;
+        while (remaining > 0) {
+            int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /**
+     * 证书的到期时间
+     * @return 证书无法解析时返回 -1
+     */
+    private static long notAfter(Enrollment enrollment) {
+        try {
+            X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(enrollment.getCert().getBytes(UTF_8)));
+            return certificate.getNotAfter().getTime();
+        } catch (CertificateException e) {
+            return -1L;
+        }
+    }
+
+    private static String key(String orgName, String userName) {
+        return orgName + "/" + userName;
+    }
+
+    /**
+     * 索引项: 记录在文件中的位置和证书到期时间
+     */
+    private static final class Location {
+
+        private final long position;
+
+        private final long notAfter;
+
+        Location(long position, long notAfter) {
+            this.position = position;
+            this.notAfter = notAfter;
+        }
+    }
+
+    /**
+     * 证书保存监听
+     */
+    public interface Listener {
+
+        void stored(String orgName, String userName, Enrollment enrollment);
+    }
+}
@@ -1,6 +1,7 @@
 package com.demo.fabric.caclient;
 
 import com.demo.fabric.blockchain.ConfigService;
+import com.demo.fabric.vo.PageVO;
 import com.demo.fabric.vo.UserVO;
 import lombok.extern.slf4j.Slf4j;
 import org.hyperledger.fabric.sdk.User;
@@ -27,6 +28,9 @@ public class IdentityService {
     @Resource
     private ConfigService configService;
 
+    @Resource
+    private CaDirectoryCache caDirectoryCache;
+
     /**
      * 注册用户身份,
      * 会对登记员自身的角色权限进行检查。创建的新用户的角色权限不能大于登记员自身
@@ -34,17 +38,34 @@ public class IdentityService {
      * @throws Exception
      */
     public String register(UserVO userVO)throws Exception{
+        return register(userVO, configService.getBlockchainConfig().getPeerAdmin(userVO.getOrganization()));
+    }
+
+    /**
+     * 使用指定的登记员注册用户身份, 批量注册时登记员只获取一次
+     * @param userVO
+     * @param admin 登记员
+     * @return 用户的 enrollment secret
+     * @throws Exception
+     */
+    public String register(UserVO userVO,User admin)throws Exception{
         HFCAClient hfcaClient = configService.getCa();
-        User admin = configService.getBlockchainConfig().getPeerAdmin(userVO.getOrganization());
         // 正式生产环境可能需要从 database 或者ldap 中检查是否已经注册.
         RegistrationRequest rr = new RegistrationRequest(userVO.getName(),userVO.getAffiliation());
         rr.setSecret(userVO.getEnrollmentSecret());
         rr.setType("user");
-        userVO.getAttributes()
-                .stream()
-                .forEach(f->rr.addAttribute(f));
+        if (userVO.getAttributes() != null) {
+            userVO.getAttributes()
+                    .stream()
+                    .forEach(f->rr.addAttribute(f));
+        }
         //登记用户身份
-        String secret = hfcaClient.register(rr,admin);
+        String secret;
+        try {
+            secret = hfcaClient.register(rr,admin);
+        } finally {
+            caDirectoryCache.invalidateIdentities();
+        }
         log.debug("register username is %s, secret is %s",userVO.getName(),secret);
         return secret;
     }
@@ -65,7 +86,12 @@ public class IdentityService {
         identity.setSecret(userVO.getEnrollmentSecret());
         identity.setType("user");
         // 创建用户身份后，并未生成证书
-        int statusCode = identity.create(configService.getClient().getUserContext());
+        int statusCode;
+        try {
+            statusCode = identity.create(configService.getClient().getUserContext());
+        } finally {
+            caDirectoryCache.invalidateIdentities();
+        }
         if(HttpStatus.CREATED.value()!=statusCode){
             return null;
         }
@@ -82,23 +108,39 @@ public class IdentityService {
         HFCAIdentity identity = hfcaClient.newHFCAIdentity(newUserName);
         identity.setType("client");
         identity.setMaxEnrollments(100);
-        return identity.update(admin);
+        try {
+            return identity.update(admin);
+        } finally {
+            caDirectoryCache.invalidateIdentities();
+        }
     }
 
     /**
-     * 查询某一个组织下，所有 用户身份
+     * 查询某一个组织下，所有 用户身份, 从本地缓存读取
      * @param orgName
      * @return
      * @throws Exception
      */
     public Collection<HFCAIdentity> queryAllIdentity(String orgName)throws Exception{
-        HFCAClient hfcaClient = configService.getCa();
-        User admin = configService.getBlockchainConfig().getPeerAdmin(orgName);
-        // user 代表客户端身份
-        return hfcaClient.getHFCAIdentities(admin);
-                //.stream()
-                //.map(f->f.getEnrollmentId())
-                //.forEach(System.out::println); //遍历获取到的身份列表
+        return caDirectoryCache.identities(orgName);
+    }
+
+    /**
+     * 分页查询某一个组织下的用户身份, 从本地缓存读取, 按 enrollmentId 排序, 条件为 null 时不过滤
+     * @param orgName
+     * @param type 身份类型, 如 user、peer、client
+     * @param affiliationPrefix 从属关系本身或其下级, 如 org1.department1
+     * @param attributeName 拥有该属性
+     * @param attributeValue 属性值, 需同时指定 attributeName
+     * @param offset 从 0 开始
+     * @param limit 每页数量, 不大于 0 时返回全部
+     * @return
+     * @throws Exception
+     */
+    public PageVO<HFCAIdentity> queryIdentities(String orgName,String type,String affiliationPrefix,
+                                                String attributeName,String attributeValue,int offset,int limit)throws Exception{
+        return PageVO.of(CaDirectoryCache.filter(caDirectoryCache.identities(orgName),
+                type,affiliationPrefix,attributeName,attributeValue),offset,limit);
     }
 
     /**
@@ -128,6 +170,10 @@ public class IdentityService {
         //构建要删除的用户身份信息对象。deleteUserName 为用户的身份id.
         HFCAIdentity identity = hfcaClient.newHFCAIdentity(userName);
         // 使用 admin 登记员身份执行删除操作。
-        return identity.delete(admin);
+        try {
+            return identity.delete(admin);
+        } finally {
+            caDirectoryCache.invalidateIdentities();
+        }
     }
 }
@@ -0,0 +1,262 @@
+package com.demo.fabric.chaincode;
+
+import lombok.extern.slf4j.Slf4j;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.BlockListener;
+import org.hyperledger.fabric.sdk.ChaincodeEvent;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+
+/**
+ * 智能合约事件路由
+ * 订阅按智能合约 ID 和事件名称精确索引, 只有真正包含正则的订阅才逐个匹配;
+ * ".*" 视为匹配任意值, 不含正则元字符的表达式按字面值索引。
+ * 每个事件的 payload 只复制一次, 各订阅方拿到同一份数据的只读 ByteBuffer 视图。
+ */
+@Slf4j
+@Component("chaincodeEventRouter")
+public class ChaincodeEventRouter implements BlockListener {
+
+    /**
+     * 索引中表示任意值的 key
+     */
+    private static final String ANY = "\u0000*";
+
+    private static final Pattern REGEX_META = Pattern.compile("[\\\\.\\[\\]{}()<>*+\\-=!?^$|]");
+
+    /**
+     * 智能合约 ID -> 事件名称 -> 订阅
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, List<Subscription>>> exactIndex = new ConcurrentHashMap<>();
+
+    /**
+     * 需要正则匹配的订阅
+     */
+    private final List<Subscription> regexSubscriptions = new CopyOnWriteArrayList<>();
+
+    private final Map<String, Subscription> handles = new ConcurrentHashMap<>();
+
+    /**
+     * 智能合约事件处理
+     */
+    public interface Handler {
+        void handle(Event event) throws Exception;
+    }
+
+    /**
+     * 订阅智能合约事件
+     * @param channelName 为 null 时订阅所有 channel
+     * @param chaincodeId 智能合约 ID 正则
+     * @param eventName 事件名称正则
+     * @param handler 在事件分发线程中调用
+     * @return 取消订阅时使用的 handle
+     */
+    public String subscribe(String channelName, Pattern chaincodeId, Pattern eventName, Handler handler) {
+        String chaincodeKey = indexKey(chaincodeId);
+        String eventKey = indexKey(eventName);
+        Subscription subscription = new Subscription(UUID.randomUUID().toString(), channelName,
+                chaincodeKey == null ? chaincodeId : null, eventKey == null ? eventName : null, handler);
+        if (chaincodeKey != null && eventKey != null) {
+            subscription.indexedUnder = exactIndex.computeIfAbsent(chaincodeKey, k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(eventKey, k -> new CopyOnWriteArrayList<>());
+        } else {
+            subscription.indexedUnder = regexSubscriptions;
+        }
+        subscription.indexedUnder.add(subscription);
+        handles.put(subscription.handle, subscription);
+        return subscription.handle;
+    }
+
+    /**
+     * 按字面值订阅, 不使用正则
+     * @param channelName 为 null 时订阅所有 channel
+     * @param chaincodeId 智能合约 ID
+     * @param eventName 事件名称
+     * @param handler
+     * @return
+     */
+    public String subscribe(String channelName, String chaincodeId, String eventName, Handler handler) {
+        return subscribe(channelName, Pattern.compile(Pattern.quote(chaincodeId)), Pattern.compile(Pattern.quote(eventName)), handler);
+    }
+
+    /**
+     * 取消订阅
+     * @param handle
+     * @return 订阅是否存在
+     */
+    public boolean unsubscribe(String handle) {
+        Subscription subscription = handles.remove(handle);
+        return subscription != null && subscription.indexedUnder.remove(subscription);
+    }
+
+    @Override
+    public void received(BlockEvent blockEvent) {
+        if (handles.isEmpty()) {
+            return;
+        }
+        for (BlockEvent.TransactionEvent transactionEvent : blockEvent.getTransactionEvents()) {
+            if (!transactionEvent.isValid()) {
+                continue;
+            }
+            for (BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo actionInfo : transactionEvent.getTransactionActionInfos()) {
+                ChaincodeEvent chaincodeEvent = actionInfo.getEvent();
+                if (chaincodeEvent != null) {
+                    route(blockEvent, chaincodeEvent);
+                }
+            }
+        }
+    }
+
+    private void route(BlockEvent blockEvent, ChaincodeEvent chaincodeEvent) {
+        String chaincodeId = chaincodeEvent.getChaincodeId();
+        String eventName = chaincodeEvent.getEventName();
+        Event event = null;
+        for (String chaincodeKey : new String[]{chaincodeId, ANY}) {
+            Map<String, List<Subscription>> byEventName = exactIndex.get(chaincodeKey);
+            if (byEventName == null) {
+                continue;
+            }
+            for (String eventKey : new String[]{eventName, ANY}) {
+                List<Subscription> subscriptions = byEventName.get(eventKey);
+                if (subscriptions != null) {
+                    for (Subscription subscription : subscriptions) {
+                        event = deliver(subscription, blockEvent, chaincodeEvent, event);
+                    }
+                }
+            }
+        }
+        for (Subscription subscription : regexSubscriptions) {
+            if ((subscription.chaincodeId == null || subscription.chaincodeId.matcher(chaincodeId).matches())
+                    && (subscription.eventName == null || subscription.eventName.matcher(eventName).matches())) {
+                event = deliver(subscription, blockEvent, chaincodeEvent, event);
+            }
+        }
+    }
+
+    /**
+     * 第一次匹配时才构造事件(复制 payload), 之后的订阅方共用
+     */
+    private Event deliver(Subscription subscription, BlockEvent blockEvent, ChaincodeEvent chaincodeEvent, Event event) {
+        if (subscription.channelName != null && !subscription.channelName.equals(blockEvent.getChannelId())) {
+            return event;
+        }
+        if (event == null) {
+            event = new Event(blockEvent, chaincodeEvent);
+        }
+        try {
+            subscription.handler.handle(event);
+        } catch (Exception e) {
+            log.warn(format("Chaincode event handler %s failed on event %s of transaction %s",
+                    subscription.handle, event.getEventName(), event.getTxId()), e);
+        }
+        return event;
+    }
+
+    /**
+     * ".*" 返回 ANY, 不含正则元字符时返回字面值, 否则返回 null 表示需要正则匹配
+     */
+    private static String indexKey(Pattern pattern) {
+        String regex = pattern.pattern();
+        if (".*".equals(regex)) {
+            return ANY;
+        }
+        if (regex.startsWith("\\Q") && regex.endsWith("\\E") && regex.indexOf("\\E") == regex.length() - 2) {
+            return regex.substring(2, regex.length() - 2);
+        }
+        if (pattern.flags() == 0 && !REGEX_META.matcher(regex).find()) {
+            return regex;
+        }
+        return null;
+    }
+
+    private static final class Subscription {
+        final String handle;
+        final String channelName;
+        final Pattern chaincodeId;
+        final Pattern eventName;
+        final Handler handler;
+        List<Subscription> indexedUnder;
+
+        Subscription(String handle, String channelName, Pattern chaincodeId, Pattern eventName, Handler handler) {
+            this.handle = handle;
+            this.channelName = channelName;
+            this.chaincodeId = chaincodeId;
+            this.eventName = eventName;
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * 路由给订阅方的智能合约事件
+     */
+    public static final class Event {
+
+        private final String channelName;
+
+        private final long blockNumber;
+
+        private final String txId;
+
+        private final String chaincodeId;
+
+        private final String eventName;
+
+        private final ByteBuffer payload;
+
+        private final BlockEvent blockEvent;
+
+        Event(BlockEvent blockEvent, ChaincodeEvent chaincodeEvent) {
+            this.channelName = blockEvent.getChannelId();
+            this.blockNumber = blockEvent.getBlockNumber();
+            this.txId = chaincodeEvent.getTxId();
+            this.chaincodeId = chaincodeEvent.getChaincodeId();
+            this.eventName = chaincodeEvent.getEventName();
+            byte[] bytes = chaincodeEvent.getPayload();
+            this.payload = ByteBuffer.wrap(bytes == null ? new byte[0] : bytes).asReadOnlyBuffer();
+            this.blockEvent = blockEvent;
+        }
+
+        public String getChannelName() {
+            return channelName;
+        }
+
+        public long getBlockNumber() {
+            return blockNumber;
+        }
+
+        public String getTxId() {
+            return txId;
+        }
+
+        public String getChaincodeId() {
+            return chaincodeId;
+        }
+
+        public String getEventName() {
+            return eventName;
+        }
+
+        /**
+         * 只读 payload 视图, 每次调用返回独立的读取位置, 不复制数据
+         * @return
+         */
+        public ByteBuffer getPayload() {
+            return payload.duplicate();
+        }
+
+        public BlockEvent getBlockEvent() {
+            return blockEvent;
+        }
+    }
+}
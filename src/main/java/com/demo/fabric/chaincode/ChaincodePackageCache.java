@@ -0,0 +1,234 @@
+package com.demo.fabric.chaincode;
+
+import com.demo.fabric.utils.Util;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * 智能合约包缓存
+ * 以源码目录清单(相对路径、大小、修改时间)的 SHA-256 作为 key, 打包结果保存在磁盘上并以内存映射方式读取,
+ * 源码未变化时多次安装、多个 peer 共用同一个包, 只压缩一次。
+ * 缓存目录总大小超过 cacheMaxBytes 时按最近使用时间删除最旧的包。
+ */
+@Slf4j
+@Component("chaincodePackageCache")
+public class ChaincodePackageCache {
+
+    @Value("${blockchain.chaincode.package.cacheEnabled:true}")
+    private boolean enabled;
+
+    /**
+     * 包缓存目录
+     */
+    @Value("${blockchain.chaincode.package.cachePath:${java.io.tmpdir}/chaincode-packages}")
+    private String cachePath;
+
+    /**
+     * 保持内存映射的包数量
+     */
+    @Value("${blockchain.chaincode.package.mappedEntries:16}")
+    private int mappedEntries;
+
+    /**
+     * 包缓存目录的最大字节数
+     */
+    @Value("${blockchain.chaincode.package.cacheMaxBytes:1073741824}")
+    private long cacheMaxBytes;
+
+    /**
+     * 不使用缓存时, 包大小超过该值(字节)写入临时文件
+     */
+    @Value("${blockchain.chaincode.package.spillThreshold:1048576}")
+    private int spillThreshold;
+
+    private Path cacheDir;
+
+    private Cache<String, MappedByteBuffer> mapped;
+
+    @PostConstruct
+    protected void init() throws IOException{
+        cacheDir = Paths.get(cachePath);
+        Files.createDirectories(cacheDir);
+        mapped = CacheBuilder.newBuilder().maximumSize(mappedEntries).build();
+        // 进程中断时留下的临时文件
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(cacheDir, "*.tmp")) {
+            for (Path tempFile : stream) {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+    }
+
+    /**
+     * 获取源码目录的 tar.gz 包, 每次调用返回一个新的输入流
+     * @param sourceDir 源码目录
+     * @param pathPrefix 包内路径前缀
+     * @return
+     * @throws IOException
+     */
+    public InputStream open(File sourceDir, String pathPrefix) throws IOException{
+        if (!enabled) {
+            return Util.generateTarGzInputStream(sourceDir, pathPrefix, spillThreshold);
+        }
+        String digest = manifestDigest(sourceDir, pathPrefix);
+        ByteBuffer buffer;
+        try {
+            buffer = mapped.get(digest, () -> load(digest, sourceDir, pathPrefix));
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    /**
+     * 计算源码目录清单摘要, 只读取文件元数据
+     */
+    private String manifestDigest(File sourceDir, String pathPrefix) throws IOException{
+        String sourcePath = sourceDir.getAbsolutePath();
+        List<File> files = new ArrayList<>(FileUtils.listFiles(sourceDir, null, true));
+        files.sort(Comparator.comparing(File::getAbsolutePath));
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(String.valueOf(pathPrefix).getBytes(UTF_8));
+            for (File file : files) {
+                String relativePath = file.getAbsolutePath().substring(sourcePath.length() + 1);
+                digest.update(format("\0%s\0%d\0%d", relativePath, file.length(), file.lastModified()).getBytes(UTF_8));
+            }
+            return Hex.encodeHexString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 从磁盘映射已有的包, 不存在时打包并原子地移动到缓存目录
+     */
+    private MappedByteBuffer load(String digest, File sourceDir, String pathPrefix) throws IOException{
+        Path packageFile = cacheDir.resolve(digest + ".tar.gz");
+        if (!Files.exists(packageFile)) {
+            long start = System.currentTimeMillis();
+            Path tempFile = Files.createTempFile(cacheDir, digest, ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(tempFile)) {
+                    Util.writeTarGz(sourceDir, pathPrefix, out);
+                }
+                Files.move(tempFile, packageFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+            log.info(format("Packaged %s into %s in %d ms", sourceDir, packageFile, System.currentTimeMillis() - start));
+        } else {
+            log.info(format("Reusing chaincode package %s for %s", packageFile, sourceDir));
+            // 修改时间作为最近使用时间
+            Files.setLastModifiedTime(packageFile, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(packageFile, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        evict(packageFile);
+        return buffer;
+    }
+
+    /**
+     * 缓存目录超过 cacheMaxBytes 时删除最久未使用的包, 不删除刚使用的包
+     * 已映射的包删除文件后映射仍然有效
+     */
+    private synchronized void evict(Path keep) throws IOException{
+        List<Path> packages = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(cacheDir, "*.tar.gz")) {
+            for (Path packageFile : stream) {
+                packages.add(packageFile);
+                total += Files.size(packageFile);
+            }
+        }
+        if (total <= cacheMaxBytes) {
+            return;
+        }
+        Map<Path, Long> lastUsed = new HashMap<>();
+        for (Path packageFile : packages) {
+            lastUsed.put(packageFile, Files.getLastModifiedTime(packageFile).toMillis());
+        }
+        packages.sort(Comparator.comparing(lastUsed::get));
+        for (Path packageFile : packages) {
+            if (total <= cacheMaxBytes) {
+                break;
+            }
+            if (packageFile.equals(keep)) {
+                continue;
+            }
+            long size = Files.size(packageFile);
+            try {
+                Files.deleteIfExists(packageFile);
+                total -= size;
+                String fileName = packageFile.getFileName().toString();
+                mapped.invalidate(fileName.substring(0, fileName.length() - ".tar.gz".length()));
+                log.info(format("Evicted chaincode package %s", packageFile));
+            } catch (IOException e) {
+                log.warn(format("Failed to evict chaincode package %s", packageFile), e);
+            }
+        }
+    }
+
+    /**
+     * 基于 ByteBuffer 的输入流, 不复制数据
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -1,18 +1,29 @@
 package com.demo.fabric.chaincode;
 
+import com.demo.fabric.blockchain.ChannelService;
 import com.demo.fabric.blockchain.ConfigService;
+import com.demo.fabric.blockchain.LedgerBlockStore;
+import com.demo.fabric.utils.FutureUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.codec.binary.Hex;
 import org.hyperledger.fabric.protos.peer.Query;
 import org.hyperledger.fabric.sdk.*;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import com.demo.fabric.utils.Util;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.io.File;
+import java.io.InputStream;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 import java.util.regex.Pattern;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -29,6 +40,165 @@ public class ChaincodeService {
     @Resource
     private ConfigService configService;
 
+    @Resource
+    private ChannelService channelService;
+
+    @Resource
+    private TransactionSubmitter transactionSubmitter;
+
+    @Resource
+    private PeerSelector peerSelector;
+
+    @Resource
+    private QueryCache queryCache;
+
+    @Resource
+    private ChaincodePackageCache chaincodePackageCache;
+
+    @Resource
+    private ChaincodeEventRouter chaincodeEventRouter;
+
+    @Resource
+    private LedgerBlockStore ledgerBlockStore;
+
+    /**
+     * 背书策略文件, 用于挑选满足策略的最少背书 peer; 为空时发送给全部背书 peer
+     */
+    @Value("${blockchain.endorsement.policyFile:}")
+    private String endorsementPolicyFile;
+
+    /**
+     * 背书失败时换 peer 重试的次数
+     */
+    @Value("${blockchain.endorsement.retries:2}")
+    private int endorsementRetries;
+
+    private EndorsementRequirement endorsementRequirement;
+
+    /**
+     * 执行查询的线程数
+     */
+    @Value("${blockchain.query.threads:32}")
+    private int queryThreads;
+
+    /**
+     * 查询超时时间(毫秒)
+     */
+    @Value("${blockchain.query.timeout:30000}")
+    private long queryTimeout;
+
+    /**
+     * 超过该百分位耗时仍未返回时发出对冲请求
+     */
+    @Value("${blockchain.query.hedgePercentile:0.95}")
+    private double hedgePercentile;
+
+    /**
+     * 对冲请求的最小等待时间(毫秒)
+     */
+    @Value("${blockchain.query.hedgeMinDelayMs:20}")
+    private long hedgeMinDelayMs;
+
+    private final LatencyWindow queryLatency = new LatencyWindow(1024, 64);
+
+    private ExecutorService queryExecutor;
+
+    /**
+     * 同时在途的 invoke 数量上限
+     */
+    @Value("${blockchain.invoke.maxInFlight:256}")
+    private int maxInFlight;
+
+    /**
+     * 执行背书的线程数
+     */
+    @Value("${blockchain.invoke.threads:16}")
+    private int invokeThreads;
+
+    /**
+     * 背书提案超时时间(毫秒)
+     */
+    @Value("${blockchain.invoke.proposalWaitTime:120000}")
+    private long proposalWaitTime;
+
+    /**
+     * 从发起到交易提交的超时时间(毫秒)
+     */
+    @Value("${blockchain.invoke.commitTimeout:300000}")
+    private long commitTimeout;
+
+    private Semaphore inFlight;
+
+    private ExecutorService invokeExecutor;
+
+    private ScheduledExecutorService timeoutScheduler;
+
+    /**
+     * 同时安装的 peer 数量
+     */
+    @Value("${blockchain.install.parallelism:8}")
+    private int installParallelism;
+
+    /**
+     * 单个 peer 安装失败后的重试次数
+     */
+    @Value("${blockchain.install.retries:2}")
+    private int installRetries;
+
+    /**
+     * 重试退避的初始间隔(毫秒), 每次重试翻倍
+     */
+    @Value("${blockchain.install.backoffMs:1000}")
+    private long installBackoffMs;
+
+    /**
+     * 安装提案超时时间(毫秒)
+     */
+    @Value("${blockchain.install.proposalWaitTime:120000}")
+    private long installProposalWaitTime;
+
+    /**
+     * 整个安装的超时时间(毫秒)
+     */
+    @Value("${blockchain.install.timeout:600000}")
+    private long installTimeout;
+
+    /**
+     * 安装成功的 peer 至少占比, 1.0 表示全部 peer 都需要成功
+     */
+    @Value("${blockchain.install.quorum:1.0}")
+    private double installQuorum;
+
+    private ExecutorService installExecutor;
+
+    @PostConstruct
+    protected void init(){
+        inFlight = new Semaphore(maxInFlight);
+        invokeExecutor = Executors.newFixedThreadPool(invokeThreads,
+                new ThreadFactoryBuilder().setNameFormat("chaincode-invoke-%d").setDaemon(true).build());
+        queryExecutor = Executors.newFixedThreadPool(queryThreads,
+                new ThreadFactoryBuilder().setNameFormat("chaincode-query-%d").setDaemon(true).build());
+        installExecutor = Executors.newFixedThreadPool(installParallelism,
+                new ThreadFactoryBuilder().setNameFormat("chaincode-install-%d").setDaemon(true).build());
+        timeoutScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("chaincode-timeout-%d").setDaemon(true).build());
+        if (endorsementPolicyFile != null && !endorsementPolicyFile.isEmpty()) {
+            try {
+                endorsementRequirement = EndorsementRequirement.fromYamlFile(new File(endorsementPolicyFile));
+            } catch (Exception e) {
+                log.warn(format("Failed to load endorsement policy %s, proposals will be sent to all endorsing peers", endorsementPolicyFile), e);
+            }
+        }
+    }
+
+    @PreDestroy
+    protected void destroy(){
+        invokeExecutor.shutdown();
+        queryExecutor.shutdown();
+        installExecutor.shutdown();
+        timeoutScheduler.shutdown();
+    }
+
     /**
      * 安装智能合约
      * @param channelName
@@ -39,52 +209,175 @@ public class ChaincodeService {
      * @throws Exception
      */
     public ChaincodeID installChaincode(String channelName,String chaincodeName,String chaincodeVersion,String chaincodePath,String chainRootPath) throws Exception{
+        User peerAdmin = configService.getBlockchainConfig().getClientOrganization().getPeerAdmin();
+        return installChaincode(channelName, chaincodeName, chaincodeVersion, chaincodePath, chainRootPath, peerAdmin);
+    }
+
+    /**
+     * 使用指定身份安装智能合约, 成功的 peer 比例未达到 blockchain.install.quorum 时失败
+     * @param channelName
+     * @param chaincodeName
+     * @param chaincodeVersion
+     * @param chaincodePath
+     * @param chainRootPath
+     * @param user 发起安装提案的身份, 需要是 peer 管理员
+     * @throws Exception
+     */
+    public ChaincodeID installChaincode(String channelName,String chaincodeName,String chaincodeVersion,String chaincodePath,String chainRootPath,User user) throws Exception{
+        InstallReport report = installChaincodeOnPeers(channelName, chaincodeName, chaincodeVersion, chaincodePath, chainRootPath, user, InstallProgressListener.NONE);
+        if (!report.isQuorumReached()) {
+            fail("Not enough peers installed chaincode: " + report);
+        }
+        return report.getChaincodeID();
+    }
+
+    /**
+     * 并行安装智能合约到 channel 上的各个 peer, 每个 peer 单独重试, 返回每个 peer 的安装结果
+     * @param channelName
+     * @param chaincodeName
+     * @param chaincodeVersion
+     * @param chaincodePath
+     * @param chainRootPath
+     * @param user 发起安装提案的身份, 需要是 peer 管理员
+     * @param listener 每个 peer 安装结束时回调
+     * @return
+     * @throws Exception
+     */
+    public InstallReport installChaincodeOnPeers(String channelName,String chaincodeName,String chaincodeVersion,String chaincodePath,String chainRootPath,User user,InstallProgressListener listener) throws Exception{
 
         HFClient client = configService.getClient();
-        Channel channel = client.getChannel(channelName);
-        User peerAdmin = configService.getBlockchainConfig().getClientOrganization().getPeerAdmin();
+        Channel channel = channelService.getChannel(channelName);
 
 
 //        String CHAIN_CODE_NAME = "example02";
 //        String CHAIN_CODE_PATH = "gocc/chaincode_example2";
 //        String CHAIN_CODE_VERSION = "v2";
 //        String CHAIN_ROOT_PATH = "F:/leaderus/fabric/fabric-demo/";
-        client.setUserContext(peerAdmin);
         final ChaincodeID chaincodeID = ChaincodeID.newBuilder().setName(chaincodeName)
                 .setVersion(chaincodeVersion)
                 .setPath(chaincodePath).build();
-        InstallProposalRequest installProposalRequest = client.newInstallProposalRequest();
-        installProposalRequest.setChaincodeID(chaincodeID);
-        if (true) {
-            installProposalRequest.setChaincodeSourceLocation(new File(chainRootPath));
-        } else {
-            installProposalRequest.setChaincodeInputStream(Util.generateTarGzInputStream(
-                    (Paths.get("src"+chaincodePath).toFile()),
-                    Paths.get("src"+chaincodePath).toString()));
-        }
-        //设置智能合约版本号
-        installProposalRequest.setChaincodeVersion(chaincodeVersion);
+        // 打包 src/<chaincodePath>, 先打包一次, 各 peer 共用缓存中的包
+        File sourceDir = Paths.get(chainRootPath, "src", chaincodePath).toFile();
+        String pathPrefix = Paths.get("src", chaincodePath).toString();
+        chaincodePackageCache.open(sourceDir, pathPrefix).close();
         // 设置背书节点集合
         EnumSet<Peer.PeerRole> roles = EnumSet.complementOf(EnumSet.of(Peer.PeerRole.ENDORSING_PEER));
         Collection<Peer> peersFromOrg = channel.getPeers(roles);
-        Collection<ProposalResponse> successful = new LinkedList<>();
-        Collection<ProposalResponse> failed = new LinkedList<>();
-        // 发起智能合约安装交易提案到背书节点
-        Collection<ProposalResponse> responses = client.sendInstallProposal(installProposalRequest, peersFromOrg);
-        //校验背书节点响应结果。
-        for (ProposalResponse response : responses) {
-            if (response.getStatus() == ProposalResponse.Status.SUCCESS) {
-                log.info(String.format("Successful install proposal response Txid: %s from peer %s", response.getTransactionID(), response.getPeer().getName()));
-                successful.add(response);
-            } else {
-                failed.add(response);
+        int total = peersFromOrg.size();
+        AtomicInteger completed = new AtomicInteger();
+        // 每个 peer 的最终结果只设置一次, 先设置的一方(安装线程或超时)回调 listener, 取消后结束的安装不会重复上报
+        Map<Peer, AtomicReference<InstallReport.PeerResult>> outcomes = new LinkedHashMap<>();
+        Map<Peer, Future<?>> futures = new LinkedHashMap<>();
+        for (Peer peer : peersFromOrg) {
+            AtomicReference<InstallReport.PeerResult> outcome = new AtomicReference<>();
+            outcomes.put(peer, outcome);
+            futures.put(peer, installExecutor.submit(() -> {
+                InstallReport.PeerResult result;
+                try {
+                    result = installOnPeer(client, peer, chaincodeID, sourceDir, pathPrefix, user);
+                } catch (RuntimeException e) {
+                    result = new InstallReport.PeerResult(peer.getName(), InstallReport.Status.FAILED, 0, 0, String.valueOf(e));
+                }
+                complete(outcome, result, listener, completed, total);
+            }));
+        }
+        // 所有 peer 共用一个截止时间, 超时未完成的 peer 记为 TIMEOUT, 不阻塞其余结果
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(installTimeout);
+        Map<String, InstallReport.PeerResult> results = new LinkedHashMap<>();
+        for (Map.Entry<Peer, Future<?>> entry : futures.entrySet()) {
+            String peerName = entry.getKey().getName();
+            AtomicReference<InstallReport.PeerResult> outcome = outcomes.get(entry.getKey());
+            try {
+                entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                InstallReport.PeerResult timeout = new InstallReport.PeerResult(peerName, InstallReport.Status.TIMEOUT, 0, installTimeout,
+                        "install did not finish within " + installTimeout + "ms");
+                if (complete(outcome, timeout, listener, completed, total)) {
+                    entry.getValue().cancel(true);
+                }
+            } catch (ExecutionException e) {
+                // listener 抛出异常, 结果已经设置
+                log.warn(format("Install progress listener failed for peer %s", peerName), e.getCause());
             }
+            results.put(peerName, outcome.get());
         }
-        if (failed.size() > 0) {
-            ProposalResponse first = failed.iterator().next();
-            fail("Not enough endorsers for install :" + successful.size() + ".  " + first.getMessage());
+        InstallReport report = new InstallReport(chaincodeID, installQuorum, results);
+        log.info(format("Installed chaincode %s:%s on channel %s: %s", chaincodeName, chaincodeVersion, channelName, report));
+        return report;
+    }
+
+    /**
+     * 设置 peer 的最终结果并回调 listener, 已经有结果时忽略
+     * @return 是否由本次调用设置
+     */
+    private static boolean complete(AtomicReference<InstallReport.PeerResult> outcome, InstallReport.PeerResult result,
+                                    InstallProgressListener listener, AtomicInteger completed, int total) {
+        if (!outcome.compareAndSet(null, result)) {
+            return false;
+        }
+        listener.onPeerCompleted(result, completed.incrementAndGet(), total);
+        return true;
+    }
+
+    /**
+     * 安装智能合约到单个 peer, 失败时按指数退避重试
+     */
+    private InstallReport.PeerResult installOnPeer(HFClient client, Peer peer, ChaincodeID chaincodeID, File sourceDir, String pathPrefix, User user) {
+        long start = System.currentTimeMillis();
+        String message = null;
+        for (int attempt = 1; ; attempt++) {
+            // 提案不能重复发送, 每次重试构造新的请求和输入流, SDK 读取后不关闭输入流, 发送后在这里关闭(同时删除临时包文件)
+            try (InputStream chaincodeInputStream = chaincodePackageCache.open(sourceDir, pathPrefix)) {
+                InstallProposalRequest installProposalRequest = client.newInstallProposalRequest();
+                installProposalRequest.setUserContext(user);
+                installProposalRequest.setChaincodeID(chaincodeID);
+                installProposalRequest.setChaincodeInputStream(chaincodeInputStream);
+                //设置智能合约版本号
+                installProposalRequest.setChaincodeVersion(chaincodeID.getVersion());
+                installProposalRequest.setProposalWaitTime(installProposalWaitTime);
+                // 发起智能合约安装交易提案到背书节点
+                ProposalResponse response = client.sendInstallProposal(installProposalRequest, Collections.singletonList(peer)).iterator().next();
+                if (response.getStatus() == ProposalResponse.Status.SUCCESS) {
+                    log.info(String.format("Successful install proposal response Txid: %s from peer %s", response.getTransactionID(), peer.getName()));
+                    return new InstallReport.PeerResult(peer.getName(), InstallReport.Status.INSTALLED, attempt, System.currentTimeMillis() - start, null);
+                }
+                message = response.getMessage();
+                // 错误信息因 peer 版本而异, 通过查询 peer 已安装的智能合约判断是否已安装相同名称和版本, 已安装时重试没有意义
+                if (isInstalled(client, peer, chaincodeID)) {
+                    return new InstallReport.PeerResult(peer.getName(), InstallReport.Status.ALREADY_INSTALLED, attempt, System.currentTimeMillis() - start, message);
+                }
+            } catch (Exception e) {
+                message = String.valueOf(e.getMessage());
+            }
+            if (attempt > installRetries) {
+                log.warn(format("Install of chaincode %s on peer %s failed after %d attempts: %s", chaincodeID, peer.getName(), attempt, message));
+                return new InstallReport.PeerResult(peer.getName(), InstallReport.Status.FAILED, attempt, System.currentTimeMillis() - start, message);
+            }
+            long backoff = installBackoffMs * (1L << Math.min(attempt - 1, 10)) + ThreadLocalRandom.current().nextLong(installBackoffMs + 1);
+            log.warn(format("Install of chaincode %s on peer %s failed (attempt %d), retrying in %d ms: %s", chaincodeID, peer.getName(), attempt, backoff, message));
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new InstallReport.PeerResult(peer.getName(), InstallReport.Status.TIMEOUT, attempt, System.currentTimeMillis() - start, message);
+            }
         }
-        return chaincodeID;
+    }
+
+    /**
+     * peer 上是否已安装相同名称和版本的智能合约, 查询失败时返回 false
+     */
+    private boolean isInstalled(HFClient client, Peer peer, ChaincodeID chaincodeID) {
+        try {
+            for (Query.ChaincodeInfo chaincodeInfo : client.queryInstalledChaincodes(peer)) {
+                if (chaincodeID.getName().equals(chaincodeInfo.getName()) && chaincodeID.getVersion().equals(chaincodeInfo.getVersion())) {
+                    return true;
+                }
+            }
+        } catch (Exception e) {
+            log.warn(format("Failed to query installed chaincodes on peer %s", peer.getName()), e);
+        }
+        return false;
     }
 
     /**
@@ -97,15 +390,30 @@ public class ChaincodeService {
      * @throws Exception
      */
     public void instantiateChaincode(String channelName,ChaincodeID chaincodeID,String endorsementpolicyFile,String fcn,String[] args)throws Exception{
+        instantiateChaincode(channelName, chaincodeID, endorsementpolicyFile, fcn, args, configService.getClient().getUserContext());
+    }
+
+    /**
+     * 使用指定身份实例化智能合约
+     * @param channelName
+     * @param chaincodeID
+     * @param endorsementpolicyFile
+     * @param fcn
+     * @param args
+     * @param user
+     * @throws Exception
+     */
+    public void instantiateChaincode(String channelName,ChaincodeID chaincodeID,String endorsementpolicyFile,String fcn,String[] args,User user)throws Exception{
 
         HFClient client = configService.getClient();
-        Channel channel = client.getChannel(channelName);
+        Channel channel = channelService.getChannel(channelName);
         Collection<Orderer> orderers = channel.getOrderers();
         Collection<ProposalResponse> responses;
         Collection<ProposalResponse> successful = new LinkedList<>();
         Collection<ProposalResponse> failed = new LinkedList<>();
         //// Instantiate chaincode.
         InstantiateProposalRequest instantiateProposalRequest = client.newInstantiationProposalRequest();
+        instantiateProposalRequest.setUserContext(user);
         instantiateProposalRequest.setProposalWaitTime(4000000L*1000);
         instantiateProposalRequest.setChaincodeID(chaincodeID);
         //instantiateProposalRequest.setFcn("init");
@@ -137,7 +445,7 @@ public class ChaincodeService {
             fail("Not enough endorsers for instantiate :" + successful.size() + "endorser failed with " + first.getMessage() + ". Was verified:" + first.isVerified());
         }
 
-        channel.sendTransaction(successful, orderers)
+        channel.sendTransaction(successful, orderers, user)
                 .thenApply(transactionEvent -> {
                     assertTrue(transactionEvent.isValid());
                     log.info(String.format("Finished instantiate transaction with transaction id %s", transactionEvent.getTransactionID()));
@@ -151,61 +459,343 @@ public class ChaincodeService {
      * @param channelName
      * @param fcn
      * @param args
+     * @return 查询结果
      * @throws Exception
      */
-    public void queryByChaincode(ChaincodeID chaincodeID,String channelName,String fcn,String[] args)throws Exception{
-        HFClient client = configService.getClient();
-        Channel channel = client.getChannel(channelName);
-        QueryByChaincodeRequest queryByChaincodeRequest = client.newQueryProposalRequest();
-        //queryByChaincodeRequest.setArgs(new String[] { "b"});
-        //queryByChaincodeRequest.setFcn("query");
-        queryByChaincodeRequest.setArgs(args);
-        queryByChaincodeRequest.setFcn(fcn);
-        queryByChaincodeRequest.setChaincodeID(chaincodeID);
+    public String queryByChaincode(ChaincodeID chaincodeID,String channelName,String fcn,String[] args)throws Exception{
+        return queryByChaincode(chaincodeID, channelName, fcn, args, configService.getClient().getUserContext());
+    }
 
+    /**
+     * 使用指定身份查询智能合约
+     * @param chaincodeID
+     * @param channelName
+     * @param fcn
+     * @param args
+     * @param user
+     * @return 查询结果
+     * @throws Exception
+     */
+    public String queryByChaincode(ChaincodeID chaincodeID,String channelName,String fcn,String[] args,User user)throws Exception{
+        return FutureUtil.get(queryByChaincodeAsync(chaincodeID, channelName, fcn, args, user));
+    }
+
+    /**
+     * 查询智能合约(异步)
+     * 只发送给当前最优的一个 peer; 超过历史耗时百分位(blockchain.query.hedgePercentile)仍未返回时,
+     * 再向另一个 peer 发出对冲请求, 取先成功的结果并取消另一个请求。还没有耗时样本时不对冲。
+     * peer 返回失败时立即换 peer 重试。
+     * @param chaincodeID
+     * @param channelName
+     * @param fcn
+     * @param args
+     * @param user
+     * @return 查询结果
+     */
+    public CompletableFuture<String> queryByChaincodeAsync(ChaincodeID chaincodeID,String channelName,String fcn,String[] args,User user){
+        QueryCache.Key cacheKey = queryCache.key(channelName, chaincodeID, fcn, args, user);
+        String cached = queryCache.get(cacheKey);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        long cacheStamp = queryCache.stamp(channelName);
+
+        HFClient client = configService.getClient();
+        Channel channel;
+        try {
+            channel = channelService.getChannel(channelName);
+        } catch (Exception e) {
+            return FutureUtil.failed(e);
+        }
         EnumSet<Peer.PeerRole> roles = EnumSet.complementOf(EnumSet.of(Peer.PeerRole.CHAINCODE_QUERY));
-        Collection<ProposalResponse> queryProposals
-                = channel.queryByChaincode(queryByChaincodeRequest, channel.getPeers(roles));
-        for (ProposalResponse proposalResponse : queryProposals) {
-            if (proposalResponse.getStatus() != ProposalResponse.Status.SUCCESS) {
-                fail("Failed query proposal from peer " + proposalResponse.getPeer().getName()
-                        + " status: " + proposalResponse.getStatus()
-                        + ". Messages: " + proposalResponse.getMessage()
-                        + ". Was verified : " + proposalResponse.isVerified());
+        HedgedQuery query = new HedgedQuery(client, channel, channel.getPeers(roles), chaincodeID, fcn, args, user, cacheKey, cacheStamp);
+        query.launch();
+        long percentile = queryLatency.percentile(hedgePercentile);
+        ScheduledFuture<?> hedge = percentile < 0 ? null : timeoutScheduler.schedule(query::hedge,
+                Math.max(hedgeMinDelayMs, TimeUnit.NANOSECONDS.toMillis(percentile)), TimeUnit.MILLISECONDS);
+        query.result.whenComplete((payload, e) -> {
+            if (hedge != null) {
+                hedge.cancel(false);
+            }
+            query.cancelOutstanding();
+        });
+        return FutureUtil.within(query.result, queryTimeout, TimeUnit.MILLISECONDS, timeoutScheduler);
+    }
+
+    /**
+     * 一次对冲查询的状态
+     */
+    private final class HedgedQuery {
+
+        private final HFClient client;
+        private final Channel channel;
+        private final Collection<Peer> candidates;
+        private final ChaincodeID chaincodeID;
+        private final String fcn;
+        private final String[] args;
+        private final User user;
+        private final QueryCache.Key cacheKey;
+        private final long cacheStamp;
+
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private final Set<String> tried = new HashSet<>();
+        private final List<Future<?>> outstanding = new ArrayList<>();
+        private int attempts;
+        private int running;
+        private ProposalResponse lastFailure;
+        private volatile boolean cancelled;
+
+        HedgedQuery(HFClient client, Channel channel, Collection<Peer> candidates, ChaincodeID chaincodeID,
+                    String fcn, String[] args, User user, QueryCache.Key cacheKey, long cacheStamp) {
+            this.client = client;
+            this.channel = channel;
+            this.candidates = candidates;
+            this.chaincodeID = chaincodeID;
+            this.fcn = fcn;
+            this.args = args;
+            this.user = user;
+            this.cacheKey = cacheKey;
+            this.cacheStamp = cacheStamp;
+        }
+
+        /**
+         * 向下一个最优 peer 发送查询
+         */
+        synchronized void launch() {
+            if (result.isDone()) {
+                return;
+            }
+            Collection<Peer> peers = peerSelector.select(candidates, EndorsementRequirement.ANY_PEER, tried);
+            if (peers.isEmpty()) {
+                if (running == 0) {
+                    failQuery();
+                }
+                return;
+            }
+            Peer peer = peers.iterator().next();
+            tried.add(peer.getName());
+            attempts++;
+            running++;
+            outstanding.add(queryExecutor.submit(() -> query(peer)));
+        }
+
+        /**
+         * 对冲: 首个请求未返回时再发一个
+         */
+        synchronized void hedge() {
+            if (!result.isDone() && running > 0) {
+                log.debug(format("Hedging query %s on channel %s", fcn, channel.getName()));
+                launch();
+            }
+        }
+
+        synchronized void cancelOutstanding() {
+            cancelled = true;
+            outstanding.forEach(f -> f.cancel(true));
+        }
+
+        private void query(Peer peer) {
+            try {
+                QueryByChaincodeRequest queryByChaincodeRequest = client.newQueryProposalRequest();
+                queryByChaincodeRequest.setUserContext(user);
+                queryByChaincodeRequest.setArgs(args);
+                queryByChaincodeRequest.setFcn(fcn);
+                queryByChaincodeRequest.setChaincodeID(chaincodeID);
+                queryByChaincodeRequest.setProposalWaitTime(queryTimeout);
+
+                Collection<Peer> peers = Collections.singletonList(peer);
+                long start = System.nanoTime();
+                Collection<ProposalResponse> queryProposals
+                        = sendTracked(peers, () -> channel.queryByChaincode(queryByChaincodeRequest, peers), () -> cancelled);
+                ProposalResponse proposalResponse = queryProposals.iterator().next();
+                if (proposalResponse.getStatus() == ProposalResponse.Status.SUCCESS) {
+                    queryLatency.record(System.nanoTime() - start);
+                    String payload = proposalResponse.getProposalResponse().getResponse().getPayload().toStringUtf8();
+                    log.debug(format("Query payload of %s from peer %s returned %s", Arrays.toString(args), peer.getName(), payload));
+                    if (!result.isDone()) {
+                        cacheResult(payload, proposalResponse);
+                    }
+                    result.complete(payload);
+                } else {
+                    onFailure(proposalResponse);
+                }
+            } catch (Exception e) {
+                if (!result.isDone()) {
+                    log.info(format("Query %s to peer %s failed: %s", fcn, peer.getName(), e.getMessage()));
+                }
+                onFailure(null);
+            }
+        }
+
+        private void cacheResult(String payload, ProposalResponse proposalResponse) {
+            try {
+                queryCache.put(cacheKey, payload, proposalResponse.getChaincodeActionResponseReadWriteSetInfo(), cacheStamp);
+            } catch (Exception e) {
+                log.warn(format("Failed to cache query %s on channel %s", fcn, channel.getName()), e);
+            }
+        }
+
+        private synchronized void onFailure(ProposalResponse response) {
+            running--;
+            if (response != null) {
+                lastFailure = response;
+            }
+            if (result.isDone()) {
+                return;
+            }
+            if (attempts <= endorsementRetries) {
+                launch();
+            } else if (running == 0) {
+                failQuery();
+            }
+        }
+
+        private void failQuery() {
+            if (lastFailure != null) {
+                result.completeExceptionally(new AssertionError("Failed query proposal from peer " + lastFailure.getPeer().getName()
+                        + " status: " + lastFailure.getStatus()
+                        + ". Messages: " + lastFailure.getMessage()
+                        + ". Was verified : " + lastFailure.isVerified()));
             } else {
-                String payload = proposalResponse.getProposalResponse().getResponse().getPayload().toStringUtf8();
-                log.info(String.format("Query payload of b from peer %s returned %s", proposalResponse.getPeer().getName(), payload));
+                result.completeExceptionally(new AssertionError(
+                        format("No peer left for query on channel %s, tried peers: %s", channel.getName(), tried)));
             }
         }
     }
 
+    /**
+     * 调用智能合约(同步), 等待交易提交到账本后返回交易ID
+     * @param chaincodeID
+     * @param channelName
+     * @param fcn
+     * @param args
+     * @return
+     * @throws Exception
+     */
     public String invokeChaincode(ChaincodeID chaincodeID,String channelName,String fcn,String[] args)throws Exception{
+        return FutureUtil.get(invokeChaincodeAsync(chaincodeID, channelName, fcn, args));
+    }
 
-        HFClient client = configService.getClient();
-        Channel channel = client.getChannel(channelName);
+    /**
+     * 使用指定身份调用智能合约(同步)
+     * @param chaincodeID
+     * @param channelName
+     * @param fcn
+     * @param args
+     * @param user
+     * @return
+     * @throws Exception
+     */
+    public String invokeChaincode(ChaincodeID chaincodeID,String channelName,String fcn,String[] args,User user)throws Exception{
+        return FutureUtil.get(invokeChaincodeAsync(chaincodeID, channelName, fcn, args, user));
+    }
+
+    /**
+     * 调用智能合约(异步)
+     * 背书在 invoke 线程池中执行, 排序和提交通知通过 future 串联, 调用线程不会被阻塞。
+     * 所有 channel 同时在途的调用数量受 blockchain.invoke.maxInFlight 限制, 超出时立即失败。
+     * 交易提交、任一步骤失败或超时后归还在途名额(只归还一次); 超时后交易可能仍会提交。
+     * @param chaincodeID
+     * @param channelName
+     * @param fcn
+     * @param args
+     * @return 交易ID
+     */
+    public CompletableFuture<String> invokeChaincodeAsync(ChaincodeID chaincodeID,String channelName,String fcn,String[] args){
+        return invokeChaincodeAsync(chaincodeID, channelName, fcn, args, configService.getClient().getUserContext());
+    }
+
+    /**
+     * 使用指定身份调用智能合约(异步), 背书和提交交易都使用该身份签名
+     * @param chaincodeID
+     * @param channelName
+     * @param fcn
+     * @param args
+     * @param user
+     * @return 交易ID
+     */
+    public CompletableFuture<String> invokeChaincodeAsync(ChaincodeID chaincodeID,String channelName,String fcn,String[] args,User user){
+        if (!inFlight.tryAcquire()) {
+            return FutureUtil.failed(new RejectedExecutionException(
+                    format("Too many in-flight invokes, limit is %d", maxInFlight)));
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                inFlight.release();
+            }
+        };
+        CompletableFuture<String> committed;
+        CompletableFuture<String> result;
+        try {
+            HFClient client = configService.getClient();
+            Channel channel = channelService.getChannel(channelName);
+            committed = FutureUtil
+                    .supplyAsync(() -> endorse(client, channel, chaincodeID, fcn, args, user), invokeExecutor)
+                    .thenCompose(successful -> {
+                        // Send Transaction Transaction to orderer
+                        log.info(format("Sending chaincode transaction %s to orderer.", fcn));
+                        return transactionSubmitter.submit(channel, successful, user);
+                    })
+                    .thenApply(transactionEvent -> {
+                        assertTrue(transactionEvent.isValid());
+                        log.info(String.format("Finished transaction with transaction id %s", transactionEvent.getTransactionID()));
+                        return transactionEvent.getTransactionID();
+                    });
+            committed.whenComplete((txID, e) -> release.run());
+            result = FutureUtil.within(committed, commitTimeout, TimeUnit.MILLISECONDS, timeoutScheduler);
+            // 超时后不再等待提交结果, 否则不会完成的提交会一直占用名额
+            result.whenComplete((txID, e) -> release.run());
+        } catch (Exception e) {
+            release.run();
+            result = FutureUtil.failed(e);
+        }
+        return result;
+    }
+
+    /**
+     * 发送交易提案到背书节点并校验背书结果
+     * @return 成功的背书响应
+     */
+    private Collection<ProposalResponse> endorse(HFClient client,Channel channel,ChaincodeID chaincodeID,String fcn,String[] args,User user)throws Exception{
 
-        Collection<ProposalResponse> responses;
         Collection<ProposalResponse> successful = new LinkedList<>();
         Collection<ProposalResponse> failed = new LinkedList<>();
-
-        /// Send transaction proposal to all peers
-        TransactionProposalRequest transactionProposalRequest = client.newTransactionProposalRequest();
-        transactionProposalRequest.setChaincodeID(chaincodeID);
-        transactionProposalRequest.setFcn(fcn);
-        transactionProposalRequest.setProposalWaitTime(4000*1000);
-        transactionProposalRequest.setArgs(args);
-        log.info("sending transactionProposal to all peers with arguments: move(a,b,100)");
+        Collection<ProposalResponse> transactionPropResp;
 
         EnumSet<Peer.PeerRole> roles = EnumSet.complementOf(EnumSet.of(Peer.PeerRole.ENDORSING_PEER));
-        Collection<Peer> peersFromOrg = channel.getPeers(roles);
-        Collection<ProposalResponse> transactionPropResp = channel.sendTransactionProposal(transactionProposalRequest, peersFromOrg);
-        for (ProposalResponse response : transactionPropResp) {
-            if (response.getStatus() == ProposalResponse.Status.SUCCESS) {
-                log.info(String.format("Successful transaction proposal response Txid: %s from peer %s", response.getTransactionID(), response.getPeer().getName()));
-                successful.add(response);
-            } else {
-                failed.add(response);
+        Collection<Peer> candidates = channel.getPeers(roles);
+        Set<String> excluded = new HashSet<>();
+        // 只发送给满足背书策略的最少 peer, 有 peer 失败时排除后重新选择并重发整个提案
+        for (int attempt = 0; ; attempt++) {
+            Collection<Peer> peers = peerSelector.select(candidates, endorsementRequirement, excluded);
+            if (peers.isEmpty()) {
+                fail(format("Not enough peers left to satisfy the endorsement policy on channel %s, failed peers: %s", channel.getName(), excluded));
+            }
+            TransactionProposalRequest transactionProposalRequest = client.newTransactionProposalRequest();
+            transactionProposalRequest.setUserContext(user);
+            transactionProposalRequest.setChaincodeID(chaincodeID);
+            transactionProposalRequest.setFcn(fcn);
+            transactionProposalRequest.setProposalWaitTime(proposalWaitTime);
+            transactionProposalRequest.setArgs(args);
+            log.info(format("sending transactionProposal to %d peers with arguments: %s(%s)", peers.size(), fcn, Arrays.toString(args)));
+
+            transactionPropResp = sendTracked(peers, () -> channel.sendTransactionProposal(transactionProposalRequest, peers));
+            successful.clear();
+            failed.clear();
+            for (ProposalResponse response : transactionPropResp) {
+                if (response.getStatus() == ProposalResponse.Status.SUCCESS) {
+                    log.info(String.format("Successful transaction proposal response Txid: %s from peer %s", response.getTransactionID(), response.getPeer().getName()));
+                    successful.add(response);
+                } else {
+                    failed.add(response);
+                }
             }
+            if (failed.isEmpty() || attempt >= endorsementRetries) {
+                break;
+            }
+            failed.forEach(response -> excluded.add(response.getPeer().getName()));
+            log.info(format("Retrying transaction proposal without failed peers %s", excluded));
         }
         Collection<Set<ProposalResponse>> proposalConsistencySets = SDKUtils.getProposalConsistencySets(transactionPropResp);
         if (proposalConsistencySets.size() != 1) {
@@ -216,7 +806,7 @@ public class ChaincodeService {
                 transactionPropResp.size(), successful.size(), failed.size()));
         if (failed.size() > 0) {
             ProposalResponse firstTransactionProposalResponse = failed.iterator().next();
-            fail("Not enough endorsers for invoke(move a,b,100):" + failed.size() + " endorser error: " +
+            fail("Not enough endorsers for invoke " + fcn + ":" + failed.size() + " endorser error: " +
                     firstTransactionProposalResponse.getMessage() +
                     ". Was verified: " + firstTransactionProposalResponse.isVerified());
         }
@@ -233,14 +823,48 @@ public class ChaincodeService {
         assertEquals(chaincodeID.getPath(), cid.getPath());
         assertEquals(chaincodeID.getName(), cid.getName());
         assertEquals(chaincodeID.getVersion(), cid.getVersion());
-        // Send Transaction Transaction to orderer
-        log.info("Sending chaincode transaction(move a,b,100) to orderer.");
-        return channel.sendTransaction(successful)
-                .thenApply(transactionEvent -> {
-                    assertTrue(transactionEvent.isValid());
-                    log.info(String.format("Finished transaction with transaction id %s", transactionEvent.getTransactionID()));
-                    return transactionEvent.getTransactionID();
-                }).get();
+        return successful;
+    }
+
+    /**
+     * 发送提案并把各 peer 的耗时和结果反馈给 peerSelector
+     * 同一提案的所有 peer 响应一起返回, 每个 peer 计入整次调用的耗时
+     */
+    private Collection<ProposalResponse> sendTracked(Collection<Peer> peers, Callable<Collection<ProposalResponse>> send)throws Exception{
+        return sendTracked(peers, send, () -> false);
+    }
+
+    /**
+     * 发送提案并把各 peer 的耗时和结果反馈给 peerSelector
+     * 提案已被放弃(cancelled 为 true)时, 失败是中断造成的, 不算作 peer 的失败
+     */
+    private Collection<ProposalResponse> sendTracked(Collection<Peer> peers, Callable<Collection<ProposalResponse>> send,
+                                                     BooleanSupplier cancelled)throws Exception{
+        peers.forEach(peerSelector::onSend);
+        long start = System.nanoTime();
+        Collection<ProposalResponse> responses;
+        try {
+            responses = send.call();
+        } catch (Exception e) {
+            long elapsed = System.nanoTime() - start;
+            peers.forEach(peer -> onResponse(peer, elapsed, false, cancelled));
+            throw e;
+        }
+        long elapsed = System.nanoTime() - start;
+        Map<String, Boolean> results = new HashMap<>();
+        for (ProposalResponse response : responses) {
+            results.put(response.getPeer().getName(), response.getStatus() == ProposalResponse.Status.SUCCESS);
+        }
+        peers.forEach(peer -> onResponse(peer, elapsed, results.getOrDefault(peer.getName(), false), cancelled));
+        return responses;
+    }
+
+    private void onResponse(Peer peer, long elapsed, boolean success, BooleanSupplier cancelled) {
+        if (!success && cancelled.getAsBoolean()) {
+            peerSelector.onCancel(peer);
+        } else {
+            peerSelector.onResponse(peer, elapsed, success);
+        }
     }
 
     /**
@@ -253,10 +877,23 @@ public class ChaincodeService {
      * @throws Exception
      */
     public String upgradeChaincode(ChaincodeID chaincodeID,String channelName,String endorsementpolicyFile,String fcn,String[] args)throws Exception{
-        HFClient client = configService.getClient();
         User peerAdmin = configService.getBlockchainConfig().getClientOrganization().getPeerAdmin();
-        client.setUserContext(peerAdmin);
-        Channel channel = client.getChannel(channelName);
+        return upgradeChaincode(chaincodeID, channelName, endorsementpolicyFile, fcn, args, peerAdmin);
+    }
+
+    /**
+     * 使用指定身份升级智能合约
+     * @param chaincodeID
+     * @param channelName
+     * @param endorsementpolicyFile
+     * @param fcn
+     * @param args
+     * @param peerAdmin
+     * @throws Exception
+     */
+    public String upgradeChaincode(ChaincodeID chaincodeID,String channelName,String endorsementpolicyFile,String fcn,String[] args,User peerAdmin)throws Exception{
+        HFClient client = configService.getClient();
+        Channel channel = channelService.getChannel(channelName);
         Collection<ProposalResponse> responses;
         Collection<ProposalResponse> successful = new LinkedList<>();
         Collection<ProposalResponse> failed = new LinkedList<>();
@@ -312,12 +949,24 @@ public class ChaincodeService {
      * @throws Exception
      */
     public void queryChaincode(ChaincodeID chaincodeID,String channelName,String testTxID)throws Exception{
+        queryChaincode(chaincodeID, channelName, testTxID, configService.getUser(),
+                configService.getBlockchainConfig().getClientOrganization().getPeerAdmin());
+    }
+
+    /**
+     * 使用指定身份执行各种查询, 区块和交易优先从本地区块存储读取
+     * @param chaincodeID
+     * @param channelName
+     * @param testTxID
+     * @param user 查询账本使用的身份
+     * @param peerAdmin 查询 peer 上智能合约使用的管理员身份
+     * @throws Exception
+     */
+    public void queryChaincode(ChaincodeID chaincodeID,String channelName,String testTxID,User user,User peerAdmin)throws Exception{
         //查询区块链信息
         HFClient client = configService.getClient();
-        User user = configService.getUser();
-        client.setUserContext(user);
-        Channel channel = client.getChannel(channelName);
-        BlockchainInfo channelInfo = channel.queryBlockchainInfo();
+        Channel channel = channelService.getChannel(channelName);
+        BlockchainInfo channelInfo = channel.queryBlockchainInfo(user);
         log.info("Channel info for : " + channel.getName());
         log.info("Channel height: " + channelInfo.getHeight());
         String chainCurrentHash = Hex.encodeHexString(channelInfo.getCurrentBlockHash());
@@ -326,7 +975,7 @@ public class ChaincodeService {
         log.info("Chainl previous block hash: " + chainPreviousHash);
 
         //根据编号查询区块信息
-        BlockInfo block = channel.queryBlockByNumber(channelInfo.getHeight() - 1);
+        BlockInfo block = ledgerBlockStore.queryBlockByNumber(channel, channelInfo.getHeight() - 1, user);
         String previousHash = Hex.encodeHexString(block.getPreviousHash());
         log.info("queryBlockByNumber returned correct block with blockNumber " + block.getBlockNumber()
                 + " \n previous_hash " + previousHash);
@@ -335,28 +984,27 @@ public class ChaincodeService {
 
         //根据区块hash查询区块信息
         byte[] hashQuery = block.getPreviousHash();
-        block = channel.queryBlockByHash(hashQuery);
+        block = ledgerBlockStore.queryBlockByHash(channel, hashQuery, user);
         log.info("queryBlockByHash returned block with blockNumber " + block.getBlockNumber());
         assertEquals(channelInfo.getHeight() - 2, block.getBlockNumber());
 
         //根据交易ID查询区块信息
-        block = channel.queryBlockByTransactionID(testTxID);
+        block = ledgerBlockStore.queryBlockByTransactionID(channel, testTxID, user);
         log.info("queryBlockByTxID returned block with blockNumber " + block.getBlockNumber());
         assertEquals(channelInfo.getHeight() - 1, block.getBlockNumber());
 
         //根据交易ID查询交易信息
-        TransactionInfo txInfo = channel.queryTransactionByID(testTxID);
+        TransactionInfo txInfo = ledgerBlockStore.queryTransactionByID(channel, testTxID, user);
         log.info("QueryTransactionByID returned TransactionInfo: txID " + txInfo.getTransactionID()
                 + "\n     validation code " + txInfo.getValidationCode().getNumber());
 
 
-        client.setUserContext(configService.getBlockchainConfig().getClientOrganization().getPeerAdmin());
         //查询当前peer 安装的智能合约
         Collection<String> peerNames = configService.getBlockchainConfig().getClientOrganization().getPeerNames();
         String peerName = peerNames.stream().findFirst().get();
         Peer peer = channel.getPeers().stream().filter(f->f.getName().equals(peerName)).findFirst().get();
 
-        Collection<Query.ChaincodeInfo> chaincodes = channel.queryInstantiatedChaincodes(peer);
+        Collection<Query.ChaincodeInfo> chaincodes = channel.queryInstantiatedChaincodes(peer, peerAdmin);
         chaincodes.stream().forEach(f->{
             log.info(" chaincode name is "+ f.getName());
         });
@@ -365,35 +1013,25 @@ public class ChaincodeService {
 
     /**
      * just for test
+     * 通过事件路由订阅, 不再为每个事件名称向 SDK 注册 ".*" 正则监听
      * @param channelName
+     * @return 取消订阅时使用的 handle
      */
-    public void registerChaincodeEvent(String channelName,String expected_event_name)throws Exception{
+    public String registerChaincodeEvent(String channelName,String expected_event_name)throws Exception{
 
-        HFClient client = configService.getClient();
-        Channel channel = client.getChannel(channelName);
-        channel.registerChaincodeEventListener(Pattern.compile(".*"),
+        // 确保 channel 已初始化并注册了区块事件
+        channelService.getChannel(channelName);
+        return chaincodeEventRouter.subscribe(channelName, Pattern.compile(".*"),
                 Pattern.compile(Pattern.quote(expected_event_name)),
-                (handle, blockEvent, chaincodeEvent) -> {
-            try{
-                log.info(" chaincodeEventListenerHandle is " + handle);
-                log.info(" testTxId is "+ chaincodeEvent.getTxId());
-                log.info("event_name is " + chaincodeEvent.getEventName());
-                log.info("event_data is " + new String(chaincodeEvent.getPayload(),UTF_8));
-                log.info("chaincode_name is " + chaincodeEvent.getChaincodeId());
-                log.info("channel name is " + blockEvent.getChannelId());
-                log.info(" blockNum "+ blockEvent.getBlockNumber());
-
-                String es = blockEvent.getPeer() != null ? blockEvent.getPeer().getName() : blockEvent.getEventHub().getName();
-                log.info(format("RECEIVED Chaincode event with handle: %s, chaincode Id: %s, chaincode event name: %s, "
+                event -> {
+            if (log.isInfoEnabled()) {
+                String es = event.getBlockEvent().getPeer() != null ? event.getBlockEvent().getPeer().getName()
+                        : event.getBlockEvent().getEventHub() != null ? event.getBlockEvent().getEventHub().getName() : "";
+                log.info(format("RECEIVED Chaincode event on channel %s block %d, chaincode Id: %s, chaincode event name: %s, "
                                 + "transaction id: %s, event payload: \"%s\", from eventhub: %s",
-                        handle, chaincodeEvent.getChaincodeId(),
-                        chaincodeEvent.getEventName(),
-                        chaincodeEvent.getTxId(),
-                        new String(chaincodeEvent.getPayload()), es));
-            } catch (Exception e) {
-                log.info(format("Caught an exception running channel %s", channel.getName()));
-                e.printStackTrace();
-                fail("Test failed with error : " + e.getMessage());
+                        event.getChannelName(), event.getBlockNumber(), event.getChaincodeId(),
+                        event.getEventName(), event.getTxId(),
+                        UTF_8.decode(event.getPayload()), es));
             }
         });
     }
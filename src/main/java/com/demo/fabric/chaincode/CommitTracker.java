@@ -0,0 +1,107 @@
+package com.demo.fabric.chaincode;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockListener;
+import org.hyperledger.fabric.sdk.exception.TransactionEventException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.*;
+
+import static java.lang.String.format;
+
+/**
+ * 交易提交跟踪
+ * 每个 channel 只通过一个区块订阅接收事件(过滤区块或完整区块都可以), 按交易 ID 完成等待中的 future,
+ * 代替 SDK 为每笔交易单独注册的提交事件监听。与 SDK 一致, 验证失败的交易以 TransactionEventException 结束,
+ * 异常中带有交易事件, 可以通过 getTransactionEvent().getValidationCode() 取得验证码。
+ */
+@Component("commitTracker")
+public class CommitTracker implements BlockListener {
+
+    @Value("${blockchain.commit.trackerEnabled:true}")
+    private boolean enabled;
+
+    /**
+     * 等待交易提交的超时时间(毫秒), 超时后不再跟踪
+     */
+    @Value("${blockchain.invoke.commitTimeout:300000}")
+    private long commitTimeout;
+
+    /**
+     * 交易 ID -> 等待提交的 future
+     */
+    private final ConcurrentMap<String, CompletableFuture<BlockEvent.TransactionEvent>> pending = new ConcurrentHashMap<>();
+
+    private ScheduledThreadPoolExecutor expiryScheduler;
+
+    @PostConstruct
+    protected void init(){
+        expiryScheduler = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("commit-expiry-%d").setDaemon(true).build());
+        expiryScheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    @PreDestroy
+    protected void destroy(){
+        expiryScheduler.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 开始跟踪交易, 需要在交易发送到 orderer 之前调用
+     * @param txID
+     * @return 交易所在区块提交后完成
+     */
+    public CompletableFuture<BlockEvent.TransactionEvent> track(String txID) {
+        CompletableFuture<BlockEvent.TransactionEvent> future = new CompletableFuture<>();
+        if (pending.putIfAbsent(txID, future) != null) {
+            throw new IllegalStateException(format("Transaction %s is already being tracked", txID));
+        }
+        ScheduledFuture<?> expiry = expiryScheduler.schedule(() -> future.completeExceptionally(new TimeoutException(
+                format("Transaction %s was not committed within %d ms", txID, commitTimeout))), commitTimeout, TimeUnit.MILLISECONDS);
+        future.whenComplete((transactionEvent, e) -> {
+            pending.remove(txID, future);
+            expiry.cancel(false);
+        });
+        return future;
+    }
+
+    /**
+     * 交易发送失败时结束跟踪
+     * @param txID
+     * @param e
+     */
+    public void fail(String txID, Throwable e) {
+        CompletableFuture<BlockEvent.TransactionEvent> future = pending.get(txID);
+        if (future != null) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void received(BlockEvent blockEvent) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        for (BlockEvent.TransactionEvent transactionEvent : blockEvent.getTransactionEvents()) {
+            CompletableFuture<BlockEvent.TransactionEvent> future = pending.get(transactionEvent.getTransactionID());
+            if (future == null) {
+                continue;
+            }
+            if (transactionEvent.isValid()) {
+                future.complete(transactionEvent);
+            } else {
+                future.completeExceptionally(new TransactionEventException(format(
+                        "Received invalid transaction event. Transaction ID %s status %s",
+                        transactionEvent.getTransactionID(), transactionEvent.getValidationCode()), transactionEvent));
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.demo.fabric.chaincode;
+
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static java.lang.String.format;
+
+/**
+ * 背书策略要求
+ * 从 chaincodeendorsementpolicy.yaml 格式的文件解析出 "n-of" / "signed-by" 规则树,
+ * 用于挑选满足背书策略的最少 peer。同一个 peer 的签名只能满足一条 signed-by 规则, 已选中的 peer 不会被再次选择。
+ */
+public abstract class EndorsementRequirement {
+
+    /**
+     * 任意一个 peer 即可满足
+     */
+    public static final EndorsementRequirement ANY_PEER = new EndorsementRequirement() {
+        @Override
+        <T> Optional<Set<T>> choose(BiFunction<String, Set<T>, Optional<T>> bestOfMsp, Function<Set<T>, Optional<T>> bestOfAll,
+                                    Function<Set<T>, Double> cost, Set<T> taken) {
+            return bestOfAll.apply(taken).map(Collections::singleton);
+        }
+    };
+
+    /**
+     * 选择满足该规则的 peer 集合
+     * @param bestOfMsp 返回某个 MSP 下不在给定集合中的最优 peer
+     * @param bestOfAll 返回所有候选中不在给定集合中的最优 peer
+     * @param cost 计算 peer 集合的代价
+     * @param taken 已被其他规则选中的 peer
+     * @return 无法满足时返回 empty
+     */
+    abstract <T> Optional<Set<T>> choose(BiFunction<String, Set<T>, Optional<T>> bestOfMsp, Function<Set<T>, Optional<T>> bestOfAll,
+                                         Function<Set<T>, Double> cost, Set<T> taken);
+
+    /**
+     * 选择满足该规则的 peer 集合
+     * @param bestOfMsp 返回某个 MSP 下不在给定集合中的最优 peer
+     * @param bestOfAll 返回所有候选中不在给定集合中的最优 peer
+     * @param cost 计算 peer 集合的代价
+     * @return 无法满足时返回 empty
+     */
+    <T> Optional<Set<T>> choose(BiFunction<String, Set<T>, Optional<T>> bestOfMsp, Function<Set<T>, Optional<T>> bestOfAll,
+                                Function<Set<T>, Double> cost) {
+        return choose(bestOfMsp, bestOfAll, cost, Collections.emptySet());
+    }
+
+    /**
+     * 从 yaml 文件解析背书策略
+     * @param policyFile
+     * @return
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public static EndorsementRequirement fromYamlFile(File policyFile) throws IOException {
+        Map<String, Object> yaml;
+        try (InputStream in = Files.newInputStream(policyFile.toPath())) {
+            yaml = (Map<String, Object>) new Yaml().load(in);
+        }
+        Map<String, String> identities = new HashMap<>();
+        Map<String, Object> identityDefs = (Map<String, Object>) yaml.get("identities");
+        if (identityDefs != null) {
+            identityDefs.forEach((name, def) -> {
+                Map<String, Object> role = (Map<String, Object>) ((Map<String, Object>) def).get("role");
+                identities.put(name, (String) role.get("mspId"));
+            });
+        }
+        Object policy = yaml.get("policy");
+        if (policy == null) {
+            throw new IllegalArgumentException(format("Endorsement policy file %s has no policy", policyFile));
+        }
+        return parse(policy, identities);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static EndorsementRequirement parse(Object node, Map<String, String> identities) {
+        Map<String, Object> map = (Map<String, Object>) node;
+        if (map.size() != 1) {
+            throw new IllegalArgumentException(format("Expected exactly one rule but got %s", map.keySet()));
+        }
+        Map.Entry<String, Object> rule = map.entrySet().iterator().next();
+        String key = rule.getKey();
+        if ("signed-by".equals(key)) {
+            String mspId = identities.get((String) rule.getValue());
+            if (mspId == null) {
+                throw new IllegalArgumentException(format("Unknown identity %s in endorsement policy", rule.getValue()));
+            }
+            return new SignedBy(mspId);
+        }
+        if (key.endsWith("-of")) {
+            int n = Integer.parseInt(key.substring(0, key.length() - 3));
+            List<EndorsementRequirement> children = new ArrayList<>();
+            for (Object child : (List<Object>) rule.getValue()) {
+                children.add(parse(child, identities));
+            }
+            return new NOf(n, children);
+        }
+        throw new IllegalArgumentException(format("Unsupported endorsement policy rule %s", key));
+    }
+
+    static final class SignedBy extends EndorsementRequirement {
+        private final String mspId;
+
+        SignedBy(String mspId) {
+            this.mspId = mspId;
+        }
+
+        @Override
+        <T> Optional<Set<T>> choose(BiFunction<String, Set<T>, Optional<T>> bestOfMsp, Function<Set<T>, Optional<T>> bestOfAll,
+                                    Function<Set<T>, Double> cost, Set<T> taken) {
+            return bestOfMsp.apply(mspId, taken).map(Collections::singleton);
+        }
+    }
+
+    static final class NOf extends EndorsementRequirement {
+        private final int n;
+        private final List<EndorsementRequirement> children;
+
+        NOf(int n, List<EndorsementRequirement> children) {
+            this.n = n;
+            this.children = children;
+        }
+
+        @Override
+        <T> Optional<Set<T>> choose(BiFunction<String, Set<T>, Optional<T>> bestOfMsp, Function<Set<T>, Optional<T>> bestOfAll,
+                                    Function<Set<T>, Double> cost, Set<T> taken) {
+            // 贪心: 每次取代价最低的一个子规则, 后续子规则排除已选中的 peer
+            List<EndorsementRequirement> remaining = new ArrayList<>(children);
+            Set<T> chosen = new LinkedHashSet<>();
+            for (int i = 0; i < n; i++) {
+                Set<T> used = new HashSet<>(taken);
+                used.addAll(chosen);
+                EndorsementRequirement bestChild = null;
+                Set<T> bestOption = null;
+                double bestCost = Double.MAX_VALUE;
+                for (EndorsementRequirement child : remaining) {
+                    Optional<Set<T>> option = child.choose(bestOfMsp, bestOfAll, cost, used);
+                    if (option.isPresent() && (bestOption == null || cost.apply(option.get()) < bestCost)) {
+                        bestChild = child;
+                        bestOption = option.get();
+                        bestCost = cost.apply(bestOption);
+                    }
+                }
+                if (bestOption == null) {
+                    return Optional.empty();
+                }
+                chosen.addAll(bestOption);
+                remaining.remove(bestChild);
+            }
+            return Optional.of(chosen);
+        }
+    }
+}
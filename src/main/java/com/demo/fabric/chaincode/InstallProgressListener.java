@@ -0,0 +1,17 @@
+package com.demo.fabric.chaincode;
+
+/**
+ * 智能合约安装进度回调
+ */
+public interface InstallProgressListener {
+
+    InstallProgressListener NONE = (result, completed, total) -> { };
+
+    /**
+     * 每个 peer 安装结束(成功、失败或超时)后调用, 可能在安装线程中并发调用
+     * @param result 该 peer 的安装结果
+     * @param completed 已结束的 peer 数量
+     * @param total peer 总数
+     */
+    void onPeerCompleted(InstallReport.PeerResult result, int completed, int total);
+}
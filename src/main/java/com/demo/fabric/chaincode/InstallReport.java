@@ -0,0 +1,125 @@
+package com.demo.fabric.chaincode;
+
+import org.hyperledger.fabric.sdk.ChaincodeID;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 智能合约安装结果, 记录每个 peer 的安装状态
+ */
+public class InstallReport {
+
+    public enum Status {
+        /** 安装成功 */
+        INSTALLED,
+        /** peer 上已存在相同名称和版本的智能合约 */
+        ALREADY_INSTALLED,
+        /** 重试后仍然失败 */
+        FAILED,
+        /** 安装超时时仍未完成 */
+        TIMEOUT
+    }
+
+    private final ChaincodeID chaincodeID;
+
+    private final double quorum;
+
+    private final Map<String, PeerResult> peerResults;
+
+    InstallReport(ChaincodeID chaincodeID, double quorum, Map<String, PeerResult> peerResults) {
+        this.chaincodeID = chaincodeID;
+        this.quorum = quorum;
+        this.peerResults = Collections.unmodifiableMap(new LinkedHashMap<>(peerResults));
+    }
+
+    public ChaincodeID getChaincodeID() {
+        return chaincodeID;
+    }
+
+    /**
+     * peer 名称 -> 安装结果
+     * @return
+     */
+    public Map<String, PeerResult> getPeerResults() {
+        return peerResults;
+    }
+
+    public int getSucceeded() {
+        int succeeded = 0;
+        for (PeerResult result : peerResults.values()) {
+            if (result.isSuccess()) {
+                succeeded++;
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * 成功的 peer 比例是否达到要求
+     * @return
+     */
+    public boolean isQuorumReached() {
+        return !peerResults.isEmpty() && getSucceeded() >= Math.ceil(quorum * peerResults.size());
+    }
+
+    @Override
+    public String toString() {
+        return "InstallReport{chaincodeID=" + chaincodeID + ", succeeded=" + getSucceeded() + "/" + peerResults.size()
+                + ", quorum=" + quorum + ", peerResults=" + peerResults + "}";
+    }
+
+    /**
+     * 单个 peer 的安装结果
+     */
+    public static class PeerResult {
+
+        private final String peerName;
+
+        private final Status status;
+
+        private final int attempts;
+
+        private final long elapsedMillis;
+
+        private final String message;
+
+        PeerResult(String peerName, Status status, int attempts, long elapsedMillis, String message) {
+            this.peerName = peerName;
+            this.status = status;
+            this.attempts = attempts;
+            this.elapsedMillis = elapsedMillis;
+            this.message = message;
+        }
+
+        public String getPeerName() {
+            return peerName;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public boolean isSuccess() {
+            return status == Status.INSTALLED || status == Status.ALREADY_INSTALLED;
+        }
+
+        @Override
+        public String toString() {
+            return status + "(attempts=" + attempts + ", " + elapsedMillis + "ms" + (message == null ? "" : ", " + message) + ")";
+        }
+    }
+}
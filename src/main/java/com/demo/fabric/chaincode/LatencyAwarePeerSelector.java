@@ -0,0 +1,147 @@
+package com.demo.fabric.chaincode;
+
+import com.demo.fabric.blockchain.ConfigService;
+import lombok.extern.slf4j.Slf4j;
+import org.hyperledger.fabric.sdk.NetworkConfig;
+import org.hyperledger.fabric.sdk.Peer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * 按延迟选择背书 peer
+ * 每个 peer 记录响应耗时的指数加权移动平均(EWMA)和在途提案数, 代价 = EWMA * (1 + 在途数),
+ * 优先选择代价最低且能满足背书策略的最少 peer。失败的响应按 failurePenaltyMs 计入 EWMA, 被放弃的提案不计入。
+ */
+@Slf4j
+@Component("peerSelector")
+public class LatencyAwarePeerSelector implements PeerSelector {
+
+    @Resource
+    private ConfigService configService;
+
+    /**
+     * EWMA 平滑系数
+     */
+    @Value("${blockchain.endorsement.ewmaAlpha:0.3}")
+    private double alpha;
+
+    /**
+     * 失败时计入的耗时(毫秒)
+     */
+    @Value("${blockchain.endorsement.failurePenaltyMs:5000}")
+    private long failurePenaltyMs;
+
+    private final ConcurrentMap<String, PeerStats> stats = new ConcurrentHashMap<>();
+
+    private volatile Map<String, String> peerMspIds;
+
+    @Override
+    public Collection<Peer> select(Collection<Peer> candidates, EndorsementRequirement requirement, Set<String> excluded) {
+        // 先取快照再排序, 避免排序过程中统计值变化
+        Map<Peer, Double> costs = new HashMap<>();
+        for (Peer peer : candidates) {
+            if (!excluded.contains(peer.getName())) {
+                costs.put(peer, cost(peer));
+            }
+        }
+        List<Peer> available = new ArrayList<>(costs.keySet());
+        available.sort(Comparator.comparing(costs::get));
+        if (requirement == null) {
+            return available;
+        }
+        BiFunction<String, Set<Peer>, Optional<Peer>> bestOfMsp = (mspId, taken) -> available.stream()
+                .filter(peer -> !taken.contains(peer) && mspId.equals(peerMspIds().get(peer.getName())))
+                .findFirst();
+        Function<Set<Peer>, Optional<Peer>> bestOfAll = taken -> available.stream()
+                .filter(peer -> !taken.contains(peer))
+                .findFirst();
+        Optional<Set<Peer>> chosen = requirement.choose(bestOfMsp, bestOfAll,
+                peers -> peers.stream().mapToDouble(costs::get).sum());
+        return chosen.<Collection<Peer>>map(ArrayList::new).orElse(Collections.emptyList());
+    }
+
+    @Override
+    public void onSend(Peer peer) {
+        stats(peer).inFlight.incrementAndGet();
+    }
+
+    @Override
+    public void onResponse(Peer peer, long latencyNanos, boolean success) {
+        PeerStats peerStats = stats(peer);
+        peerStats.inFlight.decrementAndGet();
+        double sample = success ? latencyNanos / 1e6 : Math.max(failurePenaltyMs, TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+        peerStats.record(sample, alpha);
+    }
+
+    @Override
+    public void onCancel(Peer peer) {
+        stats(peer).inFlight.decrementAndGet();
+    }
+
+    /**
+     * peer 当前的 EWMA 耗时(毫秒), 没有样本时为 0
+     * @param peerName
+     * @return
+     */
+    public double getEwmaMillis(String peerName) {
+        PeerStats peerStats = stats.get(peerName);
+        return peerStats == null ? 0 : peerStats.ewma;
+    }
+
+    /**
+     * peer 当前的在途提案数
+     * @param peerName
+     * @return
+     */
+    public int getInFlight(String peerName) {
+        PeerStats peerStats = stats.get(peerName);
+        return peerStats == null ? 0 : peerStats.inFlight.get();
+    }
+
+    private double cost(Peer peer) {
+        PeerStats peerStats = stats(peer);
+        return peerStats.ewma * (1 + peerStats.inFlight.get());
+    }
+
+    private PeerStats stats(Peer peer) {
+        return stats.computeIfAbsent(peer.getName(), name -> new PeerStats());
+    }
+
+    /**
+     * peer 名称到所属组织 MSP ID 的映射, 来自 network-config
+     * @return
+     */
+    private Map<String, String> peerMspIds() {
+        Map<String, String> mspIds = peerMspIds;
+        if (mspIds == null) {
+            mspIds = new HashMap<>();
+            for (NetworkConfig.OrgInfo org : configService.getBlockchainConfig().getOrganizationInfos()) {
+                for (String peerName : org.getPeerNames()) {
+                    mspIds.put(peerName, org.getMspId());
+                }
+            }
+            peerMspIds = mspIds;
+        }
+        return mspIds;
+    }
+
+    private static final class PeerStats {
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile double ewma;
+        boolean sampled;
+
+        synchronized void record(double sample, double alpha) {
+            ewma = sampled ? alpha * sample + (1 - alpha) * ewma : sample;
+            sampled = true;
+        }
+    }
+}
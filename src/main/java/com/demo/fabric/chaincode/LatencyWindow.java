@@ -0,0 +1,57 @@
+package com.demo.fabric.chaincode;
+
+import java.util.Arrays;
+
+/**
+ * 最近 N 次耗时的滑动窗口, 用于估算延迟百分位
+ * 百分位每累计 recomputeEvery 个样本重新计算一次, 读取时不需要排序。
+ */
+public class LatencyWindow {
+
+    private final long[] samples;
+
+    private final int recomputeEvery;
+
+    private int next;
+
+    private int count;
+
+    private int sinceRecompute;
+
+    private long[] sorted = new long[0];
+
+    public LatencyWindow(int size, int recomputeEvery) {
+        this.samples = new long[size];
+        this.recomputeEvery = recomputeEvery;
+    }
+
+    /**
+     * 记录一次耗时
+     * @param nanos
+     */
+    public synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+        if (++sinceRecompute >= recomputeEvery || sorted.length < recomputeEvery) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            sinceRecompute = 0;
+        }
+    }
+
+    /**
+     * 计算百分位耗时
+     * @param percentile 0 到 1 之间, 如 0.95
+     * @return 样本不足时返回 -1
+     */
+    public synchronized long percentile(double percentile) {
+        if (sorted.length == 0) {
+            return -1;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
@@ -0,0 +1,41 @@
+package com.demo.fabric.chaincode;
+
+import org.hyperledger.fabric.sdk.Peer;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * 背书 peer 选择策略
+ */
+public interface PeerSelector {
+
+    /**
+     * 从候选 peer 中选择满足背书要求的 peer 集合
+     * @param candidates 候选 peer
+     * @param requirement 背书要求, 为 null 时返回全部可用候选
+     * @param excluded 本次请求中已失败, 需要排除的 peer 名称
+     * @return 无法满足时返回空集合
+     */
+    Collection<Peer> select(Collection<Peer> candidates, EndorsementRequirement requirement, Set<String> excluded);
+
+    /**
+     * 提案发送到 peer 前调用
+     * @param peer
+     */
+    void onSend(Peer peer);
+
+    /**
+     * 收到 peer 响应(或失败)后调用
+     * @param peer
+     * @param latencyNanos 耗时
+     * @param success 是否成功
+     */
+    void onResponse(Peer peer, long latencyNanos, boolean success);
+
+    /**
+     * 提案被主动放弃(如对冲查询中落后的请求)后调用, 不计入耗时统计
+     * @param peer
+     */
+    void onCancel(Peer peer);
+}
@@ -0,0 +1,370 @@
+package com.demo.fabric.chaincode;
+
+import com.demo.fabric.utils.RwSetUtil;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+import lombok.extern.slf4j.Slf4j;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockListener;
+import org.hyperledger.fabric.sdk.ChaincodeID;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.hyperledger.fabric.sdk.User;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * 智能合约查询结果缓存
+ * 按 channel、智能合约、函数、参数和调用身份缓存查询结果, 容量按字节限制(LRU 淘汰)。
+ * 缓存时记录查询读集中的 key 和范围查询, 当提交的区块写集修改了这些 key 或写入了范围内的 key 时使对应缓存失效。
+ * 过滤区块(filtered block)不包含读写集, 收到时清空该 channel 的缓存, 直到收到完整区块前不再缓存该 channel 的查询。
+ */
+@Slf4j
+@Component("queryCache")
+public class QueryCache implements BlockListener {
+
+    @Value("${blockchain.query.cache.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 缓存容量(字节)
+     */
+    @Value("${blockchain.query.cache.maxBytes:67108864}")
+    private long maxBytes;
+
+    private Cache<Key, Entry> cache;
+
+    /**
+     * channel/namespace/key -> 读取了该 key 的缓存项
+     */
+    private final ConcurrentMap<String, Set<Key>> readIndex = new ConcurrentHashMap<>();
+
+    /**
+     * channel/namespace -> 该 namespace 上的范围查询
+     */
+    private final ConcurrentMap<String, Set<RangeRead>> rangeIndex = new ConcurrentHashMap<>();
+
+    /**
+     * 最近收到的是过滤区块的 channel
+     */
+    private final Set<String> filteredChannels = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 每个 channel 的失效版本号, 查询期间发生过失效的结果不写入缓存
+     */
+    private final ConcurrentMap<String, AtomicLong> stamps = new ConcurrentHashMap<>();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    @PostConstruct
+    protected void init(){
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key key, Entry entry) -> key.weight() + entry.weight())
+                .removalListener(this::onRemoval)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 构造缓存 key
+     */
+    public Key key(String channelName, ChaincodeID chaincodeID, String fcn, String[] args, User user){
+        List<String> argList = args == null ? Collections.emptyList() : new ArrayList<>(Arrays.asList(args));
+        return new Key(channelName, chaincodeID.getName() + ":" + chaincodeID.getVersion(), fcn,
+                argList, user.getMspId() + "/" + user.getName());
+    }
+
+    /**
+     * 读取缓存
+     * @param key
+     * @return 未命中时返回 null
+     */
+    public String get(Key key){
+        if (!enabled || filteredChannels.contains(key.channelName)) {
+            return null;
+        }
+        Entry entry = cache.getIfPresent(key);
+        return entry == null ? null : entry.payload;
+    }
+
+    /**
+     * 查询开始前获取 channel 当前的失效版本号
+     * @param channelName
+     * @return
+     */
+    public long stamp(String channelName){
+        return stamps.computeIfAbsent(channelName, name -> new AtomicLong()).get();
+    }
+
+    /**
+     * 写入缓存, 没有读集或查询期间 channel 发生过失效时不缓存
+     * @param key
+     * @param payload
+     * @param rwsetInfo 查询模拟执行产生的读写集
+     * @param stamp 查询开始前的失效版本号
+     * @throws Exception
+     */
+    public void put(Key key, String payload, TxReadWriteSetInfo rwsetInfo, long stamp) throws Exception{
+        if (!enabled || rwsetInfo == null || filteredChannels.contains(key.channelName)) {
+            return;
+        }
+        List<String> readKeys = new ArrayList<>();
+        RwSetUtil.forEachRead(rwsetInfo, (namespace, read) -> readKeys.add(ledgerKey(key.channelName, namespace, read.getKey())));
+        List<RangeRead> rangeReads = new ArrayList<>();
+        RwSetUtil.forEachRangeQuery(rwsetInfo, (namespace, rangeQuery) -> rangeReads.add(
+                new RangeRead(scope(key.channelName, namespace), rangeQuery.getStartKey(), rangeQuery.getEndKey(), key)));
+        if (readKeys.isEmpty() && rangeReads.isEmpty()) {
+            return;
+        }
+        Entry entry = new Entry(payload, readKeys, rangeReads);
+        // 在 compute 中加入索引, 与 onRemoval 删除空集合互斥, 不会加进已被删除的集合
+        for (String readKey : readKeys) {
+            readIndex.compute(readKey, (k, keys) -> add(keys, key));
+        }
+        for (RangeRead rangeRead : rangeReads) {
+            rangeIndex.compute(rangeRead.scope, (k, scopeReads) -> add(scopeReads, rangeRead));
+        }
+        cache.put(key, entry);
+        // 写入后再检查一次, 保证与并发的失效不会留下旧数据
+        if (stamp(key.channelName) != stamp) {
+            cache.invalidate(key);
+        }
+    }
+
+    @Override
+    public void received(BlockEvent blockEvent) {
+        if (!enabled) {
+            return;
+        }
+        String channelName = blockEvent.getChannelId();
+        stamps.computeIfAbsent(channelName, name -> new AtomicLong()).incrementAndGet();
+        if (blockEvent.isFiltered()) {
+            if (filteredChannels.add(channelName)) {
+                log.warn(format("Received filtered block %d on channel %s without read-write sets, query cache bypassed for the channel",
+                        blockEvent.getBlockNumber(), channelName));
+            }
+            invalidateChannel(channelName);
+            return;
+        }
+        if (filteredChannels.remove(channelName)) {
+            log.info(format("Received full block %d on channel %s, query cache resumed", blockEvent.getBlockNumber(), channelName));
+        }
+        try {
+            RwSetUtil.forEachValidWrite(blockEvent, (namespace, write) -> {
+                Set<Key> keys = readIndex.remove(ledgerKey(channelName, namespace, write.getKey()));
+                if (keys != null) {
+                    invalidations.addAndGet(keys.size());
+                    cache.invalidateAll(keys);
+                }
+                Set<RangeRead> rangeReads = rangeIndex.get(scope(channelName, namespace));
+                if (rangeReads != null) {
+                    List<Key> covered = new ArrayList<>();
+                    for (RangeRead rangeRead : rangeReads) {
+                        if (rangeRead.contains(write.getKey())) {
+                            covered.add(rangeRead.key);
+                        }
+                    }
+                    invalidations.addAndGet(covered.size());
+                    cache.invalidateAll(covered);
+                }
+            });
+        } catch (Exception e) {
+            log.warn(format("Failed to read write sets of block %d on channel %s, clearing query cache",
+                    blockEvent.getBlockNumber(), channelName), e);
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * 缓存统计信息
+     * @return
+     */
+    public Map<String, Object> statistics(){
+        CacheStats stats = cache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("entries", cache.size());
+        result.put("maxBytes", maxBytes);
+        result.put("hitCount", stats.hitCount());
+        result.put("missCount", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("missRate", stats.missRate());
+        result.put("evictionCount", stats.evictionCount());
+        result.put("invalidationCount", invalidations.get());
+        return result;
+    }
+
+    /**
+     * 使 channel 的所有缓存失效
+     */
+    private void invalidateChannel(String channelName) {
+        List<Key> keys = new ArrayList<>();
+        for (Key key : cache.asMap().keySet()) {
+            if (key.channelName.equals(channelName)) {
+                keys.add(key);
+            }
+        }
+        invalidations.addAndGet(keys.size());
+        cache.invalidateAll(keys);
+    }
+
+    private void onRemoval(RemovalNotification<Key, Entry> notification) {
+        Entry entry = notification.getValue();
+        if (entry == null) {
+            return;
+        }
+        // 集合为空时一并删除, 避免索引中残留空集合
+        for (String readKey : entry.readKeys) {
+            readIndex.computeIfPresent(readKey, (k, keys) -> remove(keys, notification.getKey()));
+        }
+        for (RangeRead rangeRead : entry.rangeReads) {
+            rangeIndex.computeIfPresent(rangeRead.scope, (k, rangeReads) -> remove(rangeReads, rangeRead));
+        }
+    }
+
+    private static <T> Set<T> add(Set<T> set, T value) {
+        Set<T> result = set == null ? ConcurrentHashMap.newKeySet() : set;
+        result.add(value);
+        return result;
+    }
+
+    private static <T> Set<T> remove(Set<T> set, T value) {
+        set.remove(value);
+        return set.isEmpty() ? null : set;
+    }
+
+    private static String ledgerKey(String channelName, String namespace, String key) {
+        return channelName + '\u0000' + namespace + '\u0000' + key;
+    }
+
+    private static String scope(String channelName, String namespace) {
+        return channelName + '\u0000' + namespace;
+    }
+
+    /**
+     * UTF-8 编码后的字节数
+     */
+    private static int bytes(String value) {
+        return value == null ? 0 : value.getBytes(UTF_8).length;
+    }
+
+    /**
+     * 按 Unicode 码点比较, 与 peer 按 UTF-8 字节比较 key 的顺序一致
+     * (String.compareTo 按 UTF-16 比较, 组合键使用的 U+10FFFF 会排在 U+E000 以上的字符之前)
+     */
+    private static int compareCodePoints(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return Integer.compare(ca, cb);
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+
+    /**
+     * 缓存 key
+     */
+    public static final class Key {
+        private final String channelName;
+        private final String chaincode;
+        private final String fcn;
+        private final List<String> args;
+        private final String identity;
+
+        Key(String channelName, String chaincode, String fcn, List<String> args, String identity) {
+            this.channelName = channelName;
+            this.chaincode = chaincode;
+            this.fcn = fcn;
+            this.args = args;
+            this.identity = identity;
+        }
+
+        int weight() {
+            int weight = bytes(channelName) + bytes(chaincode) + bytes(fcn) + bytes(identity);
+            for (String arg : args) {
+                weight += bytes(arg);
+            }
+            return weight;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return channelName.equals(other.channelName) && chaincode.equals(other.chaincode)
+                    && fcn.equals(other.fcn) && args.equals(other.args) && identity.equals(other.identity);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(channelName, chaincode, fcn, args, identity);
+        }
+    }
+
+    private static final class Entry {
+        final String payload;
+        final List<String> readKeys;
+        final List<RangeRead> rangeReads;
+
+        Entry(String payload, List<String> readKeys, List<RangeRead> rangeReads) {
+            this.payload = payload;
+            this.readKeys = readKeys;
+            this.rangeReads = rangeReads;
+        }
+
+        int weight() {
+            int weight = bytes(payload);
+            for (String readKey : readKeys) {
+                weight += bytes(readKey);
+            }
+            for (RangeRead rangeRead : rangeReads) {
+                weight += bytes(rangeRead.scope) + bytes(rangeRead.startKey) + bytes(rangeRead.endKey);
+            }
+            return weight;
+        }
+    }
+
+    /**
+     * 缓存项读取的范围 [startKey, endKey), endKey 为空表示到最后
+     */
+    private static final class RangeRead {
+        final String scope;
+        final String startKey;
+        final String endKey;
+        final Key key;
+
+        RangeRead(String scope, String startKey, String endKey, Key key) {
+            this.scope = scope;
+            this.startKey = startKey;
+            this.endKey = endKey;
+            this.key = key;
+        }
+
+        boolean contains(String ledgerKey) {
+            return compareCodePoints(ledgerKey, startKey) >= 0
+                    && (endKey.isEmpty() || compareCodePoints(ledgerKey, endKey) < 0);
+        }
+    }
+}
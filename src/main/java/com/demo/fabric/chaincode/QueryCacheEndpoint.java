@@ -0,0 +1,24 @@
+package com.demo.fabric.chaincode;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * 查询缓存命中率监控, 访问 /actuator/querycache
+ */
+@Component
+@Endpoint(id = "querycache")
+public class QueryCacheEndpoint {
+
+    @Resource
+    private QueryCache queryCache;
+
+    @ReadOperation
+    public Map<String, Object> statistics() {
+        return queryCache.statistics();
+    }
+}
@@ -0,0 +1,53 @@
+package com.demo.fabric.chaincode;
+
+import com.demo.fabric.utils.FutureUtil;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.User;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 提交已背书的交易到 orderer
+ * 启用 {@link CommitTracker} 时不让 SDK 为每笔交易注册提交事件监听, 由 CommitTracker 从区块事件中完成。
+ */
+@Component
+public class TransactionSubmitter {
+
+    @Resource
+    private CommitTracker commitTracker;
+
+    /**
+     * 提交已背书的交易
+     * @param channel
+     * @param successful 成功的背书响应
+     * @param user 签名交易的身份
+     * @return 交易提交事件
+     */
+    public CompletableFuture<BlockEvent.TransactionEvent> submit(Channel channel, Collection<ProposalResponse> successful, User user){
+        Channel.TransactionOptions options = Channel.TransactionOptions.createTransactionOptions()
+                .orderers(new ArrayList<>(channel.getOrderers()))
+                .shuffleOrders(true)
+                .userContext(user);
+        try {
+            if (!commitTracker.isEnabled()) {
+                return channel.sendTransaction(successful, options);
+            }
+            String txID = successful.iterator().next().getTransactionID();
+            CompletableFuture<BlockEvent.TransactionEvent> committed = commitTracker.track(txID);
+            channel.sendTransaction(successful, options.nOfEvents(Channel.NOfEvents.createNoEvents())).whenComplete((event, e) -> {
+                if (e != null) {
+                    commitTracker.fail(txID, e);
+                }
+            });
+            return committed;
+        } catch (RuntimeException e) {
+            return FutureUtil.failed(e);
+        }
+    }
+}
@@ -31,7 +31,7 @@ public class SampleUser implements User, Serializable {
     private String affiliation;
     private String organization;
     private String enrollmentSecret;
-    Enrollment enrollment = null; //need access in test env.
+    volatile Enrollment enrollment = null; //need access in test env. 续期时替换, 其它线程立即可见
 
     public SampleUser(String name, String org) {
         this.name = name;
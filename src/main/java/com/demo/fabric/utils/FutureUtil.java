@@ -0,0 +1,101 @@
+package com.demo.fabric.utils;
+
+import java.util.concurrent.*;
+
+import static java.lang.String.format;
+
+/**
+ * CompletableFuture 辅助方法
+ */
+public class FutureUtil {
+
+    private FutureUtil() {
+    }
+
+    /**
+     * 在指定线程池中执行可抛出受检异常的任务
+     * @param task
+     * @param executor
+     * @return
+     */
+    public static <T> CompletableFuture<T> supplyAsync(Callable<T> task, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * 返回一个已异常结束的 future
+     * @param e
+     * @return
+     */
+    public static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * 为 future 增加超时, 超时后以 TimeoutException 结束, 不会阻塞任何线程
+     * @param future
+     * @param timeout
+     * @param unit
+     * @param scheduler
+     * @return
+     */
+    public static <T> CompletableFuture<T> within(CompletableFuture<T> future, long timeout, TimeUnit unit,
+                                                  ScheduledExecutorService scheduler) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> timer = scheduler.schedule(
+                () -> result.completeExceptionally(new TimeoutException(format("Timed out after %d %s", timeout, unit))),
+                timeout, unit);
+        future.whenComplete((value, e) -> {
+            timer.cancel(false);
+            if (e != null) {
+                result.completeExceptionally(unwrap(e));
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 阻塞等待结果, 并将 ExecutionException 还原为原始异常
+     * @param future
+     * @return
+     * @throws Exception
+     */
+    public static <T> T get(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 剥离 CompletionException / ExecutionException 包装
+     * @param e
+     * @return
+     */
+    public static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+}
@@ -0,0 +1,105 @@
+package com.demo.fabric.utils;
+
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+
+/**
+ * 交易读写集遍历工具
+ */
+public class RwSetUtil {
+
+    private RwSetUtil() {
+    }
+
+    /**
+     * 读写集中的一条读或写
+     */
+    public interface KeyVisitor<T> {
+        void visit(String namespace, T entry) throws Exception;
+    }
+
+    /**
+     * 遍历区块中所有有效交易的写集, 过滤区块(filtered block)不包含读写集, 会被跳过
+     * @param blockEvent
+     * @param visitor
+     * @throws Exception
+     */
+    public static void forEachValidWrite(BlockEvent blockEvent, KeyVisitor<KvRwset.KVWrite> visitor) throws Exception {
+        for (BlockEvent.TransactionEvent transactionEvent : blockEvent.getTransactionEvents()) {
+            if (!transactionEvent.isValid()) {
+                continue;
+            }
+            for (BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo actionInfo : transactionEvent.getTransactionActionInfos()) {
+                TxReadWriteSetInfo rwsetInfo = actionInfo.getTxReadWriteSet();
+                if (rwsetInfo == null) {
+                    continue;
+                }
+                for (TxReadWriteSetInfo.NsRwsetInfo nsRwsetInfo : rwsetInfo.getNsRwsetInfos()) {
+                    String namespace = nsRwsetInfo.getNamespace();
+                    for (KvRwset.KVWrite write : nsRwsetInfo.getRwset().getWritesList()) {
+                        visitor.visit(namespace, write);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 遍历查询得到的完整区块中所有有效交易的写集
+     * @param blockInfo
+     * @param visitor
+     * @throws Exception
+     */
+    public static void forEachValidWrite(BlockInfo blockInfo, KeyVisitor<KvRwset.KVWrite> visitor) throws Exception {
+        for (BlockInfo.EnvelopeInfo envelopeInfo : blockInfo.getEnvelopeInfos()) {
+            if (envelopeInfo.getType() != BlockInfo.EnvelopeType.TRANSACTION_ENVELOPE || !envelopeInfo.isValid()) {
+                continue;
+            }
+            BlockInfo.TransactionEnvelopeInfo transactionInfo = (BlockInfo.TransactionEnvelopeInfo) envelopeInfo;
+            for (BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo actionInfo : transactionInfo.getTransactionActionInfos()) {
+                TxReadWriteSetInfo rwsetInfo = actionInfo.getTxReadWriteSet();
+                if (rwsetInfo == null) {
+                    continue;
+                }
+                for (TxReadWriteSetInfo.NsRwsetInfo nsRwsetInfo : rwsetInfo.getNsRwsetInfos()) {
+                    String namespace = nsRwsetInfo.getNamespace();
+                    for (KvRwset.KVWrite write : nsRwsetInfo.getRwset().getWritesList()) {
+                        visitor.visit(namespace, write);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 遍历读写集中的读集
+     * @param rwsetInfo
+     * @param visitor
+     * @throws Exception
+     */
+    public static void forEachRead(TxReadWriteSetInfo rwsetInfo, KeyVisitor<KvRwset.KVRead> visitor) throws Exception {
+        for (TxReadWriteSetInfo.NsRwsetInfo nsRwsetInfo : rwsetInfo.getNsRwsetInfos()) {
+            String namespace = nsRwsetInfo.getNamespace();
+            for (KvRwset.KVRead read : nsRwsetInfo.getRwset().getReadsList()) {
+                visitor.visit(namespace, read);
+            }
+        }
+    }
+
+    /**
+     * 遍历读写集中的范围查询, 范围为 [startKey, endKey), endKey 为空表示到最后
+     * @param rwsetInfo
+     * @param visitor
+     * @throws Exception
+     */
+    public static void forEachRangeQuery(TxReadWriteSetInfo rwsetInfo, KeyVisitor<KvRwset.RangeQueryInfo> visitor) throws Exception {
+        for (TxReadWriteSetInfo.NsRwsetInfo nsRwsetInfo : rwsetInfo.getNsRwsetInfos()) {
+            String namespace = nsRwsetInfo.getNamespace();
+            for (KvRwset.RangeQueryInfo rangeQuery : nsRwsetInfo.getRwset().getRangeQueriesInfoList()) {
+                visitor.visit(namespace, rangeQuery);
+            }
+        }
+    }
+}
@@ -22,9 +22,12 @@ import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.hyperledger.fabric.sdk.helper.Utils;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 
 import static java.lang.String.format;
@@ -37,6 +40,11 @@ public class Util {
     private Util() {
     }
 
+    /**
+     * Default size above which a generated archive is spilled to a temporary file.
+     */
+    public static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
     /**
      * Generate a targz inputstream from source folder.
      *
@@ -46,13 +54,57 @@ public class Util {
      * @throws IOException
      */
     public static InputStream generateTarGzInputStream(File src, String pathPrefix) throws IOException {
-        File sourceDirectory = src;
+        return generateTarGzInputStream(src, pathPrefix, DEFAULT_SPILL_THRESHOLD);
+    }
 
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(500000);
+    /**
+     * Generate a targz inputstream from source folder without buffering large archives on the heap.
+     * Archives up to spillThreshold bytes are kept in memory, larger ones are streamed to a temporary
+     * file which is deleted when the returned stream is closed, so callers must always close it.
+     * Both modes produce identical bytes.
+     *
+     * @param src            Source location
+     * @param pathPrefix     prefix to add to the all files found.
+     * @param spillThreshold archive size in bytes above which it is written to a temporary file.
+     * @return return inputstream.
+     * @throws IOException
+     */
+    public static InputStream generateTarGzInputStream(File src, String pathPrefix, int spillThreshold) throws IOException {
+        DeferredFileOutputStream dfos = new DeferredFileOutputStream(spillThreshold, "chaincode", ".tar.gz", null);
+        try {
+            writeTarGz(src, pathPrefix, dfos);
+        } catch (IOException | RuntimeException e) {
+            if (dfos.getFile() != null) {
+                Files.deleteIfExists(dfos.getFile().toPath());
+            }
+            throw e;
+        }
+
+        if (dfos.isInMemory()) {
+            return new ByteArrayInputStream(dfos.getData());
+        }
+        try {
+            return Files.newInputStream(dfos.getFile().toPath(), StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(dfos.getFile().toPath());
+            throw e;
+        }
+    }
+
+    /**
+     * Write a targz archive of the source folder to the given stream. The stream is closed afterwards.
+     *
+     * @param src        Source location
+     * @param pathPrefix prefix to add to the all files found.
+     * @param out        destination of the archive.
+     * @throws IOException
+     */
+    public static void writeTarGz(File src, String pathPrefix, OutputStream out) throws IOException {
+        File sourceDirectory = src;
 
         String sourcePath = sourceDirectory.getAbsolutePath();
 
-        TarArchiveOutputStream archiveOutputStream = new TarArchiveOutputStream(new GzipCompressorOutputStream(new BufferedOutputStream(bos)));
+        TarArchiveOutputStream archiveOutputStream = new TarArchiveOutputStream(new GzipCompressorOutputStream(new BufferedOutputStream(out)));
         archiveOutputStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
 
         try {
@@ -84,8 +136,6 @@ public class Util {
         } finally {
             IOUtils.closeQuietly(archiveOutputStream);
         }
-
-        return new ByteArrayInputStream(bos.toByteArray());
     }
 
     public static File findFileSk(File directory) {
@@ -0,0 +1,43 @@
+package com.demo.fabric.vo;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分页查询结果
+ */
+@Getter
+public class PageVO<T> {
+
+    /**
+     * 当前页的数据
+     */
+    private final List<T> items;
+
+    /**
+     * 满足条件的总数
+     */
+    private final int total;
+
+    private final int offset;
+
+    private final int limit;
+
+    public PageVO(List<T> items, int total, int offset, int limit) {
+        this.items = items;
+        this.total = total;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    /**
+     * 从满足条件的全部数据中截取一页
+     */
+    public static <T> PageVO<T> of(List<T> all, int offset, int limit) {
+        int from = Math.min(Math.max(offset, 0), all.size());
+        int to = limit > 0 ? (int) Math.min(all.size(), (long) from + limit) : all.size();
+        return new PageVO<>(new ArrayList<>(all.subList(from, to)), all.size(), from, limit);
+    }
+}
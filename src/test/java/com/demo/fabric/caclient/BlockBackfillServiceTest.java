@@ -0,0 +1,106 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.BlockBackfillService;
+import com.demo.fabric.blockchain.ChannelService;
+import com.demo.fabric.blockchain.LedgerBlockStore;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.User;
+import org.hyperledger.fabric.sdk.exception.ProposalException;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 历史区块回填测试: 多 peer 并行获取、乱序完成时按顺序交出、失败时换 peer
+ */
+public class BlockBackfillServiceTest {
+
+    private static final String CHANNEL_NAME = "mychannel";
+
+    private BlockBackfillService backfillService;
+
+    private Channel channel;
+
+    private Peer peer0;
+
+    private Peer peer1;
+
+    private User user;
+
+    @Before
+    public void setUp() throws Exception {
+        user = mock(User.class);
+        peer0 = mock(Peer.class);
+        peer1 = mock(Peer.class);
+        channel = mock(Channel.class);
+        when(channel.getName()).thenReturn(CHANNEL_NAME);
+        when(channel.getPeers(EnumSet.of(Peer.PeerRole.LEDGER_QUERY))).thenReturn(Arrays.asList(peer0, peer1));
+        ChannelService channelService = mock(ChannelService.class);
+        when(channelService.getChannel(CHANNEL_NAME)).thenReturn(channel);
+
+        backfillService = new BlockBackfillService();
+        ReflectionTestUtils.setField(backfillService, "channelService", channelService);
+        ReflectionTestUtils.setField(backfillService, "ledgerBlockStore", mock(LedgerBlockStore.class));
+        ReflectionTestUtils.setField(backfillService, "perPeerConcurrency", 4);
+        ReflectionTestUtils.setField(backfillService, "window", 8);
+        ReflectionTestUtils.setField(backfillService, "attempts", 2);
+        ReflectionTestUtils.setField(backfillService, "timeout", 10000L);
+    }
+
+    @Test
+    public void emitsBlocksInOrderWhileFetchingInParallel() throws Exception {
+        Random random = new Random(1);
+        when(channel.queryBlockByNumber(any(Peer.class), anyLong(), eq(user))).thenAnswer(invocation -> {
+            Thread.sleep(random.nextInt(5));
+            return block(invocation.<Long>getArgument(1));
+        });
+        List<Long> received = new ArrayList<>();
+
+        long emitted = backfillService.backfill(CHANNEL_NAME, 0, 100, user, blockInfo -> received.add(blockInfo.getBlockNumber()));
+
+        assertEquals(100, emitted);
+        for (long i = 0; i < 100; i++) {
+            assertEquals(i, (long) received.get((int) i));
+        }
+        verify(channel, atLeastOnce()).queryBlockByNumber(eq(peer0), anyLong(), eq(user));
+        verify(channel, atLeastOnce()).queryBlockByNumber(eq(peer1), anyLong(), eq(user));
+    }
+
+    @Test
+    public void retriesFailedBlockOnNextPeer() throws Exception {
+        when(channel.queryBlockByNumber(eq(peer0), anyLong(), eq(user))).thenThrow(new ProposalException("peer0 down"));
+        when(channel.queryBlockByNumber(eq(peer1), anyLong(), eq(user)))
+                .thenAnswer(invocation -> block(invocation.<Long>getArgument(1)));
+        List<Long> received = new ArrayList<>();
+
+        backfillService.backfill(CHANNEL_NAME, 10, 20, user, blockInfo -> received.add(blockInfo.getBlockNumber()));
+
+        assertEquals(10, received.size());
+        assertEquals(10L, (long) received.get(0));
+        assertEquals(19L, (long) received.get(9));
+    }
+
+    private static BlockInfo block(long number) {
+        BlockInfo blockInfo = mock(BlockInfo.class);
+        when(blockInfo.getBlockNumber()).thenReturn(number);
+        when(blockInfo.isFiltered()).thenReturn(true);
+        return blockInfo;
+    }
+}
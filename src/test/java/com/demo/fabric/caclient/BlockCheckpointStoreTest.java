@@ -0,0 +1,125 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.BlockCheckpointStore;
+import com.demo.fabric.blockchain.ConfigBlockWaiter;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.Peer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 区块检查点测试: 取所有订阅方中最小的检查点、重启后恢复、不越过漏掉的区块, 配置区块等待忽略提交前的区块
+ */
+public class BlockCheckpointStoreTest {
+
+    private static final String CHANNEL_NAME = "mychannel";
+
+    private Path checkpointDir;
+
+    private BlockCheckpointStore checkpointStore;
+
+    @Before
+    public void setUp() throws IOException {
+        checkpointDir = Files.createTempDirectory("block-checkpoints");
+        checkpointStore = newCheckpointStore();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ReflectionTestUtils.invokeMethod(checkpointStore, "destroy");
+        Files.deleteIfExists(checkpointDir.resolve("checkpoints.properties"));
+        Files.deleteIfExists(checkpointDir);
+    }
+
+    @Test
+    public void checkpointWaitsForSlowestSubscriber() throws Exception {
+        assertEquals(-1, checkpointStore.getCheckpoint(CHANNEL_NAME, "peer0"));
+        checkpointStore.register("LedgerBlockStore");
+        checkpointStore.register("WorldStateProjection");
+
+        checkpointStore.acknowledge("LedgerBlockStore", block(5));
+        checkpointStore.acknowledge("LedgerBlockStore", block(6));
+        assertEquals(-1, checkpointStore.getCheckpoint(CHANNEL_NAME, "peer0"));
+
+        checkpointStore.acknowledge("WorldStateProjection", block(4));
+        assertEquals(4, checkpointStore.getCheckpoint(CHANNEL_NAME, "peer0"));
+        assertEquals(-1, checkpointStore.getCheckpoint(CHANNEL_NAME, "peer1"));
+
+        checkpointStore.flush();
+        ReflectionTestUtils.invokeMethod(checkpointStore, "destroy");
+        checkpointStore = newCheckpointStore();
+        checkpointStore.register("LedgerBlockStore");
+        checkpointStore.register("WorldStateProjection");
+        assertEquals(4, checkpointStore.getCheckpoint(CHANNEL_NAME, "peer0"));
+    }
+
+    @Test
+    public void checkpointStopsBeforeGap() {
+        checkpointStore.register("LedgerBlockStore");
+
+        checkpointStore.acknowledge("LedgerBlockStore", block(5));
+        checkpointStore.acknowledge("LedgerBlockStore", block(7));
+        checkpointStore.acknowledge("LedgerBlockStore", block(8));
+        assertEquals(5, checkpointStore.getCheckpoint(CHANNEL_NAME, "peer0"));
+
+        // 重复的区块不会让检查点后退
+        checkpointStore.acknowledge("LedgerBlockStore", block(3));
+        checkpointStore.acknowledge("LedgerBlockStore", block(6));
+        assertEquals(6, checkpointStore.getCheckpoint(CHANNEL_NAME, "peer0"));
+    }
+
+    @Test
+    public void configBlockWaiterIgnoresBlocksBeforeSubmit() {
+        ConfigBlockWaiter configBlockWaiter = new ConfigBlockWaiter();
+        CompletableFuture<Long> configBlock = configBlockWaiter.expect(CHANNEL_NAME, 10);
+
+        configBlockWaiter.received(configBlock(3));
+        assertFalse(configBlock.isDone());
+
+        configBlockWaiter.received(configBlock(10));
+        assertEquals(Long.valueOf(10), configBlock.join());
+    }
+
+    private BlockCheckpointStore newCheckpointStore() {
+        BlockCheckpointStore checkpointStore = new BlockCheckpointStore();
+        ReflectionTestUtils.setField(checkpointStore, "checkpointFile", checkpointDir.resolve("checkpoints.properties").toString());
+        ReflectionTestUtils.setField(checkpointStore, "flushIntervalMs", 60000L);
+        ReflectionTestUtils.invokeMethod(checkpointStore, "init");
+        return checkpointStore;
+    }
+
+    private static BlockEvent block(long blockNumber) {
+        Peer peer = mock(Peer.class);
+        when(peer.getName()).thenReturn("peer0");
+        BlockEvent blockEvent = mock(BlockEvent.class);
+        when(blockEvent.getChannelId()).thenReturn(CHANNEL_NAME);
+        when(blockEvent.getPeer()).thenReturn(peer);
+        when(blockEvent.getBlockNumber()).thenReturn(blockNumber);
+        return blockEvent;
+    }
+
+    private static BlockEvent configBlock(long blockNumber) {
+        BlockInfo.EnvelopeInfo envelopeInfo = mock(BlockInfo.EnvelopeInfo.class);
+        when(envelopeInfo.getType()).thenReturn(BlockInfo.EnvelopeType.ENVELOPE);
+        BlockEvent blockEvent = mock(BlockEvent.class);
+        when(blockEvent.getChannelId()).thenReturn(CHANNEL_NAME);
+        when(blockEvent.getBlockNumber()).thenReturn(blockNumber);
+        when(blockEvent.getEnvelopeCount()).thenReturn(1);
+        when(blockEvent.getEnvelopeInfos()).thenReturn(Collections.singletonList(envelopeInfo));
+        return blockEvent;
+    }
+}
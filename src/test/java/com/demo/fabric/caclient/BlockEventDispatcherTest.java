@@ -0,0 +1,228 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.BlockEventDispatcher;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 区块事件分发测试: 按请求量投递、保持顺序、溢出策略、BlockListener 不使用丢弃策略
+ */
+public class BlockEventDispatcherTest {
+
+    private static final String CHANNEL_NAME = "mychannel";
+
+    private static final int BUFFER_SIZE = 16;
+
+    private BlockEventDispatcher dispatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        dispatcher = new BlockEventDispatcher();
+        ReflectionTestUtils.setField(dispatcher, "bufferSize", BUFFER_SIZE);
+        ReflectionTestUtils.setField(dispatcher, "overflowPolicy", BlockEventDispatcher.OverflowPolicy.BLOCK);
+        ReflectionTestUtils.setField(dispatcher, "spillPath", Files.createTempDirectory("block-events").toString());
+        ReflectionTestUtils.setField(dispatcher, "threads", 2);
+        ReflectionTestUtils.invokeMethod(dispatcher, "init");
+    }
+
+    @After
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(dispatcher, "destroy");
+    }
+
+    @Test
+    public void deliversOnlyRequestedEventsInOrder() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(5, 20);
+        dispatcher.publisher(CHANNEL_NAME, BlockEventDispatcher.OverflowPolicy.BLOCK).subscribe(subscriber);
+        for (long i = 0; i < 10; i++) {
+            dispatcher.publish(block(i));
+        }
+        Thread.sleep(200);
+        assertEquals(5, subscriber.received.size());
+
+        subscriber.subscription.request(15);
+        for (long i = 10; i < 20; i++) {
+            dispatcher.publish(block(i));
+        }
+        assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+        assertEquals(sequence(0, 20), subscriber.received);
+    }
+
+    @Test
+    public void dropOldestKeepsNewestEvents() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(0, BUFFER_SIZE);
+        dispatcher.publisher(null, BlockEventDispatcher.OverflowPolicy.DROP_OLDEST).subscribe(subscriber);
+        for (long i = 0; i < 40; i++) {
+            dispatcher.publish(block(i));
+        }
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+        assertEquals(sequence(40 - BUFFER_SIZE, 40), subscriber.received);
+
+        Map<String, Object> statistics = dispatcher.statistics().get(0);
+        assertEquals(24L, statistics.get("dropped"));
+    }
+
+    @Test
+    public void blockListenersNeverDropBlocks() throws Exception {
+        BlockEventDispatcher listenerDispatcher = new BlockEventDispatcher();
+        ReflectionTestUtils.setField(listenerDispatcher, "bufferSize", BUFFER_SIZE);
+        ReflectionTestUtils.setField(listenerDispatcher, "overflowPolicy", BlockEventDispatcher.OverflowPolicy.DROP_OLDEST);
+        ReflectionTestUtils.setField(listenerDispatcher, "spillPath", Files.createTempDirectory("block-events").toString());
+        ReflectionTestUtils.setField(listenerDispatcher, "threads", 1);
+        ReflectionTestUtils.setField(listenerDispatcher, "blockListeners", Collections.singletonList(mock(BlockListener.class)));
+        ReflectionTestUtils.invokeMethod(listenerDispatcher, "init");
+        try {
+            assertEquals(BlockEventDispatcher.OverflowPolicy.BLOCK, listenerDispatcher.statistics().get(0).get("policy"));
+        } finally {
+            ReflectionTestUtils.invokeMethod(listenerDispatcher, "destroy");
+        }
+    }
+
+    @Test
+    public void blockPolicyLosesNothingWithSlowSubscriber() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE, 200) {
+            @Override
+            public void onNext(BlockEvent blockEvent) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.onNext(blockEvent);
+            }
+        };
+        dispatcher.publisher(CHANNEL_NAME, BlockEventDispatcher.OverflowPolicy.BLOCK).subscribe(subscriber);
+        for (long i = 0; i < 200; i++) {
+            dispatcher.publish(block(i));
+        }
+        assertTrue(subscriber.done.await(30, TimeUnit.SECONDS));
+        assertEquals(sequence(0, 200), subscriber.received);
+    }
+
+    @Test
+    public void otherChannelsAreFilteredOut() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE, 1);
+        dispatcher.publisher(CHANNEL_NAME, BlockEventDispatcher.OverflowPolicy.BLOCK).subscribe(subscriber);
+        BlockEvent other = mock(BlockEvent.class);
+        when(other.getChannelId()).thenReturn("otherchannel");
+        dispatcher.publish(other);
+        dispatcher.publish(block(7));
+        assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(7L), subscriber.received);
+    }
+
+    @Test
+    public void spillToDiskOverflowsBufferAndReplaysInOrder() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(0, 120);
+        dispatcher.publisher(CHANNEL_NAME, BlockEventDispatcher.OverflowPolicy.SPILL_TO_DISK).subscribe(subscriber);
+        // SDK 不支持重建 BlockEvent 时退化为 BLOCK 策略
+        assumeTrue(dispatcher.statistics().get(0).get("policy") == BlockEventDispatcher.OverflowPolicy.SPILL_TO_DISK);
+        for (long i = 0; i < 100; i++) {
+            dispatcher.publish(fullBlock(i));
+        }
+        Map<String, Object> statistics = dispatcher.statistics().get(0);
+        assertEquals(BUFFER_SIZE, statistics.get("buffered"));
+        assertEquals(100 - BUFFER_SIZE, statistics.get("spilledPending"));
+        assertEquals((long) (100 - BUFFER_SIZE), statistics.get("spilled"));
+
+        // 溢出文件未读完时, 新事件即使缓冲区有空间也写入磁盘, 保证顺序
+        subscriber.subscription.request(30);
+        for (long i = 100; i < 120; i++) {
+            dispatcher.publish(fullBlock(i));
+        }
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+        assertEquals(sequence(0, 120), subscriber.received);
+
+        statistics = dispatcher.statistics().get(0);
+        assertEquals(0, statistics.get("spilledPending"));
+        assertEquals(0L, statistics.get("dropped"));
+    }
+
+    /**
+     * 带完整区块的事件, 溢出到磁盘时序列化区块, 读取时重建
+     */
+    private static BlockEvent fullBlock(long number) {
+        BlockEvent blockEvent = block(number);
+        when(blockEvent.isFiltered()).thenReturn(false);
+        when(blockEvent.getBlock()).thenReturn(Common.Block.newBuilder()
+                .setHeader(Common.BlockHeader.newBuilder().setNumber(number))
+                .build());
+        return blockEvent;
+    }
+
+    private static BlockEvent block(long number) {
+        BlockEvent blockEvent = mock(BlockEvent.class);
+        when(blockEvent.getChannelId()).thenReturn(CHANNEL_NAME);
+        when(blockEvent.getBlockNumber()).thenReturn(number);
+        return blockEvent;
+    }
+
+    private static List<Long> sequence(long from, long to) {
+        List<Long> result = new ArrayList<>();
+        for (long i = from; i < to; i++) {
+            result.add(i);
+        }
+        return result;
+    }
+
+    private static class RecordingSubscriber implements Subscriber<BlockEvent> {
+
+        final List<Long> received = Collections.synchronizedList(new ArrayList<>());
+
+        final CountDownLatch done;
+
+        final long initialRequest;
+
+        volatile Subscription subscription;
+
+        RecordingSubscriber(long initialRequest, int expected) {
+            this.initialRequest = initialRequest;
+            this.done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            if (initialRequest > 0) {
+                subscription.request(initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(BlockEvent blockEvent) {
+            received.add(blockEvent.getBlockNumber());
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
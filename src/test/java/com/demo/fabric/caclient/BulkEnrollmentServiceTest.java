@@ -0,0 +1,156 @@
+package com.demo.fabric.caclient;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.demo.fabric.blockchain.ConfigService;
+import org.hyperledger.fabric.sdk.Enrollment;
+import org.hyperledger.fabric.sdk.security.CryptoSuite;
+import org.hyperledger.fabric_ca.sdk.EnrollmentRequest;
+import org.hyperledger.fabric_ca.sdk.HFCAClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 批量登记证书测试: 使用预生成的密钥对、按批写入、立即保存证书、断点继续
+ */
+public class BulkEnrollmentServiceTest {
+
+    private BulkEnrollmentService bulkEnrollmentService;
+
+    private EnrollmentKeyPool keyPool;
+
+    private EnrollmentStore enrollmentStore;
+
+    private HFCAClient ca;
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("bulk-enroll");
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        CryptoSuite cryptoSuite = mock(CryptoSuite.class);
+        when(cryptoSuite.keyGen()).thenAnswer(invocation -> generator.generateKeyPair());
+        ca = mock(HFCAClient.class);
+        when(ca.getCryptoSuite()).thenReturn(cryptoSuite);
+        when(ca.enroll(anyString(), anyString(), any(EnrollmentRequest.class))).thenAnswer(invocation -> {
+            KeyPair keyPair = invocation.<EnrollmentRequest>getArgument(2).getKeyPair();
+            assertNotNull(keyPair);
+            Enrollment enrollment = mock(Enrollment.class);
+            when(enrollment.getKey()).thenReturn(keyPair.getPrivate());
+            when(enrollment.getCert()).thenReturn("cert-" + invocation.getArgument(0));
+            return enrollment;
+        });
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getCa()).thenReturn(ca);
+
+        keyPool = new EnrollmentKeyPool();
+        ReflectionTestUtils.setField(keyPool, "configService", configService);
+        ReflectionTestUtils.setField(keyPool, "size", 8);
+        ReflectionTestUtils.setField(keyPool, "parallelism", 2);
+        ReflectionTestUtils.invokeMethod(keyPool, "init");
+
+        enrollmentStore = new EnrollmentStore();
+        ReflectionTestUtils.setField(enrollmentStore, "keystore", dir.resolve("store").toString());
+        ReflectionTestUtils.setField(enrollmentStore, "cacheSize", 16);
+
+        bulkEnrollmentService = new BulkEnrollmentService();
+        ReflectionTestUtils.setField(bulkEnrollmentService, "configService", configService);
+        ReflectionTestUtils.setField(bulkEnrollmentService, "enrollmentKeyPool", keyPool);
+        ReflectionTestUtils.setField(bulkEnrollmentService, "enrollmentStore", enrollmentStore);
+        ReflectionTestUtils.setField(bulkEnrollmentService, "parallelism", 4);
+        ReflectionTestUtils.setField(bulkEnrollmentService, "batchSize", 3);
+        ReflectionTestUtils.setField(bulkEnrollmentService, "keyWaitMs", 100L);
+    }
+
+    @After
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(keyPool, "destroy");
+        ReflectionTestUtils.invokeMethod(enrollmentStore, "destroy");
+    }
+
+    @Test
+    public void enrollsRegisteredUsersAndResumes() throws Exception {
+        Path input = dir.resolve("registrations.jsonl");
+        Files.write(input, Arrays.asList(
+                "{\"name\":\"user1\",\"organization\":\"Org1\",\"status\":\"REGISTERED\",\"secret\":\"s1\"}",
+                "{\"name\":\"user2\",\"organization\":\"Org1\",\"status\":\"REGISTERED\",\"secret\":\"s2\"}",
+                "{\"name\":\"user3\",\"organization\":\"Org1\",\"status\":\"ALREADY_REGISTERED\"}",
+                "{\"name\":\"user4\",\"organization\":\"Org1\",\"status\":\"REGISTERED\",\"secret\":\"s4\"}",
+                "{\"name\":\"user5\",\"organization\":\"Org1\",\"status\":\"REGISTERED\",\"secret\":\"s5\"}"), UTF_8);
+        Path output = dir.resolve("enrollments.jsonl");
+
+        assertEquals(4, bulkEnrollmentService.enrollAll(input, output));
+
+        List<String> lines = Files.readAllLines(output, UTF_8);
+        assertEquals(4, lines.size());
+        for (String line : lines) {
+            JSONObject result = JSON.parseObject(line);
+            assertEquals("ENROLLED", result.getString("status"));
+            // 私钥只保存在证书存储中
+            assertFalse(result.containsKey("privateKey"));
+        }
+        Map<String, Object> statistics = bulkEnrollmentService.statistics();
+        assertEquals(4L, statistics.get("enrolled"));
+        assertEquals(4, enrollmentStore.size());
+        assertEquals("cert-user5", enrollmentStore.get("Org1", "user5").getCert());
+
+        assertEquals(0, bulkEnrollmentService.enrollAll(input, output));
+    }
+
+    @Test
+    public void storesEachEnrollmentBeforeBatchIsWritten() throws Exception {
+        ReflectionTestUtils.setField(bulkEnrollmentService, "parallelism", 1);
+        ReflectionTestUtils.setField(bulkEnrollmentService, "batchSize", 100);
+        Path input = dir.resolve("registrations.jsonl");
+        Files.write(input, Arrays.asList(
+                "{\"name\":\"user0\",\"organization\":\"Org1\",\"status\":\"REGISTERED\",\"secret\":\"s0\"}",
+                "{\"name\":\"user1\",\"organization\":\"Org1\",\"status\":\"REGISTERED\",\"secret\":\"s1\"}",
+                "{\"name\":\"user2\",\"organization\":\"Org1\",\"status\":\"REGISTERED\",\"secret\":\"s2\"}"), UTF_8);
+        Path output = dir.resolve("enrollments.jsonl");
+        // user0 已在证书存储中(上次运行的最后一批没有写入结果文件), 不再登记
+        enrollmentStore.put("Org1", "user0", enrollment("cert-user0", keyPool.take(100)));
+        doAnswer(invocation -> {
+            // 结果文件还没有写入时, 之前登记的用户已经在证书存储中
+            assertTrue(enrollmentStore.contains("Org1", "user1"));
+            assertFalse(Files.exists(output) && Files.size(output) > 0);
+            return enrollment("cert-user2", invocation.<EnrollmentRequest>getArgument(2).getKeyPair());
+        }).when(ca).enroll(eq("user2"), anyString(), any(EnrollmentRequest.class));
+
+        assertEquals(2, bulkEnrollmentService.enrollAll(input, output));
+
+        assertEquals("cert-user2", enrollmentStore.get("Org1", "user2").getCert());
+        assertEquals(2, Files.readAllLines(output, UTF_8).size());
+    }
+
+    private static Enrollment enrollment(String cert, KeyPair keyPair) {
+        Enrollment enrollment = mock(Enrollment.class);
+        when(enrollment.getKey()).thenReturn(keyPair.getPrivate());
+        when(enrollment.getCert()).thenReturn(cert);
+        return enrollment;
+    }
+}
@@ -0,0 +1,137 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.ConfigService;
+import com.demo.fabric.vo.UserVO;
+import org.hyperledger.fabric.sdk.NetworkConfig;
+import org.hyperledger.fabric.sdk.User;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 批量注册测试: CSV/JSON 读取、重试、已注册、断点继续、无效记录
+ */
+public class BulkRegistrationServiceTest {
+
+    private BulkRegistrationService bulkRegistrationService;
+
+    private IdentityService identityService;
+
+    private NetworkConfig networkConfig;
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("bulk-register");
+        identityService = mock(IdentityService.class);
+        networkConfig = mock(NetworkConfig.class);
+        when(networkConfig.getPeerAdmin("Org1")).thenReturn(mock(NetworkConfig.UserInfo.class));
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getBlockchainConfig()).thenReturn(networkConfig);
+
+        bulkRegistrationService = new BulkRegistrationService();
+        ReflectionTestUtils.setField(bulkRegistrationService, "identityService", identityService);
+        ReflectionTestUtils.setField(bulkRegistrationService, "configService", configService);
+        ReflectionTestUtils.setField(bulkRegistrationService, "parallelism", 4);
+        ReflectionTestUtils.setField(bulkRegistrationService, "ratePerSecond", 1000.0);
+        ReflectionTestUtils.setField(bulkRegistrationService, "retries", 2);
+        ReflectionTestUtils.setField(bulkRegistrationService, "backoffMs", 1L);
+    }
+
+    @Test
+    public void registersCsvWithRetriesAndResumes() throws Exception {
+        Path input = dir.resolve("users.csv");
+        Files.write(input, Arrays.asList(
+                "name,organization,affiliation,enrollmentSecret,attributes",
+                "user1,Org1,org1.department1,,\"role=a;team=b,c\"",
+                "user2,Org1,org1.department1,secret2,",
+                "user3,Org1,org1.department1,,",
+                "user4,Org1,org1.department1,,"), UTF_8);
+        AtomicInteger user2Calls = new AtomicInteger();
+        when(identityService.register(any(UserVO.class), any(User.class))).thenAnswer(invocation -> {
+            UserVO userVO = invocation.getArgument(0);
+            switch (userVO.getName()) {
+                case "user2":
+                    if (user2Calls.incrementAndGet() == 1) {
+                        throw new IOException("connection reset");
+                    }
+                    return userVO.getEnrollmentSecret();
+                case "user3":
+                    throw new Exception("Identity 'user3' is already registered");
+                case "user4":
+                    throw new Exception("Authorization failure");
+                default:
+                    assertEquals(2, userVO.getAttributes().size());
+                    assertEquals("b,c", userVO.getAttributes().get(1).getValue());
+                    return "generated";
+            }
+        });
+        Path output = dir.resolve("results.jsonl");
+
+        BulkRegistrationReport report = bulkRegistrationService.registerAll(input, output);
+
+        assertEquals(2, report.getRegistered());
+        assertEquals(1, report.getAlreadyRegistered());
+        assertEquals(1, report.getFailed());
+        List<String> lines = Files.readAllLines(output, UTF_8);
+        assertEquals(4, lines.size());
+        assertTrue(lines.stream().anyMatch(line -> line.contains("\"user2\"") && line.contains("secret2")));
+
+        report = bulkRegistrationService.registerAll(input, output);
+
+        assertEquals(3, report.getSkipped());
+        assertEquals(1, report.getFailed());
+        verify(networkConfig, times(2)).getPeerAdmin("Org1");
+    }
+
+    @Test
+    public void recordsInvalidRecordsAsFailed() throws Exception {
+        Path input = dir.resolve("invalid.csv");
+        Files.write(input, Arrays.asList(
+                "name,organization,affiliation,maxEnrollments",
+                "user1,,org1.department1,",
+                "user2,Org1,org1.department1,many",
+                "user3,Org1,org1.department1,2"), UTF_8);
+        when(identityService.register(any(UserVO.class), any(User.class))).thenReturn("secret");
+        Path output = dir.resolve("invalid-results.jsonl");
+
+        BulkRegistrationReport report = bulkRegistrationService.registerAll(input, output);
+
+        assertEquals(1, report.getRegistered());
+        assertEquals(2, report.getFailed());
+        List<String> lines = Files.readAllLines(output, UTF_8);
+        assertEquals(3, lines.size());
+        assertTrue(lines.stream().anyMatch(line -> line.contains("\"record\":1") && line.contains("FAILED")));
+        assertTrue(lines.stream().anyMatch(line -> line.contains("\"record\":2") && line.contains("FAILED")));
+    }
+
+    @Test
+    public void readsJsonArray() throws Exception {
+        Path input = dir.resolve("users.json");
+        Files.write(input, ("[{\"name\":\"user1\",\"organization\":\"Org1\",\"affiliation\":\"org1\","
+                + "\"attributes\":[{\"name\":\"role\",\"value\":\"a\",\"ecert\":true}]},"
+                + "{\"name\":\"user2\",\"organization\":\"Org1\",\"affiliation\":\"org1\"}]").getBytes(UTF_8));
+        when(identityService.register(any(UserVO.class), any(User.class))).thenReturn("secret");
+
+        BulkRegistrationReport report = bulkRegistrationService.registerAll(input, dir.resolve("json-results.jsonl"));
+
+        assertEquals(2, report.getRegistered());
+    }
+}
@@ -0,0 +1,145 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.ConfigService;
+import com.demo.fabric.vo.PageVO;
+import org.hyperledger.fabric.sdk.NetworkConfig;
+import org.hyperledger.fabric.sdk.User;
+import org.hyperledger.fabric_ca.sdk.Attribute;
+import org.hyperledger.fabric_ca.sdk.HFCAAffiliation;
+import org.hyperledger.fabric_ca.sdk.HFCAClient;
+import org.hyperledger.fabric_ca.sdk.HFCAIdentity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * CA 身份和从属关系缓存测试: 缓存命中、修改后失效、分页过滤
+ */
+public class CaDirectoryCacheTest {
+
+    private CaDirectoryCache caDirectoryCache;
+
+    private IdentityService identityService;
+
+    private AffiliationService affiliationService;
+
+    private HFCAClient ca;
+
+    @Before
+    public void setUp() throws Exception {
+        ca = mock(HFCAClient.class);
+        NetworkConfig networkConfig = mock(NetworkConfig.class);
+        when(networkConfig.getPeerAdmin("Org1")).thenReturn(mock(NetworkConfig.UserInfo.class));
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getCa()).thenReturn(ca);
+        when(configService.getBlockchainConfig()).thenReturn(networkConfig);
+        when(ca.getHFCAIdentities(any(User.class))).thenReturn(Arrays.asList(
+                identity("user3", "user", "org1.department2", new Attribute("role", "auditor")),
+                identity("peer1", "peer", "org1", null),
+                identity("user1", "user", "org1.department1", new Attribute("role", "admin")),
+                identity("user2", "user", "org1.department1.team1", new Attribute("role", "auditor"))));
+        HFCAAffiliation root = affiliation("", affiliation("org1",
+                affiliation("org1.department1", affiliation("org1.department1.team1")),
+                affiliation("org1.department2")), affiliation("org2"));
+        when(ca.getHFCAAffiliations(any(User.class))).thenReturn(root);
+
+        caDirectoryCache = new CaDirectoryCache();
+        ReflectionTestUtils.setField(caDirectoryCache, "configService", configService);
+        ReflectionTestUtils.setField(caDirectoryCache, "refreshSeconds", 60L);
+        ReflectionTestUtils.setField(caDirectoryCache, "expireSeconds", 600L);
+        ReflectionTestUtils.invokeMethod(caDirectoryCache, "init");
+
+        identityService = new IdentityService();
+        ReflectionTestUtils.setField(identityService, "configService", configService);
+        ReflectionTestUtils.setField(identityService, "caDirectoryCache", caDirectoryCache);
+        affiliationService = new AffiliationService();
+        ReflectionTestUtils.setField(affiliationService, "configService", configService);
+        ReflectionTestUtils.setField(affiliationService, "caDirectoryCache", caDirectoryCache);
+    }
+
+    @After
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(caDirectoryCache, "destroy");
+    }
+
+    @Test
+    public void servesIdentitiesFromCacheUntilChanged() throws Exception {
+        assertEquals(4, identityService.queryAllIdentity("Org1").size());
+        assertEquals(4, identityService.queryAllIdentity("Org1").size());
+        verify(ca, times(1)).getHFCAIdentities(any(User.class));
+
+        HFCAIdentity deleted = mock(HFCAIdentity.class);
+        when(ca.newHFCAIdentity("user1")).thenReturn(deleted);
+        identityService.deleteIdentity("Org1", "user1");
+        identityService.queryAllIdentity("Org1");
+
+        verify(deleted).delete(any(User.class));
+        verify(ca, times(2)).getHFCAIdentities(any(User.class));
+    }
+
+    @Test
+    public void pagesAndFiltersIdentities() throws Exception {
+        PageVO<HFCAIdentity> page = identityService.queryIdentities("Org1", "user", null, null, null, 1, 1);
+        assertEquals(3, page.getTotal());
+        assertEquals("user2", page.getItems().get(0).getEnrollmentId());
+
+        page = identityService.queryIdentities("Org1", null, "org1.department1", null, null, 0, 10);
+        assertEquals(Arrays.asList("user1", "user2"), enrollmentIds(page.getItems()));
+
+        page = identityService.queryIdentities("Org1", null, null, "role", "auditor", 0, 0);
+        assertEquals(Arrays.asList("user2", "user3"), enrollmentIds(page.getItems()));
+
+        // offset + limit 超出 int 范围时不溢出
+        page = identityService.queryIdentities("Org1", "user", null, null, null, 1, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("user2", "user3"), enrollmentIds(page.getItems()));
+    }
+
+    @Test
+    public void pagesAffiliationsAndInvalidatesOnChange() throws Exception {
+        PageVO<HFCAAffiliation> page = affiliationService.queryAffiliations("Org1", "org1.department1", 0, 10);
+        assertEquals(2, page.getTotal());
+        assertEquals(5, affiliationService.queryAffiliations("Org1", null, 0, 0).getTotal());
+
+        when(ca.newHFCAAffiliation("org1.department3")).thenReturn(mock(HFCAAffiliation.class));
+        affiliationService.createAffiliation("Org1", "org1.department3");
+        affiliationService.queryAffiliation("Org1");
+
+        verify(ca, times(2)).getHFCAAffiliations(any(User.class));
+    }
+
+    private static HFCAIdentity identity(String enrollmentId, String type, String affiliation, Attribute attribute) {
+        HFCAIdentity identity = mock(HFCAIdentity.class);
+        when(identity.getEnrollmentId()).thenReturn(enrollmentId);
+        when(identity.getType()).thenReturn(type);
+        when(identity.getAffiliation()).thenReturn(affiliation);
+        when(identity.getAttributes()).thenReturn(attribute == null
+                ? Collections.emptyList() : Collections.singletonList(attribute));
+        return identity;
+    }
+
+    private static HFCAAffiliation affiliation(String name, HFCAAffiliation... children) {
+        HFCAAffiliation affiliation = mock(HFCAAffiliation.class);
+        when(affiliation.getName()).thenReturn(name);
+        when(affiliation.getChildren()).thenReturn(Arrays.asList(children));
+        return affiliation;
+    }
+
+    private static List<String> enrollmentIds(List<HFCAIdentity> identities) {
+        List<String> result = new ArrayList<>();
+        identities.forEach(identity -> result.add(identity.getEnrollmentId()));
+        return result;
+    }
+}
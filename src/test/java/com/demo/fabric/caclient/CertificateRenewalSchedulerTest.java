@@ -0,0 +1,176 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.ConfigService;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.hyperledger.fabric.sdk.Enrollment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 证书续期测试: 只续期窗口内到期的证书, 续期后按新证书重新排队, 失败后重试, 已过期的证书不再重试, 启动时从索引读取到期时间
+ */
+public class CertificateRenewalSchedulerTest {
+
+    private CertificateRenewalScheduler scheduler;
+
+    private EnrollmentStore enrollmentStore;
+
+    private CertService certService;
+
+    private KeyPairGenerator generator;
+
+    private Path keystore;
+
+    @Before
+    public void setUp() throws Exception {
+        generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        enrollmentStore = new EnrollmentStore();
+        keystore = Files.createTempDirectory("renewal");
+        ReflectionTestUtils.setField(enrollmentStore, "keystore", keystore.toString());
+        ReflectionTestUtils.setField(enrollmentStore, "cacheSize", 16);
+        certService = mock(CertService.class);
+
+        scheduler = new CertificateRenewalScheduler();
+        ReflectionTestUtils.setField(scheduler, "certService", certService);
+        ReflectionTestUtils.setField(scheduler, "enrollmentStore", enrollmentStore);
+        ReflectionTestUtils.setField(scheduler, "enabled", true);
+        ReflectionTestUtils.setField(scheduler, "renewBeforeHours", 72L);
+        ReflectionTestUtils.setField(scheduler, "checkIntervalMs", TimeUnit.HOURS.toMillis(1));
+        ReflectionTestUtils.setField(scheduler, "batchSize", 2);
+        ReflectionTestUtils.setField(scheduler, "parallelism", 2);
+        ReflectionTestUtils.setField(scheduler, "ratePerSecond", 1000.0);
+        ReflectionTestUtils.setField(scheduler, "retryDelayMs", 1L);
+        ReflectionTestUtils.invokeMethod(scheduler, "init");
+    }
+
+    @After
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(scheduler, "destroy");
+        ReflectionTestUtils.invokeMethod(enrollmentStore, "destroy");
+    }
+
+    @Test
+    public void renewsCertificatesExpiringWithinWindow() throws Exception {
+        when(certService.reenroll(anyString(), anyString(), any(Enrollment.class))).thenAnswer(invocation -> {
+            Enrollment renewed = enrollment(TimeUnit.DAYS.toMillis(365));
+            enrollmentStore.put(invocation.getArgument(0), invocation.getArgument(1), renewed);
+            return renewed;
+        });
+        for (int i = 1; i <= 3; i++) {
+            enrollmentStore.put("Org1", "user" + i, enrollment(TimeUnit.HOURS.toMillis(1)));
+        }
+        enrollmentStore.put("Org1", "user4", enrollment(TimeUnit.DAYS.toMillis(30)));
+        String oldCert = enrollmentStore.get("Org1", "user1").getCert();
+
+        ReflectionTestUtils.invokeMethod(scheduler, "renewDue");
+
+        verify(certService, times(3)).reenroll(eq("Org1"), anyString(), any(Enrollment.class));
+        verify(certService, never()).reenroll(eq("Org1"), eq("user4"), any(Enrollment.class));
+        assertNotEquals(oldCert, enrollmentStore.get("Org1", "user1").getCert());
+        assertEquals(3L, scheduler.statistics().get("renewed"));
+        assertEquals(4, scheduler.statistics().get("tracked"));
+
+        ReflectionTestUtils.invokeMethod(scheduler, "renewDue");
+
+        verify(certService, times(3)).reenroll(anyString(), anyString(), any(Enrollment.class));
+    }
+
+    @Test
+    public void retriesFailedRenewal() throws Exception {
+        when(certService.reenroll(anyString(), anyString(), any(Enrollment.class)))
+                .thenThrow(new Exception("CA unavailable"))
+                .thenAnswer(invocation -> {
+                    Enrollment renewed = enrollment(TimeUnit.DAYS.toMillis(365));
+                    enrollmentStore.put(invocation.getArgument(0), invocation.getArgument(1), renewed);
+                    return renewed;
+                });
+        enrollmentStore.put("Org1", "user1", enrollment(TimeUnit.HOURS.toMillis(1)));
+
+        ReflectionTestUtils.invokeMethod(scheduler, "renewDue");
+        assertEquals(1L, scheduler.statistics().get("failed"));
+        Thread.sleep(10);
+        ReflectionTestUtils.invokeMethod(scheduler, "renewDue");
+
+        verify(certService, times(2)).reenroll(anyString(), anyString(), any(Enrollment.class));
+        assertEquals(1L, scheduler.statistics().get("failed"));
+        assertEquals(1L, scheduler.statistics().get("renewed"));
+    }
+
+    @Test
+    public void givesUpOnExpiredCertificate() throws Exception {
+        when(certService.reenroll(anyString(), anyString(), any(Enrollment.class))).thenThrow(new Exception("certificate expired"));
+        enrollmentStore.put("Org1", "user1", enrollment(-1000));
+
+        ReflectionTestUtils.invokeMethod(scheduler, "renewDue");
+        Thread.sleep(10);
+        ReflectionTestUtils.invokeMethod(scheduler, "renewDue");
+
+        verify(certService, times(1)).reenroll(anyString(), anyString(), any(Enrollment.class));
+        Map<String, Object> statistics = scheduler.statistics();
+        assertEquals(1L, statistics.get("failed"));
+        assertEquals(0, statistics.get("tracked"));
+        assertEquals(Collections.singleton("Org1/user1"), statistics.get("expired"));
+    }
+
+    @Test
+    public void loadsExpiryWithoutReadingCredentials() throws Exception {
+        enrollmentStore.put("Org1", "user1", enrollment(TimeUnit.HOURS.toMillis(1)));
+        enrollmentStore.put("Org1", "user2", enrollment(TimeUnit.DAYS.toMillis(30)));
+        ReflectionTestUtils.invokeMethod(enrollmentStore, "destroy");
+        EnrollmentStore reopened = new EnrollmentStore();
+        ReflectionTestUtils.setField(reopened, "keystore", keystore.toString());
+        ReflectionTestUtils.setField(reopened, "cacheSize", 16);
+        enrollmentStore = spy(reopened);
+        CertificateRenewalScheduler restarted = new CertificateRenewalScheduler();
+        ReflectionTestUtils.setField(restarted, "enrollmentStore", enrollmentStore);
+        ReflectionTestUtils.setField(restarted, "renewBeforeHours", 72L);
+
+        ReflectionTestUtils.invokeMethod(restarted, "load");
+
+        assertEquals(2, restarted.statistics().get("tracked"));
+        verify(enrollmentStore, never()).get(anyString(), anyString());
+    }
+
+    private Enrollment enrollment(long validForMs) throws Exception {
+        KeyPair keyPair = generator.generateKeyPair();
+        long now = System.currentTimeMillis();
+        X500Name subject = new X500Name("CN=user");
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(subject, BigInteger.valueOf(now),
+                new Date(now - 60000), new Date(now + validForMs), subject, keyPair.getPublic());
+        StringWriter pem = new StringWriter();
+        try (JcaPEMWriter writer = new JcaPEMWriter(pem)) {
+            writer.writeObject(builder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(keyPair.getPrivate())));
+        }
+        return new ConfigService.SampleStoreEnrollement(keyPair.getPrivate(), pem.toString());
+    }
+}
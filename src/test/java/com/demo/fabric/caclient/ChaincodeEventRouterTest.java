@@ -0,0 +1,102 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.chaincode.ChaincodeEventRouter;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.ChaincodeEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 智能合约事件路由测试: 精确索引、通配、正则回退、取消订阅
+ */
+public class ChaincodeEventRouterTest {
+
+    private static final String CHANNEL_NAME = "mychannel";
+
+    private ChaincodeEventRouter router;
+
+    private List<String> received;
+
+    @Before
+    public void setUp() {
+        router = new ChaincodeEventRouter();
+        received = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @Test
+    public void routesByExactWildcardAndRegexSubscriptions() {
+        router.subscribe(CHANNEL_NAME, "mycc", "transfer", record("exact"));
+        router.subscribe(null, Pattern.compile(".*"), Pattern.compile(Pattern.quote("transfer")), record("anyChaincode"));
+        router.subscribe(CHANNEL_NAME, Pattern.compile("my.*"), Pattern.compile("trans(fer|mit)"), record("regex"));
+        router.subscribe("otherchannel", "mycc", "transfer", record("otherChannel"));
+        router.subscribe(CHANNEL_NAME, "mycc", "mint", record("otherEvent"));
+
+        router.received(block(event("mycc", "transfer", "hello")));
+
+        assertEquals(Arrays.asList("exact:hello", "anyChaincode:hello", "regex:hello"), received);
+    }
+
+    @Test
+    public void unsubscribeStopsDelivery() {
+        String handle = router.subscribe(CHANNEL_NAME, "mycc", "transfer", record("exact"));
+        assertTrue(router.unsubscribe(handle));
+
+        router.received(block(event("mycc", "transfer", "hello")));
+
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    public void payloadViewsAreIndependentAndReadOnly() {
+        List<ByteBuffer> payloads = new ArrayList<>();
+        router.subscribe(CHANNEL_NAME, "mycc", "transfer", event -> payloads.add(event.getPayload()));
+        router.subscribe(CHANNEL_NAME, "mycc", "transfer", event -> payloads.add(event.getPayload()));
+
+        router.received(block(event("mycc", "transfer", "hello")));
+
+        assertEquals(2, payloads.size());
+        payloads.get(0).get();
+        assertEquals(5, payloads.get(1).remaining());
+        assertTrue(payloads.get(1).isReadOnly());
+    }
+
+    private ChaincodeEventRouter.Handler record(String name) {
+        return event -> received.add(name + ":" + UTF_8.decode(event.getPayload()));
+    }
+
+    private static ChaincodeEvent event(String chaincodeId, String eventName, String payload) {
+        ChaincodeEvent chaincodeEvent = mock(ChaincodeEvent.class);
+        when(chaincodeEvent.getChaincodeId()).thenReturn(chaincodeId);
+        when(chaincodeEvent.getEventName()).thenReturn(eventName);
+        when(chaincodeEvent.getTxId()).thenReturn("tx1");
+        when(chaincodeEvent.getPayload()).thenReturn(payload.getBytes(UTF_8));
+        return chaincodeEvent;
+    }
+
+    private static BlockEvent block(ChaincodeEvent chaincodeEvent) {
+        BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo actionInfo = mock(BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo.class);
+        when(actionInfo.getEvent()).thenReturn(chaincodeEvent);
+        BlockEvent.TransactionEvent transactionEvent = mock(BlockEvent.TransactionEvent.class);
+        when(transactionEvent.isValid()).thenReturn(true);
+        when(transactionEvent.getTransactionActionInfos()).thenReturn(Collections.singletonList(actionInfo));
+        BlockEvent blockEvent = mock(BlockEvent.class);
+        when(blockEvent.getChannelId()).thenReturn(CHANNEL_NAME);
+        when(blockEvent.getBlockNumber()).thenReturn(1L);
+        when(blockEvent.getTransactionEvents()).thenReturn(Collections.singletonList(transactionEvent));
+        return blockEvent;
+    }
+}
@@ -0,0 +1,176 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.ChannelService;
+import com.demo.fabric.blockchain.ConfigService;
+import com.demo.fabric.chaincode.ChaincodeService;
+import com.demo.fabric.chaincode.LatencyAwarePeerSelector;
+import com.demo.fabric.chaincode.LatencyWindow;
+import com.demo.fabric.chaincode.QueryCache;
+import com.google.protobuf.ByteString;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
+import org.hyperledger.fabric.sdk.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.*;
+
+/**
+ * 对冲查询测试: 慢 peer 超过百分位耗时后发出对冲请求, 落后的请求被取消且不计入 peer 的耗时统计; 没有耗时样本时不对冲
+ */
+public class ChaincodeHedgedQueryTest {
+
+    private static final String CHANNEL_NAME = "mychannel";
+
+    private static final ChaincodeID CHAINCODE_ID = ChaincodeID.newBuilder().setName("mycc").setVersion("v1").setPath("mycc").build();
+
+    private ChaincodeService chaincodeService;
+
+    private LatencyAwarePeerSelector peerSelector;
+
+    private Channel channel;
+
+    private Peer slow;
+
+    private Peer fast;
+
+    private final CountDownLatch slowInterrupted = new CountDownLatch(1);
+
+    private final CountDownLatch releaseSlow = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        slow = peer("slow");
+        fast = peer("fast");
+        HFClient client = mock(HFClient.class);
+        channel = mock(Channel.class);
+        when(channel.getName()).thenReturn(CHANNEL_NAME);
+        when(channel.getPeers(any())).thenReturn(Arrays.asList(slow, fast));
+        when(client.newQueryProposalRequest())
+                .thenAnswer(invocation -> mock(QueryByChaincodeRequest.class, CALLS_REAL_METHODS));
+        when(client.getUserContext()).thenReturn(mock(User.class));
+        // 模拟 peer: slow 一直阻塞到被中断或被放行, 中断时与 SDK 一样返回失败响应; fast 立即返回
+        when(channel.queryByChaincode(any(QueryByChaincodeRequest.class), anyCollection())).thenAnswer(invocation -> {
+            Collection<Peer> peers = invocation.getArgument(1);
+            Peer peer = peers.iterator().next();
+            if (peer == slow) {
+                try {
+                    releaseSlow.await();
+                } catch (InterruptedException e) {
+                    slowInterrupted.countDown();
+                    return Collections.singletonList(response(slow, ChaincodeResponse.Status.FAILURE, ""));
+                }
+            }
+            return Collections.singletonList(response(peer, ChaincodeResponse.Status.SUCCESS, peer.getName()));
+        });
+
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getClient()).thenReturn(client);
+        ChannelService channelService = mock(ChannelService.class);
+        when(channelService.getChannel(CHANNEL_NAME)).thenReturn(channel);
+        peerSelector = new LatencyAwarePeerSelector();
+        ReflectionTestUtils.setField(peerSelector, "alpha", 0.5);
+        ReflectionTestUtils.setField(peerSelector, "failurePenaltyMs", 5000L);
+        // slow 的历史耗时更低, 首个请求发给 slow
+        respond(slow, 1);
+        respond(fast, 2);
+        QueryCache queryCache = new QueryCache();
+        ReflectionTestUtils.invokeMethod(queryCache, "init");
+
+        chaincodeService = new ChaincodeService();
+        ReflectionTestUtils.setField(chaincodeService, "configService", configService);
+        ReflectionTestUtils.setField(chaincodeService, "channelService", channelService);
+        ReflectionTestUtils.setField(chaincodeService, "peerSelector", peerSelector);
+        ReflectionTestUtils.setField(chaincodeService, "queryCache", queryCache);
+        ReflectionTestUtils.setField(chaincodeService, "invokeThreads", 1);
+        ReflectionTestUtils.setField(chaincodeService, "installParallelism", 1);
+        ReflectionTestUtils.setField(chaincodeService, "queryThreads", 4);
+        ReflectionTestUtils.setField(chaincodeService, "queryTimeout", 10000L);
+        ReflectionTestUtils.setField(chaincodeService, "hedgePercentile", 0.95);
+        ReflectionTestUtils.setField(chaincodeService, "hedgeMinDelayMs", 20L);
+        ReflectionTestUtils.invokeMethod(chaincodeService, "init");
+    }
+
+    @After
+    public void tearDown() {
+        releaseSlow.countDown();
+        ReflectionTestUtils.invokeMethod(chaincodeService, "destroy");
+    }
+
+    @Test
+    public void hedgeCancelsLoserWithoutPenalty() throws Exception {
+        LatencyWindow queryLatency = (LatencyWindow) ReflectionTestUtils.getField(chaincodeService, "queryLatency");
+        queryLatency.record(TimeUnit.MILLISECONDS.toNanos(1));
+
+        assertEquals("fast", query("hedged").get(5, TimeUnit.SECONDS));
+
+        verify(channel, times(2)).queryByChaincode(any(QueryByChaincodeRequest.class), anyCollection());
+        assertTrue(slowInterrupted.await(5, TimeUnit.SECONDS));
+        awaitInFlight("slow", 0);
+        assertEquals(0, peerSelector.getInFlight("fast"));
+        // 落后的请求被取消, 不按失败惩罚
+        assertEquals(1.0, peerSelector.getEwmaMillis("slow"), 1e-9);
+        assertTrue(peerSelector.getEwmaMillis("fast") < 5000);
+    }
+
+    @Test
+    public void noHedgeWithoutLatencySamples() throws Exception {
+        CompletableFuture<String> result = query("cold");
+
+        Thread.sleep(200);
+        assertFalse(result.isDone());
+        verify(channel, times(1)).queryByChaincode(any(QueryByChaincodeRequest.class), anyCollection());
+
+        releaseSlow.countDown();
+        assertEquals("slow", result.get(5, TimeUnit.SECONDS));
+        verify(channel, times(1)).queryByChaincode(any(QueryByChaincodeRequest.class), anyCollection());
+    }
+
+    private CompletableFuture<String> query(String arg) {
+        return chaincodeService.queryByChaincodeAsync(CHAINCODE_ID, CHANNEL_NAME, "query", new String[]{arg}, mock(User.class));
+    }
+
+    /**
+     * 落后请求的统计在被中断的查询线程中更新, 等待其执行
+     */
+    private void awaitInFlight(String peerName, int expected) throws InterruptedException {
+        for (int i = 0; i < 100 && peerSelector.getInFlight(peerName) != expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, peerSelector.getInFlight(peerName));
+    }
+
+    private void respond(Peer peer, long millis) {
+        peerSelector.onSend(peer);
+        peerSelector.onResponse(peer, TimeUnit.MILLISECONDS.toNanos(millis), true);
+    }
+
+    private static Peer peer(String name) {
+        Peer peer = mock(Peer.class);
+        when(peer.getName()).thenReturn(name);
+        return peer;
+    }
+
+    private static ProposalResponse response(Peer peer, ChaincodeResponse.Status status, String payload) {
+        ProposalResponse response = mock(ProposalResponse.class);
+        when(response.getStatus()).thenReturn(status);
+        when(response.getPeer()).thenReturn(peer);
+        when(response.getProposalResponse()).thenReturn(FabricProposalResponse.ProposalResponse.newBuilder()
+                .setResponse(FabricProposalResponse.Response.newBuilder()
+                        .setStatus(200)
+                        .setPayload(ByteString.copyFromUtf8(payload)))
+                .build());
+        return response;
+    }
+}
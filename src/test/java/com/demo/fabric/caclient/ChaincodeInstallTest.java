@@ -0,0 +1,180 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.ChannelService;
+import com.demo.fabric.blockchain.ConfigService;
+import com.demo.fabric.chaincode.ChaincodePackageCache;
+import com.demo.fabric.chaincode.ChaincodeService;
+import com.demo.fabric.chaincode.InstallReport;
+import org.hyperledger.fabric.protos.peer.Query;
+import org.hyperledger.fabric.sdk.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 智能合约安装测试: 成功比例、单个 peer 重试、已安装识别、超时取消后不重复上报
+ */
+public class ChaincodeInstallTest {
+
+    private static final String CHANNEL_NAME = "mychannel";
+
+    private ChaincodeService chaincodeService;
+
+    private HFClient client;
+
+    private List<Peer> peers;
+
+    /**
+     * peer 名称 -> 该 peer 依次返回的安装结果, 用完后重复最后一个
+     */
+    private final Map<String, List<Object>> behaviours = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        client = mock(HFClient.class);
+        Channel channel = mock(Channel.class);
+        peers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Peer peer = mock(Peer.class);
+            when(peer.getName()).thenReturn("peer" + i);
+            peers.add(peer);
+        }
+        when(channel.getPeers(any())).thenReturn(peers);
+        when(client.newInstallProposalRequest()).thenAnswer(invocation -> mock(InstallProposalRequest.class));
+        when(client.queryInstalledChaincodes(any(Peer.class))).thenReturn(Collections.emptyList());
+        when(client.sendInstallProposal(any(InstallProposalRequest.class), anyCollection())).thenAnswer(invocation -> {
+            Collection<Peer> targets = invocation.getArgument(1);
+            Peer peer = targets.iterator().next();
+            List<Object> behaviour = behaviours.getOrDefault(peer.getName(), Collections.singletonList(ChaincodeResponse.Status.SUCCESS));
+            int attempt = attempts.computeIfAbsent(peer.getName(), name -> new AtomicInteger()).getAndIncrement();
+            Object next = behaviour.get(Math.min(attempt, behaviour.size() - 1));
+            if (next instanceof CountDownLatch) {
+                ((CountDownLatch) next).await();
+                next = ChaincodeResponse.Status.SUCCESS;
+            }
+            if (next instanceof Exception) {
+                throw (Exception) next;
+            }
+            ProposalResponse response = mock(ProposalResponse.class);
+            when(response.getStatus()).thenReturn((ChaincodeResponse.Status) next);
+            when(response.getMessage()).thenReturn(next == ChaincodeResponse.Status.SUCCESS ? null : "install rejected");
+            return Collections.singletonList(response);
+        });
+
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getClient()).thenReturn(client);
+        ChannelService channelService = mock(ChannelService.class);
+        when(channelService.getChannel(CHANNEL_NAME)).thenReturn(channel);
+        ChaincodePackageCache packageCache = mock(ChaincodePackageCache.class);
+        when(packageCache.open(any(File.class), anyString())).thenAnswer(invocation -> new ByteArrayInputStream(new byte[16]));
+
+        chaincodeService = new ChaincodeService();
+        ReflectionTestUtils.setField(chaincodeService, "configService", configService);
+        ReflectionTestUtils.setField(chaincodeService, "channelService", channelService);
+        ReflectionTestUtils.setField(chaincodeService, "chaincodePackageCache", packageCache);
+        ReflectionTestUtils.setField(chaincodeService, "maxInFlight", 16);
+        ReflectionTestUtils.setField(chaincodeService, "invokeThreads", 1);
+        ReflectionTestUtils.setField(chaincodeService, "queryThreads", 1);
+        ReflectionTestUtils.setField(chaincodeService, "installParallelism", 3);
+        ReflectionTestUtils.setField(chaincodeService, "installRetries", 2);
+        ReflectionTestUtils.setField(chaincodeService, "installBackoffMs", 1L);
+        ReflectionTestUtils.setField(chaincodeService, "installProposalWaitTime", 1000L);
+        ReflectionTestUtils.setField(chaincodeService, "installTimeout", 10000L);
+        ReflectionTestUtils.setField(chaincodeService, "installQuorum", 0.6);
+        ReflectionTestUtils.invokeMethod(chaincodeService, "init");
+    }
+
+    @After
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(chaincodeService, "destroy");
+    }
+
+    @Test
+    public void reachesQuorumWhenOnePeerKeepsFailing() throws Exception {
+        behaviours.put("peer2", Collections.singletonList(ChaincodeResponse.Status.FAILURE));
+
+        InstallReport report = install();
+
+        assertTrue(report.isQuorumReached());
+        assertEquals(2, report.getSucceeded());
+        InstallReport.PeerResult failed = report.getPeerResults().get("peer2");
+        assertEquals(InstallReport.Status.FAILED, failed.getStatus());
+        assertEquals(3, failed.getAttempts());
+
+        ReflectionTestUtils.setField(chaincodeService, "installQuorum", 1.0);
+        attempts.clear();
+        assertFalse(install().isQuorumReached());
+    }
+
+    @Test
+    public void retriesEachPeerIndependently() throws Exception {
+        behaviours.put("peer1", Arrays.asList(new ProposalException("connection reset"), ChaincodeResponse.Status.SUCCESS));
+
+        InstallReport report = install();
+
+        assertEquals(InstallReport.Status.INSTALLED, report.getPeerResults().get("peer1").getStatus());
+        assertEquals(2, report.getPeerResults().get("peer1").getAttempts());
+        assertEquals(1, report.getPeerResults().get("peer0").getAttempts());
+    }
+
+    @Test
+    public void detectsAlreadyInstalledChaincodeFromPeer() throws Exception {
+        behaviours.put("peer0", Collections.singletonList(ChaincodeResponse.Status.FAILURE));
+        when(client.queryInstalledChaincodes(peers.get(0))).thenReturn(Collections.singletonList(
+                Query.ChaincodeInfo.newBuilder().setName("mycc").setVersion("v1").build()));
+
+        InstallReport.PeerResult result = install().getPeerResults().get("peer0");
+
+        assertEquals(InstallReport.Status.ALREADY_INSTALLED, result.getStatus());
+        assertEquals(1, result.getAttempts());
+    }
+
+    @Test
+    public void reportsTimedOutPeerOnce() throws Exception {
+        CountDownLatch never = new CountDownLatch(1);
+        behaviours.put("peer1", Collections.singletonList(never));
+        ReflectionTestUtils.setField(chaincodeService, "installTimeout", 200L);
+        Map<String, AtomicInteger> reported = new ConcurrentHashMap<>();
+        Set<Integer> completedCounts = ConcurrentHashMap.newKeySet();
+
+        InstallReport report = chaincodeService.installChaincodeOnPeers(CHANNEL_NAME, "mycc", "v1", "mycc", "/tmp", mock(User.class),
+                (result, completed, total) -> {
+                    reported.computeIfAbsent(result.getPeerName(), name -> new AtomicInteger()).incrementAndGet();
+                    completedCounts.add(completed);
+                });
+        // 被取消的安装线程结束后不会再上报
+        Thread.sleep(100);
+
+        assertEquals(InstallReport.Status.TIMEOUT, report.getPeerResults().get("peer1").getStatus());
+        assertEquals(3, reported.size());
+        for (AtomicInteger count : reported.values()) {
+            assertEquals(1, count.get());
+        }
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), completedCounts);
+    }
+
+    private InstallReport install() throws Exception {
+        return chaincodeService.installChaincodeOnPeers(CHANNEL_NAME, "mycc", "v1", "mycc", "/tmp", mock(User.class),
+                (result, completed, total) -> { });
+    }
+}
@@ -0,0 +1,181 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.ChannelService;
+import com.demo.fabric.blockchain.ConfigService;
+import com.demo.fabric.chaincode.ChaincodeService;
+import com.demo.fabric.chaincode.LatencyAwarePeerSelector;
+import com.demo.fabric.chaincode.TransactionSubmitter;
+import com.demo.fabric.utils.FutureUtil;
+import com.google.protobuf.ByteString;
+import org.hyperledger.fabric.sdk.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 智能合约异步调用测试: 在途数量上限、失败和超时归还名额、同步调用抛出异步失败
+ */
+public class ChaincodeInvokeTest {
+
+    private static final String CHANNEL_NAME = "mychannel";
+
+    private static final int MAX_IN_FLIGHT = 2;
+
+    private static final ChaincodeID CHAINCODE_ID = ChaincodeID.newBuilder().setName("mycc").setVersion("v1").setPath("mycc").build();
+
+    private ChaincodeService chaincodeService;
+
+    private Channel channel;
+
+    private Peer peer;
+
+    private TransactionSubmitter transactionSubmitter;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        HFClient client = mock(HFClient.class);
+        channel = mock(Channel.class);
+        peer = mock(Peer.class);
+        when(peer.getName()).thenReturn("peer0");
+        when(channel.getName()).thenReturn(CHANNEL_NAME);
+        when(channel.getPeers(any())).thenReturn(Collections.singletonList(peer));
+        when(client.newTransactionProposalRequest()).thenAnswer(invocation -> mock(TransactionProposalRequest.class));
+        when(client.getUserContext()).thenReturn(mock(User.class));
+
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getClient()).thenReturn(client);
+        ChannelService channelService = mock(ChannelService.class);
+        when(channelService.getChannel(CHANNEL_NAME)).thenReturn(channel);
+        transactionSubmitter = mock(TransactionSubmitter.class);
+
+        chaincodeService = new ChaincodeService();
+        ReflectionTestUtils.setField(chaincodeService, "configService", configService);
+        ReflectionTestUtils.setField(chaincodeService, "channelService", channelService);
+        ReflectionTestUtils.setField(chaincodeService, "transactionSubmitter", transactionSubmitter);
+        ReflectionTestUtils.setField(chaincodeService, "peerSelector", new LatencyAwarePeerSelector());
+        ReflectionTestUtils.setField(chaincodeService, "maxInFlight", MAX_IN_FLIGHT);
+        ReflectionTestUtils.setField(chaincodeService, "invokeThreads", 4);
+        ReflectionTestUtils.setField(chaincodeService, "queryThreads", 1);
+        ReflectionTestUtils.setField(chaincodeService, "installParallelism", 1);
+        ReflectionTestUtils.setField(chaincodeService, "endorsementRetries", 0);
+        ReflectionTestUtils.setField(chaincodeService, "proposalWaitTime", 1000L);
+        ReflectionTestUtils.setField(chaincodeService, "commitTimeout", 10000L);
+        ReflectionTestUtils.invokeMethod(chaincodeService, "init");
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        ReflectionTestUtils.invokeMethod(chaincodeService, "destroy");
+    }
+
+    @Test
+    public void rejectsInvokesOverLimitAndReleasesOnEndorseFailure() throws Exception {
+        when(channel.sendTransactionProposal(any(TransactionProposalRequest.class), anyCollection())).thenAnswer(invocation -> {
+            release.await();
+            throw new ProposalException("peer unavailable");
+        });
+
+        CompletableFuture<String> first = invoke();
+        CompletableFuture<String> second = invoke();
+        CompletableFuture<String> rejected = invoke();
+
+        assertTrue(rejected.isCompletedExceptionally());
+        assertTrue(cause(rejected) instanceof RejectedExecutionException);
+        assertEquals(0, availablePermits());
+
+        release.countDown();
+        assertTrue(cause(first) instanceof ProposalException);
+        assertTrue(cause(second) instanceof ProposalException);
+        awaitPermits(MAX_IN_FLIGHT);
+    }
+
+    @Test
+    public void timeoutReleasesPermit() throws Exception {
+        ReflectionTestUtils.setField(chaincodeService, "commitTimeout", 100L);
+        when(channel.sendTransactionProposal(any(TransactionProposalRequest.class), anyCollection())).thenAnswer(invocation -> {
+            release.await();
+            throw new ProposalException("peer unavailable");
+        });
+
+        CompletableFuture<String> timedOut = invoke();
+
+        assertTrue(cause(timedOut) instanceof TimeoutException);
+        // 背书仍阻塞, 名额已经归还
+        awaitPermits(MAX_IN_FLIGHT);
+        release.countDown();
+        Thread.sleep(50);
+        assertEquals(MAX_IN_FLIGHT, availablePermits());
+    }
+
+    @Test
+    public void syncInvokeThrowsBroadcastFailure() throws Exception {
+        ProposalResponse response = endorsement();
+        when(channel.sendTransactionProposal(any(TransactionProposalRequest.class), anyCollection()))
+                .thenReturn(Collections.singletonList(response));
+        when(transactionSubmitter.submit(any(Channel.class), anyCollection(), any()))
+                .thenReturn(FutureUtil.failed(new RejectedExecutionException("orderer rejected the transaction")));
+
+        try {
+            chaincodeService.invokeChaincode(CHAINCODE_ID, CHANNEL_NAME, "invoke", new String[]{"a", "b", "1"});
+            fail("broadcast failure should be thrown");
+        } catch (RejectedExecutionException e) {
+            assertEquals("orderer rejected the transaction", e.getMessage());
+        }
+        awaitPermits(MAX_IN_FLIGHT);
+    }
+
+    private CompletableFuture<String> invoke() {
+        return chaincodeService.invokeChaincodeAsync(CHAINCODE_ID, CHANNEL_NAME, "invoke", new String[]{"a", "b", "1"});
+    }
+
+    /**
+     * 名额在 future 完成后的回调中归还, 等待回调执行
+     */
+    private void awaitPermits(int expected) throws InterruptedException {
+        for (int i = 0; i < 100 && availablePermits() != expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, availablePermits());
+    }
+
+    private int availablePermits() {
+        return ((Semaphore) ReflectionTestUtils.getField(chaincodeService, "inFlight")).availablePermits();
+    }
+
+    private static Throwable cause(CompletableFuture<String> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("invoke should fail");
+            return null;
+        } catch (ExecutionException e) {
+            return FutureUtil.unwrap(e);
+        }
+    }
+
+    private ProposalResponse endorsement() throws Exception {
+        TxReadWriteSetInfo rwsetInfo = mock(TxReadWriteSetInfo.class);
+        when(rwsetInfo.getNsRwsetCount()).thenReturn(1);
+        ProposalResponse response = mock(ProposalResponse.class);
+        when(response.getStatus()).thenReturn(ChaincodeResponse.Status.SUCCESS);
+        when(response.getPeer()).thenReturn(peer);
+        when(response.getTransactionID()).thenReturn("tx1");
+        when(response.getPayloadBytes()).thenReturn(ByteString.copyFromUtf8("payload"));
+        when(response.getChaincodeActionResponseStatus()).thenReturn(200);
+        when(response.getChaincodeActionResponseReadWriteSetInfo()).thenReturn(rwsetInfo);
+        when(response.getChaincodeID()).thenReturn(CHAINCODE_ID);
+        return response;
+    }
+}
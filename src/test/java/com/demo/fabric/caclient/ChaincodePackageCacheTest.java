@@ -0,0 +1,128 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.chaincode.ChaincodePackageCache;
+import com.demo.fabric.utils.Util;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 智能合约包缓存测试: 源码不变时复用包、源码变化时重新打包、原子写入、超过容量时淘汰
+ */
+public class ChaincodePackageCacheTest {
+
+    private static final String PATH_PREFIX = "src/chaincode_example2";
+
+    private File sourceDir;
+
+    private Path cacheDir;
+
+    private ChaincodePackageCache packageCache;
+
+    @Before
+    public void setUp() throws IOException {
+        sourceDir = Files.createTempDirectory("chaincode-src").toFile();
+        cacheDir = Files.createTempDirectory("chaincode-packages");
+        FileUtils.writeStringToFile(new File(sourceDir, "main.go"), "package main\n", UTF_8);
+        packageCache = newPackageCache(Long.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(sourceDir);
+        FileUtils.deleteDirectory(cacheDir.toFile());
+    }
+
+    @Test
+    public void reusesPackageUntilSourceChanges() throws Exception {
+        byte[] first = read(packageCache);
+        assertArrayEquals(expected(), first);
+        assertEquals(1, packages().size());
+        FileTime packagedAt = Files.getLastModifiedTime(packages().get(0));
+
+        assertArrayEquals(first, read(packageCache));
+        // 新实例从磁盘复用已有的包
+        assertArrayEquals(first, read(newPackageCache(Long.MAX_VALUE)));
+        assertEquals(1, packages().size());
+        assertTrue(Files.getLastModifiedTime(packages().get(0)).compareTo(packagedAt) >= 0);
+
+        FileUtils.writeStringToFile(new File(sourceDir, "util.go"), "package main\n\nfunc util() {}\n", UTF_8);
+        assertArrayEquals(expected(), read(packageCache));
+        assertEquals(2, packages().size());
+    }
+
+    @Test
+    public void leavesNoTemporaryFiles() throws Exception {
+        Files.write(cacheDir.resolve("interrupted.tmp"), new byte[]{1, 2, 3});
+        packageCache = newPackageCache(Long.MAX_VALUE);
+
+        read(packageCache);
+
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            assertFalse(files.anyMatch(file -> file.toString().endsWith(".tmp")));
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedPackages() throws Exception {
+        packageCache = newPackageCache(1);
+        read(packageCache);
+        Path oldPackage = packages().get(0);
+
+        FileUtils.writeStringToFile(new File(sourceDir, "util.go"), "package main\n", UTF_8);
+        byte[] current = read(packageCache);
+
+        List<Path> packages = packages();
+        assertEquals(1, packages.size());
+        assertFalse(packages.contains(oldPackage));
+        assertArrayEquals(current, Files.readAllBytes(packages.get(0)));
+    }
+
+    private ChaincodePackageCache newPackageCache(long cacheMaxBytes) {
+        ChaincodePackageCache packageCache = new ChaincodePackageCache();
+        ReflectionTestUtils.setField(packageCache, "enabled", true);
+        ReflectionTestUtils.setField(packageCache, "cachePath", cacheDir.toString());
+        ReflectionTestUtils.setField(packageCache, "mappedEntries", 4);
+        ReflectionTestUtils.setField(packageCache, "cacheMaxBytes", cacheMaxBytes);
+        ReflectionTestUtils.setField(packageCache, "spillThreshold", Util.DEFAULT_SPILL_THRESHOLD);
+        ReflectionTestUtils.invokeMethod(packageCache, "init");
+        return packageCache;
+    }
+
+    private byte[] read(ChaincodePackageCache packageCache) throws IOException {
+        try (InputStream in = packageCache.open(sourceDir, PATH_PREFIX)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    private byte[] expected() throws IOException {
+        try (InputStream in = Util.generateTarGzInputStream(sourceDir, PATH_PREFIX, Integer.MAX_VALUE)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    private List<Path> packages() throws IOException {
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            return files.filter(file -> file.toString().endsWith(".tar.gz")).collect(Collectors.toList());
+        }
+    }
+}
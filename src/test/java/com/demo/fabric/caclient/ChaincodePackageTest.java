@@ -0,0 +1,115 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.utils.Util;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 智能合约打包测试
+ */
+public class ChaincodePackageTest {
+
+    private static final String PATH_PREFIX = "src/chaincode_example2";
+
+    private File sourceDir;
+
+    @Before
+    public void setUp() throws IOException {
+        sourceDir = Files.createTempDirectory("chaincode-src").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(sourceDir);
+    }
+
+    /**
+     * 内存模式和临时文件模式生成的包字节完全一致
+     * @throws Exception
+     */
+    @Test
+    public void spilledPackageMatchesInMemoryPackage() throws Exception {
+        writeSourceTree(40, 64 * 1024);
+        // 超过 100 字符的路径需要 GNU 长文件名扩展
+        File longPath = new File(sourceDir, "vendor/github.com/some-organization/some-really-long-repository-name/internal/pkg/subpkg/deeply_nested_file.go");
+        FileUtils.writeStringToFile(longPath, "package subpkg\n", UTF_8);
+
+        byte[] inMemory;
+        try (InputStream in = Util.generateTarGzInputStream(sourceDir, PATH_PREFIX, Integer.MAX_VALUE)) {
+            inMemory = IOUtils.toByteArray(in);
+        }
+        byte[] spilled;
+        try (InputStream in = Util.generateTarGzInputStream(sourceDir, PATH_PREFIX, 0)) {
+            spilled = IOUtils.toByteArray(in);
+        }
+        assertArrayEquals(inMemory, spilled);
+    }
+
+    /**
+     * 打包大目录时的堆内存峰值对比: 写入临时文件时堆内存峰值远低于内存模式
+     * @throws Exception
+     */
+    @Test
+    public void spilledPackageKeepsHeapPeakLow() throws Exception {
+        writeSourceTree(128, 256 * 1024);
+        long treeSize = FileUtils.sizeOfDirectory(sourceDir);
+
+        long inMemoryPeak = peakHeapWhilePackaging(Integer.MAX_VALUE);
+        long spilledPeak = peakHeapWhilePackaging(Util.DEFAULT_SPILL_THRESHOLD);
+
+        // 内存模式至少持有整个包, 临时文件模式只持有阈值大小的缓冲
+        assertTrue(format("in memory peak %d below source tree %d", inMemoryPeak, treeSize), inMemoryPeak >= treeSize);
+        assertTrue(format("spilled peak %d not well below in memory peak %d", spilledPeak, inMemoryPeak), spilledPeak * 4 < inMemoryPeak);
+    }
+
+    private long peakHeapWhilePackaging(int spillThreshold) throws IOException {
+        System.gc();
+        long baseline = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                baseline += pool.getUsage().getUsed();
+            }
+        }
+        try (InputStream in = Util.generateTarGzInputStream(sourceDir, PATH_PREFIX, spillThreshold)) {
+            IOUtils.copy(in, NullOutputStream.NULL_OUTPUT_STREAM);
+        }
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return Math.max(0, peak - baseline);
+    }
+
+    /**
+     * 生成源码目录, 随机内容不可压缩, 可以体现包大小
+     */
+    private void writeSourceTree(int files, int fileSize) throws IOException {
+        Random random = new Random(42);
+        byte[] content = new byte[fileSize];
+        for (int i = 0; i < files; i++) {
+            random.nextBytes(content);
+            FileUtils.writeByteArrayToFile(new File(sourceDir, format("pkg%d/file%d.go", i % 16, i)), content);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.ChannelService;
+import com.demo.fabric.blockchain.ConfigService;
+import com.demo.fabric.chaincode.ChaincodeService;
+import com.demo.fabric.chaincode.LatencyAwarePeerSelector;
+import com.demo.fabric.chaincode.QueryCache;
+import com.demo.fabric.domain.SampleUser;
+import com.google.protobuf.ByteString;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
+import org.hyperledger.fabric.sdk.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.*;
+
+/**
+ * 多身份并发调用共享 HFClient 的压力测试, 校验每个提案都携带调用方自己的身份
+ */
+public class ChaincodeServiceIdentityTest {
+
+    private static final String CHANNEL_NAME = "channel7";
+
+    private static final int IDENTITIES = 8;
+
+    private static final int THREADS = 32;
+
+    private static final int CALLS_PER_THREAD = 200;
+
+    private final AtomicInteger leaks = new AtomicInteger();
+
+    private ChaincodeService chaincodeService;
+
+    private HFClient client;
+
+    private User defaultUser;
+
+    @Before
+    public void setUp() throws Exception {
+        defaultUser = newUser("peerAdmin");
+        client = mock(HFClient.class);
+        Channel channel = mock(Channel.class);
+        Peer peer = mock(Peer.class);
+        when(peer.getName()).thenReturn("peer0.org1.example.com");
+
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getClient()).thenReturn(client);
+        when(client.getUserContext()).thenReturn(defaultUser);
+        when(client.getChannel(CHANNEL_NAME)).thenReturn(channel);
+        when(client.newQueryProposalRequest())
+                .thenAnswer(invocation -> mock(QueryByChaincodeRequest.class, CALLS_REAL_METHODS));
+        when(channel.getPeers(any())).thenReturn(Collections.singletonList(peer));
+        // 模拟 peer: 返回提案中携带的身份名称
+        when(channel.queryByChaincode(any(QueryByChaincodeRequest.class), anyCollection())).thenAnswer(invocation -> {
+            QueryByChaincodeRequest request = invocation.getArgument(0);
+            User user = request.getUserContext();
+            Thread.yield();
+            ProposalResponse response = mock(ProposalResponse.class);
+            when(response.getStatus()).thenReturn(ChaincodeResponse.Status.SUCCESS);
+            when(response.getPeer()).thenReturn(peer);
+            when(response.getProposalResponse()).thenReturn(FabricProposalResponse.ProposalResponse.newBuilder()
+                    .setResponse(FabricProposalResponse.Response.newBuilder()
+                            .setStatus(200)
+                            .setPayload(ByteString.copyFromUtf8(user.getName())))
+                    .build());
+            return Collections.singletonList(response);
+        });
+
+        chaincodeService = new ChaincodeService();
+        ReflectionTestUtils.setField(chaincodeService, "configService", configService);
+        ChannelService channelService = mock(ChannelService.class);
+        when(channelService.getChannel(CHANNEL_NAME)).thenReturn(channel);
+        ReflectionTestUtils.setField(chaincodeService, "channelService", channelService);
+        ReflectionTestUtils.setField(chaincodeService, "peerSelector", new LatencyAwarePeerSelector());
+        QueryCache queryCache = new QueryCache();
+        ReflectionTestUtils.invokeMethod(queryCache, "init");
+        ReflectionTestUtils.setField(chaincodeService, "queryCache", queryCache);
+        ReflectionTestUtils.setField(chaincodeService, "invokeThreads", 4);
+        ReflectionTestUtils.setField(chaincodeService, "installParallelism", 2);
+        ReflectionTestUtils.setField(chaincodeService, "queryThreads", THREADS);
+        ReflectionTestUtils.setField(chaincodeService, "queryTimeout", 30000L);
+        ReflectionTestUtils.setField(chaincodeService, "hedgeMinDelayMs", 20L);
+        ReflectionTestUtils.invokeMethod(chaincodeService, "init");
+    }
+
+    @After
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(chaincodeService, "destroy");
+    }
+
+    @Test
+    public void concurrentQueriesDoNotLeakIdentity() throws Exception {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < IDENTITIES; i++) {
+            users.add(newUser("user" + i));
+        }
+        ChaincodeID chaincodeID = ChaincodeID.newBuilder().setName("example2").setVersion("v1").setPath("chaincode_example2").build();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < CALLS_PER_THREAD; i++) {
+                    // 穿插使用默认身份, 确认默认身份也不会被其他请求覆盖
+                    User user = (thread + i) % (IDENTITIES + 1) == IDENTITIES ? defaultUser : users.get((thread + i) % (IDENTITIES + 1));
+                    String payload = user == defaultUser
+                            ? chaincodeService.queryByChaincode(chaincodeID, CHANNEL_NAME, "query", new String[]{"b"})
+                            : chaincodeService.queryByChaincode(chaincodeID, CHANNEL_NAME, "query", new String[]{"b"}, user);
+                    if (!user.getName().equals(payload)) {
+                        leaks.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(0, leaks.get());
+        verify(client, never()).setUserContext(any());
+    }
+
+    private static User newUser(String name) {
+        Enrollment enrollment = mock(Enrollment.class);
+        when(enrollment.getKey()).thenReturn(mock(PrivateKey.class));
+        when(enrollment.getCert()).thenReturn("-----BEGIN CERTIFICATE-----");
+        SampleUser user = new SampleUser(name, "Org1");
+        user.setMspId("Org1MSP");
+        user.setEnrollment(enrollment);
+        return user;
+    }
+}
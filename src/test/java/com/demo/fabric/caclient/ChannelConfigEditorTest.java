@@ -0,0 +1,137 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.ChannelConfigEditor;
+import com.demo.fabric.blockchain.ConfigUpdateComputer;
+import com.google.protobuf.ByteString;
+import org.hyperledger.fabric.protos.common.Configtx;
+import org.hyperledger.fabric.protos.orderer.Configuration.BatchSize;
+import org.hyperledger.fabric.protos.orderer.Configuration.BatchTimeout;
+import org.hyperledger.fabric.protos.peer.Configuration.AnchorPeers;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * channel 配置编辑和 ConfigUpdate 计算测试
+ */
+public class ChannelConfigEditorTest {
+
+    private static final String CHANNEL_NAME = "mychannel";
+
+    private Configtx.Config config;
+
+    @Before
+    public void setUp() {
+        Configtx.ConfigGroup orderer = Configtx.ConfigGroup.newBuilder()
+                .setVersion(0)
+                .setModPolicy("Admins")
+                .putValues("BatchTimeout", value(3, BatchTimeout.newBuilder().setTimeout("2s").build().toByteArray()))
+                .putValues("BatchSize", value(1, BatchSize.newBuilder()
+                        .setMaxMessageCount(10).setAbsoluteMaxBytes(99 * 1024 * 1024).setPreferredMaxBytes(512 * 1024)
+                        .build().toByteArray()))
+                .putGroups("OrdererOrg", Configtx.ConfigGroup.newBuilder().setVersion(0).setModPolicy("Admins").build())
+                .build();
+        Configtx.ConfigGroup org1 = Configtx.ConfigGroup.newBuilder()
+                .setVersion(1)
+                .setModPolicy("Admins")
+                .putValues("MSP", value(0, new byte[]{1, 2, 3}))
+                .build();
+        Configtx.ConfigGroup application = Configtx.ConfigGroup.newBuilder()
+                .setVersion(1)
+                .setModPolicy("Admins")
+                .putGroups("Org1MSP", org1)
+                .build();
+        config = Configtx.Config.newBuilder()
+                .setSequence(3)
+                .setChannelGroup(Configtx.ConfigGroup.newBuilder()
+                        .setVersion(0)
+                        .setModPolicy("Admins")
+                        .putGroups("Orderer", orderer)
+                        .putGroups("Application", application))
+                .build();
+    }
+
+    @Test
+    public void batchTimeoutUpdateTouchesOnlyOrdererValue() throws Exception {
+        ChannelConfigEditor editor = ChannelConfigEditor.of(config);
+        assertEquals("2s", editor.getBatchTimeout());
+        editor.setBatchTimeout("5s");
+        assertEquals("5s", editor.getBatchTimeout());
+
+        Configtx.ConfigUpdate update = Configtx.ConfigUpdate.parseFrom(editor.computeUpdate(CHANNEL_NAME));
+        assertEquals(CHANNEL_NAME, update.getChannelId());
+
+        // 读集: 修改路径上的 group 保持原版本号, 未修改的 Application 不出现
+        Configtx.ConfigGroup readOrderer = update.getReadSet().getGroupsOrThrow("Orderer");
+        assertEquals(0, update.getReadSet().getVersion());
+        assertFalse(update.getReadSet().containsGroups("Application"));
+        assertEquals(0, readOrderer.getVersion());
+        assertTrue(readOrderer.getValuesMap().isEmpty());
+
+        // 写集: 只有 BatchTimeout 版本号加 1, group 版本号不变
+        Configtx.ConfigGroup writeOrderer = update.getWriteSet().getGroupsOrThrow("Orderer");
+        assertEquals(0, update.getWriteSet().getVersion());
+        assertEquals(0, writeOrderer.getVersion());
+        assertEquals(1, writeOrderer.getValuesCount());
+        Configtx.ConfigValue batchTimeout = writeOrderer.getValuesOrThrow("BatchTimeout");
+        assertEquals(4, batchTimeout.getVersion());
+        assertEquals("Admins", batchTimeout.getModPolicy());
+        assertEquals("5s", BatchTimeout.parseFrom(batchTimeout.getValue()).getTimeout());
+    }
+
+    @Test
+    public void addingAnchorPeerBumpsOrgGroupVersion() throws Exception {
+        ChannelConfigEditor editor = ChannelConfigEditor.of(config);
+        assertTrue(editor.getAnchorPeers("Org1MSP").isEmpty());
+        editor.addAnchorPeer("Org1MSP", "peer0.org1.example.com", 7051);
+
+        Configtx.ConfigUpdate update = Configtx.ConfigUpdate.parseFrom(editor.computeUpdate(CHANNEL_NAME));
+        Configtx.ConfigGroup readOrg = update.getReadSet().getGroupsOrThrow("Application").getGroupsOrThrow("Org1MSP");
+        Configtx.ConfigGroup writeOrg = update.getWriteSet().getGroupsOrThrow("Application").getGroupsOrThrow("Org1MSP");
+
+        // 新增成员时 group 版本号加 1, 未修改的成员以原版本号出现在读集和写集中
+        assertEquals(1, readOrg.getVersion());
+        assertEquals(2, writeOrg.getVersion());
+        assertEquals(0, readOrg.getValuesOrThrow("MSP").getVersion());
+        assertEquals(0, writeOrg.getValuesOrThrow("MSP").getVersion());
+        assertTrue(writeOrg.getValuesOrThrow("MSP").getValue().isEmpty());
+
+        Configtx.ConfigValue anchorPeers = writeOrg.getValuesOrThrow("AnchorPeers");
+        assertEquals(0, anchorPeers.getVersion());
+        assertEquals("Admins", anchorPeers.getModPolicy());
+        AnchorPeers decoded = AnchorPeers.parseFrom(anchorPeers.getValue());
+        assertEquals("peer0.org1.example.com", decoded.getAnchorPeers(0).getHost());
+        assertEquals(7051, decoded.getAnchorPeers(0).getPort());
+        assertEquals(1, update.getWriteSet().getGroupsOrThrow("Application").getVersion());
+    }
+
+    @Test
+    public void unchangedConfigHasNoUpdate() throws Exception {
+        ChannelConfigEditor editor = ChannelConfigEditor.of(config).setBatchTimeout("2s");
+        assertFalse(editor.isModified());
+        assertFalse(ConfigUpdateComputer.hasDifferences(config, editor.build()));
+        try {
+            editor.computeUpdate(CHANNEL_NAME);
+            fail("expected no differences");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("no differences"));
+        }
+    }
+
+    @Test
+    public void roundTripsThroughConfigBytes() throws Exception {
+        ChannelConfigEditor editor = ChannelConfigEditor.parse(config.toByteArray()).setBatchSize(50, 99 * 1024 * 1024, 1024 * 1024);
+        BatchSize batchSize = ChannelConfigEditor.parse(editor.build().toByteArray()).getBatchSize();
+        assertEquals(50, batchSize.getMaxMessageCount());
+        assertEquals(1024 * 1024, batchSize.getPreferredMaxBytes());
+    }
+
+    private static Configtx.ConfigValue value(long version, byte[] bytes) {
+        return Configtx.ConfigValue.newBuilder()
+                .setVersion(version)
+                .setModPolicy("Admins")
+                .setValue(ByteString.copyFrom(bytes))
+                .build();
+    }
+}
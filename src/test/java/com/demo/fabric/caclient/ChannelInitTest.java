@@ -0,0 +1,161 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.BlockEventDispatcher;
+import com.demo.fabric.blockchain.ChannelService;
+import com.demo.fabric.blockchain.ConfigService;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.NetworkConfig;
+import org.hyperledger.fabric.sdk.exception.TransactionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * channel 初始化测试: 启动时共用一个截止时间、使用时等待其他线程的初始化不会无限阻塞、失败后重新初始化
+ */
+public class ChannelInitTest {
+
+    private static final long INIT_TIMEOUT = 300;
+
+    private ChannelService channelService;
+
+    private HFClient client;
+
+    private NetworkConfig networkConfig;
+
+    private final Set<String> channelNames = new LinkedHashSet<>();
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        client = mock(HFClient.class);
+        networkConfig = mock(NetworkConfig.class);
+        when(networkConfig.getChannelNames()).thenReturn(channelNames);
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getClient()).thenReturn(client);
+        when(configService.getBlockchainConfig()).thenReturn(networkConfig);
+
+        channelService = new ChannelService();
+        ReflectionTestUtils.setField(channelService, "configService", configService);
+        ReflectionTestUtils.setField(channelService, "blockEventDispatcher", mock(BlockEventDispatcher.class));
+        ReflectionTestUtils.setField(channelService, "initParallelism", 4);
+        ReflectionTestUtils.setField(channelService, "initTimeout", INIT_TIMEOUT);
+        ReflectionTestUtils.setField(channelService, "lazyInit", false);
+        ReflectionTestUtils.setField(channelService, "initFailFast", false);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+        ExecutorService initExecutor = (ExecutorService) ReflectionTestUtils.getField(channelService, "initExecutor");
+        if (initExecutor != null) {
+            initExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void startupUsesSingleDeadlineForAllChannels() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            blockingChannel("channel" + i, new AtomicInteger());
+        }
+
+        long start = System.nanoTime();
+        ReflectionTestUtils.invokeMethod(channelService, "initChannel");
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("took " + elapsed + " ms", elapsed < 2 * INIT_TIMEOUT);
+        Map<?, ?> channels = (Map<?, ?>) channelService.initStatistics().get("channels");
+        assertEquals(3, channels.size());
+        for (Object status : channels.values()) {
+            assertNotEquals("INITIALIZED", ((Map<?, ?>) status).get("state"));
+        }
+    }
+
+    @Test
+    public void concurrentUseWaitsAtMostInitTimeout() throws Exception {
+        AtomicInteger initializations = new AtomicInteger();
+        Channel channel = blockingChannel("channel0", initializations);
+        when(client.getChannel("channel0")).thenReturn(channel);
+
+        Future<Channel> first = executor.submit(() -> channelService.getChannel("channel0"));
+        while (initializations.get() == 0) {
+            Thread.sleep(5);
+        }
+        long start = System.nanoTime();
+        Future<Channel> second = executor.submit(() -> channelService.getChannel("channel0"));
+        try {
+            second.get(5 * INIT_TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("second caller should time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5 * INIT_TIMEOUT);
+
+        release.countDown();
+        assertSame(channel, first.get(5, TimeUnit.SECONDS));
+        assertSame(channel, channelService.getChannel("channel0"));
+        assertEquals(1, initializations.get());
+    }
+
+    @Test
+    public void retriesFailedInitializationOnNextUse() throws Exception {
+        Channel channel = mock(Channel.class);
+        when(channel.getName()).thenReturn("channel0");
+        AtomicBoolean initialized = new AtomicBoolean();
+        when(channel.isInitialized()).thenAnswer(invocation -> initialized.get());
+        when(channel.initialize())
+                .thenThrow(new TransactionException("orderer unavailable"))
+                .thenAnswer(invocation -> {
+                    initialized.set(true);
+                    return true;
+                });
+        when(client.getChannel("channel0")).thenReturn(channel);
+
+        try {
+            channelService.getChannel("channel0");
+            fail("first initialization should fail");
+        } catch (TransactionException e) {
+            assertEquals("orderer unavailable", e.getMessage());
+        }
+        assertSame(channel, channelService.getChannel("channel0"));
+        assertTrue(initialized.get());
+    }
+
+    /**
+     * 初始化阻塞到 release 的 channel
+     */
+    private Channel blockingChannel(String channelName, AtomicInteger initializations) throws Exception {
+        Channel channel = mock(Channel.class);
+        when(channel.getName()).thenReturn(channelName);
+        AtomicBoolean initialized = new AtomicBoolean();
+        when(channel.isInitialized()).thenAnswer(invocation -> initialized.get());
+        doAnswer(invocation -> {
+            initializations.incrementAndGet();
+            release.await();
+            initialized.set(true);
+            return true;
+        }).when(channel).initialize();
+        when(client.loadChannelFromConfig(channelName, networkConfig)).thenReturn(channel);
+        channelNames.add(channelName);
+        return channel;
+    }
+}
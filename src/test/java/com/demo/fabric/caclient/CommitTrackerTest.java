@@ -0,0 +1,131 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.chaincode.CommitTracker;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.exception.TransactionEventException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 交易提交跟踪测试: 有效交易完成、无效交易失败、超时过期、发送失败
+ */
+public class CommitTrackerTest {
+
+    private CommitTracker commitTracker;
+
+    @Before
+    public void setUp() {
+        commitTracker = new CommitTracker();
+        ReflectionTestUtils.setField(commitTracker, "enabled", true);
+        ReflectionTestUtils.setField(commitTracker, "commitTimeout", 200L);
+        ReflectionTestUtils.invokeMethod(commitTracker, "init");
+    }
+
+    @After
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(commitTracker, "destroy");
+    }
+
+    @Test
+    public void completesTrackedTransactionsFromBlock() throws Exception {
+        CompletableFuture<BlockEvent.TransactionEvent> valid = commitTracker.track("tx1");
+        CompletableFuture<BlockEvent.TransactionEvent> untouched = commitTracker.track("tx3");
+        BlockEvent.TransactionEvent event1 = transaction("tx1", true, (byte) 0);
+
+        commitTracker.received(block(event1, transaction("tx2", true, (byte) 0)));
+
+        assertSame(event1, valid.get(1, TimeUnit.SECONDS));
+        assertFalse(untouched.isDone());
+        assertEquals(1, pending().size());
+    }
+
+    @Test
+    public void failsInvalidTransactionWithValidationCode() throws Exception {
+        CompletableFuture<BlockEvent.TransactionEvent> future = commitTracker.track("tx1");
+        BlockEvent.TransactionEvent event = transaction("tx1", false, (byte) 11);
+
+        commitTracker.received(block(event));
+
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("invalid transaction should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TransactionEventException);
+            assertSame(event, ((TransactionEventException) e.getCause()).getTransactionEvent());
+            assertTrue(e.getCause().getMessage().contains("11"));
+        }
+        assertTrue(pending().isEmpty());
+    }
+
+    @Test
+    public void expiresUncommittedTransactions() throws Exception {
+        CompletableFuture<BlockEvent.TransactionEvent> future = commitTracker.track("tx1");
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("transaction should expire");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        // 过期在调度线程中完成, 等待其移除跟踪
+        for (int i = 0; i < 100 && !pending().isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(pending().isEmpty());
+
+        // 过期后同一交易 ID 可以重新跟踪, 迟到的区块不影响已过期的 future
+        CompletableFuture<BlockEvent.TransactionEvent> retried = commitTracker.track("tx1");
+        commitTracker.received(block(transaction("tx1", true, (byte) 0)));
+        assertTrue(retried.isDone());
+        assertTrue(future.isCompletedExceptionally());
+    }
+
+    @Test
+    public void failsTransactionThatCouldNotBeSent() {
+        CompletableFuture<BlockEvent.TransactionEvent> future = commitTracker.track("tx1");
+        IllegalStateException sendFailure = new IllegalStateException("orderer unavailable");
+
+        commitTracker.fail("tx1", sendFailure);
+
+        assertTrue(future.isCompletedExceptionally());
+        assertTrue(pending().isEmpty());
+        try {
+            commitTracker.track("tx2");
+            commitTracker.track("tx2");
+            fail("duplicate tracking should be rejected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("tx2"));
+        }
+    }
+
+    private Map<?, ?> pending() {
+        return (Map<?, ?>) ReflectionTestUtils.getField(commitTracker, "pending");
+    }
+
+    private static BlockEvent.TransactionEvent transaction(String txID, boolean valid, byte validationCode) {
+        BlockEvent.TransactionEvent transactionEvent = mock(BlockEvent.TransactionEvent.class);
+        when(transactionEvent.getTransactionID()).thenReturn(txID);
+        when(transactionEvent.isValid()).thenReturn(valid);
+        when(transactionEvent.getValidationCode()).thenReturn(validationCode);
+        return transactionEvent;
+    }
+
+    private static BlockEvent block(BlockEvent.TransactionEvent... transactionEvents) {
+        BlockEvent blockEvent = mock(BlockEvent.class);
+        when(blockEvent.getChannelId()).thenReturn("mychannel");
+        when(blockEvent.getTransactionEvents()).thenReturn(Arrays.asList(transactionEvents));
+        return blockEvent;
+    }
+}
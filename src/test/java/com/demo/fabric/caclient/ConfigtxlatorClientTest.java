@@ -0,0 +1,131 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.ConfigtxlatorClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * configtxlator 客户端测试, 使用本地模拟的 configtxlator 校验批量解码顺序和连接复用
+ */
+public class ConfigtxlatorClientTest {
+
+    private static final int CHANNELS = 32;
+
+    private static final int UPDATES = 50;
+
+    /**
+     * 模拟 configtxlator 处理耗时(毫秒)
+     */
+    private static final long SERVER_DELAY_MS = 2;
+
+    private HttpServer server;
+
+    private ExecutorService serverExecutor;
+
+    private String location;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    private ConfigtxlatorClient configtxlatorClient;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // decode/encode/compute 都原样返回请求体
+        server.createContext("/", this::echo);
+        serverExecutor = Executors.newFixedThreadPool(CHANNELS);
+        server.setExecutor(serverExecutor);
+        server.start();
+        location = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        configtxlatorClient = new ConfigtxlatorClient();
+        ReflectionTestUtils.setField(configtxlatorClient, "location", location);
+        ReflectionTestUtils.setField(configtxlatorClient, "maxConnections", 16);
+        ReflectionTestUtils.setField(configtxlatorClient, "connectTimeout", 5000);
+        ReflectionTestUtils.setField(configtxlatorClient, "socketTimeout", 30000);
+        ReflectionTestUtils.invokeMethod(configtxlatorClient, "init");
+    }
+
+    @After
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(configtxlatorClient, "destroy");
+        server.stop(0);
+        serverExecutor.shutdown();
+    }
+
+    @Test
+    public void decodeAllKeepsChannelOrder() throws Exception {
+        Map<String, byte[]> configs = new LinkedHashMap<>();
+        for (int i = 0; i < CHANNELS; i++) {
+            configs.put("channel" + i, ("config" + i).getBytes(UTF_8));
+        }
+        Map<String, String> decoded = configtxlatorClient.decodeAll(configs);
+        assertEquals(CHANNELS, decoded.size());
+        int i = 0;
+        for (Map.Entry<String, String> entry : decoded.entrySet()) {
+            assertEquals("channel" + i, entry.getKey());
+            assertEquals("config" + i, entry.getValue());
+            i++;
+        }
+    }
+
+    /**
+     * 一次更新需要 decode、encode、compute、decode 四次请求, 连续更新复用连接池中的连接
+     * @throws Exception
+     */
+    @Test
+    public void updateCycleReusesPooledConnections() throws Exception {
+        byte[] config = new byte[16 * 1024];
+        for (int i = 0; i < config.length; i++) {
+            config[i] = (byte) i;
+        }
+        for (int i = 0; i < UPDATES; i++) {
+            String json = configtxlatorClient.decode(config);
+            byte[] encoded = configtxlatorClient.encode(json);
+            assertArrayEquals(json.getBytes(UTF_8), encoded);
+            assertTrue(configtxlatorClient.computeUpdate("channel" + i, config, encoded).length > encoded.length);
+            configtxlatorClient.decode(config);
+        }
+        assertEquals(4 * UPDATES, requests.get());
+        // 每次更新新建 HttpClient 时每次更新至少一个连接
+        assertTrue("connections: " + clientPorts.size(), clientPorts.size() <= 2);
+    }
+
+    private void echo(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+        try {
+            Thread.sleep(SERVER_DELAY_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
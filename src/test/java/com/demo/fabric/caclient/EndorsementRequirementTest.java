@@ -0,0 +1,128 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.ConfigService;
+import com.demo.fabric.chaincode.EndorsementRequirement;
+import com.demo.fabric.chaincode.LatencyAwarePeerSelector;
+import org.hyperledger.fabric.sdk.NetworkConfig;
+import org.hyperledger.fabric.sdk.Peer;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 背书策略解析和选择测试: n-of 嵌套、同一 MSP 的多条 signed-by 选择不同 peer、无法满足时返回空
+ */
+public class EndorsementRequirementTest {
+
+    private static final String IDENTITIES = "identities:\n"
+            + "  user1: {\"role\": {\"name\": \"member\", \"mspId\": \"Org1MSP\"}}\n"
+            + "  user2: {\"role\": {\"name\": \"member\", \"mspId\": \"Org2MSP\"}}\n";
+
+    private LatencyAwarePeerSelector peerSelector;
+
+    private List<Peer> peers;
+
+    @Before
+    public void setUp() {
+        NetworkConfig.OrgInfo org1 = orgInfo("Org1MSP", "peer0.org1", "peer1.org1");
+        NetworkConfig.OrgInfo org2 = orgInfo("Org2MSP", "peer0.org2");
+        NetworkConfig networkConfig = mock(NetworkConfig.class);
+        when(networkConfig.getOrganizationInfos()).thenReturn(Arrays.asList(org1, org2));
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getBlockchainConfig()).thenReturn(networkConfig);
+
+        peerSelector = new LatencyAwarePeerSelector();
+        ReflectionTestUtils.setField(peerSelector, "configService", configService);
+        ReflectionTestUtils.setField(peerSelector, "alpha", 0.5);
+        ReflectionTestUtils.setField(peerSelector, "failurePenaltyMs", 5000L);
+        peers = Arrays.asList(peer("peer0.org1"), peer("peer1.org1"), peer("peer0.org2"));
+        // peer0.org1 最快, peer0.org2 最慢
+        record("peer0.org1", 10);
+        record("peer1.org1", 20);
+        record("peer0.org2", 30);
+    }
+
+    @Test
+    public void choosesCheapestPeerPerRule() throws Exception {
+        EndorsementRequirement requirement = parse("policy:\n  1-of:\n    - signed-by: \"user1\"\n    - signed-by: \"user2\"\n");
+
+        assertEquals(Collections.singletonList("peer0.org1"), select(requirement, Collections.emptySet()));
+        assertEquals(Collections.singletonList("peer1.org1"), select(requirement, Collections.singleton("peer0.org1")));
+    }
+
+    @Test
+    public void choosesOnePeerPerOrganizationForAllOf() throws Exception {
+        EndorsementRequirement requirement = parse("policy:\n  2-of:\n    - signed-by: \"user1\"\n"
+                + "    - 1-of:\n        - signed-by: \"user2\"\n");
+
+        assertEquals(Arrays.asList("peer0.org1", "peer0.org2"), sorted(select(requirement, Collections.emptySet())));
+        assertTrue(select(requirement, Collections.singleton("peer0.org2")).isEmpty());
+    }
+
+    @Test
+    public void choosesDistinctPeersForRepeatedMsp() throws Exception {
+        EndorsementRequirement requirement = parse("policy:\n  2-of:\n    - signed-by: \"user1\"\n    - signed-by: \"user1\"\n");
+
+        assertEquals(Arrays.asList("peer0.org1", "peer1.org1"), sorted(select(requirement, Collections.emptySet())));
+        assertTrue(select(requirement, Collections.singleton("peer1.org1")).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownIdentity() throws Exception {
+        parse("policy:\n  signed-by: \"user3\"\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingPolicy() throws Exception {
+        parse("");
+    }
+
+    private EndorsementRequirement parse(String policy) throws Exception {
+        Path file = Files.createTempFile("endorsement-policy", ".yaml");
+        Files.write(file, (IDENTITIES + policy).getBytes(UTF_8));
+        File policyFile = file.toFile();
+        policyFile.deleteOnExit();
+        return EndorsementRequirement.fromYamlFile(policyFile);
+    }
+
+    private List<String> select(EndorsementRequirement requirement, Set<String> excluded) {
+        return peerSelector.select(peers, requirement, excluded).stream().map(Peer::getName).collect(Collectors.toList());
+    }
+
+    private void record(String peerName, long millis) {
+        Peer peer = peers.stream().filter(p -> p.getName().equals(peerName)).findFirst().get();
+        peerSelector.onSend(peer);
+        peerSelector.onResponse(peer, millis * 1_000_000, true);
+    }
+
+    private static List<String> sorted(List<String> names) {
+        List<String> result = new ArrayList<>(names);
+        Collections.sort(result);
+        return result;
+    }
+
+    private static Peer peer(String name) {
+        Peer peer = mock(Peer.class);
+        when(peer.getName()).thenReturn(name);
+        return peer;
+    }
+
+    private static NetworkConfig.OrgInfo orgInfo(String mspId, String... peerNames) {
+        NetworkConfig.OrgInfo orgInfo = mock(NetworkConfig.OrgInfo.class);
+        when(orgInfo.getMspId()).thenReturn(mspId);
+        when(orgInfo.getPeerNames()).thenReturn(Arrays.asList(peerNames));
+        return orgInfo;
+    }
+}
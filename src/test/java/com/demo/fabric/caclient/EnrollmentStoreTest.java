@@ -0,0 +1,170 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.ConfigService;
+import org.hyperledger.fabric.sdk.Enrollment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 本地证书存储测试: 覆盖写入、并发覆盖、重新加载、截断不完整记录、校验失败、只允许所有者访问
+ */
+public class EnrollmentStoreTest {
+
+    private Path dir;
+
+    private EnrollmentStore store;
+
+    private KeyPairGenerator generator;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("enrollment-store");
+        generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        store = open();
+    }
+
+    @After
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(store, "destroy");
+    }
+
+    @Test
+    public void storesAndReloadsEnrollments() throws Exception {
+        KeyPair keyPair = generator.generateKeyPair();
+        store.put("Org1", "user1", enrollment(generator.generateKeyPair(), "cert-1"));
+        store.put("Org1", "user1", enrollment(keyPair, "cert-2"));
+        store.put("Org2", "user1", enrollment(generator.generateKeyPair(), "cert-3"));
+
+        assertEquals("cert-2", store.get("Org1", "user1").getCert());
+        assertNull(store.get("Org1", "user2"));
+
+        ReflectionTestUtils.invokeMethod(store, "destroy");
+        store = open();
+
+        assertEquals(2, store.size());
+        assertTrue(store.contains("Org2", "user1"));
+        Enrollment reloaded = store.get("Org1", "user1");
+        assertEquals("cert-2", reloaded.getCert());
+        assertArrayEquals(keyPair.getPrivate().getEncoded(), reloaded.getKey().getEncoded());
+    }
+
+    @Test
+    public void concurrentOverwritesKeepIndexOnLastRecord() throws Exception {
+        KeyPair keyPair = generator.generateKeyPair();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                String cert = "cert-" + i;
+                futures.add(executor.submit(() -> {
+                    store.put("Org1", "user1", enrollment(keyPair, cert));
+                    return store.get("Org1", "user1");
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        String latest = store.get("Org1", "user1").getCert();
+
+        // 重新加载时以文件中最后一条记录为准, 与内存中的索引一致
+        ReflectionTestUtils.invokeMethod(store, "destroy");
+        store = open();
+        assertEquals(latest, store.get("Org1", "user1").getCert());
+    }
+
+    @Test
+    public void truncatesIncompleteTail() throws Exception {
+        store.put("Org1", "user1", enrollment(generator.generateKeyPair(), "cert-1"));
+        store.put("Org1", "user2", enrollment(generator.generateKeyPair(), "cert-2"));
+        ReflectionTestUtils.invokeMethod(store, "destroy");
+        Path file = dir.resolve("enrollments.log");
+        long size = Files.size(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(size - 10);
+        }
+
+        store = open();
+
+        assertTrue(store.contains("Org1", "user1"));
+        assertFalse(store.contains("Org1", "user2"));
+        store.put("Org1", "user3", enrollment(generator.generateKeyPair(), "cert-3"));
+        assertEquals("cert-3", store.get("Org1", "user3").getCert());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCorruptedRecord() throws Exception {
+        store.put("Org1", "user1", enrollment(generator.generateKeyPair(), "cert-1"));
+        ReflectionTestUtils.invokeMethod(store, "destroy");
+        try (RandomAccessFile raf = new RandomAccessFile(dir.resolve("enrollments.log").toFile(), "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xff);
+        }
+
+        store = open();
+        store.get("Org1", "user1");
+    }
+
+    @Test
+    public void restrictsStoreToOwner() throws Exception {
+        assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Path keystore = dir.resolve("keystore");
+        Path file = keystore.resolve("enrollments.log");
+        EnrollmentStore restricted = open(keystore);
+        restricted.put("Org1", "user1", enrollment(generator.generateKeyPair(), "cert-1"));
+        ReflectionTestUtils.invokeMethod(restricted, "destroy");
+        assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(keystore));
+        assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(file));
+
+        // 以默认权限创建的旧文件在打开时收紧
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r--r--"));
+        restricted = open(keystore);
+        assertEquals(1, restricted.size());
+        ReflectionTestUtils.invokeMethod(restricted, "destroy");
+        assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(file));
+    }
+
+    private EnrollmentStore open() {
+        return open(dir);
+    }
+
+    private EnrollmentStore open(Path keystore) {
+        EnrollmentStore enrollmentStore = new EnrollmentStore();
+        ReflectionTestUtils.setField(enrollmentStore, "keystore", keystore.toString());
+        ReflectionTestUtils.setField(enrollmentStore, "cacheSize", 16);
+        return enrollmentStore;
+    }
+
+    private static Enrollment enrollment(KeyPair keyPair, String cert) {
+        return new ConfigService.SampleStoreEnrollement(keyPair.getPrivate(), cert);
+    }
+}
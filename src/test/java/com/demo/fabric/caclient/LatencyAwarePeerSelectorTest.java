@@ -0,0 +1,87 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.chaincode.LatencyAwarePeerSelector;
+import org.hyperledger.fabric.sdk.Peer;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 按延迟选择 peer 测试: EWMA 平滑、在途数加权、失败惩罚、排除失败 peer
+ */
+public class LatencyAwarePeerSelectorTest {
+
+    private LatencyAwarePeerSelector peerSelector;
+
+    private Peer fast;
+
+    private Peer slow;
+
+    @Before
+    public void setUp() {
+        peerSelector = new LatencyAwarePeerSelector();
+        ReflectionTestUtils.setField(peerSelector, "alpha", 0.5);
+        ReflectionTestUtils.setField(peerSelector, "failurePenaltyMs", 1000L);
+        fast = peer("fast");
+        slow = peer("slow");
+    }
+
+    @Test
+    public void smoothsLatencyWithEwma() {
+        respond(fast, 10, true);
+        assertEquals(10.0, peerSelector.getEwmaMillis("fast"), 1e-9);
+        respond(fast, 30, true);
+        assertEquals(20.0, peerSelector.getEwmaMillis("fast"), 1e-9);
+        assertEquals(0.0, peerSelector.getEwmaMillis("unknown"), 1e-9);
+    }
+
+    @Test
+    public void ordersByLatencyAndInFlight() {
+        respond(fast, 10, true);
+        respond(slow, 25, true);
+        assertEquals(Arrays.asList("fast", "slow"), select());
+
+        // fast 有 2 个在途提案: 10 * 3 > 25 * 1
+        peerSelector.onSend(fast);
+        peerSelector.onSend(fast);
+        assertEquals(Arrays.asList("slow", "fast"), select());
+    }
+
+    @Test
+    public void penalizesFailuresAndHonoursExclusions() {
+        respond(fast, 10, true);
+        respond(slow, 50, true);
+        respond(fast, 10, false);
+        assertEquals(505.0, peerSelector.getEwmaMillis("fast"), 1e-9);
+        assertEquals(Arrays.asList("slow", "fast"), select());
+
+        List<String> names = peerSelector.select(Arrays.asList(fast, slow), null, Collections.singleton("slow"))
+                .stream().map(Peer::getName).collect(Collectors.toList());
+        assertEquals(Collections.singletonList("fast"), names);
+    }
+
+    private List<String> select() {
+        return peerSelector.select(Arrays.asList(fast, slow), null, Collections.emptySet())
+                .stream().map(Peer::getName).collect(Collectors.toList());
+    }
+
+    private void respond(Peer peer, long millis, boolean success) {
+        peerSelector.onSend(peer);
+        peerSelector.onResponse(peer, millis * 1_000_000, success);
+    }
+
+    private static Peer peer(String name) {
+        Peer peer = mock(Peer.class);
+        when(peer.getName()).thenReturn(name);
+        return peer;
+    }
+}
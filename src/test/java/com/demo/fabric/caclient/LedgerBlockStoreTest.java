@@ -0,0 +1,171 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.LedgerBlockStore;
+import com.google.protobuf.ByteString;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 本地区块存储测试: 分段写入、索引查询、重启回放、丢弃不完整记录、未命中时查询 peer
+ */
+public class LedgerBlockStoreTest {
+
+    private static final String CHANNEL_NAME = "mychannel";
+
+    private Path storePath;
+
+    private LedgerBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        storePath = Files.createTempDirectory("ledger");
+        store = newStore();
+    }
+
+    @After
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(store, "destroy");
+    }
+
+    @Test
+    public void indexesBlocksAcrossSegmentsAndRestart() throws Exception {
+        byte[] previousHash = new byte[0];
+        for (long i = 0; i < 10; i++) {
+            Common.Block block = block(i, previousHash);
+            assertTrue(store.append(CHANNEL_NAME, block));
+            previousHash = hash(block.getHeader());
+        }
+        assertFalse(store.append(CHANNEL_NAME, block(3, new byte[0])));
+
+        ReflectionTestUtils.invokeMethod(store, "destroy");
+        store = newStore();
+
+        assertEquals(7, store.getBlock(CHANNEL_NAME, 7).getHeader().getNumber());
+        assertEquals(3, store.getBlockByTransactionID(CHANNEL_NAME, "tx-3").getHeader().getNumber());
+        Common.Block last = store.getBlock(CHANNEL_NAME, 9);
+        assertEquals(8, store.getBlockByHash(CHANNEL_NAME, last.getHeader().getPreviousHash().toByteArray()).getHeader().getNumber());
+        assertEquals(9, store.getBlockByHash(CHANNEL_NAME, previousHash).getHeader().getNumber());
+        assertNull(store.getBlock(CHANNEL_NAME, 10));
+    }
+
+    @Test
+    public void discardsTornRecordWithoutLeavingStaleData() throws Exception {
+        Common.Block first = block(0, new byte[0]);
+        Common.Block second = block(1, new byte[0]);
+        byte[] stale = block(7, new byte[0]).toByteArray();
+        store.append(CHANNEL_NAME, first);
+        ReflectionTestUtils.invokeMethod(store, "destroy");
+
+        // 模拟写到一半退出的长记录: 长度还没写, 内容中恰好有一条完整的旧记录, 位于之后写入的较短记录的后面
+        int tornPosition = 4 + first.getSerializedSize();
+        int stalePosition = tornPosition + 4 + second.getSerializedSize();
+        Path segment = storePath.resolve(CHANNEL_NAME).resolve("00000000.seg");
+        assertTrue(stalePosition + 4 + stale.length <= Files.size(segment));
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ByteBuffer torn = ByteBuffer.allocate(stalePosition - tornPosition - 4 + 4 + stale.length);
+            while (torn.position() < stalePosition - tornPosition - 4) {
+                torn.put((byte) 0x7f);
+            }
+            torn.putInt(stale.length).put(stale).flip();
+            channel.write(torn, tornPosition + 4);
+        }
+
+        store = newStore();
+        assertNull(store.getBlock(CHANNEL_NAME, 7));
+        assertTrue(store.append(CHANNEL_NAME, second));
+        ReflectionTestUtils.invokeMethod(store, "destroy");
+
+        store = newStore();
+        assertEquals(1, store.getBlock(CHANNEL_NAME, 1).getHeader().getNumber());
+        assertNull(store.getBlock(CHANNEL_NAME, 7));
+    }
+
+    @Test
+    public void queriesPeerOnMissAndServesLocallyAfterwards() throws Exception {
+        User user = mock(User.class);
+        Channel channel = mock(Channel.class);
+        when(channel.getName()).thenReturn(CHANNEL_NAME);
+        BlockInfo fromPeer = mock(BlockInfo.class);
+        when(fromPeer.isFiltered()).thenReturn(false);
+        when(fromPeer.getBlock()).thenReturn(block(5, new byte[0]));
+        when(channel.queryBlockByNumber(5, user)).thenReturn(fromPeer);
+
+        assertSame(fromPeer, store.queryBlockByNumber(channel, 5, user));
+        assertTrue(store.contains(CHANNEL_NAME, 5));
+
+        BlockInfo local = store.queryBlockByNumber(channel, 5, user);
+        assertEquals(5, local.getBlockNumber());
+        assertEquals("tx-5", store.queryTransactionByID(channel, "tx-5", user).getTransactionID());
+        verify(channel, times(1)).queryBlockByNumber(5, user);
+    }
+
+    private LedgerBlockStore newStore() throws Exception {
+        LedgerBlockStore store = new LedgerBlockStore();
+        ReflectionTestUtils.setField(store, "enabled", true);
+        ReflectionTestUtils.setField(store, "storePath", storePath.toString());
+        ReflectionTestUtils.setField(store, "segmentBytes", 512);
+        ReflectionTestUtils.invokeMethod(store, "init");
+        return store;
+    }
+
+    private static Common.Block block(long number, byte[] previousHash) {
+        Common.ChannelHeader channelHeader = Common.ChannelHeader.newBuilder()
+                .setChannelId(CHANNEL_NAME)
+                .setTxId("tx-" + number)
+                .setType(Common.HeaderType.ENDORSER_TRANSACTION_VALUE)
+                .build();
+        Common.Payload payload = Common.Payload.newBuilder()
+                .setHeader(Common.Header.newBuilder().setChannelHeader(channelHeader.toByteString()))
+                .setData(ByteString.copyFrom("payload-" + number, UTF_8))
+                .build();
+        Common.Envelope envelope = Common.Envelope.newBuilder().setPayload(payload.toByteString()).build();
+        return Common.Block.newBuilder()
+                .setHeader(Common.BlockHeader.newBuilder()
+                        .setNumber(number)
+                        .setPreviousHash(ByteString.copyFrom(previousHash))
+                        .setDataHash(ByteString.copyFrom("data-" + number, UTF_8)))
+                .setData(Common.BlockData.newBuilder().addData(envelope.toByteString()))
+                .setMetadata(Common.BlockMetadata.newBuilder()
+                        .addMetadata(ByteString.EMPTY)
+                        .addMetadata(ByteString.EMPTY)
+                        .addMetadata(ByteString.copyFrom(new byte[]{0}))
+                        .addMetadata(ByteString.EMPTY))
+                .build();
+    }
+
+    private static byte[] hash(Common.BlockHeader header) throws Exception {
+        byte[] encoded = new DERSequence(new ASN1Encodable[]{
+                new ASN1Integer(header.getNumber()),
+                new DEROctetString(header.getPreviousHash().toByteArray()),
+                new DEROctetString(header.getDataHash().toByteArray())}).getEncoded();
+        return MessageDigest.getInstance("SHA-256").digest(encoded);
+    }
+}
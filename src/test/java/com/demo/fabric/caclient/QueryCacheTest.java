@@ -0,0 +1,176 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.chaincode.QueryCache;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.ChaincodeID;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.hyperledger.fabric.sdk.User;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 查询缓存测试: 读集 key 失效、范围查询失效、过滤区块清空并绕过缓存、失效后不残留空索引
+ */
+public class QueryCacheTest {
+
+    private static final String CHANNEL_NAME = "mychannel";
+
+    private static final ChaincodeID CHAINCODE_ID = ChaincodeID.newBuilder().setName("mycc").setVersion("1.0").build();
+
+    private QueryCache queryCache;
+
+    private User user;
+
+    @Before
+    public void setUp() {
+        queryCache = new QueryCache();
+        ReflectionTestUtils.setField(queryCache, "enabled", true);
+        ReflectionTestUtils.setField(queryCache, "maxBytes", 1L << 20);
+        ReflectionTestUtils.invokeMethod(queryCache, "init");
+        user = mock(User.class);
+        when(user.getMspId()).thenReturn("Org1MSP");
+        when(user.getName()).thenReturn("user1");
+    }
+
+    @Test
+    public void invalidatesEntriesReadingWrittenKey() throws Exception {
+        QueryCache.Key keyA = key("a");
+        QueryCache.Key keyB = key("b");
+        queryCache.put(keyA, "1", rwset(read("a")), queryCache.stamp(CHANNEL_NAME));
+        queryCache.put(keyB, "2", rwset(read("b")), queryCache.stamp(CHANNEL_NAME));
+
+        queryCache.received(block(false, write("a")));
+
+        assertNull(queryCache.get(keyA));
+        assertEquals("2", queryCache.get(keyB));
+    }
+
+    @Test
+    public void skipsResultWhenChannelChangedDuringQuery() throws Exception {
+        long stamp = queryCache.stamp(CHANNEL_NAME);
+        queryCache.received(block(false, write("x")));
+
+        queryCache.put(key("a"), "1", rwset(read("a")), stamp);
+
+        assertNull(queryCache.get(key("a")));
+    }
+
+    @Test
+    public void invalidatesRangeQueryOnWriteInsideRange() throws Exception {
+        QueryCache.Key bounded = key("k1", "k5");
+        QueryCache.Key open = key("m");
+        queryCache.put(bounded, "range", rwset(range("k1", "k5")), queryCache.stamp(CHANNEL_NAME));
+        queryCache.put(open, "open", rwset(range("m", "")), queryCache.stamp(CHANNEL_NAME));
+
+        queryCache.received(block(false, write("k5"), write("a")));
+        assertEquals("range", queryCache.get(bounded));
+        assertEquals("open", queryCache.get(open));
+
+        queryCache.received(block(false, write("k3")));
+        assertNull(queryCache.get(bounded));
+        assertEquals("open", queryCache.get(open));
+
+        queryCache.received(block(false, write("z")));
+        assertNull(queryCache.get(open));
+    }
+
+    @Test
+    public void filteredBlockClearsChannelAndBypassesCache() throws Exception {
+        QueryCache.Key keyA = key("a");
+        queryCache.put(keyA, "1", rwset(read("a")), queryCache.stamp(CHANNEL_NAME));
+
+        queryCache.received(block(true));
+        assertNull(queryCache.get(keyA));
+
+        queryCache.put(keyA, "1", rwset(read("a")), queryCache.stamp(CHANNEL_NAME));
+        assertNull(queryCache.get(keyA));
+
+        queryCache.received(block(false));
+        queryCache.put(keyA, "1", rwset(read("a")), queryCache.stamp(CHANNEL_NAME));
+        assertEquals("1", queryCache.get(keyA));
+    }
+
+    @Test
+    public void removesEmptyIndexSetsOnEviction() throws Exception {
+        queryCache.put(key("k1", "k5"), "range", rwset(read("a"), range("k1", "k5")), queryCache.stamp(CHANNEL_NAME));
+
+        queryCache.received(block(false, write("k3")));
+
+        assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(queryCache, "readIndex")).isEmpty());
+        assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(queryCache, "rangeIndex")).isEmpty());
+    }
+
+    @Test
+    public void acceptsNullArgs() {
+        assertEquals(queryCache.key(CHANNEL_NAME, CHAINCODE_ID, "query", null, user),
+                queryCache.key(CHANNEL_NAME, CHAINCODE_ID, "query", new String[0], user));
+    }
+
+    private QueryCache.Key key(String... args) {
+        return queryCache.key(CHANNEL_NAME, CHAINCODE_ID, "query", args, user);
+    }
+
+    private static KvRwset.KVRead read(String key) {
+        return KvRwset.KVRead.newBuilder().setKey(key).build();
+    }
+
+    private static KvRwset.RangeQueryInfo range(String startKey, String endKey) {
+        return KvRwset.RangeQueryInfo.newBuilder().setStartKey(startKey).setEndKey(endKey).setItrExhausted(true).build();
+    }
+
+    private static KvRwset.KVWrite write(String key) {
+        return KvRwset.KVWrite.newBuilder().setKey(key).build();
+    }
+
+    private static TxReadWriteSetInfo rwset(Object... entries) {
+        KvRwset.KVRWSet.Builder rwset = KvRwset.KVRWSet.newBuilder();
+        for (Object entry : entries) {
+            if (entry instanceof KvRwset.KVRead) {
+                rwset.addReads((KvRwset.KVRead) entry);
+            } else if (entry instanceof KvRwset.RangeQueryInfo) {
+                rwset.addRangeQueriesInfo((KvRwset.RangeQueryInfo) entry);
+            } else {
+                rwset.addWrites((KvRwset.KVWrite) entry);
+            }
+        }
+        TxReadWriteSetInfo.NsRwsetInfo nsRwsetInfo = mock(TxReadWriteSetInfo.NsRwsetInfo.class);
+        when(nsRwsetInfo.getNamespace()).thenReturn("mycc");
+        try {
+            when(nsRwsetInfo.getRwset()).thenReturn(rwset.build());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        TxReadWriteSetInfo rwsetInfo = mock(TxReadWriteSetInfo.class);
+        when(rwsetInfo.getNsRwsetInfos()).thenReturn(Collections.singletonList(nsRwsetInfo));
+        return rwsetInfo;
+    }
+
+    private static BlockEvent block(boolean filtered, KvRwset.KVWrite... writes) {
+        BlockEvent blockEvent = mock(BlockEvent.class);
+        when(blockEvent.getChannelId()).thenReturn(CHANNEL_NAME);
+        when(blockEvent.isFiltered()).thenReturn(filtered);
+        if (filtered) {
+            return blockEvent;
+        }
+        TxReadWriteSetInfo rwsetInfo = rwset((Object[]) writes);
+        BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo actionInfo = mock(BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo.class);
+        when(actionInfo.getTxReadWriteSet()).thenReturn(rwsetInfo);
+        BlockEvent.TransactionEvent transactionEvent = mock(BlockEvent.TransactionEvent.class);
+        when(transactionEvent.isValid()).thenReturn(true);
+        when(transactionEvent.getTransactionActionInfos()).thenReturn(Collections.singletonList(actionInfo));
+        when(blockEvent.getTransactionEvents()).thenReturn(Collections.singletonList(transactionEvent));
+        return blockEvent;
+    }
+}
@@ -0,0 +1,200 @@
+package com.demo.fabric.caclient;
+
+import com.demo.fabric.blockchain.BlockBackfillService;
+import com.demo.fabric.blockchain.ConfigService;
+import com.demo.fabric.blockchain.WorldStateProjection;
+import com.google.protobuf.ByteString;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 本地世界状态视图测试: 应用写集、删除、重启回放、丢弃不完整区块、水位、后台补齐
+ */
+public class WorldStateProjectionTest {
+
+    private static final String CHANNEL_NAME = "mychannel";
+
+    private Path projectionPath;
+
+    private WorldStateProjection projection;
+
+    @Before
+    public void setUp() throws Exception {
+        projectionPath = Files.createTempDirectory("worldstate");
+        projection = newProjection();
+    }
+
+    @After
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(projection, "destroy");
+    }
+
+    @Test
+    public void appliesWritesAndReplaysAfterRestart() {
+        projection.received(block(0, put("a", "1"), put("b", "2")));
+        projection.received(block(1, put("a", "3"), delete("b")));
+        projection.received(block(1, put("a", "stale")));
+
+        assertEquals("3", projection.getString(CHANNEL_NAME, "mycc", "a"));
+        assertNull(projection.get(CHANNEL_NAME, "mycc", "b"));
+        assertEquals(1, projection.getWatermark(CHANNEL_NAME));
+
+        ReflectionTestUtils.invokeMethod(projection, "destroy");
+        projection = newProjection();
+
+        assertEquals(1, projection.getWatermark(CHANNEL_NAME));
+        assertEquals("3", projection.getString(CHANNEL_NAME, "mycc", "a"));
+        assertNull(projection.get(CHANNEL_NAME, "mycc", "b"));
+    }
+
+    @Test
+    public void skipsGapWhenCatchUpIsDisabled() {
+        projection.received(block(0, put("a", "1")));
+        projection.received(block(5, put("c", "5")));
+
+        assertEquals(5, projection.getWatermark(CHANNEL_NAME));
+        assertEquals("5", projection.getString(CHANNEL_NAME, "mycc", "c"));
+    }
+
+    private WorldStateProjection newProjection() {
+        WorldStateProjection projection = new WorldStateProjection();
+        ReflectionTestUtils.setField(projection, "enabled", true);
+        ReflectionTestUtils.setField(projection, "projectionPath", projectionPath.toString());
+        ReflectionTestUtils.setField(projection, "segmentBytes", 1024);
+        ReflectionTestUtils.setField(projection, "catchUp", false);
+        ReflectionTestUtils.invokeMethod(projection, "init");
+        return projection;
+    }
+
+    @Test
+    public void discardsWritesOfIncompleteBlockOnReplay() throws Exception {
+        projection.received(block(0, put("a", "1")));
+        ReflectionTestUtils.invokeMethod(projection, "destroy");
+
+        // 模拟区块 1 的写集已追加、区块结束记录还没写入时退出
+        Path segment = projectionPath.resolve(CHANNEL_NAME).resolve("00000000.seg");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer lengths = ByteBuffer.allocate(4);
+            long position = 0;
+            while (true) {
+                lengths.clear();
+                channel.read(lengths, position);
+                int length = lengths.getInt(0);
+                if (length == 0) {
+                    break;
+                }
+                position += 4 + length;
+            }
+            byte[] ns = "mycc".getBytes(UTF_8);
+            byte[] key = "a".getBytes(UTF_8);
+            byte[] value = "torn".getBytes(UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(4 + 9 + ns.length + key.length + value.length);
+            record.putInt(record.capacity() - 4).put((byte) 0)
+                    .putInt(ns.length).put(ns).putInt(key.length).put(key).put(value).flip();
+            channel.write(record, position);
+        }
+
+        projection = newProjection();
+        assertEquals(0, projection.getWatermark(CHANNEL_NAME));
+        assertEquals("1", projection.getString(CHANNEL_NAME, "mycc", "a"));
+
+        projection.received(block(1, put("b", "2")));
+        ReflectionTestUtils.invokeMethod(projection, "destroy");
+        projection = newProjection();
+
+        assertEquals(1, projection.getWatermark(CHANNEL_NAME));
+        assertEquals("1", projection.getString(CHANNEL_NAME, "mycc", "a"));
+        assertEquals("2", projection.getString(CHANNEL_NAME, "mycc", "b"));
+    }
+
+    @Test
+    public void catchesUpInBackgroundWithoutBlockingEvents() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BlockBackfillService blockBackfillService = mock(BlockBackfillService.class);
+        when(blockBackfillService.backfill(eq(CHANNEL_NAME), anyLong(), anyLong(), any(), any())).thenAnswer(invocation -> {
+            release.await();
+            long fromBlock = invocation.getArgument(1);
+            long toBlock = invocation.getArgument(2);
+            BlockBackfillService.BlockSink sink = invocation.getArgument(4);
+            for (long blockNumber = fromBlock; blockNumber < toBlock; blockNumber++) {
+                sink.accept(block(blockNumber, put("k" + blockNumber, String.valueOf(blockNumber))));
+            }
+            return toBlock - fromBlock;
+        });
+        ReflectionTestUtils.setField(projection, "catchUp", true);
+        ReflectionTestUtils.setField(projection, "blockBackfillService", blockBackfillService);
+        ReflectionTestUtils.setField(projection, "configService", mock(ConfigService.class));
+
+        projection.received(block(0, put("k0", "0")));
+        projection.received(block(5, put("k5", "5")));
+        projection.received(block(6, put("k6", "6")));
+        assertEquals(0, projection.getWatermark(CHANNEL_NAME));
+
+        release.countDown();
+        for (int i = 0; i < 500 && projection.getWatermark(CHANNEL_NAME) < 6; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(6, projection.getWatermark(CHANNEL_NAME));
+        for (int i = 0; i <= 6; i++) {
+            assertEquals(String.valueOf(i), projection.getString(CHANNEL_NAME, "mycc", "k" + i));
+        }
+    }
+
+    private static KvRwset.KVWrite put(String key, String value) {
+        return KvRwset.KVWrite.newBuilder().setKey(key).setValue(ByteString.copyFrom(value, UTF_8)).build();
+    }
+
+    private static KvRwset.KVWrite delete(String key) {
+        return KvRwset.KVWrite.newBuilder().setKey(key).setIsDelete(true).build();
+    }
+
+    private static BlockEvent block(long number, KvRwset.KVWrite... writes) {
+        KvRwset.KVRWSet.Builder rwset = KvRwset.KVRWSet.newBuilder();
+        for (KvRwset.KVWrite write : writes) {
+            rwset.addWrites(write);
+        }
+        TxReadWriteSetInfo.NsRwsetInfo nsRwsetInfo = mock(TxReadWriteSetInfo.NsRwsetInfo.class);
+        when(nsRwsetInfo.getNamespace()).thenReturn("mycc");
+        try {
+            when(nsRwsetInfo.getRwset()).thenReturn(rwset.build());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        TxReadWriteSetInfo rwsetInfo = mock(TxReadWriteSetInfo.class);
+        when(rwsetInfo.getNsRwsetInfos()).thenReturn(Collections.singletonList(nsRwsetInfo));
+        BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo actionInfo = mock(BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo.class);
+        when(actionInfo.getTxReadWriteSet()).thenReturn(rwsetInfo);
+        BlockEvent.TransactionEvent transactionEvent = mock(BlockEvent.TransactionEvent.class);
+        when(transactionEvent.getType()).thenReturn(BlockInfo.EnvelopeType.TRANSACTION_ENVELOPE);
+        when(transactionEvent.isValid()).thenReturn(true);
+        when(transactionEvent.getTransactionActionInfos()).thenReturn(Collections.singletonList(actionInfo));
+        BlockEvent blockEvent = mock(BlockEvent.class);
+        when(blockEvent.getChannelId()).thenReturn(CHANNEL_NAME);
+        when(blockEvent.getBlockNumber()).thenReturn(number);
+        when(blockEvent.getEnvelopeInfos()).thenReturn(Collections.singletonList(transactionEvent));
+        return blockEvent;
+    }
+}